@@ -5,7 +5,9 @@ import android.content.Intent
 import android.content.pm.ActivityInfo
 import android.graphics.Bitmap
 import android.graphics.Color
+import android.net.Uri
 import android.os.Bundle
+import android.util.Log
 import android.widget.TextView
 import androidx.appcompat.app.AppCompatActivity
 import com.blankj.utilcode.util.ToastUtils
@@ -59,13 +61,27 @@ class LivePreviewActivity : AppCompatActivity() {
         //仅识别条形码
 //        val options = BarcodeScannerOptions.Builder().setBarcodeFormats(Barcode.FORMAT_CODABAR).build()
         mlKit.setBarcodeFormats(null)
+        //只识别扫描框内的区域，全屏扫描时识别整个画面
+        mlKit.setScanRegion(finderView)
+        //识别结果附带识别所用预览帧的快照，直接显示，无需再转换图片
+        mlKit.setResultSnapshot(true)
         mlKit.setOnScanListener(object : MLKit.OnScanListener{
             override fun onSuccess(
                 barcodes: MutableList<Barcode>?,
                 graphicOverlay: GraphicOverlay,
                 image: InputImage?
             ) {
-                showScanResult(barcodes,graphicOverlay,image)
+                showScanResult(barcodes,graphicOverlay,image,null)
+            }
+
+            override fun onSuccess(
+                barcodes: MutableList<Barcode>?,
+                graphicOverlay: GraphicOverlay,
+                image: InputImage?,
+                frameMetadata: FrameMetadata?,
+                snapshot: Bitmap?
+            ) {
+                showScanResult(barcodes,graphicOverlay,image,snapshot)
             }
 
             override fun onFail(code: Int, e: Exception?) {}
@@ -76,7 +92,17 @@ class LivePreviewActivity : AppCompatActivity() {
                 graphicOverlay: GraphicOverlay,
                 image: InputImage?
             ) {
-                showRecognizeResult(text,graphicOverlay,image)
+                showRecognizeResult(text,graphicOverlay,image,null)
+            }
+
+            override fun onSuccess(
+                text: Text?,
+                graphicOverlay: GraphicOverlay,
+                image: InputImage?,
+                frameMetadata: FrameMetadata?,
+                snapshot: Bitmap?
+            ) {
+                showRecognizeResult(text,graphicOverlay,image,snapshot)
             }
 
             override fun onFail(code: Int, e: Exception?) {}
@@ -97,9 +123,12 @@ class LivePreviewActivity : AppCompatActivity() {
         }
     }
 
-    private fun showScanResult(barcodes: MutableList<Barcode>?, graphicOverlay: GraphicOverlay, image: InputImage?){
-        if (barcodes.isNullOrEmpty()) return
-        val bitmap = addCameraImageGraphic(graphicOverlay,image)
+    private fun showScanResult(barcodes: MutableList<Barcode>?, graphicOverlay: GraphicOverlay, image: InputImage?, snapshot: Bitmap?){
+        if (barcodes.isNullOrEmpty()) {
+            CameraImageGraphic.showOrRecycleSnapshot(graphicOverlay, snapshot)
+            return
+        }
+        val bitmap = addCameraImageGraphic(graphicOverlay,image,snapshot)
         for (barcode in barcodes){
             val graphic = WxGraphic(graphicOverlay,barcode)
             graphic.setColor(Color.WHITE)
@@ -122,9 +151,12 @@ class LivePreviewActivity : AppCompatActivity() {
         }
     }
 
-    private fun showRecognizeResult(text: Text?, graphicOverlay: GraphicOverlay, image: InputImage?){
-        if (text?.text.isNullOrEmpty()) return
-        val bitmap = addCameraImageGraphic(graphicOverlay,image)
+    private fun showRecognizeResult(text: Text?, graphicOverlay: GraphicOverlay, image: InputImage?, snapshot: Bitmap?){
+        if (text?.text.isNullOrEmpty()) {
+            CameraImageGraphic.showOrRecycleSnapshot(graphicOverlay, snapshot)
+            return
+        }
+        val bitmap = addCameraImageGraphic(graphicOverlay,image,snapshot)
         val graphic = FitSizeTextGraphic(graphicOverlay, text!!)
         if (graphic.isDisplayStillImage){
             graphic.setStillImageHeight(bitmap!!.height)
@@ -138,13 +170,13 @@ class LivePreviewActivity : AppCompatActivity() {
         }
     }
 
-    private fun addCameraImageGraphic(graphicOverlay: GraphicOverlay, image: InputImage?) : Bitmap? {
-        val byteBuffer = image?.byteBuffer
-        val bitmap = if (byteBuffer != null){
-            val builder = FrameMetadata.Builder().setWidth(image.width).setHeight(image.height)
-                .setRotation(image.rotationDegrees)
-            BitmapUtils.getBitmap(byteBuffer,builder.build())
-        }else image?.bitmapInternal
+    private fun addCameraImageGraphic(graphicOverlay: GraphicOverlay, image: InputImage?, snapshot: Bitmap?) : Bitmap? {
+        //预览帧快照已按GraphicOverlay的尺寸渲染好，原样画出，结果被清除时回收；识别图片时直接使用图片本身
+        if (snapshot != null){
+            graphicOverlay.add(CameraImageGraphic(graphicOverlay,snapshot,BitmapPool.getInstance(),true))
+            return snapshot
+        }
+        val bitmap = image?.bitmapInternal
         if (bitmap != null){
             graphicOverlay.add(CameraImageGraphic(graphicOverlay,bitmap))
         }
@@ -172,7 +204,7 @@ class LivePreviewActivity : AppCompatActivity() {
             .captureStrategy(
                 CaptureStrategy(true, "com.sjqnice.mlkit.fileprovider", "MLKit")
             )
-            .maxSelectable(1)
+            .maxSelectable(MAX_SELECTABLE_PHOTOS)
             .gridExpectedSize(resources.getDimensionPixelSize(R.dimen.dp_120))
             .restrictOrientation(ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED)
             .thumbnailScale(0.85f)
@@ -184,12 +216,48 @@ class LivePreviewActivity : AppCompatActivity() {
     override fun onActivityResult(requestCode: Int, resultCode: Int, data: Intent?) {
         super.onActivityResult(requestCode, resultCode, data)
         if (requestCode == REQUEST_CODE_PHOTO && resultCode == RESULT_OK){
-            val uri = Matisse.obtainResult(data)
-            mlKit.scanningImage(uri?.get(0))
+            val uris = Matisse.obtainResult(data).orEmpty()
+            if (uris.size > 1) {
+                scanPhotos(uris)
+            } else if (uris.isNotEmpty()) {
+                mlKit.scanningImage(uris[0])
+            }
         }
     }
 
+    //多选时批量识别，逐张提示识别结果，最后提示总数
+    private fun scanPhotos(uris: List<Uri>) {
+        val values = mutableSetOf<String>()
+        mlKit.scanningImages(uris, object : BatchImageScanner.Listener {
+            override fun onImageScanned(
+                index: Int,
+                uri: Uri,
+                barcodes: MutableList<Barcode>,
+                stats: BatchImageScanner.Stats
+            ) {
+                barcodes.mapNotNullTo(values) { it.rawValue }
+                Log.d(TAG, "Scanned ${uri}: ${barcodes.size} barcodes, $stats")
+            }
+
+            override fun onImageFailed(
+                index: Int,
+                uri: Uri,
+                e: Exception,
+                stats: BatchImageScanner.Stats
+            ) {
+                Log.w(TAG, "Failed to scan ${uri}, $stats", e)
+            }
+
+            override fun onBatchComplete(stats: BatchImageScanner.Stats) {
+                if (isFinishing) return
+                ToastUtils.showLong("${stats.total}张图片中识别到${values.size}个条码")
+            }
+        })
+    }
+
     companion object{
+        private const val TAG = "LivePreviewActivity"
         private const val REQUEST_CODE_PHOTO = 11111
+        private const val MAX_SELECTABLE_PHOTOS = 200
     }
 }
\ No newline at end of file
@@ -0,0 +1,398 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import com.google.android.gms.tasks.TaskExecutors;
+import com.google.android.gms.tasks.Tasks;
+import com.google.mlkit.vision.barcode.BarcodeScanner;
+import com.google.mlkit.vision.barcode.BarcodeScannerOptions;
+import com.google.mlkit.vision.barcode.BarcodeScanning;
+import com.google.mlkit.vision.barcode.common.Barcode;
+import com.google.mlkit.vision.common.InputImage;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans many gallery images for barcodes, e.g. hundreds of photos taken in the field.
+ *
+ * <p>Each worker decodes an image with a {@link SampledImageDecoder} and detects on it with its own
+ * detector client, so that one image is decoded while another is detected. The number of workers
+ * follows the memory budget: every worker holds at most one image, and its bitmaps are capped to
+ * its share of the budget, so a batch never takes more than the budget however many images it
+ * has. Results are streamed to a {@link Listener} on the main thread as images complete.
+ */
+public final class BatchImageScanner implements Closeable {
+  private static final String TAG = "BatchImageScanner";
+
+  /** Width images are decoded at for detection, unless the memory budget asks for less. */
+  static final int DETECTION_WIDTH = 1600;
+
+  private static final int MAX_WORKER_COUNT = 4;
+
+  /** Share of the heap all workers may take together. */
+  private static final int HEAP_FRACTION = 4;
+
+  /** Receives the results of a batch on the main thread. */
+  public interface Listener {
+    /**
+     * Called as soon as an image has been scanned, in the order images complete.
+     *
+     * @param index the position of the image in the batch
+     * @param barcodes the barcodes found, with bounds relative to the image as decoded, i.e.
+     *     upright and at most {@link #DETECTION_WIDTH} wide
+     */
+    void onImageScanned(int index, Uri uri, List<Barcode> barcodes, Stats stats);
+
+    /**
+     * Called instead of {@link #onImageScanned} for an image whose result was found in the {@link
+     * ScanResultCache}; the image was neither decoded nor detected.
+     */
+    default void onImageCached(int index, Uri uri, ScanResultCache.Entry entry, Stats stats) {}
+
+    /** Called for an image that could not be decoded or scanned. */
+    void onImageFailed(int index, Uri uri, Exception e, Stats stats);
+
+    /** Called once every image of the batch has been scanned or has failed. */
+    void onBatchComplete(Stats stats);
+
+    /**
+     * Called instead of {@link #onBatchComplete} once a batch was cancelled, or its scanner closed,
+     * and the images that were being scanned then have reported.
+     */
+    default void onBatchCancelled(Stats stats) {}
+  }
+
+  /** Progress of a batch. */
+  public static final class Stats {
+    public final int total;
+    /** Images scanned so far, including those that failed. */
+    public final int completed;
+
+    public final int failed;
+    public final long elapsedMs;
+
+    Stats(int total, int completed, int failed, long elapsedMs) {
+      this.total = total;
+      this.completed = completed;
+      this.failed = failed;
+      this.elapsedMs = elapsedMs;
+    }
+
+    /** Returns the images completed per second since the batch started. */
+    public float getImagesPerSecond() {
+      return elapsedMs > 0 ? completed * 1000f / elapsedMs : 0f;
+    }
+
+    public boolean isDone() {
+      return completed == total;
+    }
+
+    @Override
+    public String toString() {
+      return completed
+          + "/"
+          + total
+          + " images, "
+          + failed
+          + " failed, "
+          + getImagesPerSecond()
+          + " images/s";
+    }
+  }
+
+  /** One call of {@link #scan}, which can be watched and cancelled while it runs. */
+  public final class Batch {
+    private final List<Uri> uris;
+    private final Listener listener;
+    private final long startMs = SystemClock.elapsedRealtime();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile boolean cancelled;
+
+    @GuardedBy("BatchImageScanner.this")
+    private int started;
+
+    @GuardedBy("BatchImageScanner.this")
+    private int reported;
+
+    @GuardedBy("BatchImageScanner.this")
+    private boolean finished;
+
+    private Batch(List<Uri> uris, Listener listener) {
+      this.uris = uris;
+      this.listener = listener;
+    }
+
+    /** Returns the progress so far; may be called from any thread. */
+    public Stats getStats() {
+      return new Stats(
+          uris.size(), completed.get(), failed.get(), SystemClock.elapsedRealtime() - startMs);
+    }
+
+    /**
+     * Skips the images that have not been started yet. Images being scanned still report, and then
+     * {@link Listener#onBatchCancelled} is called instead of {@link Listener#onBatchComplete}. Does
+     * nothing once the batch has finished.
+     */
+    public void cancel() {
+      synchronized (BatchImageScanner.this) {
+        if (cancelled || finished) {
+          return;
+        }
+        cancelled = true;
+        if (reported == started) {
+          finishCancelled();
+        }
+      }
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    private void scanImage(int index) {
+      synchronized (BatchImageScanner.this) {
+        if (cancelled) {
+          return;
+        }
+        started++;
+        scanning++;
+      }
+      Uri uri = uris.get(index);
+      ScanResultCache cache = resultCache;
+      String cacheKey =
+          cache != null ? ScanResultCache.keyFor(contentResolver, uri, cacheVariant) : null;
+      ScanResultCache.Entry cached = cacheKey != null ? cache.get(cacheKey) : null;
+      if (cached != null) {
+        report(index, uri, null, cached, null);
+        return;
+      }
+
+      List<Barcode> barcodes = null;
+      Exception error = null;
+      try {
+        barcodes = detect(uri, cache, cacheKey);
+      } catch (Exception e) {
+        Log.w(TAG, "Failed to scan " + uri, e);
+        error = e;
+      }
+      report(index, uri, barcodes, null, error);
+    }
+
+    // Counts and posts together, so that the listener sees the counts rise and the batch complete
+    // or cancel after the last image.
+    private void report(
+        int index,
+        Uri uri,
+        @Nullable List<Barcode> barcodes,
+        @Nullable ScanResultCache.Entry cached,
+        @Nullable Exception error) {
+      synchronized (BatchImageScanner.this) {
+        if (error != null) {
+          failed.incrementAndGet();
+        }
+        completed.incrementAndGet();
+        Stats stats = getStats();
+        TaskExecutors.MAIN_THREAD.execute(
+            () -> {
+              if (error != null) {
+                listener.onImageFailed(index, uri, error, stats);
+              } else if (cached != null) {
+                listener.onImageCached(index, uri, cached, stats);
+              } else {
+                listener.onImageScanned(index, uri, barcodes, stats);
+              }
+              if (stats.isDone()) {
+                listener.onBatchComplete(stats);
+              }
+            });
+        reported++;
+        if (stats.isDone()) {
+          finished = true;
+          batches.remove(this);
+        } else if (cancelled && reported == started) {
+          finishCancelled();
+        }
+        if (--scanning == 0 && closed) {
+          closeClients();
+        }
+      }
+    }
+
+    @GuardedBy("BatchImageScanner.this")
+    private void finishCancelled() {
+      finished = true;
+      batches.remove(this);
+      Stats stats = getStats();
+      TaskExecutors.MAIN_THREAD.execute(() -> listener.onBatchCancelled(stats));
+    }
+  }
+
+  private final ContentResolver contentResolver;
+  private final SampledImageDecoder decoder;
+  private final ExecutorService workers;
+  private final ArrayBlockingQueue<BarcodeScanner> clients;
+  @Nullable private volatile ScanResultCache resultCache;
+  private volatile String cacheVariant = "";
+
+  // Batches that have not finished, which close() cancels.
+  @GuardedBy("this")
+  private final List<Batch> batches = new ArrayList<>();
+
+  // Images being scanned, which hold on to the detector clients until they report.
+  @GuardedBy("this")
+  private int scanning;
+
+  @GuardedBy("this")
+  private boolean closed;
+
+  /**
+   * Creates a scanner for the given formats, or for all formats if {@code options} is null, that
+   * may take up to a quarter of the heap.
+   */
+  public BatchImageScanner(
+      ContentResolver contentResolver, @Nullable BarcodeScannerOptions options) {
+    this(contentResolver, options, Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+  }
+
+  /**
+   * Creates a scanner for the given formats, or for all formats if {@code options} is null.
+   *
+   * @param memoryBudgetBytes what all images being scanned at once may take together
+   */
+  public BatchImageScanner(
+      ContentResolver contentResolver,
+      @Nullable BarcodeScannerOptions options,
+      long memoryBudgetBytes) {
+    this.contentResolver = contentResolver;
+    int workerCount = workerCount(memoryBudgetBytes, Runtime.getRuntime().availableProcessors());
+    // Decoding holds the sampled and the final bitmap at once.
+    decoder = new SampledImageDecoder(memoryBudgetBytes / workerCount / 2);
+    workers =
+        Executors.newFixedThreadPool(
+            workerCount,
+            runnable -> {
+              Thread thread = new Thread(runnable, TAG);
+              thread.setDaemon(true);
+              return thread;
+            });
+    clients = new ArrayBlockingQueue<>(workerCount);
+    for (int i = 0; i < workerCount; i++) {
+      clients.add(
+          options != null ? BarcodeScanning.getClient(options) : BarcodeScanning.getClient());
+    }
+    Log.d(TAG, "Scanning with " + workerCount + " workers");
+  }
+
+  /**
+   * Returns how many images to scan at once: one per core up to {@link #MAX_WORKER_COUNT}, but no
+   * more than fit the budget with the sampled and final bitmap of an image {@link
+   * #DETECTION_WIDTH} wide and as tall each. Always at least one.
+   */
+  static int workerCount(long memoryBudgetBytes, int processorCount) {
+    long bytesPerWorker = 2L * DETECTION_WIDTH * DETECTION_WIDTH * 4;
+    long fitting = memoryBudgetBytes / bytesPerWorker;
+    return (int) Math.max(1, Math.min(fitting, Math.min(MAX_WORKER_COUNT, processorCount)));
+  }
+
+  /**
+   * Starts scanning the images behind content or file uris, and returns right away. Batches
+   * started while another runs queue behind it on the same workers.
+   *
+   * @throws IllegalStateException if the scanner has been closed
+   */
+  public Batch scan(List<Uri> uris, Listener listener) {
+    Batch batch = new Batch(Collections.unmodifiableList(new ArrayList<>(uris)), listener);
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("Scanner closed");
+      }
+      if (uris.isEmpty()) {
+        batch.finished = true;
+        Stats stats = batch.getStats();
+        TaskExecutors.MAIN_THREAD.execute(() -> listener.onBatchComplete(stats));
+        return batch;
+      }
+      batches.add(batch);
+      // Queued before close() can shut the workers down.
+      for (int i = 0; i < uris.size(); i++) {
+        int index = i;
+        workers.execute(() -> batch.scanImage(index));
+      }
+    }
+    return batch;
+  }
+
+  /**
+   * Looks images up in {@code cache} before decoding them, and stores what is found in new ones.
+   *
+   * @param variant names the formats detected, so that results for other formats are not reused
+   */
+  public void setResultCache(@Nullable ScanResultCache cache, String variant) {
+    // Detection runs at a lower resolution than on a single image, keep the results apart.
+    cacheVariant = "batch|" + DETECTION_WIDTH + "|" + variant;
+    resultCache = cache;
+  }
+
+  /**
+   * Cancels the batches that have not finished, see {@link Batch#cancel}, and releases the detector
+   * clients once the images being scanned have reported.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      for (Batch batch : new ArrayList<>(batches)) {
+        batch.cancel();
+      }
+      if (scanning == 0) {
+        closeClients();
+      }
+    }
+    // Lets the skipped images drain from the queue.
+    workers.shutdown();
+  }
+
+  @GuardedBy("this")
+  private void closeClients() {
+    for (BarcodeScanner client : clients) {
+      client.close();
+    }
+  }
+
+  private List<Barcode> detect(
+      Uri uri, @Nullable ScanResultCache cache, @Nullable String cacheKey) throws Exception {
+    Bitmap bitmap = decoder.decode(contentResolver, uri, DETECTION_WIDTH, /* upscale= */ false);
+    if (bitmap == null) {
+      throw new FileNotFoundException("Not an image: " + uri);
+    }
+    BarcodeScanner client = clients.take();
+    try {
+      List<Barcode> barcodes = Tasks.await(client.process(InputImage.fromBitmap(bitmap, 0)));
+      if (cache != null && cacheKey != null) {
+        cache.put(
+            cacheKey,
+            ScanResultCache.Entry.ofBarcodes(barcodes, bitmap.getWidth(), bitmap.getHeight()));
+      }
+      return barcodes;
+    } finally {
+      clients.add(client);
+      BitmapPool.getInstance().put(bitmap);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of mutable bitmaps for camera snapshots and graphics, after the LruBitmapPool of Glide.
+ *
+ * <p>Bitmaps are bucketed by width, height and config, and a request is only served from the
+ * bucket of exactly that size, which suits the few fixed frame sizes of the camera. The pool never
+ * holds more than its byte budget: when a returned bitmap does not fit, bitmaps are evicted from
+ * the least recently used bucket first. Unlike Glide, the pool leaves evicted bitmaps to the
+ * garbage collector instead of recycling them, since the display list of a view may still draw a
+ * bitmap that a graphic handed back.
+ *
+ * <p>A bitmap handed to {@link #put(Bitmap)} belongs to the pool; the caller must not use it
+ * afterwards. All methods are thread safe.
+ */
+public final class BitmapPool {
+  private static final String TAG = "BitmapPool";
+
+  /** Share of the heap the shared pool may keep. */
+  private static final int HEAP_FRACTION = 8;
+
+  @Nullable private static BitmapPool instance;
+
+  private final long maxSizeBytes;
+
+  // Buckets keyed by size and config, iterated from the least to the most recently used.
+  @GuardedBy("this")
+  private final LinkedHashMap<Long, ArrayDeque<Bitmap>> buckets =
+      new LinkedHashMap<>(16, 0.75f, /* accessOrder= */ true);
+
+  @GuardedBy("this")
+  private long currentSizeBytes;
+
+  @GuardedBy("this")
+  private long hitCount;
+
+  @GuardedBy("this")
+  private long missCount;
+
+  @GuardedBy("this")
+  private long putCount;
+
+  @GuardedBy("this")
+  private long evictionCount;
+
+  /** Returns the pool shared by the app, which may keep up to an eighth of the heap. */
+  public static synchronized BitmapPool getInstance() {
+    if (instance == null) {
+      instance = new BitmapPool(Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+    }
+    return instance;
+  }
+
+  /** Creates a pool that keeps at most {@code maxSizeBytes} of bitmaps. */
+  public BitmapPool(long maxSizeBytes) {
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  /** Returns a bitmap of the given size and config, cleared to transparent. */
+  public Bitmap get(int width, int height, Bitmap.Config config) {
+    Bitmap bitmap = getDirtyOrNull(width, height, config);
+    if (bitmap == null) {
+      return Bitmap.createBitmap(width, height, config);
+    }
+    bitmap.eraseColor(Color.TRANSPARENT);
+    return bitmap;
+  }
+
+  /**
+   * Returns a bitmap of the given size and config with undefined content, for callers that
+   * overwrite every pixel.
+   */
+  public Bitmap getDirty(int width, int height, Bitmap.Config config) {
+    Bitmap bitmap = getDirtyOrNull(width, height, config);
+    return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+  }
+
+  @Nullable
+  private synchronized Bitmap getDirtyOrNull(int width, int height, Bitmap.Config config) {
+    ArrayDeque<Bitmap> bucket = buckets.get(key(width, height, config));
+    Bitmap bitmap = bucket != null ? bucket.pollLast() : null;
+    if (bitmap == null) {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    currentSizeBytes -= bitmap.getAllocationByteCount();
+    return bitmap;
+  }
+
+  /**
+   * Hands a bitmap to the pool for reuse. Bitmaps that cannot be reused, i.e. immutable or recycled
+   * ones and ones larger than the whole budget, are dropped.
+   */
+  public void put(Bitmap bitmap) {
+    long size = bitmap.getAllocationByteCount();
+    if (bitmap.isRecycled()
+        || !bitmap.isMutable()
+        || bitmap.getConfig() == null
+        || size > maxSizeBytes) {
+      return;
+    }
+    synchronized (this) {
+      long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+      ArrayDeque<Bitmap> bucket = buckets.get(key);
+      if (bucket == null) {
+        bucket = new ArrayDeque<>();
+        buckets.put(key, bucket);
+      }
+      bucket.addLast(bitmap);
+      currentSizeBytes += size;
+      putCount++;
+      trimToSize(maxSizeBytes);
+    }
+  }
+
+  /** Drops all pooled bitmaps, e.g. when the system is low on memory. */
+  public synchronized void clear() {
+    trimToSize(0);
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getPutCount() {
+    return putCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /** Returns the bytes currently held by the pool. */
+  public synchronized long getCurrentSizeBytes() {
+    return currentSizeBytes;
+  }
+
+  public long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  @GuardedBy("this")
+  private void trimToSize(long sizeBytes) {
+    Iterator<Map.Entry<Long, ArrayDeque<Bitmap>>> iterator = buckets.entrySet().iterator();
+    int evicted = 0;
+    while (currentSizeBytes > sizeBytes && iterator.hasNext()) {
+      ArrayDeque<Bitmap> bucket = iterator.next().getValue();
+      while (currentSizeBytes > sizeBytes && !bucket.isEmpty()) {
+        currentSizeBytes -= bucket.pollFirst().getAllocationByteCount();
+        evicted++;
+      }
+      if (bucket.isEmpty()) {
+        iterator.remove();
+      }
+    }
+    evictionCount += evicted;
+    if (evicted > 0 && Log.isLoggable(TAG, Log.VERBOSE)) {
+      Log.v(TAG, "Evicted " + evicted + " bitmaps, " + currentSizeBytes + " bytes left");
+    }
+  }
+
+  private static long key(int width, int height, Bitmap.Config config) {
+    return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+  }
+}
@@ -19,43 +19,38 @@ package com.sjqnice.mlkit.mlkit;
 import android.content.ContentResolver;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
+import android.graphics.Paint;
+import android.graphics.RectF;
 import android.media.Image;
 import android.media.Image.Plane;
 import android.net.Uri;
-import android.provider.MediaStore;
 import android.util.Log;
 import androidx.annotation.Nullable;
 import androidx.exifinterface.media.ExifInterface;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 
 /** Utils functions for bitmap conversions. */
 public class BitmapUtils {
   private static final String TAG = "BitmapUtils";
 
-  /** Converts NV21 format byte buffer to bitmap. */
+  /**
+   * Converts NV21 format byte buffer to an upright bitmap. Use an {@link Nv21Converter} directly to
+   * reuse its buffers and the bitmap from frame to frame.
+   */
   @Nullable
   public static Bitmap getBitmap(ByteBuffer data, FrameMetadata metadata) {
-    data.rewind();
-    byte[] imageInBuffer = new byte[data.limit()];
-    data.get(imageInBuffer, 0, imageInBuffer.length);
     try {
-      YuvImage image =
-          new YuvImage(
-              imageInBuffer, ImageFormat.NV21, metadata.getWidth(), metadata.getHeight(), null);
-      ByteArrayOutputStream stream = new ByteArrayOutputStream();
-      image.compressToJpeg(new Rect(0, 0, metadata.getWidth(), metadata.getHeight()), 80, stream);
-
-      Bitmap bmp = BitmapFactory.decodeByteArray(stream.toByteArray(), 0, stream.size());
-
-      stream.close();
-      return rotateBitmap(bmp, metadata.getRotation(), false, false);
+      return new Nv21Converter()
+          .convert(
+              data,
+              metadata.getWidth(),
+              metadata.getHeight(),
+              metadata.getRotation(),
+              /* mirror= */ false,
+              /* reuse= */ null);
     } catch (Exception e) {
       Log.e("VisionProcessorBase", "Error: " + e.getMessage());
     }
@@ -79,35 +74,61 @@ public class BitmapUtils {
     return getBitmap(nv21Buffer, frameMetadata);
   }*/
 
-  /** Rotates a bitmap if it is converted from a bytebuffer. */
-  private static Bitmap rotateBitmap(
-      Bitmap bitmap, int rotationDegrees, boolean flipX, boolean flipY) {
+  /**
+   * Rotates, mirrors and scales a bitmap into one taken from the shared {@link BitmapPool}, and
+   * hands the original to the pool.
+   */
+  private static Bitmap transformBitmap(
+      Bitmap bitmap, int rotationDegrees, boolean flipX, boolean flipY, float scale) {
+    if (rotationDegrees % 360 == 0 && !flipX && !flipY && scale == 1f) {
+      return bitmap;
+    }
     Matrix matrix = new Matrix();
 
     // Rotate the image back to straight.
     matrix.postRotate(rotationDegrees);
 
-    // Mirror the image along the X or Y axis.
-    matrix.postScale(flipX ? -1.0f : 1.0f, flipY ? -1.0f : 1.0f);
-    Bitmap rotatedBitmap =
-        Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    // Mirror the image along the X or Y axis, and scale it.
+    matrix.postScale(flipX ? -scale : scale, flipY ? -scale : scale);
+
+    // Move the transformed image back to the origin.
+    RectF bounds = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+    matrix.mapRect(bounds);
+    matrix.postTranslate(-bounds.left, -bounds.top);
 
-    // Recycle the old bitmap if it has changed.
-    if (rotatedBitmap != bitmap) {
+    Bitmap.Config config =
+        bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+    BitmapPool pool = BitmapPool.getInstance();
+    Bitmap rotatedBitmap =
+        pool.get(
+            Math.max(1, Math.round(bounds.width())),
+            Math.max(1, Math.round(bounds.height())),
+            config);
+    new Canvas(rotatedBitmap).drawBitmap(bitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+
+    if (bitmap.isMutable()) {
+      pool.put(bitmap);
+    } else {
       bitmap.recycle();
     }
     return rotatedBitmap;
   }
 
+  /**
+   * Decodes the image behind a content or file uri upright, at its own width unless that exceeds
+   * the memory budget of {@link SampledImageDecoder}.
+   */
   @Nullable
   public static Bitmap getBitmapFromContentUri(ContentResolver contentResolver, Uri imageUri)
       throws IOException {
-    Bitmap decodedBitmap = MediaStore.Images.Media.getBitmap(contentResolver, imageUri);
-    if (decodedBitmap == null) {
-      return null;
-    }
-    int orientation = getExifOrientationTag(contentResolver, imageUri);
+    return new SampledImageDecoder().decode(contentResolver, imageUri, /* targetWidth= */ 0);
+  }
 
+  /**
+   * Turns a bitmap decoded from an image with the given EXIF orientation upright and scales it by
+   * {@code scale}, in a single draw.
+   */
+  static Bitmap applyExifOrientation(Bitmap decodedBitmap, int orientation, float scale) {
     int rotationDegrees = 0;
     boolean flipX = false;
     boolean flipY = false;
@@ -143,31 +164,7 @@ public class BitmapUtils {
         // No transformations necessary in this case.
     }
 
-    return rotateBitmap(decodedBitmap, rotationDegrees, flipX, flipY);
-  }
-
-  private static int getExifOrientationTag(ContentResolver resolver, Uri imageUri) {
-    // We only support parsing EXIF orientation tag from local file on the device.
-    // See also:
-    // https://android-developers.googleblog.com/2016/12/introducing-the-exifinterface-support-library.html
-    if (!ContentResolver.SCHEME_CONTENT.equals(imageUri.getScheme())
-        && !ContentResolver.SCHEME_FILE.equals(imageUri.getScheme())) {
-      return 0;
-    }
-
-    ExifInterface exif;
-    try (InputStream inputStream = resolver.openInputStream(imageUri)) {
-      if (inputStream == null) {
-        return 0;
-      }
-
-      exif = new ExifInterface(inputStream);
-    } catch (IOException e) {
-      Log.e(TAG, "failed to open file to read rotation meta data: " + imageUri, e);
-      return 0;
-    }
-
-    return exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+    return transformBitmap(decodedBitmap, rotationDegrees, flipX, flipY, scale);
   }
 
   /**
@@ -181,42 +178,25 @@ public class BitmapUtils {
    *
    * <p>YUV_420_888 is a generic format that can describe any YUV image where U and V are subsampled
    * by a factor of 2 in both dimensions. {@link Image#getPlanes} returns an array with the Y, U and
-   * V planes. The Y plane is guaranteed not to be interleaved, so we can just copy its values into
-   * the first part of the NV21 array. The U and V planes may already have the representation in the
-   * NV21 format. This happens if the planes share the same buffer, the V buffer is one position
-   * before the U buffer and the planes have a pixelStride of 2. If this is case, we can just copy
-   * them to the NV21 array.
+   * V planes, which {@link YuvRepacker} copies row by row.
    */
-  private static ByteBuffer yuv420ThreePlanesToNV21(
+  static ByteBuffer yuv420ThreePlanesToNV21(
       Plane[] yuv420888planes, int width, int height) {
     int imageSize = width * height;
     byte[] out = new byte[imageSize + 2 * (imageSize / 4)];
-
-    if (areUVPlanesNV21(yuv420888planes, width, height)) {
-      // Copy the Y values.
-      yuv420888planes[0].getBuffer().get(out, 0, imageSize);
-
-      ByteBuffer uBuffer = yuv420888planes[1].getBuffer();
-      ByteBuffer vBuffer = yuv420888planes[2].getBuffer();
-      // Get the first V value from the V buffer, since the U buffer does not contain it.
-      vBuffer.get(out, imageSize, 1);
-      // Copy the first U value and the remaining VU values from the U buffer.
-      uBuffer.get(out, imageSize + 1, 2 * imageSize / 4 - 1);
-    } else {
-      // Fallback to copying the UV values one by one, which is slower but also works.
-      // Unpack Y.
-      unpackPlane(yuv420888planes[0], width, height, out, 0, 1);
-      // Unpack U.
-      unpackPlane(yuv420888planes[1], width, height, out, imageSize + 1, 2);
-      // Unpack V.
-      unpackPlane(yuv420888planes[2], width, height, out, imageSize, 2);
-    }
-
+    yuv420ThreePlanesToNV21(yuv420888planes, width, height, out);
     return ByteBuffer.wrap(out);
   }
 
+  /** Converts YUV_420_888 to NV21 into a buffer of at least {@code width * height * 3 / 2}. */
+  static void yuv420ThreePlanesToNV21(
+      Plane[] yuv420888planes, int width, int height, byte[] out) {
+    YuvRepacker.toNv21(
+        yuv420888planes, width, height, YuvRepacker.isVuInterleaved(yuv420888planes), out);
+  }
+
   /** Checks if the UV plane buffers of a YUV_420_888 image are in the NV21 format. */
-  private static boolean areUVPlanesNV21(Plane[] planes, int width, int height) {
+  static boolean areUVPlanesNV21(Plane[] planes, int width, int height) {
     int imageSize = width * height;
 
     ByteBuffer uBuffer = planes[1].getBuffer();
@@ -242,40 +222,8 @@ public class BitmapUtils {
     return areNV21;
   }
 
-  /**
-   * Unpack an image plane into a byte array.
-   *
-   * <p>The input plane data will be copied in 'out', starting at 'offset' and every pixel will be
-   * spaced by 'pixelStride'. Note that there is no row padding on the output.
-   */
-  private static void unpackPlane(
-      Plane plane, int width, int height, byte[] out, int offset, int pixelStride) {
-    ByteBuffer buffer = plane.getBuffer();
-    buffer.rewind();
-
-    // Compute the size of the current plane.
-    // We assume that it has the aspect ratio as the original image.
-    int numRow = (buffer.limit() + plane.getRowStride() - 1) / plane.getRowStride();
-    if (numRow == 0) {
-      return;
-    }
-    int scaleFactor = height / numRow;
-    int numCol = width / scaleFactor;
-
-    // Extract the data in the output buffer.
-    int outputPos = offset;
-    int rowStart = 0;
-    for (int row = 0; row < numRow; row++) {
-      int inputPos = rowStart;
-      for (int col = 0; col < numCol; col++) {
-        out[outputPos] = buffer.get(inputPos);
-        outputPos += pixelStride;
-        inputPos += plane.getPixelStride();
-      }
-      rowStart += plane.getRowStride();
-    }
-  }
-
+  /** @deprecated Guesses from the free heap, use {@link SampledImageDecoder} instead. */
+  @Deprecated
   public static int calculateInSampleSize(BitmapFactory.Options options,
                                           int reqWidth, int reqHeight) {
     // 源图片的高度和宽度
@@ -303,17 +251,17 @@ public class BitmapUtils {
     return inSampleSize;
   }
 
+  /**
+   * Decodes an image file upright and scaled to {@code reqWidth}, see {@link SampledImageDecoder}.
+   * Returns null if the file cannot be decoded.
+   */
+  @Nullable
   public static Bitmap decodeBitmapFromPath(String photo_path, int reqWidth, int reqHeight, boolean isFix) {
-    // 第一次解析将inJustDecodeBounds设置为true，来获取图片大小
-    final BitmapFactory.Options options = new BitmapFactory.Options();
-    options.inJustDecodeBounds = true;
-    if(isFix) {
-      Bitmap scanBitmap = BitmapFactory.decodeFile(photo_path, options);
+    try {
+      return new SampledImageDecoder().decode(photo_path, reqWidth);
+    } catch (IOException e) {
+      Log.e(TAG, "failed to decode " + photo_path, e);
+      return null;
     }
-    // 调用上面定义的方法计算inSampleSize值
-    options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
-    // 使用获取到的inSampleSize值再次解析图片
-    options.inJustDecodeBounds = false;
-    return BitmapFactory.decodeFile(photo_path, options);
   }
 }
@@ -0,0 +1,435 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.hardware.Camera.CameraInfo;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import androidx.annotation.Nullable;
+import com.google.android.gms.common.images.Size;
+import com.sjqnice.mlkit.mlkit.CameraCapabilityCache.CameraDescription;
+import com.sjqnice.mlkit.mlkit.CameraCapabilityCache.Capabilities;
+import com.sjqnice.mlkit.mlkit.CameraSource.SizePair;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@link FrameSource} backed by the {@link android.hardware.Camera} API, delivering NV21 frames
+ * through {@link Camera#setPreviewCallbackWithBuffer}.
+ */
+@SuppressWarnings("deprecation")
+public class Camera1FrameSource implements FrameSource {
+  private static final String TAG = "MIDemoApp:Camera1Source";
+
+  /**
+   * The dummy surface texture must be assigned a chosen name. Since we never use an OpenGL context,
+   * we can choose any ID we want here. The dummy surface texture is not a crazy hack - it is
+   * actually how the camera team recommends using the camera without a preview.
+   */
+  private static final int DUMMY_TEXTURE_NAME = 100;
+
+  /**
+   * If the absolute difference between a preview size aspect ratio and a picture size aspect ratio
+   * is less than this tolerance, they are considered to be the same aspect ratio.
+   */
+  private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
+
+  private final Activity activity;
+
+  private Camera camera;
+
+  /** Rotation of the device, and thus the associated preview images captured from the device. */
+  private int rotationDegrees;
+
+  private Size previewSize;
+
+  @Nullable private Capabilities capabilities;
+
+  // This instance needs to be held onto to avoid GC of its underlying resources. Even though it
+  // isn't used outside of the method that creates it, it still must have hard references maintained
+  // to it.
+  private SurfaceTexture dummySurfaceTexture;
+
+  @Nullable private volatile FrameCallback frameCallback;
+
+  public Camera1FrameSource(Activity activity) {
+    this.activity = activity;
+  }
+
+  /**
+   * Opens the camera and applies the user settings.
+   *
+   * <p>What the camera supports is taken from the {@link CameraCapabilityCache} when this camera has
+   * been opened before, so that only one {@link Camera#getParameters()} round trip is needed. The
+   * cache only answers from memory and writes in the background, so this does no file I/O.
+   *
+   * @throws IOException if camera cannot be found or preview cannot be processed
+   */
+  @Override
+  @SuppressLint("InlinedApi")
+  public void open(int facing) throws IOException {
+    CameraCapabilityCache cache = CameraCapabilityCache.getInstance(activity);
+    List<CameraDescription> cameras = cache.getCameras();
+    int requestedCameraId = getIdForRequestedCamera(cameras, facing);
+    if (requestedCameraId == -1) {
+      int cameraId = getIdForRequestedCamera(cameras, CameraSource.CAMERA_FACING_FRONT);
+      if (cameraId == -1) {
+        Log.i(TAG, "No camera facing " + CameraSource.CAMERA_FACING_BACK + "; returning camera #0");
+        cameraId = 0;
+      }
+      requestedCameraId = cameraId;
+    }
+    camera = Camera.open(requestedCameraId);
+
+    Camera.Parameters parameters = camera.getParameters();
+    Capabilities capabilities = cache.getCapabilities(requestedCameraId);
+    if (capabilities == null) {
+      capabilities = Capabilities.from(parameters);
+      cache.putCapabilities(requestedCameraId, capabilities);
+    }
+    this.capabilities = capabilities;
+
+    SizePair sizePair = PreferenceUtils.getCameraPreviewSizePair(activity, requestedCameraId);
+    if (sizePair == null) {
+      sizePair =
+          selectSizePair(
+              capabilities.sizePairs,
+              CameraSource.DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH,
+              CameraSource.DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT);
+    }
+
+    if (sizePair == null) {
+      close();
+      throw new IOException("Could not find suitable preview size.");
+    }
+
+    previewSize = sizePair.preview;
+    Log.v(TAG, "Camera preview size: " + previewSize);
+
+    float requestedFps = PreferenceUtils.getCameraPreviewFps(activity, requestedCameraId);
+    if (requestedFps <= 0) {
+      requestedFps = CameraSource.REQUESTED_FPS;
+    }
+    int[] previewFpsRange = selectPreviewFpsRange(capabilities.previewFpsRanges, requestedFps);
+//    if (previewFpsRange == null) {
+//      throw new IOException("Could not find suitable preview frames per second range.");
+//    }
+
+    Size pictureSize = sizePair.picture;
+    if (pictureSize != null) {
+      Log.v(TAG, "Camera picture size: " + pictureSize);
+      parameters.setPictureSize(pictureSize.getWidth(), pictureSize.getHeight());
+    }
+    parameters.setPreviewSize(previewSize.getWidth(), previewSize.getHeight());
+    if(previewFpsRange != null) {
+      parameters.setPreviewFpsRange(
+              previewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+              previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+    }
+    // Use YV12 so that we can exercise YV12->NV21 auto-conversion logic for OCR detection
+    parameters.setPreviewFormat(CameraSource.IMAGE_FORMAT);
+
+    setRotation(camera, parameters, cameras.get(requestedCameraId));
+
+    if (CameraSource.REQUESTED_AUTO_FOCUS) {
+      if (capabilities.continuousVideoFocus) {
+        parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
+      } else {
+        Log.i(TAG, "Camera auto focus is not supported on this device.");
+      }
+    }
+
+    try {
+      camera.setParameters(parameters);
+    } catch (RuntimeException e) {
+      // The cached capabilities may not match the camera anymore, query them again next time.
+      cache.clear();
+      close();
+      throw new IOException("Could not apply camera parameters.", e);
+    }
+    camera.setPreviewCallbackWithBuffer(new CameraPreviewCallback());
+  }
+
+  @Override
+  public Size getPreviewSize() {
+    return previewSize;
+  }
+
+  @Override
+  public int getRotationDegrees() {
+    return rotationDegrees;
+  }
+
+  @Override
+  public void queueBuffer(byte[] buffer) {
+    Camera current = camera;
+    if (current != null) {
+      current.addCallbackBuffer(buffer);
+    }
+  }
+
+  @Override
+  public void startPreview(@Nullable SurfaceHolder surfaceHolder, FrameCallback callback)
+      throws IOException {
+    frameCallback = callback;
+    if (surfaceHolder != null) {
+      camera.setPreviewDisplay(surfaceHolder);
+    } else {
+      dummySurfaceTexture = new SurfaceTexture(DUMMY_TEXTURE_NAME);
+      camera.setPreviewTexture(dummySurfaceTexture);
+    }
+    camera.startPreview();
+  }
+
+  @Override
+  public void close() {
+    frameCallback = null;
+    if (camera != null) {
+      camera.stopPreview();
+      camera.setPreviewCallbackWithBuffer(null);
+      try {
+        camera.setPreviewTexture(null);
+        dummySurfaceTexture = null;
+        camera.setPreviewDisplay(null);
+      } catch (Exception e) {
+        Log.e(TAG, "Failed to clear camera preview: " + e);
+      }
+      camera.release();
+      camera = null;
+    }
+  }
+
+  /** Returns the underlying camera, or null if it is not open. */
+  @Nullable
+  public Camera getCamera() {
+    return camera;
+  }
+
+  /** Called when the camera has a new preview frame. */
+  private class CameraPreviewCallback implements Camera.PreviewCallback {
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+      FrameCallback callback = frameCallback;
+      if (callback != null) {
+        // The camera1 API does not tell the capture time.
+        callback.onFrame(data, 0);
+      }
+    }
+  }
+
+  /**
+   * Gets the id for the camera specified by the direction it is facing. Returns -1 if no such
+   * camera was found.
+   *
+   * @param cameras the cameras of the device, indexed by id
+   * @param facing the desired camera (front-facing or rear-facing)
+   */
+  static int getIdForRequestedCamera(List<CameraDescription> cameras, int facing) {
+    for (int i = 0; i < cameras.size(); ++i) {
+      if (cameras.get(i).facing == facing) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Selects the most suitable preview and picture size, given the desired width and height.
+   *
+   * <p>Even though we only need to find the preview size, it's necessary to find both the preview
+   * size and the picture size of the camera together, because these need to have the same aspect
+   * ratio. On some hardware, if you would only set the preview size, you will get a distorted
+   * image.
+   *
+   * @param camera the camera to select a preview size from
+   * @param desiredWidth the desired width of the camera preview frames
+   * @param desiredHeight the desired height of the camera preview frames
+   * @return the selected preview and picture size pair
+   */
+  public static SizePair selectSizePair(Camera camera, int desiredWidth, int desiredHeight) {
+    return selectSizePair(generateValidPreviewSizeList(camera), desiredWidth, desiredHeight);
+  }
+
+  /**
+   * Selects the preview and picture size pair closest to the desired width and height.
+   *
+   * @param validPreviewSizes candidates, see {@link #generateValidPreviewSizeList(Camera)}
+   */
+  @Nullable
+  static SizePair selectSizePair(
+      List<SizePair> validPreviewSizes, int desiredWidth, int desiredHeight) {
+    // The method for selecting the best size is to minimize the sum of the differences between
+    // the desired values and the actual values for width and height.  This is certainly not the
+    // only way to select the best size, but it provides a decent tradeoff between using the
+    // closest aspect ratio vs. using the closest pixel area.
+    SizePair selectedPair = null;
+    int minDiff = Integer.MAX_VALUE;
+    for (SizePair sizePair : validPreviewSizes) {
+      Size size = sizePair.preview;
+      int diff =
+          Math.abs(size.getWidth() - desiredWidth) + Math.abs(size.getHeight() - desiredHeight);
+      if (diff < minDiff) {
+        selectedPair = sizePair;
+        minDiff = diff;
+      }
+    }
+
+    return selectedPair;
+  }
+
+  /**
+   * Generates a list of acceptable preview sizes. Preview sizes are not acceptable if there is not
+   * a corresponding picture size of the same aspect ratio. If there is a corresponding picture size
+   * of the same aspect ratio, the picture size is paired up with the preview size.
+   *
+   * <p>This is necessary because even if we don't use still pictures, the still picture size must
+   * be set to a size that is the same aspect ratio as the preview size we choose. Otherwise, the
+   * preview images may be distorted on some devices.
+   */
+  public static List<SizePair> generateValidPreviewSizeList(Camera camera) {
+    return generateValidPreviewSizeList(camera.getParameters());
+  }
+
+  static List<SizePair> generateValidPreviewSizeList(Camera.Parameters parameters) {
+    List<Camera.Size> supportedPreviewSizes = parameters.getSupportedPreviewSizes();
+    List<Camera.Size> supportedPictureSizes = parameters.getSupportedPictureSizes();
+    List<SizePair> validPreviewSizes = new ArrayList<>();
+    for (Camera.Size previewSize : supportedPreviewSizes) {
+      float previewAspectRatio = (float) previewSize.width / (float) previewSize.height;
+
+      // By looping through the picture sizes in order, we favor the higher resolutions.
+      // We choose the highest resolution in order to support taking the full resolution
+      // picture later.
+      for (Camera.Size pictureSize : supportedPictureSizes) {
+        float pictureAspectRatio = (float) pictureSize.width / (float) pictureSize.height;
+        if (Math.abs(previewAspectRatio - pictureAspectRatio) < ASPECT_RATIO_TOLERANCE) {
+          validPreviewSizes.add(new SizePair(previewSize, pictureSize));
+          break;
+        }
+      }
+    }
+
+    // If there are no picture sizes with the same aspect ratio as any preview sizes, allow all
+    // of the preview sizes and hope that the camera can handle it.  Probably unlikely, but we
+    // still account for it.
+    if (validPreviewSizes.size() == 0) {
+      Log.w(TAG, "No preview sizes have a corresponding same-aspect-ratio picture size");
+      for (Camera.Size previewSize : supportedPreviewSizes) {
+        // The null picture size will let us know that we shouldn't set a picture size.
+        validPreviewSizes.add(new SizePair(previewSize, null));
+      }
+    }
+
+    return validPreviewSizes;
+  }
+
+  /**
+   * Selects the most suitable preview frames per second range, given the desired frames per second.
+   *
+   * @param previewFpsRanges the ranges supported by the camera
+   * @param desiredPreviewFps the desired frames per second for the camera preview frames
+   * @return the selected preview frames per second range
+   */
+  @Nullable
+  static int[] selectPreviewFpsRange(List<int[]> previewFpsRanges, float desiredPreviewFps) {
+    // The camera API uses integers scaled by a factor of 1000 instead of floating-point frame
+    // rates.
+    int desiredPreviewFpsScaled = (int) (desiredPreviewFps * 1000.0f);
+
+    // Selects a range with whose upper bound is as close as possible to the desired fps while its
+    // lower bound is as small as possible to properly expose frames in low light conditions. Note
+    // that this may select a range that the desired value is outside of. For example, if the
+    // desired frame rate is 30.5, the range (30, 30) is probably more desirable than (30, 40).
+    int[] selectedFpsRange = null;
+    int minUpperBoundDiff = Integer.MAX_VALUE;
+    int minLowerBound = Integer.MAX_VALUE;
+    for (int[] range : previewFpsRanges) {
+      int upperBoundDiff =
+              Math.abs(desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+      int lowerBound = range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+      if (upperBoundDiff <= minUpperBoundDiff && lowerBound <= minLowerBound) {
+        selectedFpsRange = range;
+        minUpperBoundDiff = upperBoundDiff;
+        minLowerBound = lowerBound;
+      }
+    }
+    return selectedFpsRange;
+  }
+
+  /**
+   * Calculates the correct rotation for the given camera id and sets the rotation in the
+   * parameters. It also sets the camera's display orientation and rotation.
+   *
+   * @param parameters the camera parameters for which to set the rotation
+   * @param cameraInfo the facing and orientation of the camera to set rotation based on
+   */
+  private void setRotation(
+      Camera camera, Camera.Parameters parameters, CameraDescription cameraInfo) {
+    int degrees = CameraSource.getDisplayRotationDegrees(activity);
+
+    int displayAngle;
+    if (cameraInfo.facing == CameraInfo.CAMERA_FACING_FRONT) {
+      this.rotationDegrees = (cameraInfo.orientation + degrees) % 360;
+      displayAngle = (360 - this.rotationDegrees) % 360; // compensate for it being mirrored
+    } else { // back-facing
+      this.rotationDegrees = (cameraInfo.orientation - degrees + 360) % 360;
+      displayAngle = this.rotationDegrees;
+    }
+    Log.d(TAG, "Camera face is: " + cameraInfo.facing);
+    Log.d(TAG, "Camera rotation is: " + cameraInfo.orientation);
+    // This value should be one of the degrees that ImageMetadata accepts: 0, 90, 180 or 270.
+    Log.d(TAG, "RotationDegrees is: " + this.rotationDegrees);
+
+    camera.setDisplayOrientation(displayAngle);
+    parameters.setRotation(this.rotationDegrees);
+  }
+
+  @Override
+  public void setTorch(boolean on) {
+    Camera.Parameters parameters = camera.getParameters();
+    List<String> supportedFlashModes =
+        capabilities != null ? capabilities.flashModes : parameters.getSupportedFlashModes();
+    String flashMode;
+    if (on) {
+      flashMode = findSettableValue("flash mode",
+              supportedFlashModes,
+              Camera.Parameters.FLASH_MODE_TORCH,
+              Camera.Parameters.FLASH_MODE_ON);
+    } else {
+      flashMode = findSettableValue("flash mode",
+              supportedFlashModes,
+              Camera.Parameters.FLASH_MODE_OFF);
+    }
+    if (flashMode != null) {
+      if (flashMode.equals(parameters.getFlashMode())) {
+        Log.i(TAG, "Flash mode already set to " + flashMode);
+      } else {
+        Log.i(TAG, "Setting flash mode to " + flashMode);
+        parameters.setFlashMode(flashMode);
+      }
+      camera.setParameters(parameters);
+    }
+  }
+
+  private static String findSettableValue(String name,
+                                          Collection<String> supportedValues,
+                                          String... desiredValues) {
+    Log.i(TAG, "Requesting " + name + " value from among: " + Arrays.toString(desiredValues));
+    Log.i(TAG, "Supported " + name + " values: " + supportedValues);
+    if (supportedValues != null) {
+      for (String desiredValue : desiredValues) {
+        if (supportedValues.contains(desiredValue)) {
+          Log.i(TAG, "Can set " + name + " to: " + desiredValue);
+          return desiredValue;
+        }
+      }
+    }
+    Log.i(TAG, "No supported values match");
+    return null;
+  }
+}
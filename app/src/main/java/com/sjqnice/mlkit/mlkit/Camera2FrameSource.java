@@ -0,0 +1,498 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Range;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresPermission;
+import com.google.android.gms.common.images.Size;
+import com.sjqnice.mlkit.mlkit.CameraSource.SizePair;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FrameSource} backed by the camera2 API. Frames are read from an {@link ImageReader} in
+ * {@link ImageFormat#YUV_420_888} and copied into the preview buffers as NV21.
+ *
+ * <p>Most devices lay out YUV_420_888 with unpadded rows and interleaved VU chroma, which is NV21
+ * already. In that case each plane is copied with a single bulk get and no per-pixel repacking
+ * happens; other layouts are repacked row by row by {@link YuvRepacker}.
+ */
+public class Camera2FrameSource implements FrameSource {
+  private static final String TAG = "MIDemoApp:Camera2Source";
+
+  /** Maximum time to wait for the camera to open or for the capture session to be configured. */
+  private static final long CAMERA_TIMEOUT_MS = 2500;
+
+  /** Images the reader may hold; one being copied, one being filled and one spare. */
+  private static final int MAX_IMAGES = 3;
+
+  private final Activity activity;
+  private final CameraManager cameraManager;
+
+  private HandlerThread cameraThread;
+  private Handler cameraHandler;
+
+  private CameraDevice cameraDevice;
+  private CameraCaptureSession captureSession;
+  private CaptureRequest.Builder requestBuilder;
+  private ImageReader imageReader;
+
+  private Size previewSize;
+  private int rotationDegrees;
+  @Nullable private Range<Integer> fpsRange;
+  private boolean autoFocusSupported;
+  /**
+   * Whether image timestamps share the time base of {@link
+   * android.os.SystemClock#elapsedRealtime()}.
+   */
+  private boolean realtimeTimestamps;
+
+  @GuardedBy("freeBuffers")
+  private final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<>();
+
+  @Nullable private volatile FrameCallback frameCallback;
+
+  /**
+   * How the chroma planes of the reader are laid out, see {@link YuvRepacker#getChromaLayout}. The
+   * layout does not change within a session, so it is checked until an image tells it; accessed on
+   * the camera thread.
+   */
+  private int chromaLayout = YuvRepacker.CHROMA_UNKNOWN;
+  // Whether the reader delivers unpadded NV21-ordered planes, decided with chromaLayout.
+  private boolean nv21Layout;
+
+  public Camera2FrameSource(Activity activity) {
+    this.activity = activity;
+    cameraManager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+  }
+
+  @Override
+  @RequiresPermission(Manifest.permission.CAMERA)
+  public void open(int facing) throws IOException {
+    try {
+      String cameraId = getIdForRequestedCamera(facing);
+      CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
+      selectPreviewSize(characteristics, facing);
+      selectFpsRange(characteristics, facing);
+      setRotation(characteristics);
+      Integer timestampSource =
+          characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+      realtimeTimestamps =
+          timestampSource != null
+              && timestampSource == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+
+      int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+      autoFocusSupported = false;
+      if (afModes != null) {
+        for (int mode : afModes) {
+          if (mode == CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO) {
+            autoFocusSupported = true;
+          }
+        }
+      }
+
+      cameraThread = new HandlerThread("Camera2Source");
+      cameraThread.start();
+      cameraHandler = new Handler(cameraThread.getLooper());
+      cameraDevice = openCamera(cameraId);
+    } catch (IOException e) {
+      // Also stops the camera thread, so that the next open does not start a second one.
+      close();
+      throw e;
+    } catch (CameraAccessException | InterruptedException e) {
+      close();
+      throw new IOException("Could not open camera " + facing, e);
+    }
+  }
+
+  @Override
+  public Size getPreviewSize() {
+    return previewSize;
+  }
+
+  @Override
+  public int getRotationDegrees() {
+    return rotationDegrees;
+  }
+
+  @Override
+  public void queueBuffer(byte[] buffer) {
+    synchronized (freeBuffers) {
+      freeBuffers.addLast(buffer);
+    }
+  }
+
+  @Override
+  public void startPreview(@Nullable SurfaceHolder surfaceHolder, FrameCallback callback)
+      throws IOException {
+    frameCallback = callback;
+    imageReader =
+        ImageReader.newInstance(
+            previewSize.getWidth(), previewSize.getHeight(), ImageFormat.YUV_420_888, MAX_IMAGES);
+    imageReader.setOnImageAvailableListener(this::onImageAvailable, cameraHandler);
+
+    List<Surface> surfaces = new ArrayList<>();
+    surfaces.add(imageReader.getSurface());
+    if (surfaceHolder != null) {
+      // The display stream has to match the analysis stream so that the overlay lines up.
+      surfaceHolder.setFixedSize(previewSize.getWidth(), previewSize.getHeight());
+      surfaces.add(surfaceHolder.getSurface());
+    }
+
+    try {
+      requestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+      for (Surface surface : surfaces) {
+        requestBuilder.addTarget(surface);
+      }
+      if (CameraSource.REQUESTED_AUTO_FOCUS && autoFocusSupported) {
+        requestBuilder.set(
+            CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+      }
+      if (fpsRange != null) {
+        requestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+      }
+
+      captureSession = createSession(surfaces);
+      captureSession.setRepeatingRequest(requestBuilder.build(), null, cameraHandler);
+    } catch (CameraAccessException | InterruptedException e) {
+      throw new IOException("Could not start camera preview", e);
+    }
+  }
+
+  @Override
+  public void setTorch(boolean on) {
+    if (captureSession == null || requestBuilder == null) {
+      return;
+    }
+    requestBuilder.set(
+        CaptureRequest.FLASH_MODE,
+        on ? CaptureRequest.FLASH_MODE_TORCH : CaptureRequest.FLASH_MODE_OFF);
+    try {
+      captureSession.setRepeatingRequest(requestBuilder.build(), null, cameraHandler);
+    } catch (CameraAccessException e) {
+      Log.e(TAG, "Failed to set torch", e);
+    }
+  }
+
+  @Override
+  public void close() {
+    frameCallback = null;
+    if (captureSession != null) {
+      captureSession.close();
+      captureSession = null;
+    }
+    if (cameraDevice != null) {
+      cameraDevice.close();
+      cameraDevice = null;
+    }
+    if (imageReader != null) {
+      imageReader.close();
+      imageReader = null;
+    }
+    if (cameraThread != null) {
+      // Waits for a frame that is being copied, so that none is delivered after this returns.
+      cameraThread.quitSafely();
+      try {
+        cameraThread.join();
+      } catch (InterruptedException e) {
+        Log.d(TAG, "Interrupted while stopping the camera thread.");
+      }
+      cameraThread = null;
+      cameraHandler = null;
+    }
+    requestBuilder = null;
+    chromaLayout = YuvRepacker.CHROMA_UNKNOWN;
+    nv21Layout = false;
+    synchronized (freeBuffers) {
+      freeBuffers.clear();
+    }
+  }
+
+  private void onImageAvailable(ImageReader reader) {
+    Image image = reader.acquireLatestImage();
+    if (image == null) {
+      return;
+    }
+    try {
+      FrameCallback callback = frameCallback;
+      if (callback == null) {
+        // Not started or already closed; the buffers stay queued for the next start.
+        return;
+      }
+      byte[] buffer;
+      synchronized (freeBuffers) {
+        buffer = freeBuffers.pollFirst();
+      }
+      if (buffer == null) {
+        // The pipeline holds on to all buffers, drop this frame like the camera1 API would.
+        return;
+      }
+      if (chromaLayout == YuvRepacker.CHROMA_UNKNOWN) {
+        chromaLayout = YuvRepacker.getChromaLayout(image.getPlanes());
+        nv21Layout = chromaLayout == YuvRepacker.CHROMA_VU_INTERLEAVED && hasNv21Strides(image);
+        if (chromaLayout != YuvRepacker.CHROMA_UNKNOWN) {
+          Log.d(TAG, "Camera2 frames use the NV21 layout: " + nv21Layout);
+        }
+      }
+      copyToNv21(
+          image, buffer, nv21Layout, chromaLayout == YuvRepacker.CHROMA_VU_INTERLEAVED);
+      callback.onFrame(
+          buffer, realtimeTimestamps ? TimeUnit.NANOSECONDS.toMillis(image.getTimestamp()) : 0);
+    } finally {
+      image.close();
+    }
+  }
+
+  /**
+   * Checks whether the planes of an image with interleaved VU chroma can be copied into an NV21
+   * buffer in bulk, i.e. have rows without padding.
+   */
+  private static boolean hasNv21Strides(Image image) {
+    int width = image.getWidth();
+    Image.Plane[] planes = image.getPlanes();
+    Image.Plane yPlane = planes[0];
+    Image.Plane vPlane = planes[2];
+    return yPlane.getRowStride() == width
+        && yPlane.getPixelStride() == 1
+        && vPlane.getRowStride() == width
+        && vPlane.getPixelStride() == 2
+        && vPlane.getBuffer().remaining() == width * image.getHeight() / 2 - 1;
+  }
+
+  /**
+   * Copies a YUV_420_888 image into an NV21 buffer, in bulk if the image has the NV21 layout and
+   * row by row otherwise.
+   */
+  private static void copyToNv21(
+      Image image, byte[] out, boolean nv21Layout, boolean vuInterleaved) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    Image.Plane[] planes = image.getPlanes();
+    if (!nv21Layout) {
+      YuvRepacker.toNv21(planes, width, height, vuInterleaved, out);
+      return;
+    }
+
+    int imageSize = width * height;
+    ByteBuffer yBuffer = planes[0].getBuffer();
+    yBuffer.rewind();
+    yBuffer.get(out, 0, imageSize);
+
+    // The V plane starts with the first V value and is followed by the interleaved UV values,
+    // which is exactly the NV21 chroma layout except for the missing last U value.
+    ByteBuffer vBuffer = planes[2].getBuffer();
+    vBuffer.rewind();
+    int chromaSize = 2 * (imageSize / 4);
+    int available = Math.min(vBuffer.remaining(), chromaSize);
+    vBuffer.get(out, imageSize, available);
+    if (available < chromaSize) {
+      ByteBuffer uBuffer = planes[1].getBuffer();
+      out[imageSize + chromaSize - 1] = uBuffer.get(uBuffer.limit() - 1);
+    }
+  }
+
+  private String getIdForRequestedCamera(int facing) throws CameraAccessException, IOException {
+    int lensFacing =
+        facing == CameraSource.CAMERA_FACING_FRONT
+            ? CameraMetadata.LENS_FACING_FRONT
+            : CameraMetadata.LENS_FACING_BACK;
+    String[] cameraIds = cameraManager.getCameraIdList();
+    for (String id : cameraIds) {
+      Integer idFacing =
+          cameraManager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+      if (idFacing != null && idFacing == lensFacing) {
+        return id;
+      }
+    }
+    if (cameraIds.length == 0) {
+      throw new IOException("No camera available.");
+    }
+    Log.i(TAG, "No camera facing " + facing + "; returning camera " + cameraIds[0]);
+    return cameraIds[0];
+  }
+
+  /**
+   * Selects the YUV output size closest to the preferred or default preview size, using the same
+   * metric as {@link Camera1FrameSource#selectSizePair}.
+   */
+  private void selectPreviewSize(CameraCharacteristics characteristics, int facing)
+      throws IOException {
+    StreamConfigurationMap map =
+        characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+    if (map == null) {
+      throw new IOException("Could not find suitable preview size.");
+    }
+    int desiredWidth = CameraSource.DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH;
+    int desiredHeight = CameraSource.DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT;
+    SizePair preferred = PreferenceUtils.getCameraPreviewSizePair(activity, facing);
+    if (preferred != null) {
+      desiredWidth = preferred.preview.getWidth();
+      desiredHeight = preferred.preview.getHeight();
+    }
+
+    android.util.Size selected = null;
+    int minDiff = Integer.MAX_VALUE;
+    android.util.Size[] sizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+    if (sizes != null) {
+      for (android.util.Size size : sizes) {
+        int diff =
+            Math.abs(size.getWidth() - desiredWidth) + Math.abs(size.getHeight() - desiredHeight);
+        if (diff < minDiff) {
+          selected = size;
+          minDiff = diff;
+        }
+      }
+    }
+    if (selected == null) {
+      throw new IOException("Could not find suitable preview size.");
+    }
+    previewSize = new Size(selected.getWidth(), selected.getHeight());
+    Log.v(TAG, "Camera preview size: " + previewSize);
+  }
+
+  /**
+   * Selects the frames per second range whose upper bound is closest to the requested fps and whose
+   * lower bound is as small as possible, as {@link Camera1FrameSource} does.
+   */
+  private void selectFpsRange(CameraCharacteristics characteristics, int facing) {
+    Range<Integer>[] ranges =
+        characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+    fpsRange = null;
+    if (ranges == null) {
+      return;
+    }
+    float preferredFps = PreferenceUtils.getCameraPreviewFps(activity, facing);
+    int desiredFps = (int) (preferredFps > 0 ? preferredFps : CameraSource.REQUESTED_FPS);
+    int minUpperBoundDiff = Integer.MAX_VALUE;
+    int minLowerBound = Integer.MAX_VALUE;
+    for (Range<Integer> range : ranges) {
+      int upperBoundDiff = Math.abs(desiredFps - range.getUpper());
+      int lowerBound = range.getLower();
+      if (upperBoundDiff <= minUpperBoundDiff && lowerBound <= minLowerBound) {
+        fpsRange = range;
+        minUpperBoundDiff = upperBoundDiff;
+        minLowerBound = lowerBound;
+      }
+    }
+  }
+
+  private void setRotation(CameraCharacteristics characteristics) {
+    int degrees = CameraSource.getDisplayRotationDegrees(activity);
+    Integer sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+    int orientation = sensorOrientation != null ? sensorOrientation : 0;
+    Integer lensFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
+    if (lensFacing != null && lensFacing == CameraMetadata.LENS_FACING_FRONT) {
+      rotationDegrees = (orientation + degrees) % 360;
+    } else {
+      rotationDegrees = (orientation - degrees + 360) % 360;
+    }
+    Log.d(TAG, "RotationDegrees is: " + rotationDegrees);
+  }
+
+  @SuppressLint("MissingPermission")
+  private CameraDevice openCamera(String cameraId)
+      throws CameraAccessException, InterruptedException, IOException {
+    Semaphore opened = new Semaphore(0);
+    CameraDevice[] result = new CameraDevice[1];
+    // Set under the lock of result once the opener gives up waiting, so that a camera that opens
+    // after the timeout is closed instead of staying open with nobody to close it.
+    boolean[] abandoned = new boolean[1];
+    cameraManager.openCamera(
+        cameraId,
+        new CameraDevice.StateCallback() {
+          @Override
+          public void onOpened(@NonNull CameraDevice camera) {
+            synchronized (result) {
+              if (abandoned[0]) {
+                camera.close();
+                return;
+              }
+              result[0] = camera;
+            }
+            opened.release();
+          }
+
+          @Override
+          public void onDisconnected(@NonNull CameraDevice camera) {
+            camera.close();
+            opened.release();
+          }
+
+          @Override
+          public void onError(@NonNull CameraDevice camera, int error) {
+            Log.e(TAG, "Camera " + cameraId + " error: " + error);
+            camera.close();
+            opened.release();
+          }
+        },
+        cameraHandler);
+    boolean signalled = false;
+    try {
+      signalled = opened.tryAcquire(CAMERA_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } finally {
+      synchronized (result) {
+        if (!signalled && result[0] == null) {
+          abandoned[0] = true;
+        }
+      }
+    }
+    synchronized (result) {
+      if (result[0] == null) {
+        throw new IOException("Could not open camera " + cameraId);
+      }
+      return result[0];
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  private CameraCaptureSession createSession(List<Surface> surfaces)
+      throws CameraAccessException, InterruptedException, IOException {
+    Semaphore configured = new Semaphore(0);
+    CameraCaptureSession[] result = new CameraCaptureSession[1];
+    cameraDevice.createCaptureSession(
+        surfaces,
+        new CameraCaptureSession.StateCallback() {
+          @Override
+          public void onConfigured(@NonNull CameraCaptureSession session) {
+            result[0] = session;
+            configured.release();
+          }
+
+          @Override
+          public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+            configured.release();
+          }
+        },
+        cameraHandler);
+    if (!configured.tryAcquire(CAMERA_TIMEOUT_MS, TimeUnit.MILLISECONDS) || result[0] == null) {
+      throw new IOException("Could not configure capture session");
+    }
+    return result[0];
+  }
+}
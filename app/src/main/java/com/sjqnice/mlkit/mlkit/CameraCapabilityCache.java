@@ -0,0 +1,326 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.content.Context;
+import android.hardware.Camera;
+import android.hardware.Camera.CameraInfo;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.android.gms.common.images.Size;
+import com.sjqnice.mlkit.mlkit.CameraSource.SizePair;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Remembers what the cameras of this device support, so that warm starts can configure a camera
+ * without enumerating the cameras and parsing the camera parameters again.
+ *
+ * <p>The cache is stored as JSON in the app's files directory and is discarded whenever the build
+ * fingerprint changes, since a system update can change what the camera HAL reports. Cameras are
+ * keyed by their {@link android.hardware.Camera} id.
+ *
+ * <p>The file is read and written on a background thread, so that starting the camera never waits
+ * for disk I/O. Lookups made before the file has been read are misses; call {@link #preload} early,
+ * e.g. when the scanning screen is created, so that the file is in memory by the time the camera
+ * starts.
+ */
+@SuppressWarnings("deprecation")
+public final class CameraCapabilityCache {
+  private static final String TAG = "CameraCapabilityCache";
+
+  private static final String FILE_NAME = "camera_capabilities.json";
+
+  /** Bump when the stored format changes, so that older files are ignored. */
+  private static final int FORMAT_VERSION = 1;
+
+  private static final String KEY_VERSION = "version";
+  private static final String KEY_FINGERPRINT = "fingerprint";
+  private static final String KEY_CAMERAS = "cameras";
+  private static final String KEY_FACING = "facing";
+  private static final String KEY_ORIENTATION = "orientation";
+  private static final String KEY_CAPABILITIES = "capabilities";
+  private static final String KEY_SIZES = "sizes";
+  private static final String KEY_FPS_RANGES = "fpsRanges";
+  private static final String KEY_CONTINUOUS_VIDEO_FOCUS = "continuousVideoFocus";
+  private static final String KEY_FLASH_MODES = "flashModes";
+
+  @Nullable private static CameraCapabilityCache instance;
+
+  private final AtomicFile file;
+
+  // Reads and writes the file in order, the read first.
+  private final ExecutorService io =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  // Guarded by this.
+  @Nullable private List<CameraDescription> cameras;
+  private final List<Capabilities> capabilities = new ArrayList<>();
+
+  /**
+   * Returns the cache of this process. On first use the file starts loading in the background;
+   * lookups miss until it has been read.
+   */
+  public static synchronized CameraCapabilityCache getInstance(Context context) {
+    if (instance == null) {
+      File file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+      instance = new CameraCapabilityCache(file);
+      instance.io.execute(instance::load);
+    }
+    return instance;
+  }
+
+  /** Starts reading the cache from disk in the background, if that has not happened yet. */
+  public static void preload(Context context) {
+    getInstance(context);
+  }
+
+  private CameraCapabilityCache(File file) {
+    this.file = new AtomicFile(file);
+  }
+
+  /** Facing and sensor orientation of a camera, as reported by {@link CameraInfo}. */
+  public static final class CameraDescription {
+    public final int facing;
+    public final int orientation;
+
+    CameraDescription(int facing, int orientation) {
+      this.facing = facing;
+      this.orientation = orientation;
+    }
+  }
+
+  /** The parts of {@link Camera.Parameters} that are needed to configure a camera. */
+  public static final class Capabilities {
+    /** Preview sizes paired with a picture size of the same aspect ratio. */
+    public final List<SizePair> sizePairs;
+    /** Supported preview fps ranges, empty if the camera does not report any. */
+    public final List<int[]> previewFpsRanges;
+    public final boolean continuousVideoFocus;
+    public final List<String> flashModes;
+
+    Capabilities(
+        List<SizePair> sizePairs,
+        List<int[]> previewFpsRanges,
+        boolean continuousVideoFocus,
+        List<String> flashModes) {
+      this.sizePairs = Collections.unmodifiableList(sizePairs);
+      this.previewFpsRanges = Collections.unmodifiableList(previewFpsRanges);
+      this.continuousVideoFocus = continuousVideoFocus;
+      this.flashModes = Collections.unmodifiableList(flashModes);
+    }
+
+    /** Extracts the capabilities from parameters fetched once from the opened camera. */
+    static Capabilities from(Camera.Parameters parameters) {
+      List<int[]> fpsRanges = new ArrayList<>();
+      // Some devices do not report any range and fail on getSupportedPreviewFpsRange.
+      if (!TextUtils.isEmpty(parameters.get("preview-fps-range-value"))) {
+        List<int[]> supported = parameters.getSupportedPreviewFpsRange();
+        if (supported != null) {
+          fpsRanges.addAll(supported);
+        }
+      }
+      List<String> focusModes = parameters.getSupportedFocusModes();
+      List<String> flashModes = parameters.getSupportedFlashModes();
+      return new Capabilities(
+          Camera1FrameSource.generateValidPreviewSizeList(parameters),
+          fpsRanges,
+          focusModes != null && focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO),
+          flashModes == null ? new ArrayList<>() : new ArrayList<>(flashModes));
+    }
+  }
+
+  /**
+   * Returns the cameras of the device, indexed by camera id. They are enumerated once and then
+   * served from the cache.
+   */
+  public synchronized List<CameraDescription> getCameras() {
+    if (cameras == null) {
+      int numCameras = Camera.getNumberOfCameras();
+      List<CameraDescription> enumerated = new ArrayList<>(numCameras);
+      CameraInfo cameraInfo = new CameraInfo();
+      for (int i = 0; i < numCameras; i++) {
+        Camera.getCameraInfo(i, cameraInfo);
+        enumerated.add(new CameraDescription(cameraInfo.facing, cameraInfo.orientation));
+      }
+      cameras = Collections.unmodifiableList(enumerated);
+      capabilities.clear();
+      save();
+    }
+    return cameras;
+  }
+
+  /** Returns the cached capabilities of a camera, or null if it has not been opened before. */
+  @Nullable
+  public synchronized Capabilities getCapabilities(int cameraId) {
+    return cameraId < capabilities.size() ? capabilities.get(cameraId) : null;
+  }
+
+  /** Stores the capabilities of a camera and writes the cache to disk. */
+  public synchronized void putCapabilities(int cameraId, Capabilities cameraCapabilities) {
+    while (capabilities.size() <= cameraId) {
+      capabilities.add(null);
+    }
+    capabilities.set(cameraId, cameraCapabilities);
+    save();
+  }
+
+  /** Forgets everything, e.g. after the camera rejected parameters taken from the cache. */
+  public synchronized void clear() {
+    cameras = null;
+    capabilities.clear();
+    io.execute(file::delete);
+  }
+
+  /** Reads the file on the I/O thread and adopts what has not been queried meanwhile. */
+  private void load() {
+    if (!file.getBaseFile().exists()) {
+      return;
+    }
+    try {
+      JSONObject root = new JSONObject(new String(file.readFully(), StandardCharsets.UTF_8));
+      if (root.getInt(KEY_VERSION) != FORMAT_VERSION
+          || !Build.FINGERPRINT.equals(root.getString(KEY_FINGERPRINT))) {
+        Log.i(TAG, "Discarding capabilities of a different build");
+        file.delete();
+        return;
+      }
+      JSONArray cameraArray = root.getJSONArray(KEY_CAMERAS);
+      List<CameraDescription> loadedCameras = new ArrayList<>(cameraArray.length());
+      List<Capabilities> loadedCapabilities = new ArrayList<>(cameraArray.length());
+      for (int i = 0; i < cameraArray.length(); i++) {
+        JSONObject camera = cameraArray.getJSONObject(i);
+        loadedCameras.add(
+            new CameraDescription(camera.getInt(KEY_FACING), camera.getInt(KEY_ORIENTATION)));
+        JSONObject cameraCapabilities = camera.optJSONObject(KEY_CAPABILITIES);
+        loadedCapabilities.add(
+            cameraCapabilities == null ? null : capabilitiesFromJson(cameraCapabilities));
+      }
+      synchronized (this) {
+        if (cameras != null) {
+          // Enumerated while the file was read; the fresh values are written back later anyway.
+          return;
+        }
+        cameras = Collections.unmodifiableList(loadedCameras);
+        capabilities.clear();
+        capabilities.addAll(loadedCapabilities);
+      }
+    } catch (IOException | JSONException | RuntimeException e) {
+      Log.w(TAG, "Failed to read camera capabilities, they will be queried again", e);
+      file.delete();
+    }
+  }
+
+  /** Serializes the cache and writes it on the I/O thread. Called while holding the lock. */
+  private void save() {
+    if (cameras == null) {
+      return;
+    }
+    byte[] content;
+    try {
+      JSONArray cameraArray = new JSONArray();
+      for (int i = 0; i < cameras.size(); i++) {
+        CameraDescription description = cameras.get(i);
+        JSONObject camera = new JSONObject();
+        camera.put(KEY_FACING, description.facing);
+        camera.put(KEY_ORIENTATION, description.orientation);
+        Capabilities cameraCapabilities = i < capabilities.size() ? capabilities.get(i) : null;
+        if (cameraCapabilities != null) {
+          camera.put(KEY_CAPABILITIES, capabilitiesToJson(cameraCapabilities));
+        }
+        cameraArray.put(camera);
+      }
+      JSONObject root = new JSONObject();
+      root.put(KEY_VERSION, FORMAT_VERSION);
+      root.put(KEY_FINGERPRINT, Build.FINGERPRINT);
+      root.put(KEY_CAMERAS, cameraArray);
+      content = root.toString().getBytes(StandardCharsets.UTF_8);
+    } catch (JSONException e) {
+      Log.w(TAG, "Failed to write camera capabilities", e);
+      return;
+    }
+    io.execute(() -> write(content));
+  }
+
+  private void write(byte[] content) {
+    FileOutputStream out = null;
+    try {
+      out = file.startWrite();
+      out.write(content);
+      file.finishWrite(out);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write camera capabilities", e);
+      if (out != null) {
+        file.failWrite(out);
+      }
+    }
+  }
+
+  private static JSONObject capabilitiesToJson(Capabilities capabilities) throws JSONException {
+    JSONArray sizes = new JSONArray();
+    for (SizePair sizePair : capabilities.sizePairs) {
+      JSONArray pair = new JSONArray();
+      pair.put(sizePair.preview.getWidth()).put(sizePair.preview.getHeight());
+      if (sizePair.picture != null) {
+        pair.put(sizePair.picture.getWidth()).put(sizePair.picture.getHeight());
+      }
+      sizes.put(pair);
+    }
+    JSONArray fpsRanges = new JSONArray();
+    for (int[] range : capabilities.previewFpsRanges) {
+      fpsRanges.put(
+          new JSONArray()
+              .put(range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX])
+              .put(range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]));
+    }
+    JSONObject json = new JSONObject();
+    json.put(KEY_SIZES, sizes);
+    json.put(KEY_FPS_RANGES, fpsRanges);
+    json.put(KEY_CONTINUOUS_VIDEO_FOCUS, capabilities.continuousVideoFocus);
+    json.put(KEY_FLASH_MODES, new JSONArray(capabilities.flashModes));
+    return json;
+  }
+
+  private static Capabilities capabilitiesFromJson(JSONObject json) throws JSONException {
+    JSONArray sizes = json.getJSONArray(KEY_SIZES);
+    List<SizePair> sizePairs = new ArrayList<>(sizes.length());
+    for (int i = 0; i < sizes.length(); i++) {
+      JSONArray pair = sizes.getJSONArray(i);
+      Size preview = new Size(pair.getInt(0), pair.getInt(1));
+      Size picture = pair.length() >= 4 ? new Size(pair.getInt(2), pair.getInt(3)) : null;
+      sizePairs.add(new SizePair(preview, picture));
+    }
+    JSONArray ranges = json.getJSONArray(KEY_FPS_RANGES);
+    List<int[]> fpsRanges = new ArrayList<>(ranges.length());
+    for (int i = 0; i < ranges.length(); i++) {
+      JSONArray range = ranges.getJSONArray(i);
+      int[] fpsRange = new int[2];
+      fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] = range.getInt(0);
+      fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] = range.getInt(1);
+      fpsRanges.add(fpsRange);
+    }
+    JSONArray modes = json.getJSONArray(KEY_FLASH_MODES);
+    List<String> flashModes = new ArrayList<>(modes.length());
+    for (int i = 0; i < modes.length(); i++) {
+      flashModes.add(modes.getString(i));
+    }
+    return new Capabilities(
+        sizePairs, fpsRanges, json.getBoolean(KEY_CONTINUOUS_VIDEO_FOCUS), flashModes);
+  }
+}
@@ -18,25 +18,77 @@ package com.sjqnice.mlkit.mlkit;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import androidx.annotation.Nullable;
 import com.sjqnice.mlkit.mlkit.GraphicOverlay.Graphic;
 
 /** Draw camera image to background. */
 public class CameraImageGraphic extends Graphic {
 
   private final Bitmap bitmap;
+  @Nullable private final BitmapPool bitmapPool;
+  private final boolean viewSized;
 
   public CameraImageGraphic(GraphicOverlay overlay, Bitmap bitmap) {
+    this(overlay, bitmap, null);
+  }
+
+  /**
+   * @param bitmapPool the pool the bitmap is handed back to once the graphic is removed from the
+   *     overlay, or null to leave the bitmap to the caller
+   */
+  public CameraImageGraphic(
+      GraphicOverlay overlay, Bitmap bitmap, @Nullable BitmapPool bitmapPool) {
+    this(overlay, bitmap, bitmapPool, /* viewSized= */ false);
+  }
+
+  /**
+   * @param viewSized whether the bitmap already shows the image as the overlay does, like the
+   *     snapshots of live detections, and is drawn as is instead of through the transformation
+   *     of the overlay
+   */
+  public CameraImageGraphic(
+      GraphicOverlay overlay, Bitmap bitmap, @Nullable BitmapPool bitmapPool, boolean viewSized) {
     super(overlay);
     this.bitmap = bitmap;
+    this.bitmapPool = bitmapPool;
+    this.viewSized = viewSized;
+  }
+
+  /**
+   * Takes over a snapshot of a live detection that is not drawn otherwise, see {@link
+   * VisionProcessorBase#onSuccess}: adds it as the camera preview if the overlay draws the preview,
+   * i.e. the live viewport is off, handing it back to the {@link BitmapPool} once removed, and hands
+   * it back right away otherwise.
+   */
+  public static void showOrRecycleSnapshot(GraphicOverlay overlay, @Nullable Bitmap snapshot) {
+    if (snapshot == null) {
+      return;
+    }
+    if (PreferenceUtils.isCameraLiveViewportEnabled(overlay.getContext())) {
+      BitmapPool.getInstance().put(snapshot);
+    } else {
+      overlay.add(
+          new CameraImageGraphic(
+              overlay, snapshot, BitmapPool.getInstance(), /* viewSized= */ true));
+    }
   }
 
   @Override
   public void draw(Canvas canvas) {
-    if (isDisplayStillImage()) {
+    if (viewSized) {
+      canvas.drawBitmap(bitmap, 0, 0, null);
+    } else if (isDisplayStillImage()) {
       float top = canvas.getHeight() - bitmap.getHeight() - (canvas.getHeight() - bitmap.getHeight()) / 2f;
       canvas.drawBitmap(bitmap, 0, top, null);
     }else {
       canvas.drawBitmap(bitmap, getTransformationMatrix(), null);
     }
   }
+
+  @Override
+  protected void onRemoved() {
+    if (bitmapPool != null) {
+      bitmapPool.put(bitmap);
+    }
+  }
 }
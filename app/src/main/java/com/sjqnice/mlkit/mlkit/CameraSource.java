@@ -21,10 +21,10 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.ImageFormat;
-import android.graphics.SurfaceTexture;
+import android.graphics.RectF;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
-import android.text.TextUtils;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -38,12 +38,13 @@ import com.sjqnice.mlkit.mlkit.PreferenceUtils;
 import com.sjqnice.mlkit.mlkit.VisionImageProcessor;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Manages the camera and allows UI updates on top of it (e.g. overlaying extra Graphics or
@@ -64,21 +65,23 @@ public class CameraSource {
   private static final String TAG = "MIDemoApp:CameraSource";
 
   /**
-   * The dummy surface texture must be assigned a chosen name. Since we never use an OpenGL context,
-   * we can choose any ID we want here. The dummy surface texture is not a crazy hack - it is
-   * actually how the camera team recommends using the camera without a preview.
+   * Minimum number of preview buffers, see {@link #openFrameSource(SurfaceHolder)} for why four
+   * buffers are needed.
    */
-  private static final int DUMMY_TEXTURE_NAME = 100;
+  private static final int MIN_PREVIEW_BUFFERS = 4;
 
-  /**
-   * If the absolute difference between a preview size aspect ratio and a picture size aspect ratio
-   * is less than this tolerance, they are considered to be the same aspect ratio.
-   */
-  private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
+  /** Default upper bound of the memory used by preview buffers, about eight 1080p NV21 frames. */
+  public static final long DEFAULT_PREVIEW_BUFFER_BUDGET_BYTES = 24L * 1024 * 1024;
+
+  /** Number of preprocessed frames that may wait for the detect stage. */
+  private static final int DETECTION_QUEUE_CAPACITY = 2;
 
   protected Activity activity;
 
-  private Camera camera;
+  /** Delivers the preview frames, the camera1 API unless replaced through {@link #setFrameSource}. */
+  private FrameSource frameSource;
+
+  private boolean frameSourceOpen;
 
   private int facing = CAMERA_FACING_BACK;
 
@@ -87,43 +90,72 @@ public class CameraSource {
 
   private Size previewSize;
 
-  private static final float REQUESTED_FPS = 30.0f;
-  private static final boolean REQUESTED_AUTO_FOCUS = true;
-
-  // This instance needs to be held onto to avoid GC of its underlying resources. Even though it
-  // isn't used outside of the method that creates it, it still must have hard references maintained
-  // to it.
-  private SurfaceTexture dummySurfaceTexture;
+  static final float REQUESTED_FPS = 30.0f;
+  static final boolean REQUESTED_AUTO_FOCUS = true;
 
   private final GraphicOverlay graphicOverlay;
 
   /**
-   * Dedicated thread and associated runnable for calling into the detector with frames, as the
-   * frames become available from the camera.
+   * Frames flow through a staged pipeline: the camera callback captures them, the preprocess
+   * stage runs the {@link FramePreprocessor}s, and the detect stage calls into the detector. Each
+   * stage after capture has a dedicated thread and associated runnable, and the stages are
+   * connected through bounded queues, so that preprocessing of a frame overlaps with detection on
+   * the previous one. Preparing the graphics of a result happens on the detector's result
+   * executor.
    */
   private Thread processingThread;
 
+  private Thread detectionThread;
+
   private final FrameProcessingRunnable processingRunnable;
-  private final Object processorLock = new Object();
+  private final DetectionRunnable detectionRunnable;
+  private final SpscRingQueue<PipelineFrame> detectionQueue =
+      new SpscRingQueue<>(DETECTION_QUEUE_CAPACITY);
+
+  private volatile FramePreprocessor[] preprocessors = new FramePreprocessor[0];
 
-  private VisionImageProcessor frameProcessor;
+  /** Run ahead of the added preprocessors, so that they work on the cropped and scaled frame. */
+  private final RegionOfInterestPreprocessor regionOfInterest;
+
+  private final DownscalePreprocessor downscale = new DownscalePreprocessor();
 
   /**
-   * Map to convert between a byte array, received from the camera, and its associated byte buffer.
-   * We use byte buffers internally because this is a more efficient way to call into native code
-   * later (avoids a potential copy).
-   *
-   * <p><b>Note:</b> uses IdentityHashMap here instead of HashMap because the behavior of an array's
-   * equals, hashCode and toString methods is both useless and unexpected. IdentityHashMap enforces
-   * identity ('==') check on the keys.
+   * The processor is swapped without a lock. The detect stage announces the processor it is about
+   * to call in {@link #inFlightProcessor} and then checks that it is still current, like a hazard
+   * pointer. A replaced processor waits in {@link #retiredProcessors} until it is not in flight
+   * anymore, and whichever thread notices first then asks it to stop once its own detections in
+   * flight have finished, see {@link VisionImageProcessor#stopWhenIdle()}.
+   */
+  private final AtomicReference<VisionImageProcessor> frameProcessor = new AtomicReference<>();
+
+  @Nullable private volatile VisionImageProcessor inFlightProcessor;
+
+  private final ConcurrentLinkedQueue<VisionImageProcessor> retiredProcessors =
+      new ConcurrentLinkedQueue<>();
+
+  /** Detects scene motion for {@link VisionImageProcessor#onSceneMotion}, on the preprocess stage. */
+  private final LumaMotionDetector motionDetector = new LumaMotionDetector();
+
+  /**
+   * Takes frames handed to the processor once it has released them, which may be after their
+   * detection finished on another thread.
    */
-  private final IdentityHashMap<byte[], ByteBuffer> bytesToByteBuffer = new IdentityHashMap<>();
+  private final PipelineFrame.Recycler processedFrameRecycler =
+      frame -> recycleFrame(frame, /* dropped= */ false);
+
+  /** Preview buffers of the currently opened camera, null while the camera is closed. */
+  @Nullable private volatile FrameBufferPool bufferPool;
+
+  private long previewBufferBudgetBytes = DEFAULT_PREVIEW_BUFFER_BUDGET_BYTES;
 
   public CameraSource(Activity activity, GraphicOverlay overlay) {
     this.activity = activity;
     graphicOverlay = overlay;
     graphicOverlay.clear();
+    regionOfInterest = new RegionOfInterestPreprocessor(overlay);
+    frameSource = new Camera1FrameSource(activity);
     processingRunnable = new FrameProcessingRunnable();
+    detectionRunnable = new DetectionRunnable();
   }
 
   // ==============================================================================================
@@ -132,14 +164,15 @@ public class CameraSource {
 
   /** Stops the camera and releases the resources of the camera and underlying detector. */
   public void release() {
-    synchronized (processorLock) {
-      stop();
-      cleanScreen();
+    stop();
+    cleanScreen();
 
-      if (frameProcessor != null) {
-        frameProcessor.stop();
-      }
+    // The detect stage has exited, so no processor is in flight anymore.
+    VisionImageProcessor processor = frameProcessor.getAndSet(null);
+    if (processor != null) {
+      processor.stop();
     }
+    stopRetiredProcessors();
   }
 
   /**
@@ -150,18 +183,12 @@ public class CameraSource {
    */
   @RequiresPermission(Manifest.permission.CAMERA)
   public synchronized CameraSource start() throws IOException {
-    if (camera != null) {
+    if (frameSourceOpen) {
       return this;
     }
 
-    camera = createCamera();
-    dummySurfaceTexture = new SurfaceTexture(DUMMY_TEXTURE_NAME);
-    camera.setPreviewTexture(dummySurfaceTexture);
-    camera.startPreview();
-
-    processingThread = new Thread(processingRunnable);
-    processingRunnable.setActive(true);
-    processingThread.start();
+    openFrameSource(null);
+    startProcessing();
     return this;
   }
 
@@ -174,17 +201,12 @@ public class CameraSource {
    */
   @RequiresPermission(Manifest.permission.CAMERA)
   public synchronized CameraSource start(SurfaceHolder surfaceHolder) throws IOException {
-    if (camera != null) {
+    if (frameSourceOpen) {
       return this;
     }
 
-    camera = createCamera();
-    camera.setPreviewDisplay(surfaceHolder);
-    camera.startPreview();
-
-    processingThread = new Thread(processingRunnable);
-    processingRunnable.setActive(true);
-    processingThread.start();
+    openFrameSource(surfaceHolder);
+    startProcessing();
     return this;
   }
 
@@ -198,35 +220,111 @@ public class CameraSource {
    * resources of the underlying detector.
    */
   public synchronized void stop() {
+    stopProcessing();
+
+    if (frameSourceOpen) {
+      frameSource.close();
+      frameSourceOpen = false;
+    }
+
+    // The source is closed, so the camera callback cannot refill the slot anymore, and frames left
+    // over in the slot and the queue go back to the pool without being queued at the source.
+    FrameBufferPool pool = bufferPool;
+    bufferPool = null;
+    discardFrame(pool, processingRunnable.clearPendingFrame());
+    PipelineFrame queued;
+    while ((queued = detectionQueue.poll()) != null) {
+      discardFrame(pool, queued);
+    }
+
+    // Release the reference to any image buffers, since these will no longer be in use.
+    if (pool != null) {
+      Log.d(
+          TAG,
+          "Preview buffers: count="
+              + pool.getBufferCount()
+              + ", starvations="
+              + pool.getStarvationCount()
+              + ", drops="
+              + pool.getDropCount()
+              + ", reuses="
+              + pool.getReuseCount());
+      pool.clear();
+    }
+  }
+
+  /** Drops a frame that never reached the detector while the pipeline shuts down. */
+  private static void discardFrame(@Nullable FrameBufferPool pool, @Nullable PipelineFrame frame) {
+    if (frame == null) {
+      return;
+    }
+    frame.setRecycler(null);
+    frame.release();
+    if (pool != null) {
+      pool.recordDrop();
+      pool.recycle(frame.getCameraArray());
+    }
+  }
+
+  private void startProcessing() {
+    motionDetector.reset();
+    processingThread = new Thread(processingRunnable, "FramePreprocess");
+    detectionThread = new Thread(detectionRunnable, "FrameDetection");
+    processingRunnable.setActive(true);
+    detectionRunnable.setActive(true);
+    processingThread.start();
+    detectionThread.start();
+  }
+
+  private void stopProcessing() {
     processingRunnable.setActive(false);
-    if (processingThread != null) {
-      try {
-        // Wait for the thread to complete to ensure that we can't have multiple threads
-        // executing at the same time (i.e., which would happen if we called start too
-        // quickly after stop).
+    detectionRunnable.setActive(false);
+    try {
+      // Wait for the threads to complete to ensure that we can't have multiple threads
+      // executing at the same time (i.e., which would happen if we called start too
+      // quickly after stop).
+      if (processingThread != null) {
         processingThread.join();
-      } catch (InterruptedException e) {
-        Log.d(TAG, "Frame processing thread interrupted on release.");
       }
-      processingThread = null;
-    }
-
-    if (camera != null) {
-      camera.stopPreview();
-      camera.setPreviewCallbackWithBuffer(null);
-      try {
-        camera.setPreviewTexture(null);
-        dummySurfaceTexture = null;
-        camera.setPreviewDisplay(null);
-      } catch (Exception e) {
-        Log.e(TAG, "Failed to clear camera preview: " + e);
+      if (detectionThread != null) {
+        detectionThread.join();
       }
-      camera.release();
-      camera = null;
+    } catch (InterruptedException e) {
+      Log.d(TAG, "Frame processing thread interrupted on release.");
     }
+    processingThread = null;
+    detectionThread = null;
+    // Both stages have exited, so this thread may act as the consumer of the slot and the queue,
+    // which stop() drains once the frame source is closed.
+  }
 
-    // Release the reference to any image buffers, since these will no longer be in use.
-    bytesToByteBuffer.clear();
+  /**
+   * Adds a step to the preprocess stage. Preprocessors run in the order they were added, on frames
+   * about to be handed to the detector.
+   */
+  public synchronized void addFramePreprocessor(FramePreprocessor preprocessor) {
+    FramePreprocessor[] current = preprocessors;
+    FramePreprocessor[] updated = Arrays.copyOf(current, current.length + 1);
+    updated[current.length] = preprocessor;
+    preprocessors = updated;
+  }
+
+  /** Removes a step added by {@link #addFramePreprocessor(FramePreprocessor)}. */
+  public synchronized void removeFramePreprocessor(FramePreprocessor preprocessor) {
+    FramePreprocessor[] current = preprocessors;
+    List<FramePreprocessor> updated = new ArrayList<>(Arrays.asList(current));
+    updated.remove(preprocessor);
+    preprocessors = updated.toArray(new FramePreprocessor[0]);
+  }
+
+  /**
+   * Restricts detection to a region of the preview, given in the coordinates of the graphic
+   * overlay, or detects in the whole frame if null. Detection results are reported in the
+   * coordinates of the crop; {@link FrameMetadata} carries the offset, which the overlay applies
+   * when drawing the results.
+   */
+  public void setRegionOfInterest(@Nullable RectF region) {
+    regionOfInterest.setRegion(region);
   }
 
   /** Changes the facing of the camera. */
@@ -237,6 +335,39 @@ public class CameraSource {
     this.facing = facing;
   }
 
+  /**
+   * Replaces the source of preview frames, e.g. with a {@link Camera2FrameSource}. Takes effect the
+   * next time the camera is started.
+   */
+  public synchronized void setFrameSource(FrameSource source) {
+    if (frameSourceOpen) {
+      throw new IllegalStateException("Cannot change the frame source while the camera is running");
+    }
+    frameSource = source;
+  }
+
+  /**
+   * Sets the upper bound of the memory used by preview buffers. Takes effect the next time the
+   * camera is started.
+   */
+  public synchronized void setPreviewBufferBudget(long budgetBytes) {
+    previewBufferBudgetBytes = budgetBytes;
+  }
+
+  /**
+   * Returns the preview buffer pool of the running camera, e.g. to read its starvation, drop and
+   * reuse counters, or null if the camera is not running.
+   */
+  @Nullable
+  public FrameBufferPool getFrameBufferPool() {
+    return bufferPool;
+  }
+
+  /** Returns whether the camera is open and delivering frames, i.e. started and not stopped. */
+  public synchronized boolean isRunning() {
+    return frameSourceOpen;
+  }
+
   /** Returns the preview size that is currently in use by the underlying camera. */
   public Size getPreviewSize() {
     return previewSize;
@@ -251,87 +382,22 @@ public class CameraSource {
   }
 
   /**
-   * Opens the camera and applies the user settings.
+   * Opens the frame source, queues the initial preview buffers and starts the preview.
    *
+   * @param surfaceHolder the surface to display the preview on, or null to not display it
    * @throws IOException if camera cannot be found or preview cannot be processed
    */
-  @SuppressLint("InlinedApi")
-  private Camera createCamera() throws IOException {
-    int requestedCameraId = getIdForRequestedCamera(facing);
-    if (requestedCameraId == -1) {
-      int numCameras = Camera.getNumberOfCameras();
-      int cameraId = 0;
-      while (cameraId < numCameras) {
-        CameraInfo cameraInfo = new CameraInfo();
-        Camera.getCameraInfo(cameraId, cameraInfo);
-        if (cameraInfo.facing == CameraSource.CAMERA_FACING_FRONT) {
-          break;
-        }
-        cameraId++;
-      }
-      if (cameraId == numCameras) {
-        Log.i(TAG, "No camera facing " + CameraSource.CAMERA_FACING_BACK + "; returning camera #0");
-        cameraId = 0;
-      }
-      requestedCameraId = cameraId;
-    }
-    Camera camera = Camera.open(requestedCameraId);
-    if(onCameraListener != null) {
-      onCameraListener.open(camera);
-    }
-
-    SizePair sizePair = PreferenceUtils.getCameraPreviewSizePair(activity, requestedCameraId);
-    if (sizePair == null) {
-      sizePair =
-          selectSizePair(
-              camera,
-              DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH,
-              DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT);
+  private void openFrameSource(@Nullable SurfaceHolder surfaceHolder) throws IOException {
+    FrameSource source = frameSource;
+    source.open(facing);
+    frameSourceOpen = true;
+    if (onCameraListener != null && source instanceof Camera1FrameSource) {
+      onCameraListener.open(((Camera1FrameSource) source).getCamera());
     }
+    previewSize = source.getPreviewSize();
+    rotationDegrees = source.getRotationDegrees();
 
-    if (sizePair == null) {
-      throw new IOException("Could not find suitable preview size.");
-    }
-
-    previewSize = sizePair.preview;
-    Log.v(TAG, "Camera preview size: " + previewSize);
-
-    int[] previewFpsRange = selectPreviewFpsRange(camera, REQUESTED_FPS);
-//    if (previewFpsRange == null) {
-//      throw new IOException("Could not find suitable preview frames per second range.");
-//    }
-
-    Camera.Parameters parameters = camera.getParameters();
-
-    Size pictureSize = sizePair.picture;
-    if (pictureSize != null) {
-      Log.v(TAG, "Camera picture size: " + pictureSize);
-      parameters.setPictureSize(pictureSize.getWidth(), pictureSize.getHeight());
-    }
-    parameters.setPreviewSize(previewSize.getWidth(), previewSize.getHeight());
-    if(previewFpsRange != null) {
-      parameters.setPreviewFpsRange(
-              previewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
-              previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
-    }
-    // Use YV12 so that we can exercise YV12->NV21 auto-conversion logic for OCR detection
-    parameters.setPreviewFormat(IMAGE_FORMAT);
-
-    setRotation(camera, parameters, requestedCameraId);
-
-    if (REQUESTED_AUTO_FOCUS) {
-      if (parameters
-          .getSupportedFocusModes()
-          .contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
-        parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
-      } else {
-        Log.i(TAG, "Camera auto focus is not supported on this device.");
-      }
-    }
-
-    camera.setParameters(parameters);
-
-    // Four frame buffers are needed for working with the camera:
+    // At least four frame buffers are needed for working with the camera:
     //
     //   one for the frame that is currently being executed upon in doing detection
     //   one for the next pending frame to process immediately upon completing detection
@@ -342,65 +408,25 @@ public class CameraSource {
     // one thread for acquiring images, and another thread for calling into user code.  If only
     // three buffers are used, then the camera will spew thousands of warning messages when
     // detection takes a non-trivial amount of time.
-    camera.setPreviewCallbackWithBuffer(new CameraPreviewCallback());
-    camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-    camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-    camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-    camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-
-    return camera;
-  }
-
-  /**
-   * Gets the id for the camera specified by the direction it is facing. Returns -1 if no such
-   * camera was found.
-   *
-   * @param facing the desired camera (front-facing or rear-facing)
-   */
-  private static int getIdForRequestedCamera(int facing) {
-    CameraInfo cameraInfo = new CameraInfo();
-    for (int i = 0; i < Camera.getNumberOfCameras(); ++i) {
-      Camera.getCameraInfo(i, cameraInfo);
-      if (cameraInfo.facing == facing) {
-        return i;
-      }
+    //
+    // The pool adds more buffers, up to its memory budget, when it sees the camera run dry.
+    FrameBufferPool pool =
+        new FrameBufferPool(
+            getPreviewBufferSize(previewSize), MIN_PREVIEW_BUFFERS, previewBufferBudgetBytes);
+    for (int i = 0; i < pool.getInitialBufferCount(); i++) {
+      source.queueBuffer(pool.allocate());
     }
-    return -1;
-  }
-
-  /**
-   * Selects the most suitable preview and picture size, given the desired width and height.
-   *
-   * <p>Even though we only need to find the preview size, it's necessary to find both the preview
-   * size and the picture size of the camera together, because these need to have the same aspect
-   * ratio. On some hardware, if you would only set the preview size, you will get a distorted
-   * image.
-   *
-   * @param camera the camera to select a preview size from
-   * @param desiredWidth the desired width of the camera preview frames
-   * @param desiredHeight the desired height of the camera preview frames
-   * @return the selected preview and picture size pair
-   */
-  public static SizePair selectSizePair(Camera camera, int desiredWidth, int desiredHeight) {
-    List<SizePair> validPreviewSizes = generateValidPreviewSizeList(camera);
-
-    // The method for selecting the best size is to minimize the sum of the differences between
-    // the desired values and the actual values for width and height.  This is certainly not the
-    // only way to select the best size, but it provides a decent tradeoff between using the
-    // closest aspect ratio vs. using the closest pixel area.
-    SizePair selectedPair = null;
-    int minDiff = Integer.MAX_VALUE;
-    for (SizePair sizePair : validPreviewSizes) {
-      Size size = sizePair.preview;
-      int diff =
-          Math.abs(size.getWidth() - desiredWidth) + Math.abs(size.getHeight() - desiredHeight);
-      if (diff < minDiff) {
-        selectedPair = sizePair;
-        minDiff = diff;
-      }
+    bufferPool = pool;
+
+    try {
+      source.startPreview(surfaceHolder, processingRunnable::setNextFrame);
+    } catch (IOException e) {
+      source.close();
+      frameSourceOpen = false;
+      pool.clear();
+      bufferPool = null;
+      throw e;
     }
-
-    return selectedPair;
   }
 
   /**
@@ -424,94 +450,8 @@ public class CameraSource {
     }
   }
 
-  /**
-   * Generates a list of acceptable preview sizes. Preview sizes are not acceptable if there is not
-   * a corresponding picture size of the same aspect ratio. If there is a corresponding picture size
-   * of the same aspect ratio, the picture size is paired up with the preview size.
-   *
-   * <p>This is necessary because even if we don't use still pictures, the still picture size must
-   * be set to a size that is the same aspect ratio as the preview size we choose. Otherwise, the
-   * preview images may be distorted on some devices.
-   */
-  public static List<SizePair> generateValidPreviewSizeList(Camera camera) {
-    Camera.Parameters parameters = camera.getParameters();
-    List<Camera.Size> supportedPreviewSizes = parameters.getSupportedPreviewSizes();
-    List<Camera.Size> supportedPictureSizes = parameters.getSupportedPictureSizes();
-    List<SizePair> validPreviewSizes = new ArrayList<>();
-    for (Camera.Size previewSize : supportedPreviewSizes) {
-      float previewAspectRatio = (float) previewSize.width / (float) previewSize.height;
-
-      // By looping through the picture sizes in order, we favor the higher resolutions.
-      // We choose the highest resolution in order to support taking the full resolution
-      // picture later.
-      for (Camera.Size pictureSize : supportedPictureSizes) {
-        float pictureAspectRatio = (float) pictureSize.width / (float) pictureSize.height;
-        if (Math.abs(previewAspectRatio - pictureAspectRatio) < ASPECT_RATIO_TOLERANCE) {
-          validPreviewSizes.add(new SizePair(previewSize, pictureSize));
-          break;
-        }
-      }
-    }
-
-    // If there are no picture sizes with the same aspect ratio as any preview sizes, allow all
-    // of the preview sizes and hope that the camera can handle it.  Probably unlikely, but we
-    // still account for it.
-    if (validPreviewSizes.size() == 0) {
-      Log.w(TAG, "No preview sizes have a corresponding same-aspect-ratio picture size");
-      for (Camera.Size previewSize : supportedPreviewSizes) {
-        // The null picture size will let us know that we shouldn't set a picture size.
-        validPreviewSizes.add(new SizePair(previewSize, null));
-      }
-    }
-
-    return validPreviewSizes;
-  }
-
-  /**
-   * Selects the most suitable preview frames per second range, given the desired frames per second.
-   *
-   * @param camera the camera to select a frames per second range from
-   * @param desiredPreviewFps the desired frames per second for the camera preview frames
-   * @return the selected preview frames per second range
-   */
-  @SuppressLint("InlinedApi")
-  private static int[] selectPreviewFpsRange(Camera camera, float desiredPreviewFps) {
-    // The camera API uses integers scaled by a factor of 1000 instead of floating-point frame
-    // rates.
-    int desiredPreviewFpsScaled = (int) (desiredPreviewFps * 1000.0f);
-
-    // Selects a range with whose upper bound is as close as possible to the desired fps while its
-    // lower bound is as small as possible to properly expose frames in low light conditions. Note
-    // that this may select a range that the desired value is outside of. For example, if the
-    // desired frame rate is 30.5, the range (30, 30) is probably more desirable than (30, 40).
-    int[] selectedFpsRange = null;
-    int minUpperBoundDiff = Integer.MAX_VALUE;
-    int minLowerBound = Integer.MAX_VALUE;
-    String str = camera.getParameters().get("preview-fps-range-value");
-    if(!TextUtils.isEmpty(str)) {
-      List<int[]> previewFpsRangeList = camera.getParameters().getSupportedPreviewFpsRange();
-      for (int[] range : previewFpsRangeList) {
-        int upperBoundDiff =
-                Math.abs(desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
-        int lowerBound = range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
-        if (upperBoundDiff <= minUpperBoundDiff && lowerBound <= minLowerBound) {
-          selectedFpsRange = range;
-          minUpperBoundDiff = upperBoundDiff;
-          minLowerBound = lowerBound;
-        }
-      }
-    }
-    return selectedFpsRange;
-  }
-
-  /**
-   * Calculates the correct rotation for the given camera id and sets the rotation in the
-   * parameters. It also sets the camera's display orientation and rotation.
-   *
-   * @param parameters the camera parameters for which to set the rotation
-   * @param cameraId the camera id to set rotation based on
-   */
-  private void setRotation(Camera camera, Camera.Parameters parameters, int cameraId) {
+  /** Returns the rotation of the display in degrees, one of 0, 90, 180 or 270. */
+  static int getDisplayRotationDegrees(Activity activity) {
     WindowManager windowManager = (WindowManager) activity.getSystemService(Context.WINDOW_SERVICE);
     int degrees = 0;
     int rotation = windowManager.getDefaultDisplay().getRotation();
@@ -531,199 +471,330 @@ public class CameraSource {
       default:
         Log.e(TAG, "Bad rotation value: " + rotation);
     }
-
-    CameraInfo cameraInfo = new CameraInfo();
-    Camera.getCameraInfo(cameraId, cameraInfo);
-
-    int displayAngle;
-    if (cameraInfo.facing == CameraInfo.CAMERA_FACING_FRONT) {
-      this.rotationDegrees = (cameraInfo.orientation + degrees) % 360;
-      displayAngle = (360 - this.rotationDegrees) % 360; // compensate for it being mirrored
-    } else { // back-facing
-      this.rotationDegrees = (cameraInfo.orientation - degrees + 360) % 360;
-      displayAngle = this.rotationDegrees;
-    }
     Log.d(TAG, "Display rotation is: " + rotation);
-    Log.d(TAG, "Camera face is: " + cameraInfo.facing);
-    Log.d(TAG, "Camera rotation is: " + cameraInfo.orientation);
-    // This value should be one of the degrees that ImageMetadata accepts: 0, 90, 180 or 270.
-    Log.d(TAG, "RotationDegrees is: " + this.rotationDegrees);
-
-    camera.setDisplayOrientation(displayAngle);
-    parameters.setRotation(this.rotationDegrees);
+    return degrees;
   }
 
   /**
-   * Creates one buffer for the camera preview callback. The size of the buffer is based off of the
-   * camera preview size and the format of the camera image.
-   *
-   * @return a new preview buffer of the appropriate size for the current camera settings
+   * Returns the size of one buffer for the camera preview callback. The size of the buffer is based
+   * off of the camera preview size and the format of the camera image.
    */
   @SuppressLint("InlinedApi")
-  private byte[] createPreviewBuffer(Size previewSize) {
+  private static int getPreviewBufferSize(Size previewSize) {
     int bitsPerPixel = ImageFormat.getBitsPerPixel(IMAGE_FORMAT);
     long sizeInBits = (long) previewSize.getHeight() * previewSize.getWidth() * bitsPerPixel;
-    int bufferSize = (int) Math.ceil(sizeInBits / 8.0d) + 1;
+    return (int) Math.ceil(sizeInBits / 8.0d) + 1;
+  }
 
-    // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
-    // should guarantee that there will be an array to work with.
-    byte[] byteArray = new byte[bufferSize];
-    ByteBuffer buffer = ByteBuffer.wrap(byteArray);
-    if (!buffer.hasArray() || (buffer.array() != byteArray)) {
-      // I don't think that this will ever happen.  But if it does, then we wouldn't be
-      // passing the preview content to the underlying detector later.
-      throw new IllegalStateException("Failed to create valid buffer for camera source.");
+  /**
+   * Hands a buffer that is no longer used by the pipeline back to the camera, unless the pool is
+   * shrinking, and queues any buffers the pool decided to add.
+   */
+  private void recycleBuffer(FrameBufferPool pool, byte[] data) {
+    FrameSource source = frameSource;
+    if (pool.recycle(data)) {
+      source.queueBuffer(data);
+    }
+    for (int i = pool.takeGrowCount(); i > 0; i--) {
+      source.queueBuffer(pool.allocate());
     }
-
-    bytesToByteBuffer.put(byteArray, buffer);
-    return byteArray;
   }
 
   // ==============================================================================================
   // Frame processing
   // ==============================================================================================
 
-  /** Called when the camera has a new preview frame. */
-  private class CameraPreviewCallback implements Camera.PreviewCallback {
-    @Override
-    public void onPreviewFrame(byte[] data, Camera camera) {
-      processingRunnable.setNextFrame(data, camera);
+  /**
+   * Replaces the processor that frames are sent to. Frames that arrive from now on go to the new
+   * processor; the previous one is stopped once it has delivered the results of the frames it is
+   * detecting, without blocking the caller or the camera.
+   */
+  public void setMachineLearningFrameProcessor(VisionImageProcessor processor) {
+    VisionImageProcessor previous = frameProcessor.getAndSet(processor);
+    cleanScreen();
+    if (previous != null && previous != processor) {
+      retiredProcessors.add(previous);
+      stopRetiredProcessors();
     }
   }
 
-  public void setMachineLearningFrameProcessor(VisionImageProcessor processor) {
-    synchronized (processorLock) {
-      cleanScreen();
-      if (frameProcessor != null) {
-        frameProcessor.stop();
+  /**
+   * Stops the retired processors that are not in flight on the detect stage, once their
+   * detections have finished.
+   */
+  private void stopRetiredProcessors() {
+    for (VisionImageProcessor retired : retiredProcessors) {
+      // Removal decides which thread gets to stop the processor.
+      if (retired != inFlightProcessor && retiredProcessors.remove(retired)) {
+        retired.stopWhenIdle();
       }
-      frameProcessor = processor;
     }
   }
 
   /**
-   * This runnable controls access to the underlying receiver, calling it to process frames when
-   * available from the camera. This is designed to run detection on frames as fast as possible
-   * (i.e., without unnecessary context switching or waiting on the next frame).
+   * Returns a frame that has left the pipeline to the camera. Dropped frames are counted as such,
+   * processed frames feed the pool's latency estimate, which includes the time a processor held
+   * on to them. May be called from any thread.
+   */
+  private void recycleFrame(PipelineFrame frame, boolean dropped) {
+    FrameBufferPool pool = bufferPool;
+    if (pool == null) {
+      return;
+    }
+    if (dropped) {
+      pool.recordDrop();
+    } else {
+      pool.recordProcessingLatency(
+          SystemClock.elapsedRealtime() - frame.getPipelineEntryTimeMs());
+    }
+    recycleBuffer(pool, frame.getCameraArray());
+  }
+
+  /**
+   * This runnable is the preprocess stage of the pipeline. It picks up frames as they become
+   * available from the camera, runs the preprocessors on them and hands them to the detect stage.
+   * This is designed to process frames as fast as possible (i.e., without unnecessary context
+   * switching or waiting on the next frame).
    *
-   * <p>While detection is running on a frame, new frames may be received from the camera. As these
-   * frames come in, the most recent frame is held onto as pending. As soon as detection and its
-   * associated processing is done for the previous frame, detection on the mostly recently received
-   * frame will immediately start on the same thread.
+   * <p>While a frame is being preprocessed, new frames may be received from the camera. As these
+   * frames come in, the most recent frame is held onto as pending. As soon as the previous frame is
+   * done, the mostly recently received frame will immediately be processed on the same thread.
+   *
+   * <p>The pending frame is exchanged through a single atomic slot, so neither the camera callback
+   * nor this stage ever blocks on the other. Whoever swaps a frame out of the slot owns it: the
+   * camera callback returns a superseded frame to the camera, this stage processes the frame it
+   * takes.
    */
   private class FrameProcessingRunnable implements Runnable {
 
-    // This lock guards all of the member variables below.
-    private final Object lock = new Object();
-    private boolean active = true;
+    /**
+     * Number of times the stage polls the slot before parking. Frames often arrive while the stage
+     * is finishing the previous one, and catching them here saves the unpark round trip.
+     */
+    private static final int SPIN_TRIES = 100;
+
+    private volatile boolean active = true;
+    private volatile Thread consumer;
+
+    // The new frame awaiting processing.
+    private final AtomicReference<PipelineFrame> pendingFrame = new AtomicReference<>();
 
-    // These pending variables hold the state associated with the new frame awaiting processing.
-    private ByteBuffer pendingFrameData;
+    // Sequence number of the last frame received from the camera.
+    private final AtomicLong lastFrameId = new AtomicLong();
 
     FrameProcessingRunnable() {}
 
-    /** Marks the runnable as active/not active. Signals any blocked threads to continue. */
+    /** Marks the runnable as active/not active. Wakes up the stage if it is waiting. */
     void setActive(boolean active) {
-      synchronized (lock) {
-        this.active = active;
-        lock.notifyAll();
+      this.active = active;
+      signal();
+    }
+
+    private void signal() {
+      Thread thread = consumer;
+      if (thread != null) {
+        LockSupport.unpark(thread);
       }
     }
 
     /**
      * Sets the frame data received from the camera. This adds the previous unused frame buffer (if
      * present) back to the camera, and keeps a pending reference to the frame data for future use.
+     *
+     * @param captureTimeMs when the sensor captured the frame, 0 if unknown
      */
-    @SuppressWarnings("ByteBufferBackingArray")
-    void setNextFrame(byte[] data, Camera camera) {
-      synchronized (lock) {
-        if (pendingFrameData != null) {
-          camera.addCallbackBuffer(pendingFrameData.array());
-          pendingFrameData = null;
+    void setNextFrame(byte[] data, long captureTimeMs) {
+      FrameBufferPool pool = bufferPool;
+      if (pool == null) {
+        return;
+      }
+      long nowMs = SystemClock.elapsedRealtime();
+      PipelineFrame frame = pool.acquire(data, nowMs);
+      if (frame == null) {
+        Log.d(
+            TAG,
+            "Skipping frame. Could not find ByteBuffer associated with the image "
+                + "data from the camera.");
+        return;
+      }
+      frame.reset(
+          previewSize.getWidth(),
+          previewSize.getHeight(),
+          rotationDegrees,
+          lastFrameId.incrementAndGet(),
+          captureTimeMs > 0 ? captureTimeMs : nowMs,
+          nowMs);
+      frame.setRecycler(processedFrameRecycler);
+
+      PipelineFrame superseded = pendingFrame.getAndSet(frame);
+      if (superseded != null) {
+        // The stage did not get to the previous frame in time.
+        pool.recordDrop();
+        recycleBuffer(pool, superseded.getCameraArray());
+      }
+
+      // Wake up the processor thread if it is waiting on the next frame (see below).
+      signal();
+    }
+
+    /** Takes the pending frame out of the slot, waiting for one while the stage is active. */
+    @Nullable
+    private PipelineFrame takeNextFrame() {
+      int spins = 0;
+      while (active) {
+        PipelineFrame frame = pendingFrame.getAndSet(null);
+        if (frame != null) {
+          return frame;
+        }
+        if (spins < SPIN_TRIES) {
+          spins++;
+        } else {
+          // Parking returns immediately if the frame was set after the poll above.
+          LockSupport.park(this);
+        }
+      }
+      return null;
+    }
+
+    /** Takes a frame left in the slot after the stage has exited, so it can be released. */
+    @Nullable
+    PipelineFrame clearPendingFrame() {
+      return pendingFrame.getAndSet(null);
+    }
+
+    /**
+     * As long as the processing thread is active, this preprocesses frames continuously. The next
+     * pending frame is either immediately available or hasn't been received yet. Once it is
+     * available, we transfer it to a local variable, run the preprocessors on it and queue it for
+     * detection. It immediately loops back for the next frame without pausing.
+     *
+     * <p>If the detect stage falls behind and its queue is full, the frame is returned to the
+     * camera right away instead of blocking this stage.
+     */
+    @Override
+    public void run() {
+      consumer = Thread.currentThread();
+      try {
+        PipelineFrame frame;
+        while ((frame = takeNextFrame()) != null) {
+          processFrame(frame);
         }
+      } finally {
+        consumer = null;
+      }
+    }
 
-        if (!bytesToByteBuffer.containsKey(data)) {
-          Log.d(
-              TAG,
-              "Skipping frame. Could not find ByteBuffer associated with the image "
-                  + "data from the camera.");
+    private void processFrame(PipelineFrame frame) {
+      // Report scene motion and skip frames the detector would only drop, before spending time on
+      // preprocessing them.
+      VisionImageProcessor processor = frameProcessor.get();
+      if (processor != null) {
+        if (motionDetector.update(frame.getCameraArray(), frame.getWidth(), frame.getHeight())) {
+          processor.onSceneMotion(frame.getPipelineEntryTimeMs());
+        }
+        if (!processor.shouldAdmitFrame(frame.getPipelineEntryTimeMs())) {
+          recycleFrame(frame, /* dropped= */ true);
           return;
         }
+      }
 
-        pendingFrameData = bytesToByteBuffer.get(data);
+      boolean keep;
+      try {
+        // Scaling after cropping keeps the box filter off the pixels outside the region.
+        downscale.setScale(processor != null ? processor.getDetectionScale() : 1f);
+        keep = regionOfInterest.process(frame) && downscale.process(frame);
+        FramePreprocessor[] steps = preprocessors;
+        for (int i = 0; i < steps.length && keep; i++) {
+          keep = steps[i].process(frame);
+        }
+      } catch (Exception t) {
+        Log.e(TAG, "Exception thrown from preprocessor.", t);
+        keep = false;
+      }
 
-        // Notify the processor thread if it is waiting on the next frame (see below).
-        lock.notifyAll();
+      if (keep && detectionQueue.offer(frame)) {
+        detectionRunnable.signal();
+      } else {
+        recycleFrame(frame, /* dropped= */ true);
+      }
+    }
+  }
+
+  /**
+   * This runnable is the detect stage of the pipeline. It takes preprocessed frames from the
+   * detection queue in order and calls into the underlying receiver with them.
+   */
+  private class DetectionRunnable implements Runnable {
+
+    private volatile boolean active = true;
+    private volatile Thread consumer;
+
+    // Handed to the processor for every frame, which copies what it keeps.
+    private final FrameMetadata metadata = new FrameMetadata();
+
+    /** Marks the runnable as active/not active. Wakes up the stage if it is waiting. */
+    void setActive(boolean active) {
+      this.active = active;
+      signal();
+    }
+
+    /** Wakes up the stage after a frame has been queued. */
+    void signal() {
+      Thread thread = consumer;
+      if (thread != null) {
+        LockSupport.unpark(thread);
       }
     }
 
     /**
-     * As long as the processing thread is active, this executes detection on frames continuously.
-     * The next pending frame is either immediately available or hasn't been received yet. Once it
-     * is available, we transfer the frame info to local variables and run detection on that frame.
-     * It immediately loops back for the next frame without pausing.
-     *
-     * <p>If detection takes longer than the time in between new frames from the camera, this will
-     * mean that this loop will run without ever waiting on a frame, avoiding any context switching
-     * or frame acquisition time latency.
-     *
-     * <p>If you find that this is using more CPU than you'd like, you should probably decrease the
-     * FPS setting above to allow for some idle time in between frames.
+     * Marks the current processor as in flight and returns it. A processor read before a swap is
+     * not returned, since it may have been stopped already.
      */
-    @SuppressLint("InlinedApi")
-    @SuppressWarnings({"GuardedBy", "ByteBufferBackingArray"})
+    @Nullable
+    private VisionImageProcessor acquireProcessor() {
+      VisionImageProcessor processor;
+      do {
+        processor = frameProcessor.get();
+        inFlightProcessor = processor;
+      } while (processor != frameProcessor.get());
+      return processor;
+    }
+
     @Override
     public void run() {
-      ByteBuffer data;
-
-      while (true) {
-        synchronized (lock) {
-          while (active && (pendingFrameData == null)) {
-            try {
-              // Wait for the next frame to be received from the camera, since we
-              // don't have it yet.
-              lock.wait();
-            } catch (InterruptedException e) {
-              Log.d(TAG, "Frame processing loop terminated.", e);
-              return;
-            }
+      consumer = Thread.currentThread();
+      try {
+        while (active) {
+          PipelineFrame frame = detectionQueue.poll();
+          if (frame == null) {
+            // Parking returns immediately if the frame was queued after the poll above.
+            LockSupport.park(this);
+            continue;
           }
 
-          if (!active) {
-            // Exit the loop once this camera source is stopped or released.  We check
-            // this here, immediately after the wait() above, to handle the case where
-            // setActive(false) had been called, triggering the termination of this
-            // loop.
-            return;
+          VisionImageProcessor processor = acquireProcessor();
+          try {
+            if (processor != null) {
+              metadata.set(frame);
+              processor.processFrame(frame, metadata, graphicOverlay);
+            }
+          } catch (Exception t) {
+            Log.e(TAG, "Exception thrown from receiver.", t);
+          } finally {
+            inFlightProcessor = null;
+            if (processor != null) {
+              // The frame goes back to the camera once the processor is done with it too.
+              frame.release();
+            } else {
+              recycleFrame(frame, /* dropped= */ true);
+            }
           }
-
-          // Hold onto the frame data locally, so that we can use this for detection
-          // below.  We need to clear pendingFrameData to ensure that this buffer isn't
-          // recycled back to the camera before we are done using that data.
-          data = pendingFrameData;
-          pendingFrameData = null;
-        }
-
-        // The code below needs to run outside of synchronization, because this will allow
-        // the camera to add pending frame(s) while we are running detection on the current
-        // frame.
-
-        try {
-          synchronized (processorLock) {
-            frameProcessor.processByteBuffer(
-                data,
-                new FrameMetadata.Builder()
-                    .setWidth(previewSize.getWidth())
-                    .setHeight(previewSize.getHeight())
-                    .setRotation(rotationDegrees)
-                    .build(),
-                graphicOverlay);
+          if (!retiredProcessors.isEmpty()) {
+            stopRetiredProcessors();
           }
-        } catch (Exception t) {
-          Log.e(TAG, "Exception thrown from receiver.", t);
-        } finally {
-          camera.addCallbackBuffer(data.array());
         }
+      } finally {
+        consumer = null;
       }
     }
   }
@@ -734,49 +805,16 @@ public class CameraSource {
   }
 
   public synchronized void setTorch(boolean on) {
-    Camera.Parameters parameters = camera.getParameters();
-    List<String> supportedFlashModes = parameters.getSupportedFlashModes();
-    String flashMode;
-    if (on) {
-      flashMode = findSettableValue("flash mode",
-              supportedFlashModes,
-              Camera.Parameters.FLASH_MODE_TORCH,
-              Camera.Parameters.FLASH_MODE_ON);
-    } else {
-      flashMode = findSettableValue("flash mode",
-              supportedFlashModes,
-              Camera.Parameters.FLASH_MODE_OFF);
-    }
-    if (flashMode != null) {
-      if (flashMode.equals(parameters.getFlashMode())) {
-        Log.i(TAG, "Flash mode already set to " + flashMode);
-      } else {
-        Log.i(TAG, "Setting flash mode to " + flashMode);
-        parameters.setFlashMode(flashMode);
-      }
-      camera.setParameters(parameters);
-    }
-  }
-
-  private static String findSettableValue(String name,
-                                          Collection<String> supportedValues,
-                                          String... desiredValues) {
-    Log.i(TAG, "Requesting " + name + " value from among: " + Arrays.toString(desiredValues));
-    Log.i(TAG, "Supported " + name + " values: " + supportedValues);
-    if (supportedValues != null) {
-      for (String desiredValue : desiredValues) {
-        if (supportedValues.contains(desiredValue)) {
-          Log.i(TAG, "Can set " + name + " to: " + desiredValue);
-          return desiredValue;
-        }
-      }
+    if (frameSourceOpen) {
+      frameSource.setTorch(on);
     }
-    Log.i(TAG, "No supported values match");
-    return null;
   }
 
+  /** Returns the opened camera if the camera1 API is in use, null otherwise. */
+  @Nullable
   public Camera getCamera() {
-    return camera;
+    FrameSource source = frameSource;
+    return source instanceof Camera1FrameSource ? ((Camera1FrameSource) source).getCamera() : null;
   }
 
   public interface OnCameraListener {
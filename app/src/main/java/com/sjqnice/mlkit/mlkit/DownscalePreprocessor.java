@@ -0,0 +1,83 @@
+package com.sjqnice.mlkit.mlkit;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Downscales NV21 frames with a box filter, for detectors that do not need the full camera
+ * resolution, see {@link VisionImageProcessor#getDetectionScale()}.
+ *
+ * <p>The scale is rounded to the nearest integer reduction factor, so each output pixel is the
+ * plain average of a factor x factor block of luma samples, and of the matching block of chroma
+ * pairs. The result is written into the reusable output buffer of the frame.
+ */
+public class DownscalePreprocessor implements FramePreprocessor {
+
+  private volatile float scale = 1;
+
+  /** Sets the fraction of the width and height to scale frames to, at most 1. */
+  public void setScale(float scale) {
+    this.scale = scale;
+  }
+
+  @Override
+  public boolean process(PipelineFrame frame) {
+    int factor = Math.round(1 / scale);
+    if (factor <= 1) {
+      return true;
+    }
+    int width = frame.getWidth();
+    int height = frame.getHeight();
+    int outWidth = (width / factor) & ~1;
+    int outHeight = (height / factor) & ~1;
+    if (outWidth < 2 || outHeight < 2) {
+      return true;
+    }
+
+    ByteBuffer out = frame.obtainOutputBuffer(outWidth * outHeight * 3 / 2);
+    downscaleNv21(frame.getData().array(), width, height, factor, out.array(), outWidth, outHeight);
+    frame.setData(out, outWidth, outHeight);
+    frame.recordScale(1f / factor);
+    return true;
+  }
+
+  /** Box filters an NV21 image by an integer factor into an NV21 image of the given size. */
+  static void downscaleNv21(
+      byte[] in, int width, int height, int factor, byte[] out, int outWidth, int outHeight) {
+    int area = factor * factor;
+    int outOffset = 0;
+    for (int y = 0; y < outHeight; y++) {
+      int rowStart = y * factor * width;
+      for (int x = 0; x < outWidth; x++) {
+        int sum = 0;
+        int blockStart = rowStart + x * factor;
+        for (int i = 0; i < factor; i++) {
+          int offset = blockStart + i * width;
+          for (int j = 0; j < factor; j++) {
+            sum += in[offset + j] & 0xff;
+          }
+        }
+        out[outOffset++] = (byte) (sum / area);
+      }
+    }
+
+    // The chroma plane holds VU pairs for 2x2 luma blocks, so its blocks are factor pairs wide.
+    int chromaStart = width * height;
+    for (int y = 0; y < outHeight / 2; y++) {
+      int rowStart = chromaStart + y * factor * width;
+      for (int x = 0; x < outWidth / 2; x++) {
+        int sumV = 0;
+        int sumU = 0;
+        int blockStart = rowStart + x * factor * 2;
+        for (int i = 0; i < factor; i++) {
+          int offset = blockStart + i * width;
+          for (int j = 0; j < factor; j++) {
+            sumV += in[offset + 2 * j] & 0xff;
+            sumU += in[offset + 2 * j + 1] & 0xff;
+          }
+        }
+        out[outOffset++] = (byte) (sumV / area);
+        out[outOffset++] = (byte) (sumU / area);
+      }
+    }
+  }
+}
@@ -0,0 +1,286 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import java.util.IdentityHashMap;
+
+/**
+ * Pool of preview buffers shared between the camera and the frame processing pipeline.
+ *
+ * <p>Every buffer is either queued at the camera, waiting to be filled with a preview frame, or in
+ * flight, i.e. handed to the pipeline and not yet returned. The pool tracks both sets so it can
+ * tell when the camera has been left without a buffer to fill (starvation), and it resizes itself
+ * within a memory budget based on the observed processing latency and frame interval:
+ *
+ * <ul>
+ *   <li>{@link #takeGrowCount()} reports how many new buffers should be queued at the camera.
+ *   <li>{@link #recycle(byte[])} refuses buffers while the pool is shrinking, so they are simply
+ *       dropped instead of being queued at the camera again.
+ * </ul>
+ *
+ * <p>All methods are thread safe; they are called from the camera callback thread as well as from
+ * the pipeline stages.
+ */
+public class FrameBufferPool {
+  private static final String TAG = "FrameBufferPool";
+
+  /**
+   * Number of buffers the camera needs to own at any time to keep delivering frames without
+   * stalling. See the comment in {@link CameraSource} for how this was determined.
+   */
+  private static final int CAMERA_OWNED_BUFFERS = 2;
+
+  /** Number of delivered frames between two sizing decisions. */
+  private static final int EVALUATION_WINDOW_FRAMES = 30;
+
+  /** Weight of the newest sample in the moving averages of latency and frame interval. */
+  private static final float SMOOTHING_FACTOR = 0.1f;
+
+  private final int bufferSize;
+  private final int minBuffers;
+  private final int maxBuffers;
+
+  /**
+   * Map to convert between a byte array, received from the camera, and the pipeline frame wrapping
+   * it. We use byte buffers internally because this is a more efficient way to call into native
+   * code later (avoids a potential copy).
+   *
+   * <p><b>Note:</b> uses IdentityHashMap here instead of HashMap because the behavior of an array's
+   * equals, hashCode and toString methods is both useless and unexpected. IdentityHashMap enforces
+   * identity ('==') check on the keys.
+   */
+  @GuardedBy("this")
+  private final IdentityHashMap<byte[], PipelineFrame> bytesToFrame = new IdentityHashMap<>();
+
+  @GuardedBy("this")
+  private int queuedAtCamera;
+
+  @GuardedBy("this")
+  private int inFlight;
+
+  // Buffers that should be dropped instead of recycled, and buffers that should be added.
+  @GuardedBy("this")
+  private int pendingShrink;
+
+  @GuardedBy("this")
+  private int pendingGrow;
+
+  // Sizing statistics for the current evaluation window.
+  @GuardedBy("this")
+  private int framesInWindow;
+
+  @GuardedBy("this")
+  private int minQueuedInWindow = Integer.MAX_VALUE;
+
+  @GuardedBy("this")
+  private int maxInFlightInWindow;
+
+  @GuardedBy("this")
+  private boolean starvedInWindow;
+
+  @GuardedBy("this")
+  private long lastFrameMs;
+
+  @GuardedBy("this")
+  private float frameIntervalMs;
+
+  @GuardedBy("this")
+  private float processingLatencyMs;
+
+  // Lifetime counters.
+  @GuardedBy("this")
+  private long starvationCount;
+
+  @GuardedBy("this")
+  private long dropCount;
+
+  @GuardedBy("this")
+  private long reuseCount;
+
+  /**
+   * Creates a pool for buffers of {@code bufferSize} bytes.
+   *
+   * @param bufferSize size of a single preview buffer in bytes
+   * @param minBuffers the pool never shrinks below this number of buffers
+   * @param memoryBudgetBytes the pool never grows beyond this number of bytes, but always keeps at
+   *     least {@code minBuffers} buffers
+   */
+  public FrameBufferPool(int bufferSize, int minBuffers, long memoryBudgetBytes) {
+    this.bufferSize = bufferSize;
+    this.minBuffers = minBuffers;
+    this.maxBuffers = (int) Math.max(minBuffers, memoryBudgetBytes / bufferSize);
+  }
+
+  /** Returns the number of buffers that should be queued at the camera before it is started. */
+  public int getInitialBufferCount() {
+    return minBuffers;
+  }
+
+  /**
+   * Creates one buffer for the camera preview callback and registers it with this pool. The caller
+   * must queue the returned array at the camera.
+   *
+   * @return a new preview buffer of the size of this pool
+   */
+  public synchronized byte[] allocate() {
+    byte[] byteArray = new byte[bufferSize];
+    bytesToFrame.put(byteArray, new PipelineFrame(byteArray));
+    queuedAtCamera++;
+    return byteArray;
+  }
+
+  /**
+   * Marks the buffer filled by the camera as in flight and returns the frame bound to it, or null
+   * if the array does not belong to this pool.
+   */
+  @Nullable
+  public synchronized PipelineFrame acquire(byte[] data, long nowMs) {
+    PipelineFrame frame = bytesToFrame.get(data);
+    if (frame == null) {
+      return null;
+    }
+    queuedAtCamera--;
+    inFlight++;
+
+    if (lastFrameMs > 0) {
+      frameIntervalMs = smooth(frameIntervalMs, nowMs - lastFrameMs);
+    }
+    lastFrameMs = nowMs;
+
+    if (queuedAtCamera <= 0) {
+      // The camera has nothing left to fill until one of the in flight buffers comes back.
+      starvationCount++;
+      starvedInWindow = true;
+    }
+    minQueuedInWindow = Math.min(minQueuedInWindow, queuedAtCamera);
+    maxInFlightInWindow = Math.max(maxInFlightInWindow, inFlight);
+    if (++framesInWindow >= EVALUATION_WINDOW_FRAMES) {
+      evaluateSize();
+    }
+    return frame;
+  }
+
+  /**
+   * Returns an in flight buffer to the pool.
+   *
+   * @return true if the caller should queue the buffer at the camera again, false if the pool is
+   *     shrinking and the buffer has been dropped
+   */
+  public synchronized boolean recycle(byte[] data) {
+    if (!bytesToFrame.containsKey(data)) {
+      return false;
+    }
+    inFlight--;
+    if (pendingShrink > 0) {
+      pendingShrink--;
+      bytesToFrame.remove(data);
+      return false;
+    }
+    queuedAtCamera++;
+    reuseCount++;
+    return true;
+  }
+
+  /** Records that an in flight frame was superseded and will not be processed. */
+  public synchronized void recordDrop() {
+    dropCount++;
+  }
+
+  /** Records how long the pipeline held on to a frame, from delivery to recycling. */
+  public synchronized void recordProcessingLatency(long latencyMs) {
+    processingLatencyMs = smooth(processingLatencyMs, latencyMs);
+  }
+
+  /** Returns and resets the number of buffers that should be allocated and queued at the camera. */
+  public synchronized int takeGrowCount() {
+    int count = pendingGrow;
+    pendingGrow = 0;
+    return count;
+  }
+
+  /** Releases the reference to all buffers and resets the statistics. */
+  public synchronized void clear() {
+    bytesToFrame.clear();
+    queuedAtCamera = 0;
+    inFlight = 0;
+    pendingGrow = 0;
+    pendingShrink = 0;
+    lastFrameMs = 0;
+    frameIntervalMs = 0;
+    processingLatencyMs = 0;
+    resetWindow();
+  }
+
+  public synchronized int getBufferCount() {
+    return bytesToFrame.size();
+  }
+
+  public synchronized int getInFlightCount() {
+    return inFlight;
+  }
+
+  /** Returns how many times the camera was left without a free buffer. */
+  public synchronized long getStarvationCount() {
+    return starvationCount;
+  }
+
+  /** Returns how many frames were handed back to the camera without being processed. */
+  public synchronized long getDropCount() {
+    return dropCount;
+  }
+
+  /** Returns how many times a buffer was queued at the camera again after use. */
+  public synchronized long getReuseCount() {
+    return reuseCount;
+  }
+
+  @GuardedBy("this")
+  private void evaluateSize() {
+    int current = bytesToFrame.size() + pendingGrow - pendingShrink;
+
+    // The pipeline needs one buffer per frame interval that processing takes, on top of the
+    // buffers the camera has to own. The observed in flight peak bounds this from above, since
+    // superseded frames are returned right away.
+    int pipelineBuffers = 1;
+    if (frameIntervalMs > 0) {
+      pipelineBuffers = (int) Math.ceil(processingLatencyMs / frameIntervalMs) + 1;
+    }
+    pipelineBuffers = Math.min(pipelineBuffers, Math.max(1, maxInFlightInWindow));
+    int target = CAMERA_OWNED_BUFFERS + pipelineBuffers;
+    if (starvedInWindow) {
+      target = Math.max(target, current + 1);
+    } else if (minQueuedInWindow > CAMERA_OWNED_BUFFERS) {
+      // The camera never got close to running dry, give back one buffer at a time.
+      target = Math.min(target, current - 1);
+    }
+    target = Math.max(minBuffers, Math.min(maxBuffers, target));
+
+    if (target > current) {
+      int grow = target - current;
+      int cancelled = Math.min(grow, pendingShrink);
+      pendingShrink -= cancelled;
+      pendingGrow += grow - cancelled;
+      Log.d(TAG, "Growing frame buffer pool to " + target + " buffers");
+    } else if (target < current) {
+      int shrink = current - target;
+      int cancelled = Math.min(shrink, pendingGrow);
+      pendingGrow -= cancelled;
+      pendingShrink += shrink - cancelled;
+      Log.d(TAG, "Shrinking frame buffer pool to " + target + " buffers");
+    }
+    resetWindow();
+  }
+
+  @GuardedBy("this")
+  private void resetWindow() {
+    framesInWindow = 0;
+    minQueuedInWindow = Integer.MAX_VALUE;
+    maxInFlightInWindow = 0;
+    starvedInWindow = false;
+  }
+
+  private static float smooth(float average, float sample) {
+    return average == 0 ? sample : average + SMOOTHING_FACTOR * (sample - average);
+  }
+}
@@ -16,12 +16,27 @@
 
 package com.sjqnice.mlkit.mlkit;
 
-/** Describing a frame info. */
+import android.graphics.Point;
+import android.graphics.Rect;
+
+/**
+ * Describing a frame info.
+ *
+ * <p>The live preview pipeline reuses instances from frame to frame instead of building new ones,
+ * so metadata passed to {@link VisionImageProcessor#processFrame} or to a result callback is
+ * only valid during the call; copy the values that are needed later.
+ */
 public class FrameMetadata {
 
-  private final int width;
-  private final int height;
-  private final int rotation;
+  private int width;
+  private int height;
+  private int rotation;
+  private long frameId;
+  private long captureTimeMs;
+  private long pipelineEntryTimeMs;
+  private float detectionOffsetX;
+  private float detectionOffsetY;
+  private float detectionScale = 1;
 
   public int getWidth() {
     return width;
@@ -35,10 +50,116 @@ public class FrameMetadata {
     return rotation;
   }
 
-  private FrameMetadata(int width, int height, int rotation) {
+  /**
+   * Returns the sequence number of the camera frame, which increases by one per frame received
+   * from the camera, including frames that were dropped before detection. 0 if unknown.
+   */
+  public long getFrameId() {
+    return frameId;
+  }
+
+  /**
+   * Returns the {@link android.os.SystemClock#elapsedRealtime()} at which the sensor captured the
+   * frame, or at which it was received from the camera if the capture time is not known. 0 if
+   * unknown.
+   */
+  public long getCaptureTimeMs() {
+    return captureTimeMs;
+  }
+
+  /**
+   * Returns the {@link android.os.SystemClock#elapsedRealtime()} at which the frame was received
+   * from the camera, or 0 if unknown.
+   */
+  public long getPipelineEntryTimeMs() {
+    return pipelineEntryTimeMs;
+  }
+
+  /**
+   * Returns the x coordinate in the upright camera preview frame of the upper left corner of the
+   * upright image described by this metadata, which is non-zero if the image is a crop.
+   */
+  public float getDetectionOffsetX() {
+    return detectionOffsetX;
+  }
+
+  /** Returns the y coordinate counterpart of {@link #getDetectionOffsetX()}. */
+  public float getDetectionOffsetY() {
+    return detectionOffsetY;
+  }
+
+  /** Returns the number of image pixels per camera preview pixel, less than 1 if downscaled. */
+  public float getDetectionScale() {
+    return detectionScale;
+  }
+
+  /**
+   * Maps a rectangle in the coordinates of the detected image, e.g. a bounding box of a result, to
+   * the coordinates of the upright camera preview frame, undoing a crop and a downscale.
+   */
+  public void mapToPreview(Rect detected, Rect out) {
+    out.set(
+        Math.round(detectionOffsetX + detected.left / detectionScale),
+        Math.round(detectionOffsetY + detected.top / detectionScale),
+        Math.round(detectionOffsetX + detected.right / detectionScale),
+        Math.round(detectionOffsetY + detected.bottom / detectionScale));
+  }
+
+  /** Maps a point like {@link #mapToPreview(Rect, Rect)}, e.g. a corner point of a barcode. */
+  public void mapToPreview(Point detected, Point out) {
+    out.set(
+        Math.round(detectionOffsetX + detected.x / detectionScale),
+        Math.round(detectionOffsetY + detected.y / detectionScale));
+  }
+
+  /** Creates reusable metadata to be filled with {@link #set}. */
+  FrameMetadata() {}
+
+  /** Fills this metadata from a live preview frame. */
+  void set(PipelineFrame frame) {
+    width = frame.getWidth();
+    height = frame.getHeight();
+    rotation = frame.getRotation();
+    frameId = frame.getFrameId();
+    captureTimeMs = frame.getCaptureTimeMs();
+    pipelineEntryTimeMs = frame.getPipelineEntryTimeMs();
+    detectionOffsetX = frame.getDetectionOffsetX();
+    detectionOffsetY = frame.getDetectionOffsetY();
+    detectionScale = frame.getDetectionScale();
+  }
+
+  /** Copies the values of another metadata into this one. */
+  void set(FrameMetadata other) {
+    width = other.width;
+    height = other.height;
+    rotation = other.rotation;
+    frameId = other.frameId;
+    captureTimeMs = other.captureTimeMs;
+    pipelineEntryTimeMs = other.pipelineEntryTimeMs;
+    detectionOffsetX = other.detectionOffsetX;
+    detectionOffsetY = other.detectionOffsetY;
+    detectionScale = other.detectionScale;
+  }
+
+  private FrameMetadata(
+      int width,
+      int height,
+      int rotation,
+      long frameId,
+      long captureTimeMs,
+      long pipelineEntryTimeMs,
+      float detectionOffsetX,
+      float detectionOffsetY,
+      float detectionScale) {
     this.width = width;
     this.height = height;
     this.rotation = rotation;
+    this.frameId = frameId;
+    this.captureTimeMs = captureTimeMs;
+    this.pipelineEntryTimeMs = pipelineEntryTimeMs;
+    this.detectionOffsetX = detectionOffsetX;
+    this.detectionOffsetY = detectionOffsetY;
+    this.detectionScale = detectionScale;
   }
 
   /** Builder of {@link FrameMetadata}. */
@@ -47,6 +168,12 @@ public class FrameMetadata {
     private int width;
     private int height;
     private int rotation;
+    private long frameId;
+    private long captureTimeMs;
+    private long pipelineEntryTimeMs;
+    private float detectionOffsetX;
+    private float detectionOffsetY;
+    private float detectionScale = 1;
 
     public Builder setWidth(int width) {
       this.width = width;
@@ -63,8 +190,39 @@ public class FrameMetadata {
       return this;
     }
 
+    public Builder setFrameId(long frameId) {
+      this.frameId = frameId;
+      return this;
+    }
+
+    public Builder setCaptureTimeMs(long captureTimeMs) {
+      this.captureTimeMs = captureTimeMs;
+      return this;
+    }
+
+    public Builder setPipelineEntryTimeMs(long pipelineEntryTimeMs) {
+      this.pipelineEntryTimeMs = pipelineEntryTimeMs;
+      return this;
+    }
+
+    public Builder setDetectionTransform(float offsetX, float offsetY, float scale) {
+      this.detectionOffsetX = offsetX;
+      this.detectionOffsetY = offsetY;
+      this.detectionScale = scale;
+      return this;
+    }
+
     public FrameMetadata build() {
-      return new FrameMetadata(width, height, rotation);
+      return new FrameMetadata(
+          width,
+          height,
+          rotation,
+          frameId,
+          captureTimeMs,
+          pipelineEntryTimeMs,
+          detectionOffsetX,
+          detectionOffsetY,
+          detectionScale);
     }
   }
 }
@@ -0,0 +1,16 @@
+package com.sjqnice.mlkit.mlkit;
+
+/**
+ * A step of the preprocess stage of the {@link CameraSource} pipeline, e.g. cropping, scaling or
+ * quality scoring. Preprocessors run on their own thread, so that they overlap with detection on
+ * the previous frame.
+ */
+public interface FramePreprocessor {
+
+  /**
+   * Processes the frame before it is handed to the detector.
+   *
+   * @return false to drop the frame instead of detecting on it
+   */
+  boolean process(PipelineFrame frame);
+}
@@ -0,0 +1,71 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import androidx.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * Renders the frame a live detection ran on into a bitmap of the size of the {@link
+ * GraphicOverlay}, the way the overlay shows it: upright, scaled and cropped like the preview and
+ * mirrored for the front camera. Graphics drawn with the transformation of the overlay line up with
+ * the snapshot, and the snapshot is drawn as is, see {@link CameraImageGraphic}.
+ *
+ * <p>The snapshot shows exactly the data that was detected, so if the detector ran on a region of
+ * interest, the rest of the view stays black. The intermediate upright bitmap is kept between
+ * frames; an instance must be used from a single thread, which is meant to be a background thread
+ * so that the main thread never converts frames.
+ */
+final class FrameSnapshotter {
+
+  private final Nv21Converter converter = new Nv21Converter();
+  private final Matrix matrix = new Matrix();
+  private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+  private final Canvas canvas = new Canvas();
+  @Nullable private Bitmap upright;
+
+  /**
+   * Returns a snapshot of an NV21 frame from the shared {@link BitmapPool}, or null if the overlay
+   * has not been laid out or been told the image size yet.
+   */
+  @Nullable
+  Bitmap render(ByteBuffer nv21, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay) {
+    int width = graphicOverlay.getWidth();
+    int height = graphicOverlay.getHeight();
+    if (width <= 0
+        || height <= 0
+        || !graphicOverlay.getDetectionToViewMatrix(
+            frameMetadata.getDetectionOffsetX(),
+            frameMetadata.getDetectionOffsetY(),
+            frameMetadata.getDetectionScale(),
+            matrix)) {
+      return null;
+    }
+    upright =
+        converter.convert(
+            nv21,
+            frameMetadata.getWidth(),
+            frameMetadata.getHeight(),
+            frameMetadata.getRotation(),
+            /* mirror= */ false,
+            upright);
+
+    Bitmap snapshot = BitmapPool.getInstance().getDirty(width, height, Bitmap.Config.ARGB_8888);
+    canvas.setBitmap(snapshot);
+    canvas.drawColor(Color.BLACK);
+    canvas.drawBitmap(upright, matrix, paint);
+    canvas.setBitmap(null);
+    return snapshot;
+  }
+
+  /** Hands the intermediate bitmap back to the pool. */
+  void release() {
+    if (upright != null) {
+      BitmapPool.getInstance().put(upright);
+      upright = null;
+    }
+  }
+}
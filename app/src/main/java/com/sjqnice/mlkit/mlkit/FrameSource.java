@@ -0,0 +1,62 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.view.SurfaceHolder;
+import androidx.annotation.Nullable;
+import com.google.android.gms.common.images.Size;
+import java.io.IOException;
+
+/**
+ * A source of NV21 preview frames for {@link CameraSource}.
+ *
+ * <p>Frames are written into buffers owned by the {@link FrameBufferPool} of the camera source. The
+ * source fills buffers handed to it through {@link #queueBuffer(byte[])} and passes each filled
+ * buffer to the {@link FrameCallback}; the buffer is queued again once the pipeline is done with
+ * it. A source is used in the order {@link #open(int)}, {@link #queueBuffer(byte[])}, {@link
+ * #startPreview(SurfaceHolder, FrameCallback)} and finally {@link #close()}, and may be opened again
+ * afterwards.
+ */
+public interface FrameSource {
+
+  /** Receives filled preview buffers. */
+  interface FrameCallback {
+    /**
+     * @param data the filled preview buffer
+     * @param captureTimeMs the {@link android.os.SystemClock#elapsedRealtime()} at which the sensor
+     *     captured the frame, or 0 if the source does not know
+     */
+    void onFrame(byte[] data, long captureTimeMs);
+  }
+
+  /**
+   * Opens the camera facing the given direction and selects the preview size and rotation.
+   *
+   * @param facing one of {@link CameraSource#CAMERA_FACING_BACK} or {@link
+   *     CameraSource#CAMERA_FACING_FRONT}
+   * @throws IOException if the camera cannot be opened or configured
+   */
+  void open(int facing) throws IOException;
+
+  /** Returns the size of the NV21 frames, valid after {@link #open(int)}. */
+  Size getPreviewSize();
+
+  /** Returns the rotation of the frames relative to the display, valid after {@link #open(int)}. */
+  int getRotationDegrees();
+
+  /** Hands an empty buffer to the source to be filled with a future frame. */
+  void queueBuffer(byte[] buffer);
+
+  /**
+   * Starts delivering frames.
+   *
+   * @param surfaceHolder the surface to display the preview on, or null to not display it
+   * @throws IOException if the preview cannot be started
+   */
+  void startPreview(@Nullable SurfaceHolder surfaceHolder, FrameCallback callback)
+      throws IOException;
+
+  /** Turns the torch on or off. */
+  void setTorch(boolean on);
+
+  /** Stops the preview and releases the camera. No frames are delivered after this returns. */
+  void close();
+}
@@ -20,12 +20,15 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
 import com.google.common.base.Preconditions;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A view which renders a series of custom graphics to be overlayed on top of an associated preview
@@ -45,10 +48,28 @@ import java.util.List;
  *   <li>{@link Graphic#translateX(float)} and {@link Graphic#translateY(float)} adjust the
  *       coordinate from the image's coordinate system to the view coordinate system.
  * </ol>
+ *
+ * <p>The overlay draws an immutable scene: the graphics together with the detection transform they
+ * are expressed in. Changes build a new scene and publish it with a single atomic swap, so drawing
+ * takes no lock and never waits for, or sees part of, a change. To replace all graphics at once,
+ * e.g. with the results of a frame, build the scene between {@link #beginScene()} and {@link
+ * #publishScene()}; the overlay keeps drawing the previous scene in the meantime.
  */
 public class GraphicOverlay extends View {
+  // Guards the image source info and the detection transform of the scene being drawn. The
+  // transformation derived from them, i.e. scaleFactor, the post scale offsets and
+  // transformationMatrix, is only written by onDraw() on the main thread, where graphics read it;
+  // other threads compute it into locals.
   private final Object lock = new Object();
-  private final List<Graphic> graphics = new ArrayList<>();
+  private final AtomicReference<Scene> scene = new AtomicReference<>(Scene.EMPTY);
+  // The thread building a scene between beginScene() and publishScene(), which is the only thread
+  // that touches the pending fields below.
+  private final AtomicReference<Thread> sceneBuilder = new AtomicReference<>();
+  private final ArrayList<Graphic> pendingGraphics = new ArrayList<>();
+  private float pendingDetectionOffsetX;
+  private float pendingDetectionOffsetY;
+  private float pendingDetectionScale = 1.0f;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
   // Matrix for transforming from image coordinates to overlay view coordinates.
   private final Matrix transformationMatrix = new Matrix();
 
@@ -64,6 +85,12 @@ public class GraphicOverlay extends View {
   // area of overlay View after scaling.
   private float postScaleHeightOffset;
   private boolean isImageFlipped;
+  // Where the image the detector ran on lies in the image, for detectors that ran on a crop or a
+  // scaled copy. Detection coordinates map to offset + coordinate / scale in image coordinates.
+  // Taken from the scene being drawn.
+  private float detectionOffsetX;
+  private float detectionOffsetY;
+  private float detectionScale = 1.0f;
   private boolean needUpdateTransformation = true;
   private boolean isDisplayStillImage = false;
 
@@ -100,6 +127,14 @@ public class GraphicOverlay extends View {
 
     public void OnDestroy() {}
 
+    /**
+     * Called on the main thread when the graphic is taken off the overlay through {@link
+     * GraphicOverlay#remove}, {@link GraphicOverlay#clear()} or a scene without it, e.g. to hand
+     * its bitmaps back to a {@link BitmapPool}. The graphic is not drawn anymore at that point.
+     * Graphics that were never drawn are told right away, on the thread building the scene.
+     */
+    protected void onRemoved() {}
+
     protected void drawRect(
         Canvas canvas, float left, float top, float right, float bottom, Paint paint) {
       canvas.drawRect(left, top, right, bottom, paint);
@@ -111,7 +146,7 @@ public class GraphicOverlay extends View {
 
     /** Adjusts the supplied value from the image scale to the view scale. */
     public float scale(float imagePixel) {
-      return imagePixel * overlay.scaleFactor;
+      return imagePixel / overlay.detectionScale * overlay.scaleFactor;
     }
 
     /** Returns the application context of the app. */
@@ -127,10 +162,11 @@ public class GraphicOverlay extends View {
      * Adjusts the x coordinate from the image's coordinate system to the view coordinate system.
      */
     public float translateX(float x) {
+      float offset = overlay.detectionOffsetX * overlay.scaleFactor;
       if (overlay.isImageFlipped) {
-        return overlay.getWidth() - (scale(x) - overlay.postScaleWidthOffset);
+        return overlay.getWidth() - (scale(x) + offset - overlay.postScaleWidthOffset);
       } else {
-        return scale(x) - overlay.postScaleWidthOffset;
+        return scale(x) + offset - overlay.postScaleWidthOffset;
       }
     }
 
@@ -138,7 +174,8 @@ public class GraphicOverlay extends View {
      * Adjusts the y coordinate from the image's coordinate system to the view coordinate system.
      */
     public float translateY(float y) {
-      return scale(y) - overlay.postScaleHeightOffset;
+      float offset = overlay.detectionOffsetY * overlay.scaleFactor;
+      return scale(y) + offset - overlay.postScaleHeightOffset;
     }
 
     /**
@@ -157,6 +194,31 @@ public class GraphicOverlay extends View {
     }
   }
 
+  /** The graphics drawn together and the detection transform they are expressed in. */
+  private static final class Scene {
+    static final Scene EMPTY = new Scene(new Graphic[0], 0, 0, 1.0f);
+
+    final Graphic[] graphics;
+    final float detectionOffsetX;
+    final float detectionOffsetY;
+    final float detectionScale;
+
+    Scene(Graphic[] graphics, float offsetX, float offsetY, float scale) {
+      this.graphics = graphics;
+      this.detectionOffsetX = offsetX;
+      this.detectionOffsetY = offsetY;
+      this.detectionScale = scale;
+    }
+
+    Scene withGraphics(Graphic[] graphics) {
+      return new Scene(graphics, detectionOffsetX, detectionOffsetY, detectionScale);
+    }
+
+    boolean contains(Graphic graphic) {
+      return indexOf(graphics, graphic) >= 0;
+    }
+  }
+
   public GraphicOverlay(Context context, AttributeSet attrs) {
     super(context, attrs);
     addOnLayoutChangeListener(
@@ -164,29 +226,150 @@ public class GraphicOverlay extends View {
             needUpdateTransformation = true);
   }
 
+  /**
+   * Starts building a new scene on the calling thread. Until {@link #publishScene()}, the graphics
+   * and the detection transform the calling thread adds, removes or sets go into the new scene,
+   * which starts out empty, while the overlay keeps drawing the current one. Changes from other
+   * threads still go to the current scene and are replaced when the new one is published.
+   *
+   * @throws IllegalStateException if another thread is building a scene
+   */
+  public void beginScene() {
+    Thread thread = Thread.currentThread();
+    Preconditions.checkState(
+        sceneBuilder.compareAndSet(null, thread) || sceneBuilder.get() == thread,
+        "another thread is building a scene");
+    discardPendingGraphics();
+    Scene current = scene.get();
+    pendingDetectionOffsetX = current.detectionOffsetX;
+    pendingDetectionOffsetY = current.detectionOffsetY;
+    pendingDetectionScale = current.detectionScale;
+  }
+
+  /**
+   * Replaces the drawn scene with the one built since {@link #beginScene()} in a single step and
+   * invalidates the overlay.
+   *
+   * @throws IllegalStateException if the calling thread is not building a scene
+   */
+  public void publishScene() {
+    Preconditions.checkState(isBuildingScene(), "no scene begun on this thread");
+    Scene next =
+        new Scene(
+            pendingGraphics.toArray(new Graphic[0]),
+            pendingDetectionOffsetX,
+            pendingDetectionOffsetY,
+            pendingDetectionScale);
+    pendingGraphics.clear();
+    sceneBuilder.set(null);
+    retire(scene.getAndSet(next).graphics, next);
+    postInvalidate();
+  }
+
   /** Removes all graphics from the overlay. */
   public void clear() {
-    synchronized (lock) {
-      graphics.clear();
+    if (isBuildingScene()) {
+      discardPendingGraphics();
+    } else {
+      Scene current;
+      do {
+        current = scene.get();
+      } while (!scene.compareAndSet(current, current.withGraphics(Scene.EMPTY.graphics)));
+      retire(current.graphics, /* next= */ null);
     }
     postInvalidate();
   }
 
   /** Adds a graphic to the overlay. */
   public void add(Graphic graphic) {
-    synchronized (lock) {
-      graphics.add(graphic);
+    if (isBuildingScene()) {
+      pendingGraphics.add(graphic);
+      return;
     }
+    Scene current;
+    Graphic[] graphics;
+    do {
+      current = scene.get();
+      graphics = new Graphic[current.graphics.length + 1];
+      System.arraycopy(current.graphics, 0, graphics, 0, current.graphics.length);
+      graphics[current.graphics.length] = graphic;
+    } while (!scene.compareAndSet(current, current.withGraphics(graphics)));
   }
 
   /** Removes a graphic from the overlay. */
   public void remove(Graphic graphic) {
-    synchronized (lock) {
-      graphics.remove(graphic);
+    if (isBuildingScene()) {
+      if (pendingGraphics.remove(graphic) && !scene.get().contains(graphic)) {
+        graphic.onRemoved();
+      }
+    } else {
+      Scene current;
+      Scene next;
+      do {
+        current = scene.get();
+        int index = indexOf(current.graphics, graphic);
+        if (index < 0) {
+          return;
+        }
+        Graphic[] graphics = new Graphic[current.graphics.length - 1];
+        System.arraycopy(current.graphics, 0, graphics, 0, index);
+        System.arraycopy(
+            current.graphics, index + 1, graphics, index, graphics.length - index);
+        next = current.withGraphics(graphics);
+      } while (!scene.compareAndSet(current, next));
+      retire(new Graphic[] {graphic}, next);
     }
     postInvalidate();
   }
 
+  private boolean isBuildingScene() {
+    return sceneBuilder.get() == Thread.currentThread();
+  }
+
+  /** Drops the pending graphics, telling those that have never been drawn right away. */
+  private void discardPendingGraphics() {
+    Scene current = scene.get();
+    for (int i = 0; i < pendingGraphics.size(); i++) {
+      Graphic graphic = pendingGraphics.get(i);
+      if (!current.contains(graphic)) {
+        graphic.onRemoved();
+      }
+    }
+    pendingGraphics.clear();
+  }
+
+  /**
+   * Calls {@link Graphic#onRemoved()} for the graphics that are not in the next scene. Drawing
+   * happens on the main thread, so they are told there, after any draw pass that still uses them.
+   */
+  private void retire(Graphic[] graphics, Scene next) {
+    if (graphics.length == 0) {
+      return;
+    }
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      notifyRemoved(graphics, next);
+    } else {
+      mainHandler.post(() -> notifyRemoved(graphics, next));
+    }
+  }
+
+  private static void notifyRemoved(Graphic[] graphics, Scene next) {
+    for (Graphic graphic : graphics) {
+      if (next == null || !next.contains(graphic)) {
+        graphic.onRemoved();
+      }
+    }
+  }
+
+  private static int indexOf(Graphic[] graphics, Graphic graphic) {
+    for (int i = 0; i < graphics.length; i++) {
+      if (graphics[i] == graphic) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
   /**
    * Sets the source information of the image being processed by detectors, including size and
    * whether it is flipped, which informs how to transform image coordinates later.
@@ -208,6 +391,98 @@ public class GraphicOverlay extends View {
     postInvalidate();
   }
 
+  /**
+   * Sets where the image that the detector ran on lies in the image described by {@link
+   * #setImageSourceInfo}, for detectors fed with a crop or a scaled copy of it. Graphics keep
+   * working in the coordinates of the detection results. The transform is part of the scene, so
+   * while building one it only applies to the new scene.
+   *
+   * @param offsetX x coordinate in the image of the upper left corner of the detected image
+   * @param offsetY y coordinate in the image of the upper left corner of the detected image
+   * @param scale number of detected image pixels per image pixel
+   */
+  public void setDetectionTransform(float offsetX, float offsetY, float scale) {
+    if (isBuildingScene()) {
+      pendingDetectionOffsetX = offsetX;
+      pendingDetectionOffsetY = offsetY;
+      pendingDetectionScale = scale;
+      return;
+    }
+    Scene current;
+    do {
+      current = scene.get();
+      if (offsetX == current.detectionOffsetX
+          && offsetY == current.detectionOffsetY
+          && scale == current.detectionScale) {
+        return;
+      }
+    } while (!scene.compareAndSet(
+        current, new Scene(current.graphics, offsetX, offsetY, scale)));
+  }
+
+  /**
+   * Maps a rectangle in the coordinates of this view to the coordinates of the image described by
+   * {@link #setImageSourceInfo}, e.g. to find the part of the image behind a scan frame.
+   *
+   * @param out receives the rectangle in image coordinates
+   * @return false if the image size or the view size is not known yet
+   */
+  public boolean mapViewToImage(RectF viewRect, RectF out) {
+    int viewWidth = getWidth();
+    int viewHeight = getHeight();
+    synchronized (lock) {
+      if (imageWidth <= 0 || imageHeight <= 0 || viewWidth <= 0 || viewHeight <= 0) {
+        return false;
+      }
+      float scale = coverScale(imageWidth, imageHeight, viewWidth, viewHeight);
+      float widthOffset = (imageWidth * scale - viewWidth) / 2;
+      float heightOffset = (imageHeight * scale - viewHeight) / 2;
+      float left = viewRect.left;
+      float right = viewRect.right;
+      if (isImageFlipped) {
+        left = viewWidth - viewRect.right;
+        right = viewWidth - viewRect.left;
+      }
+      out.set(
+          (left + widthOffset) / scale,
+          (viewRect.top + heightOffset) / scale,
+          (right + widthOffset) / scale,
+          (viewRect.bottom + heightOffset) / scale);
+      return true;
+    }
+  }
+
+  /**
+   * Computes the transformation {@link Graphic#getTransformationMatrix()} applies to the results of
+   * a detection with the given transform, see {@link #setDetectionTransform}, without changing the
+   * transform of the overlay. May be called from any thread.
+   *
+   * @param out receives the matrix from detection coordinates to view coordinates
+   * @return false if the image size or the view size is not known yet
+   */
+  public boolean getDetectionToViewMatrix(
+      float offsetX, float offsetY, float scale, Matrix out) {
+    int viewWidth = getWidth();
+    int viewHeight = getHeight();
+    synchronized (lock) {
+      if (imageWidth <= 0 || imageHeight <= 0 || viewWidth <= 0 || viewHeight <= 0) {
+        return false;
+      }
+      float imageScale = coverScale(imageWidth, imageHeight, viewWidth, viewHeight);
+      setDetectionToViewMatrix(
+          offsetX,
+          offsetY,
+          scale,
+          imageScale,
+          (imageWidth * imageScale - viewWidth) / 2,
+          (imageHeight * imageScale - viewHeight) / 2,
+          viewWidth,
+          isImageFlipped,
+          out);
+      return true;
+    }
+  }
+
   public int getImageWidth() {
     return imageWidth;
   }
@@ -216,33 +491,61 @@ public class GraphicOverlay extends View {
     return imageHeight;
   }
 
+  /** Only called from onDraw() on the main thread, since it writes the fields graphics read. */
   private void updateTransformationIfNeeded() {
     if (!needUpdateTransformation || imageWidth <= 0 || imageHeight <= 0) {
       return;
     }
-    float viewAspectRatio = (float) getWidth() / getHeight();
+    int viewWidth = getWidth();
+    int viewHeight = getHeight();
+    scaleFactor = coverScale(imageWidth, imageHeight, viewWidth, viewHeight);
+    // Half of what the scaled image sticks out of the view, which is 0 along the side it fits.
+    postScaleWidthOffset = (imageWidth * scaleFactor - viewWidth) / 2;
+    postScaleHeightOffset = (imageHeight * scaleFactor - viewHeight) / 2;
+
+    setDetectionToViewMatrix(
+        detectionOffsetX,
+        detectionOffsetY,
+        detectionScale,
+        scaleFactor,
+        postScaleWidthOffset,
+        postScaleHeightOffset,
+        viewWidth,
+        isImageFlipped,
+        transformationMatrix);
+    needUpdateTransformation = false;
+  }
+
+  /** Returns the factor that scales the image to cover the whole view, cropping what sticks out. */
+  private static float coverScale(int imageWidth, int imageHeight, int viewWidth, int viewHeight) {
+    float viewAspectRatio = (float) viewWidth / viewHeight;
     float imageAspectRatio = (float) imageWidth / imageHeight;
-    postScaleWidthOffset = 0;
-    postScaleHeightOffset = 0;
     if (viewAspectRatio > imageAspectRatio) {
       // The image needs to be vertically cropped to be displayed in this view.
-      scaleFactor = (float) getWidth() / imageWidth;
-      postScaleHeightOffset = ((float) getWidth() / imageAspectRatio - getHeight()) / 2;
-    } else {
-      // The image needs to be horizontally cropped to be displayed in this view.
-      scaleFactor = (float) getHeight() / imageHeight;
-      postScaleWidthOffset = ((float) getHeight() * imageAspectRatio - getWidth()) / 2;
+      return (float) viewWidth / imageWidth;
     }
+    // The image needs to be horizontally cropped to be displayed in this view.
+    return (float) viewHeight / imageHeight;
+  }
 
-    transformationMatrix.reset();
-    transformationMatrix.setScale(scaleFactor, scaleFactor);
-    transformationMatrix.postTranslate(-postScaleWidthOffset, -postScaleHeightOffset);
-
-    if (isImageFlipped) {
-      transformationMatrix.postScale(-1f, 1f, getWidth() / 2f, getHeight() / 2f);
+  private static void setDetectionToViewMatrix(
+      float offsetX,
+      float offsetY,
+      float scale,
+      float imageScale,
+      float widthOffset,
+      float heightOffset,
+      int viewWidth,
+      boolean flipped,
+      Matrix matrix) {
+    matrix.reset();
+    matrix.setScale(imageScale / scale, imageScale / scale);
+    matrix.postTranslate(offsetX * imageScale - widthOffset, offsetY * imageScale - heightOffset);
+
+    if (flipped) {
+      // Mirrors around the vertical center line of the view.
+      matrix.postScale(-1f, 1f, viewWidth / 2f, 0);
     }
-
-    needUpdateTransformation = false;
   }
 
   public void setDisplayStillImage(boolean isDisplayStillImage){
@@ -254,7 +557,17 @@ public class GraphicOverlay extends View {
   protected void onDraw(Canvas canvas) {
     super.onDraw(canvas);
 
+    Scene current = scene.get();
+    // The lock only covers the few fields of the transformation, not the drawing.
     synchronized (lock) {
+      if (current.detectionOffsetX != detectionOffsetX
+          || current.detectionOffsetY != detectionOffsetY
+          || current.detectionScale != detectionScale) {
+        detectionOffsetX = current.detectionOffsetX;
+        detectionOffsetY = current.detectionOffsetY;
+        detectionScale = current.detectionScale;
+        needUpdateTransformation = true;
+      }
       if (isDisplayStillImage){
         imageWidth = 0;
         imageHeight = 0;
@@ -263,21 +576,17 @@ public class GraphicOverlay extends View {
       }else {
         updateTransformationIfNeeded();
       }
+    }
 
-      for (Graphic graphic : graphics) {
-        graphic.draw(canvas);
-      }
+    for (Graphic graphic : current.graphics) {
+      graphic.draw(canvas);
     }
   }
 
   @Override
   public boolean onTouchEvent(MotionEvent event) {
-    synchronized (lock) {
-//      updateTransformationIfNeeded();
-
-      for (Graphic graphic : graphics) {
-        graphic.onTouchEvent(event);
-      }
+    for (Graphic graphic : scene.get().graphics) {
+      graphic.onTouchEvent(event);
     }
     return super.onTouchEvent(event);
   }
@@ -21,7 +21,12 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import androidx.annotation.Nullable;
 
-/** Graphic instance for rendering inference info (latency, FPS, resolution) in an overlay view. */
+/**
+ * Graphic instance for rendering inference info (latency, FPS, resolution) in an overlay view.
+ *
+ * <p>Live detection keeps a single instance and refreshes it with {@link #update} for every frame;
+ * the text is built in a reused buffer, so drawing does not allocate either.
+ */
 public class InferenceInfoGraphic extends GraphicOverlay.Graphic {
 
   private static final int TEXT_COLOR = Color.WHITE;
@@ -29,11 +34,12 @@ public class InferenceInfoGraphic extends GraphicOverlay.Graphic {
 
   private final Paint textPaint;
   private final GraphicOverlay overlay;
-  private final long frameLatency;
-  private final long detectorLatency;
+  private final StringBuilder text = new StringBuilder();
+  private long frameLatency;
+  private long detectorLatency;
 
-  // Only valid when a stream of input images is being processed. Null for single image mode.
-  @Nullable private final Integer framesPerSecond;
+  // Only valid when a stream of input images is being processed. Negative for single image mode.
+  private int framesPerSecond;
   private boolean showLatencyInfo = true;
 
   public InferenceInfoGraphic(
@@ -45,7 +51,7 @@ public class InferenceInfoGraphic extends GraphicOverlay.Graphic {
     this.overlay = overlay;
     this.frameLatency = frameLatency;
     this.detectorLatency = detectorLatency;
-    this.framesPerSecond = framesPerSecond;
+    this.framesPerSecond = framesPerSecond != null ? framesPerSecond : -1;
     textPaint = new Paint();
     textPaint.setColor(TEXT_COLOR);
     textPaint.setTextSize(TEXT_SIZE);
@@ -59,31 +65,49 @@ public class InferenceInfoGraphic extends GraphicOverlay.Graphic {
     showLatencyInfo = false;
   }
 
+  /**
+   * Replaces the displayed latencies.
+   *
+   * @param framesPerSecond the detection rate, or a negative value to not display one
+   * @return this graphic
+   */
+  public synchronized InferenceInfoGraphic update(
+      long frameLatency, long detectorLatency, int framesPerSecond) {
+    this.frameLatency = frameLatency;
+    this.detectorLatency = detectorLatency;
+    this.framesPerSecond = framesPerSecond;
+    return this;
+  }
+
   @Override
   public synchronized void draw(Canvas canvas) {
     float x = TEXT_SIZE * 0.5f;
     float y = TEXT_SIZE * 1.5f;
 
-    canvas.drawText(
-        "InputImage size: " + overlay.getImageHeight() + "x" + overlay.getImageWidth(),
-        x,
-        y,
-        textPaint);
+    text.setLength(0);
+    text.append("InputImage size: ")
+        .append(overlay.getImageHeight())
+        .append('x')
+        .append(overlay.getImageWidth());
+    drawText(canvas, x, y);
 
     if (!showLatencyInfo) {
       return;
     }
     // Draw FPS (if valid) and inference latency
-    if (framesPerSecond != null) {
-      canvas.drawText(
-          "FPS: " + framesPerSecond + ", Frame latency: " + frameLatency + " ms",
-          x,
-          y + TEXT_SIZE,
-          textPaint);
-    } else {
-      canvas.drawText("Frame latency: " + frameLatency + " ms", x, y + TEXT_SIZE, textPaint);
+    text.setLength(0);
+    if (framesPerSecond >= 0) {
+      text.append("FPS: ").append(framesPerSecond).append(", ");
     }
-    canvas.drawText(
-        "Detector latency: " + detectorLatency + " ms", x, y + TEXT_SIZE * 2, textPaint);
+    text.append("Frame latency: ").append(frameLatency).append(" ms");
+    drawText(canvas, x, y + TEXT_SIZE);
+
+    text.setLength(0);
+    text.append("Detector latency: ").append(detectorLatency).append(" ms");
+    drawText(canvas, x, y + TEXT_SIZE * 2);
+  }
+
+  private void drawText(Canvas canvas, float x, float y) {
+    canvas.drawText(text, 0, text.length(), x, y, textPaint);
   }
 }
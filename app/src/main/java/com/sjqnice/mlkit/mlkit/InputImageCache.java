@@ -0,0 +1,58 @@
+package com.sjqnice.mlkit.mlkit;
+
+import com.google.mlkit.vision.common.InputImage;
+import java.nio.ByteBuffer;
+
+/**
+ * Reuses the {@link InputImage} wrapping a live preview buffer.
+ *
+ * <p>An NV21 {@link InputImage} only references its buffer, and the pipeline hands the same few
+ * camera and preprocessor buffers to the detector over and over again, so the image created for a
+ * buffer, size and rotation can serve all later frames in that buffer. Entries are replaced round
+ * robin once all slots are taken.
+ *
+ * <p>Not thread safe.
+ */
+final class InputImageCache {
+
+  /** Enough for the camera buffers and the two preprocessor buffers of each of them. */
+  private static final int CAPACITY = 24;
+
+  private final ByteBuffer[] buffers = new ByteBuffer[CAPACITY];
+  private final int[] widths = new int[CAPACITY];
+  private final int[] heights = new int[CAPACITY];
+  private final int[] rotations = new int[CAPACITY];
+  private final InputImage[] images = new InputImage[CAPACITY];
+  private int nextSlot;
+
+  /** Returns an NV21 image of the buffer, creating it only if none is cached. */
+  InputImage get(ByteBuffer data, int width, int height, int rotation) {
+    for (int i = 0; i < CAPACITY; i++) {
+      if (buffers[i] == data
+          && widths[i] == width
+          && heights[i] == height
+          && rotations[i] == rotation) {
+        return images[i];
+      }
+    }
+    InputImage image =
+        InputImage.fromByteBuffer(data, width, height, rotation, InputImage.IMAGE_FORMAT_NV21);
+    int slot = nextSlot;
+    nextSlot = (nextSlot + 1) % CAPACITY;
+    buffers[slot] = data;
+    widths[slot] = width;
+    heights[slot] = height;
+    rotations[slot] = rotation;
+    images[slot] = image;
+    return image;
+  }
+
+  /** Drops all cached images and the references to their buffers. */
+  void clear() {
+    for (int i = 0; i < CAPACITY; i++) {
+      buffers[i] = null;
+      images[i] = null;
+    }
+    nextSlot = 0;
+  }
+}
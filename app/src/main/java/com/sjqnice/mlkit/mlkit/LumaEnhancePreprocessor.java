@@ -0,0 +1,353 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+
+/**
+ * Brightens and evens out the luma of dark or flat NV21 frames, so that barcodes in poorly lit
+ * scenes decode after fewer frames.
+ *
+ * <p>Every frame is measured first, on a sparse grid of Y samples: its mean luma, and its contrast
+ * as the spread between the 1st and 99th percentile. Only frames darker or flatter than the
+ * thresholds are enhanced, with some hysteresis so that a scene near a threshold does not toggle
+ * the stage every frame; well lit frames pass through untouched. Enhancement either stretches the
+ * luma range linearly ({@link #METHOD_STRETCH}), or after stretching also equalizes the histogram
+ * of each tile of a grid with a clip limit and blends the tiles bilinearly ({@link
+ * #METHOD_EQUALIZE}), which also lifts codes in the shadowed part of an otherwise lit frame. Only
+ * the Y plane is remapped, the chroma plane is copied as is. The result is written into the
+ * reusable output buffer of the frame, in {@link RowBands} for large frames.
+ *
+ * <p>Not thread safe apart from the setters; meant to be called from a single pipeline stage.
+ */
+public class LumaEnhancePreprocessor implements FramePreprocessor {
+  private static final String TAG = "LumaEnhance";
+
+  /** Maps the luma range of the frame linearly onto the full range. */
+  public static final int METHOD_STRETCH = 0;
+
+  /** Stretches, then equalizes the histograms of tiles of the frame with a clip limit (CLAHE). */
+  public static final int METHOD_EQUALIZE = 1;
+
+  /** Mean luma, out of 255, below which a frame is enhanced. */
+  static final int DEFAULT_DARK_MEAN = 70;
+
+  /** Spread between the 1st and 99th luma percentile below which a frame is enhanced. */
+  static final int DEFAULT_LOW_CONTRAST = 80;
+
+  /** How far a frame must be above a threshold to turn the stage off again. */
+  static final int HYSTERESIS = 15;
+
+  static final int GRID_SIZE = 8;
+
+  /** Maximum height of a tile histogram bin, as a multiple of the height of a flat histogram. */
+  static final int CLIP_LIMIT = 3;
+
+  /** Smallest luma range a stretch maps onto the full range, which caps the gain at 4. */
+  private static final int MIN_STRETCH_RANGE = 64;
+
+  /** Samples taken to measure a frame. */
+  private static final int MEASURE_SAMPLES = 16 * 1024;
+
+  /** Frames with fewer pixels are enhanced on the calling thread only. */
+  private static final int PARALLEL_MIN_PIXELS = 640 * 480;
+
+  private volatile int method = METHOD_EQUALIZE;
+  private volatile boolean alwaysOn;
+  private volatile int darkMean = DEFAULT_DARK_MEAN;
+  private volatile int lowContrast = DEFAULT_LOW_CONTRAST;
+
+  private volatile boolean active;
+  private int lastMean;
+  private int lastLow;
+  private int lastHigh;
+
+  private final int[] histogram = new int[256];
+  private final byte[] stretchLut = new byte[256];
+  // One histogram and lookup table per tile, tile rows are filled concurrently.
+  private final int[] tileHistograms = new int[GRID_SIZE * GRID_SIZE * 256];
+  private final byte[] tileLuts = new byte[GRID_SIZE * GRID_SIZE * 256];
+  // Per output column, the left tile to blend from and the weight of the right one, out of 256.
+  private int[] columnTiles = new int[0];
+  private int[] columnWeights = new int[0];
+  private int columnsWidth;
+
+  // What the row band jobs work on, set before each run.
+  private byte[] in;
+  private byte[] out;
+  private int width;
+  private int height;
+
+  // Kept, so that running them for every frame does not allocate.
+  private final RowBands.Job stretchRows = new RowBands.Job(this::stretchRows);
+  private final RowBands.Job equalizeTileRows = new RowBands.Job(this::equalizeTileRows);
+  private final RowBands.Job blendRows = new RowBands.Job(this::blendRows);
+
+  /** Sets {@link #METHOD_STRETCH} or {@link #METHOD_EQUALIZE}, the default. */
+  public void setMethod(int method) {
+    this.method = method;
+  }
+
+  /** Enhances every frame, however bright, if true. */
+  public void setAlwaysOn(boolean alwaysOn) {
+    this.alwaysOn = alwaysOn;
+  }
+
+  /**
+   * Sets when frames are enhanced.
+   *
+   * @param darkMean mean luma, out of 255, below which a frame is enhanced
+   * @param lowContrast spread between the 1st and 99th luma percentile below which a frame is
+   *     enhanced
+   */
+  public void setThresholds(int darkMean, int lowContrast) {
+    this.darkMean = darkMean;
+    this.lowContrast = lowContrast;
+  }
+
+  /** Returns whether the light measured in recent frames asks for enhancement. */
+  public boolean isActive() {
+    return active;
+  }
+
+  @Override
+  public boolean process(PipelineFrame frame) {
+    width = frame.getWidth();
+    height = frame.getHeight();
+    in = frame.getData().array();
+    if (width < GRID_SIZE * 2 || height < GRID_SIZE * 2) {
+      return true;
+    }
+    measure(in, width, height);
+    boolean enhance = alwaysOn || updateActive();
+    if (!enhance) {
+      return true;
+    }
+
+    int lumaSize = width * height;
+    ByteBuffer output = frame.obtainOutputBuffer(lumaSize * 3 / 2);
+    out = output.array();
+    boolean parallel = lumaSize >= PARALLEL_MIN_PIXELS;
+    buildStretchLut(lastLow, lastHigh, stretchLut);
+    if (method == METHOD_STRETCH) {
+      stretchRows.run(height, parallel);
+    } else {
+      updateColumns(width);
+      equalizeTileRows.run(GRID_SIZE, parallel);
+      blendRows.run(height, parallel);
+    }
+    System.arraycopy(in, lumaSize, out, lumaSize, lumaSize / 2);
+    frame.setData(output, width, height);
+    return true;
+  }
+
+  /** Measures the mean and the 1st and 99th percentile of the luma on a sparse grid. */
+  private void measure(byte[] nv21, int width, int height) {
+    int[] histogram = this.histogram;
+    for (int i = 0; i < 256; i++) {
+      histogram[i] = 0;
+    }
+    int step = Math.max(1, (int) Math.sqrt((double) width * height / MEASURE_SAMPLES));
+    long sum = 0;
+    int count = 0;
+    for (int y = step / 2; y < height; y += step) {
+      int end = y * width + width;
+      for (int offset = y * width + step / 2; offset < end; offset += step) {
+        int value = nv21[offset] & 0xff;
+        histogram[value]++;
+        sum += value;
+        count++;
+      }
+    }
+    lastMean = (int) (sum / count);
+    lastLow = percentile(histogram, count / 100);
+    lastHigh = percentile(histogram, count - 1 - count / 100);
+  }
+
+  /** Returns the luma value at the given rank of the samples. */
+  private static int percentile(int[] histogram, int rank) {
+    int cumulative = 0;
+    for (int value = 0; value < 256; value++) {
+      cumulative += histogram[value];
+      if (cumulative > rank) {
+        return value;
+      }
+    }
+    return 255;
+  }
+
+  private boolean updateActive() {
+    int mean = lastMean;
+    int contrast = lastHigh - lastLow;
+    boolean wasActive = active;
+    if (active) {
+      active = mean < darkMean + HYSTERESIS || contrast < lowContrast + HYSTERESIS;
+    } else {
+      active = mean < darkMean || contrast < lowContrast;
+    }
+    if (active != wasActive) {
+      String state = active ? "Enhancing" : "Not enhancing";
+      Log.d(TAG, state + " at mean luma " + mean + " and contrast " + contrast);
+    }
+    return active;
+  }
+
+  /** Fills {@code lut} to map {@code [low, high]} linearly onto {@code [0, 255]}. */
+  static void buildStretchLut(int low, int high, byte[] lut) {
+    int range = Math.max(high - low, MIN_STRETCH_RANGE);
+    // Keep the midpoint of a narrow range where it is, rather than pushing it to white.
+    int start = Math.max(0, Math.min(low, (low + high) / 2 - range / 2));
+    for (int value = 0; value < 256; value++) {
+      int mapped = ((value - start) * 255 + range / 2) / range;
+      lut[value] = (byte) Math.max(0, Math.min(255, mapped));
+    }
+  }
+
+  private void stretchRows(int rowStart, int rowEnd) {
+    byte[] in = this.in;
+    byte[] out = this.out;
+    byte[] lut = stretchLut;
+    int end = rowEnd * width;
+    for (int i = rowStart * width; i < end; i++) {
+      out[i] = lut[in[i] & 0xff];
+    }
+  }
+
+  /** Builds the clipped histogram and the lookup table of each tile in the given tile rows. */
+  private void equalizeTileRows(int tileRowStart, int tileRowEnd) {
+    for (int tileRow = tileRowStart; tileRow < tileRowEnd; tileRow++) {
+      int top = height * tileRow / GRID_SIZE;
+      int bottom = height * (tileRow + 1) / GRID_SIZE;
+      for (int tileColumn = 0; tileColumn < GRID_SIZE; tileColumn++) {
+        int left = width * tileColumn / GRID_SIZE;
+        int right = width * (tileColumn + 1) / GRID_SIZE;
+        int tile = (tileRow * GRID_SIZE + tileColumn) * 256;
+        computeTileLut(
+            in, width, left, top, right, bottom, stretchLut, tileHistograms, tileLuts, tile);
+      }
+    }
+  }
+
+  /**
+   * Computes the contrast limited equalization of a tile: its histogram is clipped at {@link
+   * #CLIP_LIMIT} times the flat height, the clipped counts spread over all bins, and the
+   * cumulative histogram scaled to {@code [0, 255]}.
+   *
+   * @param stretch maps the luma before it is counted; the lookup table is indexed by the result
+   * @param histograms scratch space for the histogram, 256 entries at {@code tile}
+   * @param luts receives the lookup table, 256 entries at {@code tile}
+   */
+  static void computeTileLut(
+      byte[] luma,
+      int width,
+      int left,
+      int top,
+      int right,
+      int bottom,
+      byte[] stretch,
+      int[] histograms,
+      byte[] luts,
+      int tile) {
+    for (int i = 0; i < 256; i++) {
+      histograms[tile + i] = 0;
+    }
+    for (int y = top; y < bottom; y++) {
+      int end = y * width + right;
+      for (int offset = y * width + left; offset < end; offset++) {
+        histograms[tile + (stretch[luma[offset] & 0xff] & 0xff)]++;
+      }
+    }
+
+    int pixels = (right - left) * (bottom - top);
+    int clip = Math.max(1, CLIP_LIMIT * pixels / 256);
+    int excess = 0;
+    for (int i = 0; i < 256; i++) {
+      int count = histograms[tile + i];
+      if (count > clip) {
+        excess += count - clip;
+        histograms[tile + i] = clip;
+      }
+    }
+    int share = excess / 256;
+    int remainder = excess % 256;
+    int cumulative = 0;
+    for (int i = 0; i < 256; i++) {
+      cumulative += histograms[tile + i] + share + (i < remainder ? 1 : 0);
+      luts[tile + i] = (byte) ((long) cumulative * 255 / pixels);
+    }
+  }
+
+  /** Precomputes the tiles and weights to blend for each column of frames {@code width} wide. */
+  private void updateColumns(int width) {
+    if (columnsWidth == width) {
+      return;
+    }
+    if (columnTiles.length < width) {
+      columnTiles = new int[width];
+      columnWeights = new int[width];
+    }
+    for (int x = 0; x < width; x++) {
+      columnTiles[x] = tileBefore(x, width);
+      columnWeights[x] = nextTileWeight(x, width);
+    }
+    columnsWidth = width;
+  }
+
+  // Tile centers lie at (i + 0.5) * length / GRID_SIZE, so in units of 1 / (2 * length) the center
+  // of a pixel lies past the center of the first tile by this much.
+  private static int pastFirstCenter(int position, int length) {
+    return (2 * position + 1) * GRID_SIZE - length;
+  }
+
+  /**
+   * Returns the last tile whose center lies at or before the center of pixel {@code position}, or
+   * the first tile for pixels before its center.
+   */
+  static int tileBefore(int position, int length) {
+    int scaled = pastFirstCenter(position, length);
+    return scaled <= 0 ? 0 : Math.min(scaled / (2 * length), GRID_SIZE - 1);
+  }
+
+  /**
+   * Returns the weight, out of 256, of the tile after {@link #tileBefore} for pixel {@code
+   * position}. Pixels before the first or after the last tile center take that tile alone.
+   */
+  static int nextTileWeight(int position, int length) {
+    int scaled = pastFirstCenter(position, length);
+    int tile = tileBefore(position, length);
+    if (scaled <= 0 || tile == GRID_SIZE - 1) {
+      return 0;
+    }
+    return (int) ((long) (scaled - tile * 2 * length) * 256 / (2 * length));
+  }
+
+  /** Maps each stretched pixel of the given rows through the four nearest tile tables, blended. */
+  private void blendRows(int rowStart, int rowEnd) {
+    byte[] in = this.in;
+    byte[] out = this.out;
+    byte[] stretch = stretchLut;
+    byte[] luts = tileLuts;
+    int[] columnTiles = this.columnTiles;
+    int[] columnWeights = this.columnWeights;
+    int width = this.width;
+    for (int y = rowStart; y < rowEnd; y++) {
+      int tileRow = tileBefore(y, height);
+      int top = tileRow * GRID_SIZE;
+      int bottom = Math.min(tileRow + 1, GRID_SIZE - 1) * GRID_SIZE;
+      int weightY = nextTileWeight(y, height);
+      int offset = y * width;
+      for (int x = 0; x < width; x++, offset++) {
+        int value = stretch[in[offset] & 0xff] & 0xff;
+        int left = columnTiles[x];
+        int right = Math.min(left + 1, GRID_SIZE - 1);
+        int weightX = columnWeights[x];
+        int upper =
+            (luts[((top + left) << 8) + value] & 0xff) * (256 - weightX)
+                + (luts[((top + right) << 8) + value] & 0xff) * weightX;
+        int lower =
+            (luts[((bottom + left) << 8) + value] & 0xff) * (256 - weightX)
+                + (luts[((bottom + right) << 8) + value] & 0xff) * weightX;
+        out[offset] = (byte) ((upper * (256 - weightY) + lower * weightY + (1 << 15)) >> 16);
+      }
+    }
+  }
+}
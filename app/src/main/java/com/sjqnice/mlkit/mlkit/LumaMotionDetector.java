@@ -0,0 +1,78 @@
+package com.sjqnice.mlkit.mlkit;
+
+/**
+ * Detects scene motion by differencing a coarse grid of luma averages between frames.
+ *
+ * <p>Only the Y plane at the start of an NV21 frame is read, and only a sparse subset of it: each
+ * grid cell is represented by the mean of {@link #SAMPLES_PER_CELL} x {@link #SAMPLES_PER_CELL}
+ * pixels spread over the cell. A frame is reported as moving when enough cells changed their mean
+ * by more than a threshold since the previous frame, which ignores sensor noise and small flicker.
+ *
+ * <p>Not thread safe; meant to be called from a single pipeline stage.
+ */
+public class LumaMotionDetector {
+
+  private static final int GRID_COLUMNS = 16;
+  private static final int GRID_ROWS = 12;
+  private static final int SAMPLES_PER_CELL = 4;
+
+  /** Change of a cell's mean luma, out of 255, that counts the cell as changed. */
+  private static final int CELL_THRESHOLD = 12;
+
+  /** Fraction of changed cells that counts the frame as moving. */
+  private static final float MOVING_CELL_FRACTION = 0.03f;
+
+  private final int[] previous = new int[GRID_COLUMNS * GRID_ROWS];
+  private final int[] current = new int[GRID_COLUMNS * GRID_ROWS];
+  private int previousWidth;
+  private int previousHeight;
+
+  /**
+   * Compares the frame with the previous one.
+   *
+   * @param nv21 a frame in NV21, only the first {@code width * height} bytes are read
+   * @return true if the scene changed noticeably since the previous frame
+   */
+  public boolean update(byte[] nv21, int width, int height) {
+    int cellWidth = width / GRID_COLUMNS;
+    int cellHeight = height / GRID_ROWS;
+    if (cellWidth < SAMPLES_PER_CELL || cellHeight < SAMPLES_PER_CELL) {
+      return true;
+    }
+    int stepX = cellWidth / SAMPLES_PER_CELL;
+    int stepY = cellHeight / SAMPLES_PER_CELL;
+    int samples = SAMPLES_PER_CELL * SAMPLES_PER_CELL;
+
+    for (int row = 0; row < GRID_ROWS; row++) {
+      for (int column = 0; column < GRID_COLUMNS; column++) {
+        int sum = 0;
+        int y = row * cellHeight + stepY / 2;
+        for (int i = 0; i < SAMPLES_PER_CELL; i++, y += stepY) {
+          int offset = y * width + column * cellWidth + stepX / 2;
+          for (int j = 0; j < SAMPLES_PER_CELL; j++, offset += stepX) {
+            sum += nv21[offset] & 0xff;
+          }
+        }
+        current[row * GRID_COLUMNS + column] = sum / samples;
+      }
+    }
+
+    boolean comparable = width == previousWidth && height == previousHeight;
+    int changed = 0;
+    for (int i = 0; i < current.length; i++) {
+      if (Math.abs(current[i] - previous[i]) > CELL_THRESHOLD) {
+        changed++;
+      }
+      previous[i] = current[i];
+    }
+    previousWidth = width;
+    previousHeight = height;
+    return !comparable || changed > MOVING_CELL_FRACTION * current.length;
+  }
+
+  /** Forgets the previous frame, so that the next frame is reported as moving. */
+  public void reset() {
+    previousWidth = 0;
+    previousHeight = 0;
+  }
+}
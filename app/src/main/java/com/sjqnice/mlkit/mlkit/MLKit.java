@@ -1,20 +1,27 @@
 package com.sjqnice.mlkit.mlkit;
 
+import android.content.ContentResolver;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.hardware.Camera;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
+import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.util.Consumer;
 import androidx.fragment.app.FragmentActivity;
 import androidx.lifecycle.Lifecycle;
 import androidx.lifecycle.LifecycleObserver;
 import androidx.lifecycle.OnLifecycleEvent;
 import com.blankj.utilcode.util.ScreenUtils;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskExecutors;
 import com.google.mlkit.vision.barcode.BarcodeScanner;
 import com.google.mlkit.vision.barcode.BarcodeScannerOptions;
 import com.google.mlkit.vision.barcode.BarcodeScanning;
@@ -28,8 +35,13 @@ import com.google.mlkit.vision.text.chinese.ChineseTextRecognizerOptions;
 import com.sjqnice.mlkit.mlkit.barcodescanner.BarcodeScannerProcessor;
 import com.sjqnice.mlkit.mlkit.hardware.BeepManager;
 import com.sjqnice.mlkit.mlkit.textdetector.TextRecognitionProcessor;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 public class MLKit implements LifecycleObserver {
 
@@ -50,6 +62,27 @@ public class MLKit implements LifecycleObserver {
     boolean vibrate = true;
     private VisionImageProcessor imageProcessor;
     private boolean isTextRecognize = false;
+    private long idleTimeoutMs = VisionProcessorBase.DEFAULT_IDLE_TIMEOUT_MS;
+    private int maxInFlight = 1;
+    private boolean resultSnapshot = false;//识别结果是否附带预览帧快照
+    private float barcodeDetectionScale = 1f;//识别条码时帧的缩放比例
+    private ViewfinderView scanRegionView;//只识别该扫描框内的区域
+    private final View.OnLayoutChangeListener scanRegionLayoutListener =
+            (v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) -> updateScanRegion();
+    private boolean useCamera2 = false;//是否使用Camera2获取预览帧
+    private PreviewAutoTuner previewAutoTuner;
+    private final SampledImageDecoder imageDecoder = new SampledImageDecoder();//相册图片解码，内存有上限
+    private TiledBarcodeScanner tiledBarcodeScanner;//分块识别相册大图，按需创建
+    private BatchImageScanner batchImageScanner;//批量识别图片，按需创建
+    private int barcodeFormats = Barcode.FORMAT_ALL_FORMATS;//setBarcodeFormats 传入的格式，用于区分缓存
+    private BarcodeScannerOptions barcodeFormatsOptions;//由 barcodeFormats 构建的选项
+    private final ExecutorService cacheExecutor = Executors.newSingleThreadExecutor();//计算缓存键、查缓存和写缓存
+    private BarcodeScanner stillImageBarcodeScanner;//识别单张图片的client，按需创建并复用
+    private TextRecognizer stillImageTextRecognizer;
+    private TextRecognizerOptionsInterface stillImageRecognizerOptions;
+    private ScanResultCache resultCache;//识别结果的磁盘缓存
+    private OnCachedResultListener onCachedResultListener;
+    private LumaEnhancePreprocessor lowLightEnhancer;//弱光/低对比度画面的亮度增强，按需创建
 
     public MLKit(FragmentActivity activity, CameraSourcePreview preview, GraphicOverlay graphicOverlay) {
         this.activity = activity;
@@ -65,6 +98,8 @@ public class MLKit implements LifecycleObserver {
         if(beepManager == null) {
             beepManager = new BeepManager(activity);
         }
+        //在后台提前读取相机能力缓存，启动相机时只用已在内存中的缓存，不读磁盘
+        CameraCapabilityCache.preload(activity);
         createCameraSource();
     }
 
@@ -78,6 +113,9 @@ public class MLKit implements LifecycleObserver {
     @OnLifecycleEvent(Lifecycle.Event.ON_STOP)
     public void onStop() {
         Log.d(TAG, "onStop");
+        if (previewAutoTuner != null) {
+            previewAutoTuner.cancel(false);//相机即将停止，无需重启
+        }
         preview.stop();
     }
 
@@ -87,20 +125,36 @@ public class MLKit implements LifecycleObserver {
         if (cameraSource != null) {
             cameraSource.release();
         }
+        if (tiledBarcodeScanner != null) {
+            tiledBarcodeScanner.close();
+            tiledBarcodeScanner = null;
+        }
+        if (batchImageScanner != null) {
+            batchImageScanner.close();
+            batchImageScanner = null;
+        }
+        closeStillImageClients();
+        cacheExecutor.shutdown();
     }
 
     public synchronized void scanningImage(Uri imageUri){
+        if (imageUri == null){
+            onScanListener.onFail(2, new Exception("photo url is null!"));
+            return;
+        }
+        // 先查缓存，命中时不解码图片
+        lookUpCachedResult(imageUri, onTiledScanListener != null && !isTextRecognize,
+                cacheKey -> scanImage(imageUri, cacheKey));
+    }
+
+    private synchronized void scanImage(Uri imageUri, @Nullable String cacheKey) {
         try {
-            if (imageUri == null){
-                onScanListener.onFail(2, new Exception("photo url is null!"));
-            }
-            Bitmap imageBitmap = BitmapUtils.getBitmapFromContentUri(activity.getContentResolver(),imageUri);
-            if (imageBitmap == null){
+            // 按屏幕宽度采样解码，一次完成方向校正和缩放
+            Bitmap resizedBitmap = imageDecoder.decode(activity.getContentResolver(), imageUri, ScreenUtils.getScreenWidth());
+            if (resizedBitmap == null){
                 return;
             }
             graphicOverlay.clear();
-            float scaleFactor = ((float) imageBitmap.getWidth()) / ((float) ScreenUtils.getScreenWidth());
-            Bitmap resizedBitmap = Bitmap.createScaledBitmap(imageBitmap,Math.round (imageBitmap.getWidth() / scaleFactor),Math.round(imageBitmap.getHeight() /scaleFactor),true);
             /*Camera camera = Camera.open(cameraSource.getCameraFacing());
             Camera.Size previewSize = camera.new Size(resizedBitmap.getWidth(),resizedBitmap.getHeight());
             CameraSource.SizePair sizePair =
@@ -110,10 +164,13 @@ public class MLKit implements LifecycleObserver {
             graphicOverlay.setImageSourceInfo(resizedBitmap.getWidth(),resizedBitmap.getHeight(),false);
             barcodeScannerProcessor.processBitmap(resizedBitmap, graphicOverlay);*/
             graphicOverlay.setDisplayStillImage(true);
+            graphicOverlay.setDetectionTransform(0, 0, 1);
             if (isTextRecognize) {
-                recognizeInImage(resizedBitmap, graphicOverlay);
+                recognizeInImage(resizedBitmap, graphicOverlay, cacheKey);
+            } else if (onTiledScanListener != null) {
+                detectInImageTiled(imageUri, resizedBitmap, graphicOverlay);
             } else {
-                detectInImage(resizedBitmap, graphicOverlay);
+                detectInImage(resizedBitmap, graphicOverlay, cacheKey);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -123,20 +180,159 @@ public class MLKit implements LifecycleObserver {
     public synchronized void scanningImage(String photoPath) {
         if (TextUtils.isEmpty(photoPath)) {
             onScanListener.onFail(2, new Exception("photo url is null!"));
+            return;
         }
+        lookUpCachedResult(Uri.fromFile(new File(photoPath)), false,
+                cacheKey -> scanImage(photoPath, cacheKey));
+    }
+
+    private synchronized void scanImage(String photoPath, @Nullable String cacheKey) {
         Bitmap bitmap = BitmapUtils.decodeBitmapFromPath(photoPath, 600, 600, false);
+        if (bitmap == null) {
+            return;
+        }
+
+        detectInImage(bitmap, graphicOverlay, cacheKey);
+    }
+
+    /**
+     * 设置识别结果的磁盘缓存。识别相册图片前先按图片的uri、大小和修改时间（取不到时按内容的哈希）
+     * 查缓存，命中时不再解码和识别图片，直接通过 listener 回调缓存的结果；未命中时照常识别并写入缓存。
+     * 批量识别同样使用此缓存。分块识别不使用缓存。计算缓存键、查缓存和写缓存都在后台线程进行，命中时在主线程回调。
+     * 条码的缓存按 {@link #setBarcodeFormats(int, int...)} 设置的格式区分，用 {@link #setBarcodeFormats(BarcodeScannerOptions)}
+     * 传入非null的选项时不使用缓存
+     * @param cache 为null时不使用缓存，如 new ScanResultCache(new File(context.getCacheDir(), "scan_results"), 4 * 1024 * 1024, 1000)
+     * @param listener 接收命中缓存的结果
+     */
+    public void setResultCache(@Nullable ScanResultCache cache, @Nullable OnCachedResultListener listener) {
+        resultCache = cache;
+        onCachedResultListener = listener;
+        if (batchImageScanner != null) {
+            applyBatchResultCache();
+        }
+    }
 
-        detectInImage(bitmap, graphicOverlay);
+    public interface OnCachedResultListener {
+        void onCachedResult(@NonNull Uri imageUri, @NonNull ScanResultCache.Entry entry);
     }
 
-    private void detectInImage(Bitmap bitmap, final GraphicOverlay graphicOverlay) {
+    /**
+     * 查缓存后在主线程继续：命中时回调缓存的结果，未命中或不使用缓存时以缓存键（不使用缓存时为null）
+     * 调用 onMiss。计算缓存键可能要哈希整张图片，查缓存要读磁盘，因此都在后台线程进行
+     */
+    private void lookUpCachedResult(Uri imageUri, boolean isTiled, Consumer<String> onMiss) {
+        ScanResultCache cache = resultCache;
+        String variant = isTextRecognize
+                ? "text|" + recognizerOptions.getClass().getName()
+                : getBarcodeCacheVariant();
+        if (cache == null || onCachedResultListener == null || isTiled || variant == null) {
+            onMiss.accept(null);
+            return;
+        }
+        ContentResolver contentResolver = activity.getContentResolver();
+        cacheExecutor.execute(() -> {
+            String cacheKey = ScanResultCache.keyFor(contentResolver, imageUri, variant);
+            ScanResultCache.Entry entry = cacheKey != null ? cache.get(cacheKey) : null;
+            TaskExecutors.MAIN_THREAD.execute(() -> {
+                if (activity.getLifecycle().getCurrentState() == Lifecycle.State.DESTROYED) {
+                    return;
+                }
+                if (entry != null) {
+                    deliverCachedResult(imageUri, entry);
+                } else {
+                    onMiss.accept(cacheKey);
+                }
+            });
+        });
+    }
+
+    /**
+     * 缓存键中区分条码格式的部分，取自 setBarcodeFormats 传入的格式。BarcodeScannerOptions 取不到其中的格式，
+     * 直接传入或修改 scannerOptions 时返回null，不使用缓存
+     */
+    @Nullable
+    private String getBarcodeCacheVariant() {
+        if (scannerOptions != barcodeFormatsOptions) {
+            return null;
+        }
+        return "barcode|" + barcodeFormats;
+    }
+
+    private void applyBatchResultCache() {
+        String variant = getBarcodeCacheVariant();
+        if (variant != null) {
+            batchImageScanner.setResultCache(resultCache, variant);
+        } else {
+            batchImageScanner.setResultCache(null, "");
+        }
+    }
+
+    /** 在后台线程写入缓存，写缓存要写磁盘并持有缓存的锁，不能阻塞主线程 */
+    private void putCachedResult(ScanResultCache cache, String cacheKey, ScanResultCache.Entry entry) {
+        try {
+            cacheExecutor.execute(() -> cache.put(cacheKey, entry));
+        } catch (RejectedExecutionException e) {
+            // 页面已销毁，不再写入
+        }
+    }
+
+    private void deliverCachedResult(Uri imageUri, ScanResultCache.Entry entry) {
+        if (isAnalyze()) {
+            if (!entry.items.isEmpty()) {
+                playBeepAndVibrate();
+            }
+            onCachedResultListener.onCachedResult(imageUri, entry);
+        }
+    }
+
+    private void closeStillImageClients() {
+        if (stillImageBarcodeScanner != null) {
+            stillImageBarcodeScanner.close();
+            stillImageBarcodeScanner = null;
+        }
+        if (stillImageTextRecognizer != null) {
+            stillImageTextRecognizer.close();
+            stillImageTextRecognizer = null;
+        }
+    }
+
+    /**
+     * 批量识别多张图片中的条码，如外出拍摄的几百张照片。图片在后台线程中并行解码和识别，同时识别的
+     * 张数按可用内存决定，不阻塞主线程。每张图片识别完即在主线程回调结果和进度（已完成数、总数、
+     * 每秒张数），全部完成后回调 onBatchComplete。批次被取消，或因更换条码格式、页面销毁而关闭时，
+     * 正在识别的图片回调完后改为回调 onBatchCancelled
+     * @return 可随时查询进度或取消的批次，多个批次依次识别
+     */
+    public BatchImageScanner.Batch scanningImages(@NonNull List<Uri> imageUris,
+                                                  @NonNull BatchImageScanner.Listener listener) {
+        if (batchImageScanner == null) {
+            batchImageScanner = new BatchImageScanner(activity.getContentResolver(), scannerOptions);
+            applyBatchResultCache();
+        }
+        return batchImageScanner.scan(imageUris, listener);
+    }
+
+    /** 同 {@link #scanningImages(List, BatchImageScanner.Listener)}，传入图片路径 */
+    public BatchImageScanner.Batch scanningImagePaths(@NonNull List<String> photoPaths,
+                                                      @NonNull BatchImageScanner.Listener listener) {
+        List<Uri> imageUris = new ArrayList<>(photoPaths.size());
+        for (String photoPath : photoPaths) {
+            imageUris.add(Uri.fromFile(new File(photoPath)));
+        }
+        return scanningImages(imageUris, listener);
+    }
+
+    private void detectInImage(Bitmap bitmap, final GraphicOverlay graphicOverlay, @Nullable String cacheKey) {
         InputImage image = InputImage.fromBitmap(bitmap, 0);
-        BarcodeScanner barcodeScanner;
-        if(scannerOptions != null) {
-            barcodeScanner = BarcodeScanning.getClient(scannerOptions);
-        }else {
-            barcodeScanner = BarcodeScanning.getClient();
+        // 复用识别图片的 client，更换条码格式时重建
+        if (stillImageBarcodeScanner == null) {
+            if(scannerOptions != null) {
+                stillImageBarcodeScanner = BarcodeScanning.getClient(scannerOptions);
+            }else {
+                stillImageBarcodeScanner = BarcodeScanning.getClient();
+            }
         }
+        BarcodeScanner barcodeScanner = stillImageBarcodeScanner;
         // Or, to specify the formats to recognize:
         // BarcodeScanner scanner = BarcodeScanning.getClient(options);
         // [END get_detector]
@@ -147,6 +343,10 @@ public class MLKit implements LifecycleObserver {
                     if (barcodes.isEmpty()) {
                         Log.v(TAG, "No barcode has been detected");
                     }
+                    if (cacheKey != null && resultCache != null) {
+                        putCachedResult(resultCache, cacheKey, ScanResultCache.Entry.ofBarcodes(
+                                barcodes, image.getWidth(), image.getHeight()));
+                    }
                     if(isAnalyze()) {
                         if(onScanListener != null) {
                             if(!barcodes.isEmpty()) {
@@ -164,11 +364,52 @@ public class MLKit implements LifecycleObserver {
                 });
     }
 
-    private void recognizeInImage(Bitmap bitmap, final GraphicOverlay graphicOverlay){
+    /**
+     * 分块识别原图中的条码，结果的位置是原图中的像素，乘以 bitmap 宽度与
+     * {@link TiledBarcode#getImageWidth()} 之比即为显示图片中的位置
+     */
+    private void detectInImageTiled(Uri imageUri, Bitmap bitmap, final GraphicOverlay graphicOverlay) {
         InputImage image = InputImage.fromBitmap(bitmap, 0);
-        TextRecognizer textRecognizer = TextRecognition.getClient(recognizerOptions);
+        if (tiledBarcodeScanner == null) {
+            tiledBarcodeScanner = new TiledBarcodeScanner(scannerOptions);
+        }
+        tiledBarcodeScanner.process(activity.getContentResolver(), imageUri)
+                .addOnSuccessListener(barcodes -> {
+                    if (barcodes.isEmpty()) {
+                        Log.v(TAG, "No barcode has been detected");
+                    }
+                    if (isAnalyze() && onTiledScanListener != null) {
+                        if (!barcodes.isEmpty()) {
+                            playBeepAndVibrate();
+                        }
+                        onTiledScanListener.onSuccess(barcodes, graphicOverlay, image);
+                    }
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Tiled barcode detection failed " + e);
+                    if (onTiledScanListener != null) {
+                        onTiledScanListener.onFail(1, e);
+                    }
+                });
+    }
+
+    private void recognizeInImage(Bitmap bitmap, final GraphicOverlay graphicOverlay, @Nullable String cacheKey){
+        InputImage image = InputImage.fromBitmap(bitmap, 0);
+        // recognizerOptions 是公开字段，可能被直接替换，此时重建 client
+        if (stillImageTextRecognizer == null || stillImageRecognizerOptions != recognizerOptions) {
+            if (stillImageTextRecognizer != null) {
+                stillImageTextRecognizer.close();
+            }
+            stillImageTextRecognizer = TextRecognition.getClient(recognizerOptions);
+            stillImageRecognizerOptions = recognizerOptions;
+        }
+        TextRecognizer textRecognizer = stillImageTextRecognizer;
         textRecognizer.process(image)
                 .addOnSuccessListener(text -> {
+                    if (cacheKey != null && resultCache != null) {
+                        putCachedResult(resultCache, cacheKey, ScanResultCache.Entry.ofText(
+                                text, image.getWidth(), image.getHeight()));
+                    }
                     if(isAnalyze()) {
                         if (onRecognizeListener != null){
                             if (!text.getText().isEmpty()){
@@ -189,8 +430,38 @@ public class MLKit implements LifecycleObserver {
 
     public interface OnRecognizeListener extends onResultListener<Text>{}
 
+    public interface OnTiledScanListener extends onResultListener<List<TiledBarcode>>{}
+
     private interface onResultListener<T>{
         void onSuccess(T result,@NonNull GraphicOverlay graphicOverlay, InputImage image);
+
+        /**
+         * 识别成功的回调，附带识别所用预览帧的信息：帧序号、拍摄时间和进入处理流程的时间（均为
+         * SystemClock.elapsedRealtime()），可用于计算从拍摄到出结果的延迟。默认转给不带帧信息的回调。
+         * 设置了扫描区域或条码识别缩放比例时，结果的坐标是裁剪、缩小后的帧上的坐标，
+         * 可用{@link FrameMetadata#mapToPreview}换算回预览帧的坐标
+         * @param frameMetadata 预览帧的信息，识别图片时为null
+         */
+        default void onSuccess(T result, @NonNull GraphicOverlay graphicOverlay, InputImage image,
+                               @Nullable FrameMetadata frameMetadata) {
+            onSuccess(result, graphicOverlay, image);
+        }
+
+        /**
+         * 识别成功的回调，附带识别所用预览帧的快照：与识别结果出自同一帧，已在后台线程按GraphicOverlay的
+         * 尺寸和显示方式渲染好，可直接用{@link CameraImageGraphic}（viewSized为true）画出，主线程无需再转换。
+         * 需调用{@link #setResultSnapshot(boolean)}开启。快照归回调所有：画出时传入 BitmapPool.getInstance()，
+         * 图形被移除时快照自动回收；不画出时用完后调用 BitmapPool.getInstance().put 回收。关闭实时预览时
+         * 快照就是这一帧的预览画面。默认交给{@link CameraImageGraphic#showOrRecycleSnapshot}处理后转给
+         * 不带快照的回调
+         * @param snapshot 预览帧快照，未开启、识别图片、没有识别到结果或渲染失败时为null；不要修改
+         */
+        default void onSuccess(T result, @NonNull GraphicOverlay graphicOverlay, InputImage image,
+                               @Nullable FrameMetadata frameMetadata, @Nullable Bitmap snapshot) {
+            CameraImageGraphic.showOrRecycleSnapshot(graphicOverlay, snapshot);
+            onSuccess(result, graphicOverlay, image, frameMetadata);
+        }
+
         void onFail(int code, Exception e);
     }
 
@@ -200,6 +471,18 @@ public class MLKit implements LifecycleObserver {
         onScanListener = listener;
     }
 
+    public OnTiledScanListener onTiledScanListener;
+
+    /**
+     * 设置后，识别相册图片时不再只识别缩放到屏幕宽度的图片，而是把原图分成互相重叠的小块并行识别，
+     * 适合在大图中识别较小的条码，如仓库中拍摄的货架、托盘标签。结果通过此回调返回，不再回调
+     * {@link OnScanListener}
+     * @param listener 为null时恢复为只识别缩放后的图片
+     */
+    public void setOnTiledScanListener(@Nullable OnTiledScanListener listener) {
+        onTiledScanListener = listener;
+    }
+
     public OnRecognizeListener onRecognizeListener;
 
     public void setOnRecognizeListener(@NonNull OnRecognizeListener listener){
@@ -223,8 +506,43 @@ public class MLKit implements LifecycleObserver {
         return isAnalyze;
     }
 
+    /**
+     * 设置识别的条码格式，如 setBarcodeFormats(Barcode.FORMAT_QR_CODE, Barcode.FORMAT_CODE_128)，
+     * 只识别需要的格式更快。识别结果缓存按这些格式区分
+     */
+    public void setBarcodeFormats(@Barcode.BarcodeFormat int format, @Barcode.BarcodeFormat int... moreFormats) {
+        BarcodeScannerOptions options = new BarcodeScannerOptions.Builder()
+                .setBarcodeFormats(format, moreFormats)
+                .build();
+        setBarcodeFormats(options);
+        int formats = format;
+        for (int moreFormat : moreFormats) {
+            formats |= moreFormat;
+        }
+        barcodeFormats = formats;
+        barcodeFormatsOptions = options;
+    }
+
+    /**
+     * 设置识别条码的选项，为null时识别所有格式。options 中的格式无法取得，传入非null的 options 时
+     * 不使用识别结果缓存，需要缓存时用 {@link #setBarcodeFormats(int, int...)}
+     */
     public void setBarcodeFormats(BarcodeScannerOptions options) {
         this.scannerOptions = options;
+        barcodeFormats = Barcode.FORMAT_ALL_FORMATS;
+        barcodeFormatsOptions = null;
+        if (stillImageBarcodeScanner != null) {
+            stillImageBarcodeScanner.close();
+            stillImageBarcodeScanner = null;
+        }
+        if (tiledBarcodeScanner != null) {
+            tiledBarcodeScanner.close();
+            tiledBarcodeScanner = null;
+        }
+        if (batchImageScanner != null) {
+            batchImageScanner.close();
+            batchImageScanner = null;
+        }
     }
 
     public void switchCamera() {
@@ -249,6 +567,162 @@ public class MLKit implements LifecycleObserver {
         }
     }
 
+    /**
+     * 设置是否使用Camera2 API获取预览帧，默认使用Camera1。相机正在运行时会重新打开相机。
+     * 注意：使用Camera2时不支持手势缩放
+     * @param useCamera2
+     */
+    public void setUseCamera2(boolean useCamera2) {
+        if (this.useCamera2 == useCamera2) {
+            return;
+        }
+        this.useCamera2 = useCamera2;
+        if (cameraSource != null) {
+            preview.stop();
+            cameraSource.setFrameSource(createFrameSource());
+            startCameraSource();
+        }
+    }
+
+    private FrameSource createFrameSource() {
+        return useCamera2 ? new Camera2FrameSource(activity) : new Camera1FrameSource(activity);
+    }
+
+    /**
+     * 校准预览分辨率和帧率：依次用几组候选分辨率/帧率运行当前的识别处理器，测量识别吞吐量和延迟，
+     * 选出最合适的组合保存到偏好设置中，之后打开相机时都会使用该组合。每组约需3.5秒，期间相机会多次重启
+     * @param listener 校准完成的回调，可为null
+     */
+    public void calibratePreview(@Nullable PreviewAutoTuner.Listener listener) {
+        if (cameraSource == null || imageProcessor == null) {
+            return;
+        }
+        if (previewAutoTuner != null) {
+            previewAutoTuner.cancel(false);//新的校准会马上重启相机
+        }
+        previewAutoTuner = new PreviewAutoTuner(activity, cameraSource.getCameraFacing(),
+                imageProcessor, () -> {
+                    preview.stop();
+                    startCameraSource();
+                });
+        previewAutoTuner.start(listener);
+    }
+
+    /**
+     * 设置空闲超时时间，超过该时间既没有识别结果画面也没有变化时，降低识别频率以节省电量，
+     * 画面变化后立即恢复全速识别。设置为0则不降频
+     * @param idleTimeoutMs 空闲超时时间，单位毫秒
+     */
+    public void setIdleTimeout(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+        applyProcessorSettings();
+    }
+
+    /**
+     * 设置同时进行识别的最大帧数（1到{@link VisionProcessorBase#MAX_IN_FLIGHT}），识别器有空闲等待时
+     * 可提高吞吐量，但会占用更多内存、增加延迟。识别结果仍按帧的顺序回调，落后太多的结果会被丢弃。默认为1
+     * @param maxInFlight 同时识别的最大帧数
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        applyProcessorSettings();
+    }
+
+    /**
+     * 设置实时识别到结果时是否附带识别所用预览帧的快照，通过{@link OnScanListener}和{@link OnRecognizeListener}
+     * 带快照的onSuccess回调返回。快照在后台线程渲染，预览帧在识别和渲染期间不会被相机复用，保证与结果一致。默认不开启
+     * @param resultSnapshot 是否附带快照
+     */
+    public void setResultSnapshot(boolean resultSnapshot) {
+        this.resultSnapshot = resultSnapshot;
+        applyProcessorSettings();
+    }
+
+    /**
+     * 设置识别条码时把预览帧缩小到的比例，如0.5为宽高各缩小一半，条码通常仍能识别，速度快很多。
+     * 缩小后条码的boundingBox和cornerPoints是缩小后的帧上的坐标，需用回调中的
+     * {@link FrameMetadata#mapToPreview}换算回预览帧的坐标。默认为1，不缩小
+     * @param scale 缩放比例，0.1到1
+     */
+    public void setBarcodeDetectionScale(float scale) {
+        this.barcodeDetectionScale = scale;
+        applyProcessorSettings();
+    }
+
+    private void applyProcessorSettings() {
+        if (imageProcessor instanceof BarcodeScannerProcessor) {
+            ((BarcodeScannerProcessor) imageProcessor).setDetectionScale(barcodeDetectionScale);
+        }
+        if (imageProcessor instanceof VisionProcessorBase) {
+            VisionProcessorBase<?> processor = (VisionProcessorBase<?>) imageProcessor;
+            processor.setIdleTimeoutMs(idleTimeoutMs);
+            processor.setMaxInFlight(maxInFlight);
+            processor.setResultSnapshotsEnabled(resultSnapshot);
+        }
+    }
+
+    /**
+     * 设置只识别扫描框内的区域，识别的像素变少后识别速度更快；传入null则识别整个画面。
+     * 扫描框为全屏扫描时识别整个画面。识别结果的坐标是裁剪后的帧上的坐标，
+     * 可用回调中的{@link FrameMetadata#mapToPreview}换算回预览帧的坐标
+     * @param viewfinderView 扫描框
+     */
+    public void setScanRegion(@Nullable ViewfinderView viewfinderView) {
+        if (scanRegionView != null) {
+            scanRegionView.removeOnLayoutChangeListener(scanRegionLayoutListener);
+            graphicOverlay.removeOnLayoutChangeListener(scanRegionLayoutListener);
+        }
+        scanRegionView = viewfinderView;
+        if (viewfinderView != null) {
+            viewfinderView.addOnLayoutChangeListener(scanRegionLayoutListener);
+            graphicOverlay.addOnLayoutChangeListener(scanRegionLayoutListener);
+        }
+        updateScanRegion();
+    }
+
+    private void updateScanRegion() {
+        if (cameraSource == null) {
+            return;
+        }
+        Rect frame = scanRegionView != null ? scanRegionView.getFrameRect() : null;
+        if (frame == null) {
+            cameraSource.setRegionOfInterest(null);
+            return;
+        }
+        // 扫描框坐标转换为GraphicOverlay中的坐标
+        int[] finderLocation = new int[2];
+        int[] overlayLocation = new int[2];
+        scanRegionView.getLocationInWindow(finderLocation);
+        graphicOverlay.getLocationInWindow(overlayLocation);
+        RectF region = new RectF(frame);
+        region.offset(finderLocation[0] - overlayLocation[0], finderLocation[1] - overlayLocation[1]);
+        cameraSource.setRegionOfInterest(region);
+    }
+
+    /**
+     * 设置是否增强弱光、低对比度画面：只在测得画面平均亮度或对比度低于阈值时才处理，只改动亮度(Y)分量，
+     * 画面正常时不做处理。光线差时可减少识别出结果前的帧数
+     * @param enable 是否开启
+     * @param method {@link LumaEnhancePreprocessor#METHOD_STRETCH}只拉伸亮度范围，速度快；
+     *               {@link LumaEnhancePreprocessor#METHOD_EQUALIZE}再分块均衡直方图，适合明暗不均的画面
+     */
+    public void setLowLightEnhance(boolean enable, int method) {
+        if (!enable) {
+            if (lowLightEnhancer != null && cameraSource != null) {
+                cameraSource.removeFramePreprocessor(lowLightEnhancer);
+            }
+            lowLightEnhancer = null;
+            return;
+        }
+        if (lowLightEnhancer == null) {
+            lowLightEnhancer = new LumaEnhancePreprocessor();
+            if (cameraSource != null) {
+                cameraSource.addFramePreprocessor(lowLightEnhancer);
+            }
+        }
+        lowLightEnhancer.setMethod(method);
+    }
+
     public void setPlayBeepAndVibrate(boolean playBeep, boolean vibrate) {
         this.playBeep = playBeep;
         this.vibrate = vibrate;
@@ -294,21 +768,33 @@ public class MLKit implements LifecycleObserver {
         // If there's no existing cameraSource, create one.
         if (cameraSource == null) {
             cameraSource = new CameraSource(activity, graphicOverlay);
+            cameraSource.setFrameSource(createFrameSource());
+            updateScanRegion();
+            if (lowLightEnhancer != null) {
+                cameraSource.addFramePreprocessor(lowLightEnhancer);
+            }
         }
 
+        if (previewAutoTuner != null) {
+            previewAutoTuner.cancel(true);//校准针对的处理器即将被替换，重启相机恢复原来的分辨率和帧率
+        }
         if (!isTextRecognize){
             imageProcessor = new BarcodeScannerProcessor(activity, this);
         }else {
             imageProcessor = new TextRecognitionProcessor(activity, this);
         }
+        applyProcessorSettings();
         cameraSource.setMachineLearningFrameProcessor(imageProcessor);
     }
 
     public void switchBarcodeScanAndTextRecognize(boolean isTextRecognize){
         this.isTextRecognize = isTextRecognize;
-        preview.stop();
+        // 相机已在运行时只替换识别处理器，不重启相机
+        boolean isRunning = cameraSource != null && cameraSource.isRunning();
         createCameraSource();
-        startCameraSource();
+        if (!isRunning) {
+            startCameraSource();
+        }
     }
 
     /**
@@ -340,6 +826,7 @@ public class MLKit implements LifecycleObserver {
      */
     public void startProcessor() {
         imageProcessor = new BarcodeScannerProcessor(activity, this);
+        applyProcessorSettings();
         cameraSource.setMachineLearningFrameProcessor(imageProcessor);
     }
 
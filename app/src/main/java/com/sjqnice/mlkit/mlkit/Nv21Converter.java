@@ -0,0 +1,186 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.graphics.Bitmap;
+import androidx.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts NV21 frames to upright ARGB_8888 bitmaps without going through JPEG.
+ *
+ * <p>The YUV to RGB conversion uses the full range BT.601 coefficients of JFIF in 16.16 fixed
+ * point, which is what the camera produces and what the JPEG round trip used to apply. Rotation
+ * and mirroring are folded into the pixel loop: every output pixel reads its source pixel
+ * directly, so no intermediate bitmap is created. Large frames are converted in {@link RowBands}
+ * on several cores.
+ *
+ * <p>An instance keeps its pixel buffer between frames and must not be used from several threads
+ * at once.
+ */
+public final class Nv21Converter {
+
+  // JFIF coefficients, scaled by 2^16.
+  private static final int FIX_SHIFT = 16;
+  private static final int FIX_HALF = 1 << (FIX_SHIFT - 1);
+  private static final int R_V = 91881; // 1.402
+  private static final int G_U = 22554; // 0.344136
+  private static final int G_V = 46802; // 0.714136
+  private static final int B_U = 116130; // 1.772
+
+  /** Frames with fewer pixels are converted on the calling thread only. */
+  private static final int PARALLEL_MIN_PIXELS = 160 * 1024;
+
+  private int[] pixels = new int[0];
+  private byte[] copy = new byte[0];
+
+  /**
+   * Converts an NV21 frame into an upright bitmap.
+   *
+   * @param rotationDegrees the clockwise rotation that makes the frame upright, a multiple of 90
+   * @param mirror whether to flip the upright image horizontally
+   * @param reuse a bitmap to write into if it is mutable, ARGB_8888 and of the upright size, or
+   *     null
+   * @return {@code reuse} if it could be written into, otherwise a bitmap from the shared {@link
+   *     BitmapPool}
+   */
+  public Bitmap convert(
+      ByteBuffer nv21,
+      int width,
+      int height,
+      int rotationDegrees,
+      boolean mirror,
+      @Nullable Bitmap reuse) {
+    boolean swap = rotationDegrees % 180 != 0;
+    int outWidth = swap ? height : width;
+    int outHeight = swap ? width : height;
+    if (pixels.length < width * height) {
+      pixels = new int[width * height];
+    }
+    convert(nv21, width, height, rotationDegrees, mirror, pixels);
+
+    Bitmap bitmap = reuse;
+    if (bitmap == null
+        || !bitmap.isMutable()
+        || bitmap.isRecycled()
+        || bitmap.getConfig() != Bitmap.Config.ARGB_8888
+        || bitmap.getWidth() != outWidth
+        || bitmap.getHeight() != outHeight) {
+      bitmap = BitmapPool.getInstance().getDirty(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+    }
+    bitmap.setPixels(pixels, 0, outWidth, 0, 0, outWidth, outHeight);
+    return bitmap;
+  }
+
+  /**
+   * Converts an NV21 frame into upright ARGB pixels, row by row of the upright image.
+   *
+   * @param out receives at least {@code width * height} pixels
+   */
+  void convert(
+      ByteBuffer nv21, int width, int height, int rotationDegrees, boolean mirror, int[] out) {
+    byte[] data;
+    int offset;
+    if (nv21.hasArray()) {
+      data = nv21.array();
+      offset = nv21.arrayOffset();
+    } else {
+      int length = width * height * 3 / 2;
+      if (copy.length < length) {
+        copy = new byte[length];
+      }
+      ByteBuffer source = nv21.duplicate();
+      source.rewind();
+      source.get(copy, 0, length);
+      data = copy;
+      offset = 0;
+    }
+
+    int rotation = ((rotationDegrees % 360) + 360) % 360;
+    int outHeight = rotation % 180 != 0 ? width : height;
+    byte[] source = data;
+    int sourceOffset = offset;
+    RowBands.run(
+        outHeight,
+        width * height >= PARALLEL_MIN_PIXELS,
+        (rowStart, rowEnd) ->
+            convertRows(
+                source, sourceOffset, width, height, rotation, mirror, out, rowStart, rowEnd));
+  }
+
+  /**
+   * Converts the rows {@code [rowStart, rowEnd)} of the upright image.
+   *
+   * <p>Each output row walks a straight line through the source: along a source row without
+   * rotation or with 180 degrees, along a source column otherwise. The line is described by the
+   * source coordinates of its first pixel and the step between pixels.
+   */
+  static void convertRows(
+      byte[] nv21,
+      int offset,
+      int width,
+      int height,
+      int rotation,
+      boolean mirror,
+      int[] out,
+      int rowStart,
+      int rowEnd) {
+    boolean swap = rotation % 180 != 0;
+    int outWidth = swap ? height : width;
+    int chromaOffset = offset + width * height;
+    for (int row = rowStart; row < rowEnd; row++) {
+      // Source coordinates of output column 0, and their change per column.
+      int x;
+      int y;
+      int stepX;
+      int stepY;
+      switch (rotation) {
+        case 90:
+          x = row;
+          y = height - 1;
+          stepX = 0;
+          stepY = -1;
+          break;
+        case 180:
+          x = width - 1;
+          y = height - 1 - row;
+          stepX = -1;
+          stepY = 0;
+          break;
+        case 270:
+          x = width - 1 - row;
+          y = 0;
+          stepX = 0;
+          stepY = 1;
+          break;
+        default:
+          x = 0;
+          y = row;
+          stepX = 1;
+          stepY = 0;
+          break;
+      }
+      if (mirror) {
+        x += stepX * (outWidth - 1);
+        y += stepY * (outWidth - 1);
+        stepX = -stepX;
+        stepY = -stepY;
+      }
+
+      int outIndex = row * outWidth;
+      for (int column = 0; column < outWidth; column++) {
+        int luma = (nv21[offset + y * width + x] & 0xFF) << FIX_SHIFT;
+        int chroma = chromaOffset + (y >> 1) * width + (x & ~1);
+        int v = (nv21[chroma] & 0xFF) - 128;
+        int u = (nv21[chroma + 1] & 0xFF) - 128;
+        int r = (luma + R_V * v + FIX_HALF) >> FIX_SHIFT;
+        int g = (luma - G_U * u - G_V * v + FIX_HALF) >> FIX_SHIFT;
+        int b = (luma + B_U * u + FIX_HALF) >> FIX_SHIFT;
+        r = r < 0 ? 0 : r > 255 ? 255 : r;
+        g = g < 0 ? 0 : g > 255 ? 255 : g;
+        b = b < 0 ? 0 : b > 255 ? 255 : b;
+        out[outIndex++] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        x += stepX;
+        y += stepY;
+      }
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package com.sjqnice.mlkit.mlkit;
+
+import androidx.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A camera frame travelling through the stages of the {@link CameraSource} pipeline.
+ *
+ * <p>Each instance is bound to one preview buffer of the {@link FrameBufferPool} for its whole
+ * life, so no holder objects are allocated per frame. {@link FramePreprocessor}s may replace the
+ * frame content, e.g. with a cropped or scaled copy, by writing into {@link
+ * #obtainOutputBuffer(int)} and calling {@link #setData(ByteBuffer, int, int)}. The preview buffer
+ * itself is never modified, since the camera owns its content.
+ *
+ * <p>A frame goes back to the camera once every holder has released it: the pipeline holds it while
+ * it passes through the stages, and consumers that read the data later, such as a detector running
+ * asynchronously, {@link #retain()} it until they are done.
+ */
+public final class PipelineFrame {
+
+  /** Takes frames whose last holder released them. */
+  interface Recycler {
+    void recycle(PipelineFrame frame);
+  }
+
+  private final byte[] cameraArray;
+  private final ByteBuffer cameraBuffer;
+
+  private ByteBuffer data;
+  private int width;
+  private int height;
+  private int rotation;
+  private long frameId;
+  private long captureTimeMs;
+  private long pipelineEntryTimeMs;
+
+  // Where the current data lies in the upright preview frame, see getDetectionOffsetX().
+  private float detectionOffsetX;
+  private float detectionOffsetY;
+  private float detectionScale;
+
+  // Two reusable output buffers, so that preprocessors can be chained by ping-ponging between them.
+  private ByteBuffer scratchA;
+  private ByteBuffer scratchB;
+
+  private final AtomicInteger holders = new AtomicInteger();
+  @Nullable private volatile Recycler recycler;
+
+  PipelineFrame(byte[] cameraArray) {
+    this.cameraArray = cameraArray;
+    // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
+    // should guarantee that there will be an array to work with.
+    cameraBuffer = ByteBuffer.wrap(cameraArray);
+    if (!cameraBuffer.hasArray() || (cameraBuffer.array() != cameraArray)) {
+      // I don't think that this will ever happen.  But if it does, then we wouldn't be
+      // passing the preview content to the underlying detector later.
+      throw new IllegalStateException("Failed to create valid buffer for camera source.");
+    }
+    data = cameraBuffer;
+  }
+
+  /** Resets the frame to the unmodified preview buffer content. */
+  void reset(
+      int width,
+      int height,
+      int rotation,
+      long frameId,
+      long captureTimeMs,
+      long pipelineEntryTimeMs) {
+    cameraBuffer.clear();
+    this.data = cameraBuffer;
+    this.width = width;
+    this.height = height;
+    this.rotation = rotation;
+    this.frameId = frameId;
+    this.captureTimeMs = captureTimeMs;
+    this.pipelineEntryTimeMs = pipelineEntryTimeMs;
+    detectionOffsetX = 0;
+    detectionOffsetY = 0;
+    detectionScale = 1;
+    holders.set(1);
+  }
+
+  /** Sets where the frame goes once {@link #release()} drops the last holder. */
+  void setRecycler(@Nullable Recycler recycler) {
+    this.recycler = recycler;
+  }
+
+  /**
+   * Keeps the frame, its data and its preview buffer from being reused until {@link #release()} is
+   * called once more than this was.
+   */
+  public void retain() {
+    holders.incrementAndGet();
+  }
+
+  /**
+   * Drops a hold on the frame, and recycles it if that was the last one. May be called from any
+   * thread.
+   */
+  public void release() {
+    if (holders.decrementAndGet() == 0) {
+      Recycler current = recycler;
+      if (current != null) {
+        current.recycle(this);
+      }
+    }
+  }
+
+  /** Returns the preview buffer this frame is bound to. */
+  byte[] getCameraArray() {
+    return cameraArray;
+  }
+
+  /** Returns the NV21 data to detect on, the preview buffer unless a preprocessor replaced it. */
+  public ByteBuffer getData() {
+    return data;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getRotation() {
+    return rotation;
+  }
+
+  /** Returns the sequence number of the frame, increasing by one per frame from the camera. */
+  public long getFrameId() {
+    return frameId;
+  }
+
+  /**
+   * Returns the {@link android.os.SystemClock#elapsedRealtime()} the sensor captured the frame at,
+   * or the time it entered the pipeline if the frame source does not tell.
+   */
+  public long getCaptureTimeMs() {
+    return captureTimeMs;
+  }
+
+  /** Returns the {@link android.os.SystemClock#elapsedRealtime()} the frame arrived at. */
+  public long getPipelineEntryTimeMs() {
+    return pipelineEntryTimeMs;
+  }
+
+  /**
+   * Returns a buffer with {@code size} bytes of room that is owned by this frame and not the current
+   * {@link #getData()}. The content is undefined.
+   */
+  public ByteBuffer obtainOutputBuffer(int size) {
+    if (data != scratchA) {
+      scratchA = ensureCapacity(scratchA, size);
+      return scratchA;
+    }
+    scratchB = ensureCapacity(scratchB, size);
+    return scratchB;
+  }
+
+  /**
+   * Returns the x coordinate in the upright preview frame, in preview pixels, of the upper left
+   * corner of the upright current data. Non-zero after a preprocessor cropped the frame.
+   */
+  public float getDetectionOffsetX() {
+    return detectionOffsetX;
+  }
+
+  /** Returns the y coordinate counterpart of {@link #getDetectionOffsetX()}. */
+  public float getDetectionOffsetY() {
+    return detectionOffsetY;
+  }
+
+  /** Returns the size of a pixel of the current data in preview pixels, inverted. */
+  public float getDetectionScale() {
+    return detectionScale;
+  }
+
+  /**
+   * Records that the current data was cropped, so that detection results can be mapped back to the
+   * preview frame.
+   *
+   * @param uprightLeft left edge of the crop in the upright previous data
+   * @param uprightTop top edge of the crop in the upright previous data
+   */
+  public void recordCrop(int uprightLeft, int uprightTop) {
+    detectionOffsetX += uprightLeft / detectionScale;
+    detectionOffsetY += uprightTop / detectionScale;
+  }
+
+  /**
+   * Records that the current data was scaled by {@code scale}, so that detection results can be
+   * mapped back to the preview frame.
+   */
+  public void recordScale(float scale) {
+    detectionScale *= scale;
+  }
+
+  /** Replaces the frame content with an NV21 image of the given size. */
+  public void setData(ByteBuffer data, int width, int height) {
+    this.data = data;
+    this.width = width;
+    this.height = height;
+  }
+
+  private static ByteBuffer ensureCapacity(ByteBuffer buffer, int size) {
+    if (buffer == null || buffer.capacity() < size) {
+      buffer = ByteBuffer.wrap(new byte[size]);
+    }
+    buffer.clear();
+    buffer.limit(size);
+    return buffer;
+  }
+}
@@ -55,14 +55,61 @@ public class PreferenceUtils {
 
     try {
       SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+      // A missing picture size means that no picture size should be set, see SizePair.
+      String pictureSize = sharedPreferences.getString(pictureSizePrefKey, null);
       return new SizePair(
           Size.parseSize(sharedPreferences.getString(previewSizePrefKey, null)),
-          Size.parseSize(sharedPreferences.getString(pictureSizePrefKey, null)));
+          pictureSize == null ? null : Size.parseSize(pictureSize));
     } catch (Exception e) {
       return null;
     }
   }
 
+  /** Stores the preview and picture size to use, or clears them if {@code sizePair} is null. */
+  public static void saveCameraPreviewSizePair(
+      Context context, int cameraId, @Nullable SizePair sizePair) {
+    Preconditions.checkArgument(
+        cameraId == CameraSource.CAMERA_FACING_BACK
+            || cameraId == CameraSource.CAMERA_FACING_FRONT);
+    boolean back = cameraId == CameraSource.CAMERA_FACING_BACK;
+    saveString(
+        context,
+        back ? R.string.pref_key_rear_camera_preview_size
+            : R.string.pref_key_front_camera_preview_size,
+        sizePair == null ? null : sizePair.preview.toString());
+    saveString(
+        context,
+        back ? R.string.pref_key_rear_camera_picture_size
+            : R.string.pref_key_front_camera_picture_size,
+        sizePair == null || sizePair.picture == null ? null : sizePair.picture.toString());
+  }
+
+  /** Returns the preview frame rate to request, or 0 to use {@link CameraSource#REQUESTED_FPS}. */
+  public static float getCameraPreviewFps(Context context, int cameraId) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(getCameraPreviewFpsKey(cameraId));
+    try {
+      return Float.parseFloat(sharedPreferences.getString(prefKey, "0"));
+    } catch (NumberFormatException e) {
+      return 0f;
+    }
+  }
+
+  /** Stores the preview frame rate to request, or clears it if {@code fps} is not positive. */
+  public static void saveCameraPreviewFps(Context context, int cameraId, float fps) {
+    saveString(context, getCameraPreviewFpsKey(cameraId), fps > 0 ? String.valueOf(fps) : null);
+  }
+
+  @StringRes
+  private static int getCameraPreviewFpsKey(int cameraId) {
+    Preconditions.checkArgument(
+        cameraId == CameraSource.CAMERA_FACING_BACK
+            || cameraId == CameraSource.CAMERA_FACING_FRONT);
+    return cameraId == CameraSource.CAMERA_FACING_BACK
+        ? R.string.pref_key_rear_camera_preview_fps
+        : R.string.pref_key_front_camera_preview_fps;
+  }
+
   public static boolean shouldHideDetectionInfo(Context context) {
     SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
     String prefKey = context.getString(R.string.pref_key_info_hide);
@@ -0,0 +1,308 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.android.gms.common.images.Size;
+import com.sjqnice.mlkit.mlkit.CameraCapabilityCache.Capabilities;
+import com.sjqnice.mlkit.mlkit.CameraSource.SizePair;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks the preview size and frame rate that suit the active {@link VisionImageProcessor} on this
+ * device.
+ *
+ * <p>Each candidate configuration is stored through {@link PreferenceUtils}, where the frame
+ * sources read their configuration from, and the camera is restarted with it. After a warm-up the
+ * detection throughput is measured for a few seconds through {@link
+ * VisionImageProcessor#getDetectionCount()}, together with the detection latency. The largest
+ * preview that keeps close to the best throughput within the latency limit is kept in the
+ * preferences, so that later camera starts use it.
+ *
+ * <p>Must be used from the main thread, which is also where the camera is restarted.
+ */
+public class PreviewAutoTuner {
+  private static final String TAG = "PreviewAutoTuner";
+
+  /** Preview sizes to try; the closest size the camera supports is used for each. */
+  private static final int[][] CANDIDATE_SIZES = {{640, 480}, {1280, 720}, {1920, 1080}};
+
+  private static final float[] CANDIDATE_FPS = {30f, 15f};
+
+  /** Time for the camera to settle and the latency average to converge before measuring. */
+  private static final long WARM_UP_MS = 1000;
+
+  private static final long MEASURE_MS = 2500;
+
+  /** A configuration is good enough if it reaches this fraction of the best throughput. */
+  private static final float THROUGHPUT_TOLERANCE = 0.85f;
+
+  /** Latency above which results feel laggy, unless no configuration does better. */
+  private static final float MAX_LATENCY_MS = 250f;
+
+  /** Receives the outcome of a calibration. */
+  public interface Listener {
+    /**
+     * Called once the best configuration has been stored and the camera restarted with it.
+     *
+     * @param sizePair the chosen preview and picture size, or null if nothing could be measured and
+     *     the previous configuration was restored
+     * @param fps the chosen preview frame rate
+     */
+    void onCalibrated(@Nullable SizePair sizePair, float fps);
+  }
+
+  /** Result of measuring one configuration. */
+  public static final class Measurement {
+    public final SizePair sizePair;
+    public final float fps;
+    /** Detected frames per second. */
+    public final float throughput;
+    public final float latencyMs;
+
+    Measurement(SizePair sizePair, float fps, float throughput, float latencyMs) {
+      this.sizePair = sizePair;
+      this.fps = fps;
+      this.throughput = throughput;
+      this.latencyMs = latencyMs;
+    }
+
+    int getPixelCount() {
+      return sizePair.preview.getWidth() * sizePair.preview.getHeight();
+    }
+
+    @Override
+    public String toString() {
+      return sizePair.preview
+          + "@"
+          + fps
+          + ": "
+          + throughput
+          + " detections/s, "
+          + latencyMs
+          + " ms";
+    }
+  }
+
+  private final Context context;
+  private final int facing;
+  private final VisionImageProcessor processor;
+  private final Runnable restartCamera;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  private final List<SizePair> candidateSizes = new ArrayList<>();
+  private final List<Measurement> measurements = new ArrayList<>();
+
+  @Nullable private Listener listener;
+  @Nullable private SizePair originalSizePair;
+  private float originalFps;
+  private long originalIdleTimeoutMs;
+  private boolean running;
+  private int candidateIndex;
+  private long windowStartMs;
+  private long windowStartCount;
+
+  /**
+   * @param facing the facing of the camera to calibrate, which keys the preferences
+   * @param processor the processor the camera frames are detected with
+   * @param restartCamera restarts the camera, so that it picks up the preferences
+   */
+  public PreviewAutoTuner(
+      Context context, int facing, VisionImageProcessor processor, Runnable restartCamera) {
+    this.context = context.getApplicationContext();
+    this.facing = facing;
+    this.processor = processor;
+    this.restartCamera = restartCamera;
+  }
+
+  /** Starts calibrating, which takes a few seconds per candidate configuration. */
+  public void start(@Nullable Listener listener) {
+    if (running) {
+      return;
+    }
+    if (processor.getDetectionCount() < 0) {
+      Log.w(TAG, "The processor does not count detections, nothing to calibrate");
+      return;
+    }
+    this.listener = listener;
+    running = true;
+    originalSizePair = PreferenceUtils.getCameraPreviewSizePair(context, facing);
+    originalFps = PreferenceUtils.getCameraPreviewFps(context, facing);
+    if (processor instanceof VisionProcessorBase) {
+      // Idle detection would throttle the frame rate that is being measured.
+      VisionProcessorBase<?> base = (VisionProcessorBase<?>) processor;
+      originalIdleTimeoutMs = base.getIdleTimeoutMs();
+      base.setIdleTimeoutMs(0);
+    }
+    collectCandidateSizes();
+    measurements.clear();
+    candidateIndex = 0;
+    startCandidate();
+  }
+
+  /**
+   * Stops calibrating and restores the previous configuration.
+   *
+   * @param restart whether to restart the camera, so that it leaves the candidate configuration
+   *     right away; false if the camera is about to be stopped or restarted anyway
+   */
+  public void cancel(boolean restart) {
+    if (!running) {
+      return;
+    }
+    handler.removeCallbacksAndMessages(null);
+    save(originalSizePair, originalFps);
+    finish();
+    if (restart) {
+      restartCamera.run();
+    }
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  /** Returns the measurements of the last calibration. */
+  public List<Measurement> getMeasurements() {
+    return new ArrayList<>(measurements);
+  }
+
+  private void collectCandidateSizes() {
+    candidateSizes.clear();
+    // The cache is keyed by camera id, the preferences by facing.
+    CameraCapabilityCache cache = CameraCapabilityCache.getInstance(context);
+    int cameraId = Camera1FrameSource.getIdForRequestedCamera(cache.getCameras(), facing);
+    Capabilities capabilities = cameraId >= 0 ? cache.getCapabilities(cameraId) : null;
+    for (int[] size : CANDIDATE_SIZES) {
+      SizePair sizePair;
+      if (capabilities != null) {
+        sizePair = Camera1FrameSource.selectSizePair(capabilities.sizePairs, size[0], size[1]);
+      } else {
+        // Without known sizes, let the frame source pick the closest one it supports.
+        sizePair = new SizePair(new Size(size[0], size[1]), null);
+      }
+      if (sizePair != null && !containsPreviewSize(candidateSizes, sizePair.preview)) {
+        candidateSizes.add(sizePair);
+      }
+    }
+  }
+
+  private static boolean containsPreviewSize(List<SizePair> sizePairs, Size size) {
+    for (SizePair sizePair : sizePairs) {
+      if (sizePair.preview.equals(size)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void startCandidate() {
+    int sizeCount = candidateSizes.size();
+    if (candidateIndex >= sizeCount * CANDIDATE_FPS.length) {
+      choose();
+      return;
+    }
+    save(getCandidateSize(), getCandidateFps());
+    restartCamera.run();
+    handler.postDelayed(this::startWindow, WARM_UP_MS);
+  }
+
+  private SizePair getCandidateSize() {
+    return candidateSizes.get(candidateIndex / CANDIDATE_FPS.length);
+  }
+
+  private float getCandidateFps() {
+    return CANDIDATE_FPS[candidateIndex % CANDIDATE_FPS.length];
+  }
+
+  private void startWindow() {
+    windowStartMs = SystemClock.elapsedRealtime();
+    windowStartCount = processor.getDetectionCount();
+    handler.postDelayed(this::endWindow, MEASURE_MS);
+  }
+
+  private void endWindow() {
+    long elapsedMs = SystemClock.elapsedRealtime() - windowStartMs;
+    long detections = processor.getDetectionCount() - windowStartCount;
+    Measurement measurement =
+        new Measurement(
+            getCandidateSize(),
+            getCandidateFps(),
+            elapsedMs > 0 ? detections * 1000f / elapsedMs : 0f,
+            processor.getDetectionLatencyMs());
+    Log.d(TAG, "Measured " + measurement);
+    measurements.add(measurement);
+    candidateIndex++;
+    startCandidate();
+  }
+
+  private void choose() {
+    Measurement best = selectBest(measurements);
+    SizePair sizePair;
+    float fps;
+    if (best != null) {
+      Log.i(TAG, "Calibrated " + best);
+      sizePair = best.sizePair;
+      fps = best.fps;
+    } else {
+      Log.w(TAG, "No detections during calibration, keeping the previous configuration");
+      sizePair = null;
+      fps = originalFps;
+    }
+    save(best != null ? sizePair : originalSizePair, fps);
+    Listener currentListener = listener;
+    finish();
+    restartCamera.run();
+    if (currentListener != null) {
+      currentListener.onCalibrated(sizePair, fps);
+    }
+  }
+
+  /**
+   * Selects the largest preview, then the highest frame rate, among the measurements that reach
+   * nearly the best throughput within the latency limit. The latency limit is dropped if no
+   * measurement meets it.
+   */
+  @Nullable
+  static Measurement selectBest(List<Measurement> measurements) {
+    float bestThroughput = 0;
+    boolean anyWithinLatency = false;
+    for (Measurement measurement : measurements) {
+      bestThroughput = Math.max(bestThroughput, measurement.throughput);
+      anyWithinLatency |= measurement.throughput > 0 && measurement.latencyMs <= MAX_LATENCY_MS;
+    }
+    if (bestThroughput == 0) {
+      return null;
+    }
+    Measurement best = null;
+    for (Measurement measurement : measurements) {
+      if (measurement.throughput < THROUGHPUT_TOLERANCE * bestThroughput
+          || (anyWithinLatency && measurement.latencyMs > MAX_LATENCY_MS)) {
+        continue;
+      }
+      if (best == null
+          || measurement.getPixelCount() > best.getPixelCount()
+          || (measurement.getPixelCount() == best.getPixelCount() && measurement.fps > best.fps)) {
+        best = measurement;
+      }
+    }
+    return best;
+  }
+
+  private void save(@Nullable SizePair sizePair, float fps) {
+    PreferenceUtils.saveCameraPreviewSizePair(context, facing, sizePair);
+    PreferenceUtils.saveCameraPreviewFps(context, facing, fps);
+  }
+
+  private void finish() {
+    running = false;
+    listener = null;
+    if (processor instanceof VisionProcessorBase) {
+      ((VisionProcessorBase<?>) processor).setIdleTimeoutMs(originalIdleTimeoutMs);
+    }
+  }
+}
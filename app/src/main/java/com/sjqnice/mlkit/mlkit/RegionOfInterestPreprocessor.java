@@ -0,0 +1,127 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+import androidx.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * Crops frames to a region of interest, e.g. the scan frame of a {@link ViewfinderView}, so that the
+ * detector only sees the pixels the user aims at.
+ *
+ * <p>The region is given in the coordinates of the {@link GraphicOverlay} and is mapped to the
+ * upright frame with the overlay's current scaling, then into the orientation of the sensor data
+ * using the frame rotation. The crop is aligned to even coordinates so that the chroma samples of
+ * the NV21 data stay paired with their luma samples, and is written into the reusable output buffer
+ * of the frame.
+ */
+public class RegionOfInterestPreprocessor implements FramePreprocessor {
+
+  private final GraphicOverlay overlay;
+
+  @Nullable private volatile RectF region;
+
+  // Only accessed from the preprocess stage.
+  private final RectF imageRegion = new RectF();
+  private final Rect uprightCrop = new Rect();
+  private final Rect sensorCrop = new Rect();
+
+  public RegionOfInterestPreprocessor(GraphicOverlay overlay) {
+    this.overlay = overlay;
+  }
+
+  /**
+   * Sets the region to detect in, in the coordinates of the overlay view, or null to detect in the
+   * whole frame.
+   */
+  public void setRegion(@Nullable RectF region) {
+    this.region = region == null ? null : new RectF(region);
+  }
+
+  @Nullable
+  public RectF getRegion() {
+    return region;
+  }
+
+  @Override
+  public boolean process(PipelineFrame frame) {
+    RectF current = region;
+    if (current == null || !overlay.mapViewToImage(current, imageRegion)) {
+      return true;
+    }
+    // The overlay image is the upright frame at the size it has before any preprocessing.
+    float imageWidth = overlay.getImageWidth();
+    float imageHeight = overlay.getImageHeight();
+    int width = frame.getWidth();
+    int height = frame.getHeight();
+    int rotation = frame.getRotation();
+    boolean swapped = rotation == 90 || rotation == 270;
+    int uprightWidth = swapped ? height : width;
+    int uprightHeight = swapped ? width : height;
+
+    uprightCrop.set(
+        alignDown(imageRegion.left / imageWidth * uprightWidth),
+        alignDown(imageRegion.top / imageHeight * uprightHeight),
+        alignDown(imageRegion.right / imageWidth * uprightWidth),
+        alignDown(imageRegion.bottom / imageHeight * uprightHeight));
+    if (!uprightCrop.intersect(0, 0, uprightWidth & ~1, uprightHeight & ~1)
+        || uprightCrop.width() < 2
+        || uprightCrop.height() < 2) {
+      return true;
+    }
+    if (uprightCrop.width() == uprightWidth && uprightCrop.height() == uprightHeight) {
+      return true;
+    }
+    toSensor(uprightCrop, rotation, width, height, sensorCrop);
+
+    int cropWidth = sensorCrop.width();
+    int cropHeight = sensorCrop.height();
+    ByteBuffer out = frame.obtainOutputBuffer(cropWidth * cropHeight * 3 / 2);
+    cropNv21(frame.getData().array(), width, height, sensorCrop, out.array());
+    frame.setData(out, cropWidth, cropHeight);
+    frame.recordCrop(uprightCrop.left, uprightCrop.top);
+    return true;
+  }
+
+  /**
+   * Maps a rectangle of the upright frame to the data as delivered by the sensor, which needs to be
+   * rotated clockwise by {@code rotation} degrees to be upright.
+   */
+  static void toSensor(Rect upright, int rotation, int width, int height, Rect out) {
+    switch (rotation) {
+      case 90:
+        out.set(upright.top, height - upright.right, upright.bottom, height - upright.left);
+        break;
+      case 180:
+        out.set(width - upright.right, height - upright.bottom, width - upright.left,
+            height - upright.top);
+        break;
+      case 270:
+        out.set(width - upright.bottom, upright.left, width - upright.top, upright.right);
+        break;
+      default:
+        out.set(upright);
+    }
+  }
+
+  /** Copies the crop, with even coordinates, of an NV21 image into {@code out}. */
+  static void cropNv21(byte[] in, int width, int height, Rect crop, byte[] out) {
+    int cropWidth = crop.width();
+    int cropHeight = crop.height();
+    int outOffset = 0;
+    for (int y = crop.top; y < crop.bottom; y++) {
+      System.arraycopy(in, y * width + crop.left, out, outOffset, cropWidth);
+      outOffset += cropWidth;
+    }
+    // Each chroma row holds interleaved VU pairs for two luma rows, so the same byte range applies.
+    int chromaStart = width * height;
+    for (int y = crop.top / 2; y < crop.top / 2 + cropHeight / 2; y++) {
+      System.arraycopy(in, chromaStart + y * width + crop.left, out, outOffset, cropWidth);
+      outOffset += cropWidth;
+    }
+  }
+
+  private static int alignDown(float value) {
+    return ((int) value) & ~1;
+  }
+}
@@ -0,0 +1,202 @@
+package com.sjqnice.mlkit.mlkit;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A recorded sequence of NV21 frames, memory-mapped for replay.
+ *
+ * <p>The file is big endian and starts with a 12 byte header: the magic {@code "MLKF"}, the format
+ * version and the number of frames, as ints. Each frame follows with a 24 byte header, holding the
+ * width, height and rotation as ints, the capture timestamp in milliseconds as a long and the
+ * length of the data as an int, and then {@code width * height * 3 / 2} bytes of NV21 data. All
+ * frames of a file have the same size. Files are written with {@link Writer}.
+ *
+ * <p>Frames are copied straight out of the mapping, so reading a frame neither allocates nor
+ * issues a read call. Files are limited to 2 GB.
+ */
+public final class ReplayFile implements ReplayFrames, Closeable {
+
+  static final int MAGIC = 0x4D4C4B46; // "MLKF"
+  static final int VERSION = 1;
+  static final int FILE_HEADER_BYTES = 12;
+  static final int FRAME_HEADER_BYTES = 24;
+
+  private final RandomAccessFile file;
+  private final MappedByteBuffer mapped;
+  private final int width;
+  private final int height;
+  private final int frameBytes;
+  // Offsets of the frame headers in the file.
+  private final int[] offsets;
+
+  /**
+   * Maps the file and indexes its frames.
+   *
+   * @throws IOException if the file cannot be read or is not a valid recording
+   */
+  public static ReplayFile open(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      return new ReplayFile(randomAccessFile);
+    } catch (IOException | RuntimeException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+  }
+
+  private ReplayFile(RandomAccessFile file) throws IOException {
+    this.file = file;
+    FileChannel channel = file.getChannel();
+    if (channel.size() > Integer.MAX_VALUE) {
+      throw new IOException("Recording is larger than 2 GB");
+    }
+    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    mapped.order(ByteOrder.BIG_ENDIAN);
+    if (mapped.limit() < FILE_HEADER_BYTES || mapped.getInt(0) != MAGIC) {
+      throw new IOException("Not a frame recording");
+    }
+    if (mapped.getInt(4) != VERSION) {
+      throw new IOException("Unsupported recording version " + mapped.getInt(4));
+    }
+    int frameCount = mapped.getInt(8);
+    if (frameCount <= 0) {
+      throw new IOException("Recording has no frames");
+    }
+
+    offsets = new int[frameCount];
+    int offset = FILE_HEADER_BYTES;
+    int firstWidth = 0;
+    int firstHeight = 0;
+    for (int i = 0; i < frameCount; i++) {
+      if (offset + FRAME_HEADER_BYTES > mapped.limit()) {
+        throw new IOException("Recording is truncated at frame " + i);
+      }
+      int frameWidth = mapped.getInt(offset);
+      int frameHeight = mapped.getInt(offset + 4);
+      int length = mapped.getInt(offset + 20);
+      if (i == 0) {
+        firstWidth = frameWidth;
+        firstHeight = frameHeight;
+      } else if (frameWidth != firstWidth || frameHeight != firstHeight) {
+        throw new IOException("Frame " + i + " differs in size from the first frame");
+      }
+      if (length != frameWidth * frameHeight * 3 / 2
+          || offset + FRAME_HEADER_BYTES + length > mapped.limit()) {
+        throw new IOException("Frame " + i + " has invalid data");
+      }
+      offsets[i] = offset;
+      offset += FRAME_HEADER_BYTES + length;
+    }
+    width = firstWidth;
+    height = firstHeight;
+    frameBytes = width * height * 3 / 2;
+  }
+
+  @Override
+  public int getFrameCount() {
+    return offsets.length;
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  @Override
+  public int getRotation(int index) {
+    return mapped.getInt(offsets[index] + 8);
+  }
+
+  @Override
+  public long getTimestampMs(int index) {
+    return mapped.getLong(offsets[index] + 12);
+  }
+
+  @Override
+  public synchronized void read(int index, byte[] out) {
+    mapped.position(offsets[index] + FRAME_HEADER_BYTES);
+    mapped.get(out, 0, frameBytes);
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /** Records NV21 frames into the format read by {@link ReplayFile}. */
+  public static final class Writer implements Closeable {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer header =
+        ByteBuffer.allocate(FRAME_HEADER_BYTES).order(ByteOrder.BIG_ENDIAN);
+    private int frameCount;
+    private int width;
+    private int height;
+
+    /** Creates or truncates the file. */
+    public Writer(File file) throws IOException {
+      this.file = new RandomAccessFile(file, "rw");
+      this.file.setLength(0);
+      channel = this.file.getChannel();
+      ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_BYTES).order(ByteOrder.BIG_ENDIAN);
+      fileHeader.putInt(MAGIC).putInt(VERSION).putInt(0).flip();
+      writeFully(fileHeader);
+    }
+
+    /**
+     * Appends a frame.
+     *
+     * @param nv21 the frame, of which the first {@code width * height * 3 / 2} bytes are written
+     * @throws IllegalArgumentException if the frame differs in size from the first frame
+     */
+    public void writeFrame(byte[] nv21, int width, int height, int rotation, long timestampMs)
+        throws IOException {
+      if (frameCount == 0) {
+        this.width = width;
+        this.height = height;
+      } else if (width != this.width || height != this.height) {
+        throw new IllegalArgumentException("All frames of a recording must have the same size");
+      }
+      int length = width * height * 3 / 2;
+      header.clear();
+      header.putInt(width).putInt(height).putInt(rotation).putLong(timestampMs).putInt(length);
+      header.flip();
+      writeFully(header);
+      writeFully(ByteBuffer.wrap(nv21, 0, length));
+      frameCount++;
+    }
+
+    /** Completes the file header and closes the file. */
+    @Override
+    public void close() throws IOException {
+      try {
+        ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
+        count.putInt(frameCount).flip();
+        while (count.hasRemaining()) {
+          channel.write(count, 8 + count.position());
+        }
+      } finally {
+        file.close();
+      }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+}
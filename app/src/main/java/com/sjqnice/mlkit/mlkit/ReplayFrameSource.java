@@ -0,0 +1,220 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import androidx.annotation.Nullable;
+import com.google.android.gms.common.images.Size;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link FrameSource} that replays {@link ReplayFrames} instead of opening a camera, so that the
+ * frame pipeline and the processors can be exercised and benchmarked on devices and JVMs without
+ * one, e.g. through {@link CameraSource#setFrameSource(FrameSource)}.
+ *
+ * <p>Frames are delivered from a thread of their own at a fixed rate, at the rate they were
+ * recorded at, or as fast as the pipeline returns buffers. Like a camera, a paced source drops a
+ * frame when no empty buffer is queued at the time it is due. The preview surface is not drawn on.
+ *
+ * <p>A paced frame is reported as captured at the time it was due, so that frames replayed at the
+ * recorded rate keep their recorded spacing, shifted to start when the preview starts. Unthrottled
+ * frames are reported as captured when delivered.
+ *
+ * <p>The pipeline reads the rotation once per start, so all frames must share one rotation.
+ */
+public class ReplayFrameSource implements FrameSource {
+  private static final String TAG = "ReplayFrameSource";
+
+  /** Frame rate that follows the timestamps of the frames. */
+  public static final float FRAME_RATE_RECORDED = 0f;
+
+  /** Frame rate that delivers each frame as soon as an empty buffer is available. */
+  public static final float FRAME_RATE_UNTHROTTLED = -1f;
+
+  private final ReplayFrames frames;
+  private float frameRate = FRAME_RATE_RECORDED;
+  private boolean looping = true;
+
+  // Guarded by buffers.
+  private final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+  private boolean running;
+
+  @Nullable private Thread replayThread;
+  private volatile long deliveredFrameCount;
+  private volatile long droppedFrameCount;
+
+  /**
+   * Replays the given frames, which must not be empty and must share one rotation.
+   *
+   * @throws IllegalArgumentException if there are no frames or their rotation changes
+   */
+  public ReplayFrameSource(ReplayFrames frames) {
+    if (frames.getFrameCount() == 0) {
+      throw new IllegalArgumentException("No frames to replay");
+    }
+    int rotation = frames.getRotation(0);
+    for (int i = 1; i < frames.getFrameCount(); i++) {
+      if (frames.getRotation(i) != rotation) {
+        throw new IllegalArgumentException(
+            "Rotation changes from " + rotation + " to " + frames.getRotation(i) + " at frame " + i);
+      }
+    }
+    this.frames = frames;
+  }
+
+  /**
+   * Sets how fast frames are delivered: the given frames per second, {@link #FRAME_RATE_RECORDED}
+   * or {@link #FRAME_RATE_UNTHROTTLED}. Takes effect the next time the preview is started.
+   */
+  public void setFrameRate(float frameRate) {
+    this.frameRate = frameRate;
+  }
+
+  /** Sets whether to start over after the last frame, which is the default, or to stop. */
+  public void setLooping(boolean looping) {
+    this.looping = looping;
+  }
+
+  /** Returns how many frames have been passed to the callback since the preview was started. */
+  public long getDeliveredFrameCount() {
+    return deliveredFrameCount;
+  }
+
+  /** Returns how many frames were skipped for lack of an empty buffer since the preview started. */
+  public long getDroppedFrameCount() {
+    return droppedFrameCount;
+  }
+
+  /** The facing is ignored, all frames come from the replayed sequence. */
+  @Override
+  public void open(int facing) {
+    synchronized (buffers) {
+      buffers.clear();
+    }
+  }
+
+  @Override
+  public Size getPreviewSize() {
+    return new Size(frames.getWidth(), frames.getHeight());
+  }
+
+  /** Returns the rotation shared by all frames. */
+  @Override
+  public int getRotationDegrees() {
+    return frames.getRotation(0);
+  }
+
+  @Override
+  public void queueBuffer(byte[] buffer) {
+    synchronized (buffers) {
+      buffers.addLast(buffer);
+      buffers.notifyAll();
+    }
+  }
+
+  @Override
+  public void startPreview(@Nullable SurfaceHolder surfaceHolder, FrameCallback callback) {
+    deliveredFrameCount = 0;
+    droppedFrameCount = 0;
+    synchronized (buffers) {
+      running = true;
+    }
+    float rate = frameRate;
+    replayThread = new Thread(() -> replay(callback, rate), TAG);
+    replayThread.start();
+  }
+
+  @Override
+  public void setTorch(boolean on) {}
+
+  @Override
+  public void close() {
+    synchronized (buffers) {
+      running = false;
+      buffers.notifyAll();
+    }
+    if (replayThread != null) {
+      replayThread.interrupt();
+      try {
+        replayThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        Log.d(TAG, "Interrupted while waiting for the replay thread to finish");
+      }
+      replayThread = null;
+    }
+    synchronized (buffers) {
+      buffers.clear();
+    }
+  }
+
+  private void replay(FrameCallback callback, float rate) {
+    int frameCount = frames.getFrameCount();
+    long startNs = System.nanoTime();
+    long startMs = SystemClock.elapsedRealtime();
+    long loopOffsetMs = 0;
+    long firstTimestampMs = frames.getTimestampMs(0);
+    long sequence = 0;
+    int index = 0;
+    try {
+      while (true) {
+        // Unthrottled frames report no capture time, so the pipeline takes the time they arrive.
+        long captureTimeMs = 0;
+        if (rate > 0) {
+          long dueNs = (long) (sequence * 1e9 / rate);
+          sleepUntil(startNs + dueNs);
+          captureTimeMs = startMs + TimeUnit.NANOSECONDS.toMillis(dueNs);
+        } else if (rate == FRAME_RATE_RECORDED) {
+          long dueMs = loopOffsetMs + frames.getTimestampMs(index) - firstTimestampMs;
+          sleepUntil(startNs + TimeUnit.MILLISECONDS.toNanos(dueMs));
+          captureTimeMs = startMs + dueMs;
+        }
+
+        byte[] buffer;
+        synchronized (buffers) {
+          if (rate == FRAME_RATE_UNTHROTTLED) {
+            while (running && buffers.isEmpty()) {
+              buffers.wait();
+            }
+          }
+          if (!running) {
+            return;
+          }
+          buffer = buffers.pollFirst();
+        }
+        if (buffer != null) {
+          frames.read(index, buffer);
+          deliveredFrameCount++;
+          callback.onFrame(buffer, captureTimeMs);
+        } else {
+          droppedFrameCount++;
+        }
+
+        sequence++;
+        if (++index == frameCount) {
+          if (!looping) {
+            return;
+          }
+          // Keep the recorded spacing across the wrap-around.
+          long lastIntervalMs =
+              frameCount > 1
+                  ? frames.getTimestampMs(frameCount - 1) - frames.getTimestampMs(frameCount - 2)
+                  : 0;
+          loopOffsetMs +=
+              frames.getTimestampMs(frameCount - 1) - firstTimestampMs + lastIntervalMs;
+          index = 0;
+        }
+      }
+    } catch (InterruptedException e) {
+      // Closed while waiting.
+    }
+  }
+
+  private static void sleepUntil(long deadlineNs) throws InterruptedException {
+    long remainingNs = deadlineNs - System.nanoTime();
+    if (remainingNs > 0) {
+      TimeUnit.NANOSECONDS.sleep(remainingNs);
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package com.sjqnice.mlkit.mlkit;
+
+/**
+ * A finite sequence of NV21 frames of the same size, replayed by {@link ReplayFrameSource}.
+ *
+ * @see ReplayFile
+ * @see SyntheticBarcodeFrames
+ */
+public interface ReplayFrames {
+
+  int getFrameCount();
+
+  /** Returns the width shared by all frames. */
+  int getWidth();
+
+  /** Returns the height shared by all frames. */
+  int getHeight();
+
+  /** Returns the rotation of the frame, as {@link FrameSource#getRotationDegrees()} would. */
+  int getRotation(int index);
+
+  /** Returns when the frame was captured, in milliseconds from an arbitrary origin. */
+  long getTimestampMs(int index);
+
+  /** Copies the NV21 data of the frame into {@code out}, which holds at least one frame. */
+  void read(int index, byte[] out);
+}
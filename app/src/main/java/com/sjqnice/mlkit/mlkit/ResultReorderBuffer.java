@@ -0,0 +1,141 @@
+package com.sjqnice.mlkit.mlkit;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+
+/**
+ * Puts the results of detections that run concurrently back into the order their frames were
+ * started in.
+ *
+ * <p>Each detection is registered with {@link #add} when it starts, which assigns its sequence
+ * number, and reported with {@link #complete} when it finishes. Completed entries are then taken
+ * out with {@link #poll()} strictly in sequence order. An entry that falls far behind a later one
+ * that already completed is skipped instead of holding back the newer results; once it completes,
+ * {@link #complete} reports it as stale so that its result is dropped rather than delivered out of
+ * order.
+ *
+ * <p>Entries are kept in a fixed number of slots, so the buffer does not allocate. Thread safe.
+ *
+ * @param <E> the entry type, typically the listener of the detection holding its result
+ */
+final class ResultReorderBuffer<E> {
+
+  private final Object[] entries;
+  private final long[] sequences;
+  private final long[] startTimesMs;
+  private final boolean[] completed;
+
+  @GuardedBy("this")
+  private long nextSequence;
+  // Sequence number of the next entry to deliver; entries below it are delivered or skipped.
+  @GuardedBy("this")
+  private long nextDelivery;
+  @GuardedBy("this")
+  private int size;
+
+  /** Creates a buffer for up to {@code capacity} entries in flight or awaiting delivery. */
+  ResultReorderBuffer(int capacity) {
+    entries = new Object[capacity];
+    sequences = new long[capacity];
+    startTimesMs = new long[capacity];
+    completed = new boolean[capacity];
+  }
+
+  /**
+   * Registers a started detection and returns its sequence number.
+   *
+   * @throws IllegalStateException if all slots are taken
+   */
+  synchronized long add(E entry, long nowMs) {
+    if (size == entries.length) {
+      throw new IllegalStateException("More than " + entries.length + " detections in flight");
+    }
+    int slot = 0;
+    while (entries[slot] != null) {
+      slot++;
+    }
+    long sequence = nextSequence++;
+    entries[slot] = entry;
+    sequences[slot] = sequence;
+    startTimesMs[slot] = nowMs;
+    completed[slot] = false;
+    size++;
+    return sequence;
+  }
+
+  /**
+   * Marks a detection as finished.
+   *
+   * <p>Earlier detections that are still running after {@code staleAfterMs} are skipped, so that
+   * this one can be delivered. Pass 0 to always wait for them.
+   *
+   * @return true if the entry is to be taken out with {@link #poll()}, false if it was skipped
+   *     before it completed, in which case it is removed and its result is stale
+   */
+  synchronized boolean complete(long sequence, long nowMs, long staleAfterMs) {
+    int slot = indexOf(sequence);
+    if (slot < 0) {
+      throw new IllegalArgumentException("Unknown sequence " + sequence);
+    }
+    if (sequence < nextDelivery) {
+      remove(slot);
+      return false;
+    }
+    completed[slot] = true;
+    if (staleAfterMs > 0) {
+      while (nextDelivery < sequence) {
+        int head = indexOf(nextDelivery);
+        if (head < 0 || completed[head] || nowMs - startTimesMs[head] <= staleAfterMs) {
+          break;
+        }
+        // Left in its slot until it completes, so that it still counts against the capacity.
+        nextDelivery++;
+      }
+    }
+    return true;
+  }
+
+  /** Removes and returns the next entry in sequence order if it has completed, or returns null. */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  synchronized E poll() {
+    int head = indexOf(nextDelivery);
+    if (head < 0 || !completed[head]) {
+      return null;
+    }
+    E entry = (E) entries[head];
+    remove(head);
+    nextDelivery++;
+    return entry;
+  }
+
+  /** Returns the number of entries in flight or awaiting delivery, including skipped ones. */
+  synchronized int size() {
+    return size;
+  }
+
+  /** Returns the start time of the earliest entry still in the buffer, or 0 if it is empty. */
+  synchronized long getOldestStartTimeMs() {
+    long oldest = 0;
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i] != null && (oldest == 0 || startTimesMs[i] < oldest)) {
+        oldest = startTimesMs[i];
+      }
+    }
+    return oldest;
+  }
+
+  private int indexOf(long sequence) {
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i] != null && sequences[i] == sequence) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void remove(int slot) {
+    entries[slot] = null;
+    size--;
+  }
+}
@@ -0,0 +1,160 @@
+package com.sjqnice.mlkit.mlkit;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits per-row image work into bands of rows that the calling thread and a few shared helper
+ * threads take in turn. Used for full frame conversions that would otherwise keep a single core
+ * busy for several milliseconds.
+ */
+final class RowBands {
+
+  /** Receives one band of rows; bands never overlap and may run concurrently. */
+  interface Task {
+    void run(int rowStart, int rowEnd);
+  }
+
+  /** Number of bands, i.e. of threads working on a large image. */
+  static final int BAND_COUNT =
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  /** Helper runs that may wait at once; more are dropped, and the callers take their bands. */
+  private static final int QUEUE_CAPACITY = 4 * BAND_COUNT;
+
+  // Jobs waiting for a helper, in a ring guarded by the class monitor. A monitor rather than a
+  // concurrent queue, whose locks allocate a node for every thread that has to wait.
+  private static final Job[] queuedJobs = new Job[QUEUE_CAPACITY];
+  private static int queueHead;
+  private static int queueSize;
+  private static boolean helpersStarted;
+
+  private RowBands() {}
+
+  /**
+   * Runs the task over the rows {@code [0, rowCount)} and returns once all rows are done. Callers
+   * that run the same task for every frame keep a {@link Job} instead, which does not allocate.
+   *
+   * @param parallel false to run all rows on the calling thread, e.g. for small images where
+   *     handing work to other threads costs more than it saves
+   */
+  static void run(int rowCount, boolean parallel, Task task) {
+    if (!parallel || BAND_COUNT == 1 || rowCount < 2 * BAND_COUNT) {
+      task.run(0, rowCount);
+      return;
+    }
+    new Job(task).run(rowCount, true);
+  }
+
+  /**
+   * Asks up to {@code count} helpers to take bands of the job. Helpers that find no room in the
+   * queue are dropped, since the caller takes whatever bands are left anyway.
+   */
+  private static synchronized void queueForHelpers(Job job, int count) {
+    if (!helpersStarted) {
+      for (int i = 1; i < BAND_COUNT; i++) {
+        Thread thread = new Thread(RowBands::runHelper, "RowBands");
+        thread.setDaemon(true);
+        thread.start();
+      }
+      helpersStarted = true;
+    }
+    for (int i = 0; i < count && queueSize < QUEUE_CAPACITY; i++) {
+      queuedJobs[(queueHead + queueSize++) % QUEUE_CAPACITY] = job;
+    }
+    RowBands.class.notifyAll();
+  }
+
+  private static synchronized Job takeQueuedJob() throws InterruptedException {
+    while (queueSize == 0) {
+      RowBands.class.wait();
+    }
+    Job job = queuedJobs[queueHead];
+    queuedJobs[queueHead] = null;
+    queueHead = (queueHead + 1) % QUEUE_CAPACITY;
+    queueSize--;
+    return job;
+  }
+
+  private static void runHelper() {
+    try {
+      while (true) {
+        takeQueuedJob().takeBands();
+      }
+    } catch (InterruptedException e) {
+      // Helpers are daemons and are never interrupted by this class.
+    }
+  }
+
+  /**
+   * A task together with the bookkeeping of its bands, reused from call to call so that running
+   * the task does not allocate. A job runs on one thread at a time; each caller keeps its own.
+   *
+   * <p>A helper that starts late may find the bands of a later call, which it then takes like any
+   * other helper, or none, in which case it returns right away.
+   */
+  static final class Job {
+    private final Task task;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicInteger nextBand = new AtomicInteger(BAND_COUNT);
+    private final AtomicInteger remainingBands = new AtomicInteger();
+    // Written before nextBand is reset, which publishes it to the helpers that take a band.
+    private int rowCount;
+
+    Job(Task task) {
+      this.task = task;
+    }
+
+    /**
+     * Runs the task over the rows {@code [0, rowCount)} like {@link RowBands#run}.
+     *
+     * @throws IllegalStateException if the job is already running on another thread
+     */
+    void run(int rowCount, boolean parallel) {
+      if (!parallel || BAND_COUNT == 1 || rowCount < 2 * BAND_COUNT) {
+        task.run(0, rowCount);
+        return;
+      }
+      if (!running.compareAndSet(false, true)) {
+        throw new IllegalStateException("Row band job is already running");
+      }
+      try {
+        this.rowCount = rowCount;
+        remainingBands.set(BAND_COUNT);
+        nextBand.set(0);
+        queueForHelpers(this, BAND_COUNT - 1);
+        takeBands();
+        awaitDone();
+      } finally {
+        running.set(false);
+      }
+    }
+
+    private void takeBands() {
+      int band;
+      while ((band = nextBand.getAndIncrement()) < BAND_COUNT) {
+        task.run(rowCount * band / BAND_COUNT, rowCount * (band + 1) / BAND_COUNT);
+        if (remainingBands.decrementAndGet() == 0) {
+          synchronized (this) {
+            notifyAll();
+          }
+        }
+      }
+    }
+
+    /** Waits until every band has run, including those taken by helpers. */
+    private synchronized void awaitDone() {
+      boolean interrupted = false;
+      while (remainingBands.get() > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.exifinterface.media.ExifInterface;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes gallery images at the width they are shown and scanned at, upright, in bounded memory.
+ *
+ * <p>The image is opened once. Its orientation and bounds are read from the headers, then it is
+ * decoded with the largest power of two {@code inSampleSize} that keeps it at least as wide as the
+ * target and within the memory budget. One transform then rotates, mirrors and scales the sampled
+ * bitmap to the target width. At most the sampled and the final bitmap are alive at once, and
+ * neither is larger than the budget, whatever the size of the source.
+ */
+public final class SampledImageDecoder {
+  private static final String TAG = "SampledImageDecoder";
+
+  /** Share of the heap a single decoded bitmap may take. */
+  private static final int HEAP_FRACTION = 8;
+
+  private static final int BYTES_PER_PIXEL = 4;
+
+  /** Decodes from the start of an image, with the given options. */
+  private interface Source {
+    @Nullable
+    Bitmap decode(BitmapFactory.Options options) throws IOException;
+  }
+
+  private final long maxBitmapBytes;
+
+  /** Creates a decoder whose bitmaps take at most an eighth of the heap each. */
+  public SampledImageDecoder() {
+    this(Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+  }
+
+  /** Creates a decoder whose bitmaps take at most {@code maxBitmapBytes} each. */
+  public SampledImageDecoder(long maxBitmapBytes) {
+    this.maxBitmapBytes = maxBitmapBytes;
+  }
+
+  /**
+   * Decodes the image behind a content or file uri, upright and scaled to {@code targetWidth}, or
+   * to its own width if {@code targetWidth} is not positive. Returns null if it is no image.
+   *
+   * <p>The result is only narrower than the target if a bitmap that wide would exceed the budget.
+   */
+  @Nullable
+  public Bitmap decode(ContentResolver resolver, Uri uri, int targetWidth) throws IOException {
+    return decode(resolver, uri, targetWidth, /* upscale= */ true);
+  }
+
+  /**
+   * Same as {@link #decode(ContentResolver, Uri, int)}, but with {@code upscale} false, images
+   * narrower than {@code targetWidth} keep their own width.
+   */
+  @Nullable
+  public Bitmap decode(ContentResolver resolver, Uri uri, int targetWidth, boolean upscale)
+      throws IOException {
+    try (ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "r")) {
+      if (descriptor == null) {
+        return null;
+      }
+      if (isSeekable(descriptor.getFileDescriptor())) {
+        return decode(descriptor.getFileDescriptor(), targetWidth, upscale);
+      }
+    }
+
+    // Some providers hand out pipes, which can only be read once: open the image for each pass.
+    int orientation;
+    try (InputStream inputStream = resolver.openInputStream(uri)) {
+      orientation = inputStream != null ? readOrientation(new ExifInterface(inputStream)) : 0;
+    }
+    return decode(
+        options -> {
+          try (InputStream inputStream = resolver.openInputStream(uri)) {
+            return BitmapFactory.decodeStream(inputStream, null, options);
+          }
+        },
+        orientation,
+        targetWidth,
+        upscale);
+  }
+
+  /** Same as {@link #decode(ContentResolver, Uri, int)}, for an image file. */
+  @Nullable
+  public Bitmap decode(String path, int targetWidth) throws IOException {
+    try (ParcelFileDescriptor descriptor =
+        ParcelFileDescriptor.open(new File(path), ParcelFileDescriptor.MODE_READ_ONLY)) {
+      return decode(descriptor.getFileDescriptor(), targetWidth, /* upscale= */ true);
+    }
+  }
+
+  @Nullable
+  private Bitmap decode(FileDescriptor fd, int targetWidth, boolean upscale) throws IOException {
+    int orientation = readOrientation(new ExifInterface(fd));
+    // The EXIF parser moves the shared file offset; BitmapFactory leaves it where it finds it.
+    try {
+      Os.lseek(fd, 0, OsConstants.SEEK_SET);
+    } catch (ErrnoException e) {
+      throw new IOException("Failed to rewind the image", e);
+    }
+    return decode(
+        options -> BitmapFactory.decodeFileDescriptor(fd, null, options),
+        orientation,
+        targetWidth,
+        upscale);
+  }
+
+  @Nullable
+  private Bitmap decode(Source source, int orientation, int targetWidth, boolean upscale)
+      throws IOException {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    source.decode(options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      return null;
+    }
+    boolean transposed = isTransposed(orientation);
+    int uprightWidth = transposed ? options.outHeight : options.outWidth;
+    int uprightHeight = transposed ? options.outWidth : options.outHeight;
+    if (!upscale && targetWidth > uprightWidth) {
+      targetWidth = uprightWidth;
+    }
+
+    options.inJustDecodeBounds = false;
+    options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+    options.inSampleSize =
+        computeSampleSize(uprightWidth, uprightHeight, targetWidth, maxBitmapBytes);
+    Bitmap sampled = source.decode(options);
+    if (sampled == null) {
+      return null;
+    }
+    int sampledWidth = transposed ? sampled.getHeight() : sampled.getWidth();
+    int sampledHeight = transposed ? sampled.getWidth() : sampled.getHeight();
+    float scale = computeScale(sampledWidth, sampledHeight, targetWidth, maxBitmapBytes);
+    if (Log.isLoggable(TAG, Log.DEBUG)) {
+      Log.d(
+          TAG,
+          "Decoded "
+              + uprightWidth
+              + "x"
+              + uprightHeight
+              + " with sample size "
+              + options.inSampleSize
+              + ", scale "
+              + scale);
+    }
+    return BitmapUtils.applyExifOrientation(sampled, orientation, scale);
+  }
+
+  /**
+   * Returns the largest power of two sample size that still leaves an upright image of {@code
+   * width} x {@code height} at least {@code targetWidth} wide, raised further until the sampled
+   * bitmap fits in {@code maxBytes}. A {@code targetWidth} that is not positive stands for the
+   * width of the image.
+   */
+  static int computeSampleSize(int width, int height, int targetWidth, long maxBytes) {
+    int minWidth = targetWidth > 0 ? Math.min(targetWidth, width) : width;
+    int sampleSize = 1;
+    // Decoders round the sampled size differently, count it down for the width and up for memory.
+    while (width / (sampleSize * 2) >= minWidth) {
+      sampleSize *= 2;
+    }
+    while (bitmapBytes(divideRoundingUp(width, sampleSize), divideRoundingUp(height, sampleSize))
+            > maxBytes
+        && (width > sampleSize || height > sampleSize)) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  /**
+   * Returns the factor that scales a sampled upright image of {@code width} x {@code height} to
+   * {@code targetWidth}, or keeps its width if {@code targetWidth} is not positive, lowered if
+   * needed so that the result fits in {@code maxBytes}.
+   */
+  static float computeScale(int width, int height, int targetWidth, long maxBytes) {
+    float scale = targetWidth > 0 ? (float) targetWidth / width : 1f;
+    double bytes = (double) width * scale * height * scale * BYTES_PER_PIXEL;
+    if (bytes > maxBytes) {
+      scale *= (float) Math.sqrt(maxBytes / bytes);
+    }
+    return scale;
+  }
+
+  private static long bitmapBytes(int width, int height) {
+    return (long) width * height * BYTES_PER_PIXEL;
+  }
+
+  private static int divideRoundingUp(int value, int divisor) {
+    return (value + divisor - 1) / divisor;
+  }
+
+  /** Returns whether the EXIF orientation swaps the width and the height of the image. */
+  private static boolean isTransposed(int orientation) {
+    switch (orientation) {
+      case ExifInterface.ORIENTATION_TRANSPOSE:
+      case ExifInterface.ORIENTATION_ROTATE_90:
+      case ExifInterface.ORIENTATION_TRANSVERSE:
+      case ExifInterface.ORIENTATION_ROTATE_270:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static int readOrientation(ExifInterface exif) {
+    return exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+  }
+
+  private static boolean isSeekable(FileDescriptor fd) {
+    try {
+      Os.lseek(fd, 0, OsConstants.SEEK_CUR);
+      return true;
+    } catch (ErrnoException e) {
+      return false;
+    }
+  }
+}
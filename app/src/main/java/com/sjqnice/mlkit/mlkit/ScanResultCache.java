@@ -0,0 +1,463 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import com.google.mlkit.vision.barcode.common.Barcode;
+import com.google.mlkit.vision.text.Text;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk cache of the barcodes and text found in still images, so that images opened again are not
+ * decoded and detected again.
+ *
+ * <p>Entries are keyed by the image and by a variant naming what was detected, e.g. the barcode
+ * formats. An image is identified by its uri, size and modification time when its provider tells
+ * them, and by a hash of its content otherwise; either way without decoding it. Each entry is a
+ * file in the cache directory. The cache keeps at most a given number of entries and bytes, and
+ * evicts the least recently used entries first, across restarts too since a hit touches the file.
+ * All methods are thread safe, and do disk I/O.
+ */
+public final class ScanResultCache {
+  private static final String TAG = "ScanResultCache";
+
+  static final int MAGIC = 0x4D4C4B52; // "MLKR"
+  static final int VERSION = 1;
+  private static final String SUFFIX = ".res";
+
+  /** A barcode or a block of text, with its bounds in the image as it was detected. */
+  public static final class Item {
+    /** The {@code Barcode.FORMAT_*} of a barcode, or 0 for text. */
+    public final int format;
+
+    /** The {@code Barcode.TYPE_*} of a barcode, or 0 for text. */
+    public final int valueType;
+
+    /** The raw value of a barcode, or the text of a block. */
+    @Nullable public final String rawValue;
+
+    @Nullable public final String displayValue;
+    public final int left;
+    public final int top;
+    public final int right;
+    public final int bottom;
+
+    Item(
+        int format,
+        int valueType,
+        @Nullable String rawValue,
+        @Nullable String displayValue,
+        int left,
+        int top,
+        int right,
+        int bottom) {
+      this.format = format;
+      this.valueType = valueType;
+      this.rawValue = rawValue;
+      this.displayValue = displayValue;
+      this.left = left;
+      this.top = top;
+      this.right = right;
+      this.bottom = bottom;
+    }
+
+    public Rect getBoundingBox() {
+      return new Rect(left, top, right, bottom);
+    }
+  }
+
+  /** What was found in one image. */
+  public static final class Entry {
+    /** Size of the image the bounds of the items refer to. */
+    public final int imageWidth;
+
+    public final int imageHeight;
+
+    /** The whole recognized text, or null for barcodes. */
+    @Nullable public final String text;
+
+    public final List<Item> items;
+
+    Entry(int imageWidth, int imageHeight, @Nullable String text, List<Item> items) {
+      this.imageWidth = imageWidth;
+      this.imageHeight = imageHeight;
+      this.text = text;
+      this.items = Collections.unmodifiableList(items);
+    }
+
+    /** Returns an entry for barcodes found in an image of the given size. */
+    public static Entry ofBarcodes(List<Barcode> barcodes, int imageWidth, int imageHeight) {
+      List<Item> items = new ArrayList<>(barcodes.size());
+      for (Barcode barcode : barcodes) {
+        Rect box = barcode.getBoundingBox();
+        items.add(
+            new Item(
+                barcode.getFormat(),
+                barcode.getValueType(),
+                barcode.getRawValue(),
+                barcode.getDisplayValue(),
+                box != null ? box.left : 0,
+                box != null ? box.top : 0,
+                box != null ? box.right : 0,
+                box != null ? box.bottom : 0));
+      }
+      return new Entry(imageWidth, imageHeight, null, items);
+    }
+
+    /** Returns an entry for text recognized in an image of the given size, block by block. */
+    public static Entry ofText(Text text, int imageWidth, int imageHeight) {
+      List<Item> items = new ArrayList<>(text.getTextBlocks().size());
+      for (Text.TextBlock block : text.getTextBlocks()) {
+        Rect box = block.getBoundingBox();
+        items.add(
+            new Item(
+                0,
+                0,
+                block.getText(),
+                null,
+                box != null ? box.left : 0,
+                box != null ? box.top : 0,
+                box != null ? box.right : 0,
+                box != null ? box.bottom : 0));
+      }
+      return new Entry(imageWidth, imageHeight, text.getText(), items);
+    }
+  }
+
+  private final File directory;
+  private final long maxSizeBytes;
+  private final int maxEntries;
+
+  // Entry sizes by key, iterated from the least to the most recently used.
+  @GuardedBy("this")
+  @Nullable
+  private LinkedHashMap<String, Long> index;
+
+  @GuardedBy("this")
+  private long currentSizeBytes;
+
+  @GuardedBy("this")
+  private long hitCount;
+
+  @GuardedBy("this")
+  private long missCount;
+
+  @GuardedBy("this")
+  private long evictionCount;
+
+  /**
+   * Creates a cache in {@code directory}, e.g. a folder of {@code Context#getCacheDir()}, which
+   * keeps at most {@code maxEntries} entries and {@code maxSizeBytes} on disk.
+   */
+  public ScanResultCache(File directory, long maxSizeBytes, int maxEntries) {
+    this.directory = directory;
+    this.maxSizeBytes = maxSizeBytes;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Returns the key of the image behind a content or file uri for the given variant, or null if
+   * the image cannot be read. Prefers the size and modification time the provider reports, and
+   * hashes the content when it reports none.
+   */
+  @Nullable
+  public static String keyFor(ContentResolver resolver, Uri uri, String variant) {
+    String identity = null;
+    if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+      File file = new File(uri.getPath());
+      if (file.isFile()) {
+        identity = uri + "|" + file.length() + "|" + file.lastModified();
+      }
+    } else if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+      identity = queryIdentity(resolver, uri);
+    }
+    if (identity == null) {
+      try (InputStream inputStream = resolver.openInputStream(uri)) {
+        if (inputStream == null) {
+          return null;
+        }
+        identity = "sha256:" + hashContent(inputStream);
+      } catch (IOException | SecurityException e) {
+        Log.w(TAG, "Failed to read " + uri, e);
+        return null;
+      }
+    }
+    return keyFor(variant, identity);
+  }
+
+  /** Returns the key for an image identified by {@code identity}, usable as a file name. */
+  static String keyFor(String variant, String identity) {
+    byte[] bytes = (variant + "|" + identity).getBytes(StandardCharsets.UTF_8);
+    return toHex(newDigest("SHA-1").digest(bytes));
+  }
+
+  /** Returns the entry cached for the key, or null on a miss. */
+  @Nullable
+  public synchronized Entry get(String key) {
+    LinkedHashMap<String, Long> index = getIndex();
+    if (!index.containsKey(key)) {
+      missCount++;
+      return null;
+    }
+    File file = fileFor(key);
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      Entry entry = read(in);
+      index.get(key); // Marks the entry as most recently used.
+      file.setLastModified(System.currentTimeMillis());
+      hitCount++;
+      return entry;
+    } catch (IOException e) {
+      Log.w(TAG, "Dropping unreadable entry " + key, e);
+      remove(key);
+      missCount++;
+      return null;
+    }
+  }
+
+  /** Stores the entry under the key, replacing any older one, then evicts beyond the limits. */
+  public synchronized void put(String key, Entry entry) {
+    LinkedHashMap<String, Long> index = getIndex();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(TAG, "Failed to create " + directory);
+      return;
+    }
+    File file = fileFor(key);
+    File temporaryFile = new File(directory, key + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+      write(entry, out);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write entry " + key, e);
+      temporaryFile.delete();
+      return;
+    }
+    remove(key);
+    if (!temporaryFile.renameTo(file)) {
+      temporaryFile.delete();
+      return;
+    }
+    index.put(key, file.length());
+    currentSizeBytes += file.length();
+    trimToSize();
+  }
+
+  /** Deletes every entry. */
+  public synchronized void clear() {
+    for (String key : new ArrayList<>(getIndex().keySet())) {
+      remove(key);
+    }
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  public synchronized int getEntryCount() {
+    return getIndex().size();
+  }
+
+  public synchronized long getCurrentSizeBytes() {
+    getIndex();
+    return currentSizeBytes;
+  }
+
+  @GuardedBy("this")
+  private LinkedHashMap<String, Long> getIndex() {
+    if (index == null) {
+      index = new LinkedHashMap<>(16, 0.75f, /* accessOrder= */ true);
+      File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+      if (files != null) {
+        // Oldest first, so that the entries used last before a restart are evicted last.
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+          String name = file.getName();
+          index.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+          currentSizeBytes += file.length();
+        }
+      }
+      trimToSize();
+    }
+    return index;
+  }
+
+  @GuardedBy("this")
+  private void trimToSize() {
+    Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+    while ((currentSizeBytes > maxSizeBytes || index.size() > maxEntries) && iterator.hasNext()) {
+      Map.Entry<String, Long> eldest = iterator.next();
+      iterator.remove();
+      currentSizeBytes -= eldest.getValue();
+      fileFor(eldest.getKey()).delete();
+      evictionCount++;
+    }
+  }
+
+  @GuardedBy("this")
+  private void remove(String key) {
+    Long size = getIndex().remove(key);
+    if (size != null) {
+      currentSizeBytes -= size;
+    }
+    fileFor(key).delete();
+  }
+
+  private File fileFor(String key) {
+    return new File(directory, key + SUFFIX);
+  }
+
+  static void write(Entry entry, DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(entry.imageWidth);
+    out.writeInt(entry.imageHeight);
+    writeString(entry.text, out);
+    out.writeInt(entry.items.size());
+    for (Item item : entry.items) {
+      out.writeInt(item.format);
+      out.writeInt(item.valueType);
+      writeString(item.rawValue, out);
+      writeString(item.displayValue, out);
+      out.writeInt(item.left);
+      out.writeInt(item.top);
+      out.writeInt(item.right);
+      out.writeInt(item.bottom);
+    }
+  }
+
+  static Entry read(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a scan result");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported scan result version " + version);
+    }
+    int imageWidth = in.readInt();
+    int imageHeight = in.readInt();
+    String text = readString(in);
+    int itemCount = in.readInt();
+    if (itemCount < 0) {
+      throw new IOException("Invalid item count " + itemCount);
+    }
+    List<Item> items = new ArrayList<>(Math.min(itemCount, 64));
+    for (int i = 0; i < itemCount; i++) {
+      items.add(
+          new Item(
+              in.readInt(),
+              in.readInt(),
+              readString(in),
+              readString(in),
+              in.readInt(),
+              in.readInt(),
+              in.readInt(),
+              in.readInt()));
+    }
+    return new Entry(imageWidth, imageHeight, text, items);
+  }
+
+  // Strings are written as their UTF-8 length, or -1 for null, and their bytes; writeUTF would
+  // stop at 64 KB.
+  private static void writeString(@Nullable String value, DataOutputStream out)
+      throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  @Nullable
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Nullable
+  private static String queryIdentity(ContentResolver resolver, Uri uri) {
+    String[] projection = {OpenableColumns.SIZE, MediaStore.MediaColumns.DATE_MODIFIED};
+    try (Cursor cursor = resolver.query(uri, projection, null, null, null)) {
+      if (cursor == null || !cursor.moveToFirst()) {
+        return null;
+      }
+      int sizeColumn = cursor.getColumnIndex(OpenableColumns.SIZE);
+      int modifiedColumn = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+      if (sizeColumn < 0
+          || modifiedColumn < 0
+          || cursor.isNull(sizeColumn)
+          || cursor.isNull(modifiedColumn)) {
+        return null;
+      }
+      return uri + "|" + cursor.getLong(sizeColumn) + "|" + cursor.getLong(modifiedColumn);
+    } catch (RuntimeException e) {
+      // Providers that do not know a column may throw instead of leaving it out.
+      return null;
+    }
+  }
+
+  private static String hashContent(InputStream inputStream) throws IOException {
+    MessageDigest digest = newDigest("SHA-256");
+    byte[] buffer = new byte[64 * 1024];
+    int read;
+    while ((read = inputStream.read(buffer)) != -1) {
+      digest.update(buffer, 0, read);
+    }
+    return toHex(digest.digest());
+  }
+
+  private static MessageDigest newDigest(String algorithm) {
+    try {
+      return MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform has SHA-1 and SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,60 @@
+package com.sjqnice.mlkit.mlkit;
+
+import androidx.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, lock-free and allocation-free queue for exactly one producer thread and one consumer
+ * thread.
+ *
+ * <p>The producer only writes {@code tail} and the consumer only writes {@code head}; the ordered
+ * stores publish the slot contents to the other thread.
+ */
+public class SpscRingQueue<T> {
+
+  private final Object[] slots;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  /** Creates a queue holding up to {@code capacity} elements, rounded up to a power of two. */
+  public SpscRingQueue(int capacity) {
+    int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    slots = new Object[size];
+    mask = size - 1;
+  }
+
+  /** Adds an element. Must only be called from the producer thread. */
+  public boolean offer(T element) {
+    long currentTail = tail.get();
+    if (currentTail - head.get() == slots.length) {
+      return false;
+    }
+    slots[(int) currentTail & mask] = element;
+    tail.lazySet(currentTail + 1);
+    return true;
+  }
+
+  /** Removes the oldest element, or returns null. Must only be called from the consumer thread. */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  public T poll() {
+    long currentHead = head.get();
+    if (currentHead == tail.get()) {
+      return null;
+    }
+    int index = (int) currentHead & mask;
+    T element = (T) slots[index];
+    slots[index] = null;
+    head.lazySet(currentHead + 1);
+    return element;
+  }
+
+  public boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+
+  public int size() {
+    return (int) (tail.get() - head.get());
+  }
+}
@@ -0,0 +1,226 @@
+package com.sjqnice.mlkit.mlkit;
+
+/**
+ * Procedurally rendered NV21 frames of an EAN-13 barcode, for replaying through {@link
+ * ReplayFrameSource} without a camera or a recording.
+ *
+ * <p>The barcode is drawn dark on light across the middle of the frame and softened by a box blur
+ * once. Every frame then gets its own sensor-like noise, which is derived from the frame index so
+ * that a frame reads the same each time. Chroma is neutral grey.
+ */
+public final class SyntheticBarcodeFrames implements ReplayFrames {
+
+  private static final byte[] L_CODES = {
+    0b0001101, 0b0011001, 0b0010011, 0b0111101, 0b0100011,
+    0b0110001, 0b0101111, 0b0111011, 0b0110111, 0b0001011
+  };
+  private static final byte[] G_CODES = {
+    0b0100111, 0b0110011, 0b0011011, 0b0100001, 0b0011101,
+    0b0111001, 0b0000101, 0b0010001, 0b0001001, 0b0010111
+  };
+  /** Which of the left-hand digits use the G codes, indexed by the first digit. */
+  private static final byte[] PARITY = {
+    0b000000, 0b001011, 0b001101, 0b001110, 0b010011,
+    0b011001, 0b011100, 0b010101, 0b010110, 0b011010
+  };
+
+  private static final int BARCODE_MODULES = 95;
+  /** Blank modules on each side, a little more than the 7 to 11 the standard asks for. */
+  private static final int QUIET_ZONE_MODULES = 11;
+
+  private static final int LIGHT = 230;
+  private static final int DARK = 25;
+
+  private final int width;
+  private final int height;
+  private final int frameCount;
+  private final long frameIntervalMs;
+  private final int noiseAmplitude;
+  private final byte[] luma;
+
+  /**
+   * @param digits the 12 digits to encode, or 13 digits including the check digit
+   * @param width the frame width, at least as wide as the barcode and its quiet zones
+   * @param height the frame height
+   * @param frameCount how many frames to generate
+   * @param frameIntervalMs the time between consecutive frame timestamps
+   * @param blurRadius the radius of the box blur, 0 for sharp edges
+   * @param noiseAmplitude the largest luma deviation added by the noise, 0 for none
+   * @throws IllegalArgumentException if the digits are not a valid EAN-13 or the frame is too small
+   */
+  public SyntheticBarcodeFrames(
+      String digits,
+      int width,
+      int height,
+      int frameCount,
+      long frameIntervalMs,
+      int blurRadius,
+      int noiseAmplitude) {
+    if (width % 2 != 0 || height % 2 != 0) {
+      throw new IllegalArgumentException("NV21 frames must have an even width and height");
+    }
+    int moduleWidth = width / (BARCODE_MODULES + 2 * QUIET_ZONE_MODULES);
+    if (moduleWidth < 1) {
+      throw new IllegalArgumentException("Frame is too narrow for an EAN-13 barcode");
+    }
+    this.width = width;
+    this.height = height;
+    this.frameCount = frameCount;
+    this.frameIntervalMs = frameIntervalMs;
+    this.noiseAmplitude = noiseAmplitude;
+
+    boolean[] modules = encode(toDigits(digits));
+    luma = new byte[width * height];
+    int left = (width - BARCODE_MODULES * moduleWidth) / 2;
+    int top = height / 4;
+    int bottom = height - height / 4;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int module = (x - left) / moduleWidth;
+        boolean dark =
+            y >= top && y < bottom && x >= left && module < BARCODE_MODULES && modules[module];
+        luma[y * width + x] = (byte) (dark ? DARK : LIGHT);
+      }
+    }
+    if (blurRadius > 0) {
+      boxBlur(luma, width, height, blurRadius);
+    }
+  }
+
+  /** Returns the 13 digits encoded by the barcode, including the check digit. */
+  public static String withCheckDigit(String digits) {
+    int[] values = toDigits(digits);
+    StringBuilder builder = new StringBuilder(13);
+    for (int value : values) {
+      builder.append(value);
+    }
+    return builder.toString();
+  }
+
+  @Override
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  @Override
+  public int getRotation(int index) {
+    return 0;
+  }
+
+  @Override
+  public long getTimestampMs(int index) {
+    return index * frameIntervalMs;
+  }
+
+  @Override
+  public void read(int index, byte[] out) {
+    int pixels = width * height;
+    if (noiseAmplitude <= 0) {
+      System.arraycopy(luma, 0, out, 0, pixels);
+    } else {
+      // xorshift32, seeded by the frame index; the sum of two uniform draws is roughly bell shaped.
+      int state = 0x9E3779B9 * (index + 1);
+      for (int i = 0; i < pixels; i++) {
+        state ^= state << 13;
+        state ^= state >>> 17;
+        state ^= state << 5;
+        int noise = (((state & 0xFF) + ((state >>> 8) & 0xFF)) - 255) * noiseAmplitude / 255;
+        int value = (luma[i] & 0xFF) + noise;
+        out[i] = (byte) (value < 0 ? 0 : value > 255 ? 255 : value);
+      }
+    }
+    for (int i = pixels; i < pixels + pixels / 2; i++) {
+      out[i] = (byte) 128;
+    }
+  }
+
+  /** Parses the digits and appends or verifies the check digit. */
+  private static int[] toDigits(String digits) {
+    if (digits.length() != 12 && digits.length() != 13) {
+      throw new IllegalArgumentException("EAN-13 takes 12 or 13 digits: " + digits);
+    }
+    int[] values = new int[13];
+    int sum = 0;
+    for (int i = 0; i < digits.length(); i++) {
+      char c = digits.charAt(i);
+      if (c < '0' || c > '9') {
+        throw new IllegalArgumentException("Not a digit in " + digits);
+      }
+      values[i] = c - '0';
+      if (i < 12) {
+        sum += values[i] * (i % 2 == 0 ? 1 : 3);
+      }
+    }
+    int checkDigit = (10 - sum % 10) % 10;
+    if (digits.length() == 13 && values[12] != checkDigit) {
+      throw new IllegalArgumentException("Wrong check digit in " + digits);
+    }
+    values[12] = checkDigit;
+    return values;
+  }
+
+  /** Returns the 95 modules of the barcode, true for a bar. */
+  private static boolean[] encode(int[] digits) {
+    boolean[] modules = new boolean[BARCODE_MODULES];
+    int position = putPattern(modules, 0, 0b101, 3);
+    int parity = PARITY[digits[0]];
+    for (int i = 1; i <= 6; i++) {
+      boolean g = (parity & (1 << (6 - i))) != 0;
+      position = putPattern(modules, position, g ? G_CODES[digits[i]] : L_CODES[digits[i]], 7);
+    }
+    position = putPattern(modules, position, 0b01010, 5);
+    for (int i = 7; i <= 12; i++) {
+      // The R codes are the complement of the L codes.
+      position = putPattern(modules, position, ~L_CODES[digits[i]] & 0x7F, 7);
+    }
+    putPattern(modules, position, 0b101, 3);
+    return modules;
+  }
+
+  private static int putPattern(boolean[] modules, int position, int pattern, int length) {
+    for (int i = 0; i < length; i++) {
+      modules[position + i] = (pattern & (1 << (length - 1 - i))) != 0;
+    }
+    return position + length;
+  }
+
+  /** Blurs the luma plane in place, horizontally and then vertically, clamping at the edges. */
+  private static void boxBlur(byte[] plane, int width, int height, int radius) {
+    int size = 2 * radius + 1;
+    int[] line = new int[Math.max(width, height)];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        line[x] = plane[y * width + x] & 0xFF;
+      }
+      for (int x = 0; x < width; x++) {
+        int sum = 0;
+        for (int k = -radius; k <= radius; k++) {
+          sum += line[Math.min(width - 1, Math.max(0, x + k))];
+        }
+        plane[y * width + x] = (byte) (sum / size);
+      }
+    }
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        line[y] = plane[y * width + x] & 0xFF;
+      }
+      for (int y = 0; y < height; y++) {
+        int sum = 0;
+        for (int k = -radius; k <= radius; k++) {
+          sum += line[Math.min(height - 1, Math.max(0, y + k))];
+        }
+        plane[y * width + x] = (byte) (sum / size);
+      }
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.graphics.Rect;
+import androidx.annotation.Nullable;
+import com.google.mlkit.vision.barcode.common.Barcode;
+
+/**
+ * A barcode found by {@link TiledBarcodeScanner}, with its bounds in the pixels of the full
+ * resolution, upright image instead of the tile it was detected in.
+ */
+public final class TiledBarcode {
+  private final Barcode barcode;
+  private final int format;
+  @Nullable private final String rawValue;
+  private final int left;
+  private final int top;
+  private final int right;
+  private final int bottom;
+  private final int imageWidth;
+  private final int imageHeight;
+
+  TiledBarcode(
+      Barcode barcode,
+      int format,
+      @Nullable String rawValue,
+      int left,
+      int top,
+      int right,
+      int bottom,
+      int imageWidth,
+      int imageHeight) {
+    this.barcode = barcode;
+    this.format = format;
+    this.rawValue = rawValue;
+    this.left = left;
+    this.top = top;
+    this.right = right;
+    this.bottom = bottom;
+    this.imageWidth = imageWidth;
+    this.imageHeight = imageHeight;
+  }
+
+  /**
+   * Returns the barcode as the detector reported it. Its bounding box and corner points are
+   * relative to the tile it was detected in, use {@link #getBoundingBox()} instead.
+   */
+  public Barcode getBarcode() {
+    return barcode;
+  }
+
+  /** Returns the format of the barcode, one of the {@code Barcode.FORMAT_*} constants. */
+  public int getFormat() {
+    return format;
+  }
+
+  @Nullable
+  public String getRawValue() {
+    return rawValue;
+  }
+
+  /** Returns the bounds of the barcode in the pixels of the upright image. */
+  public Rect getBoundingBox() {
+    return new Rect(left, top, right, bottom);
+  }
+
+  /**
+   * Returns the bounds of the barcode in an image showing the upright image {@code scale} times
+   * its size, e.g. {@code displayedWidth / (float) getImageWidth()} for a downscaled copy.
+   */
+  public Rect getBoundingBox(float scale) {
+    return new Rect(
+        Math.round(left * scale),
+        Math.round(top * scale),
+        Math.round(right * scale),
+        Math.round(bottom * scale));
+  }
+
+  /** Returns the width of the upright image the barcode was found in. */
+  public int getImageWidth() {
+    return imageWidth;
+  }
+
+  /** Returns the height of the upright image the barcode was found in. */
+  public int getImageHeight() {
+    return imageHeight;
+  }
+
+  int getLeft() {
+    return left;
+  }
+
+  int getTop() {
+    return top;
+  }
+
+  int getRight() {
+    return right;
+  }
+
+  int getBottom() {
+    return bottom;
+  }
+
+  long getArea() {
+    return (long) (right - left) * (bottom - top);
+  }
+}
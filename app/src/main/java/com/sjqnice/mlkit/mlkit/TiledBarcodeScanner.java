@@ -0,0 +1,426 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.exifinterface.media.ExifInterface;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+import com.google.mlkit.vision.barcode.BarcodeScanner;
+import com.google.mlkit.vision.barcode.BarcodeScannerOptions;
+import com.google.mlkit.vision.barcode.BarcodeScanning;
+import com.google.mlkit.vision.barcode.common.Barcode;
+import com.google.mlkit.vision.common.InputImage;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Detects barcodes in large images at full resolution, tile by tile, so that small codes in e.g.
+ * warehouse photos are not lost to downscaling.
+ *
+ * <p>The image is cut into overlapping square tiles that are decoded with a {@link
+ * BitmapRegionDecoder} and detected on a few worker threads, each with its own detector client. A
+ * downscaled pass over the whole image finds the codes that are larger than a tile. Codes found
+ * twice, across a seam or by both passes, are merged by format, value and position. Only one tile
+ * per worker is in memory at a time, whatever the size of the image.
+ */
+public final class TiledBarcodeScanner implements Closeable {
+  private static final String TAG = "TiledBarcodeScanner";
+
+  /** Side of the square tiles, in pixels of the full resolution image. */
+  static final int TILE_SIZE = 1024;
+
+  /** Overlap of neighbouring tiles: codes up to this size are whole in at least one tile. */
+  static final int TILE_OVERLAP = 256;
+
+  /** Width of the downscaled pass over the whole image. */
+  private static final int OVERVIEW_WIDTH = 1280;
+
+  /** Number of tiles detected at once, by the scanning thread and shared helper threads. */
+  static final int WORKER_COUNT =
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  /** Share of the heap the downscaled pass may take. */
+  private static final int HEAP_FRACTION = 8;
+
+  @Nullable private static ExecutorService helperExecutor;
+
+  // One client per worker, so that tiles are detected in parallel.
+  private final ArrayBlockingQueue<BarcodeScanner> clients =
+      new ArrayBlockingQueue<>(WORKER_COUNT);
+  private final ExecutorService scanExecutor =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** Creates a scanner for the given formats, or for all formats if {@code options} is null. */
+  public TiledBarcodeScanner(@Nullable BarcodeScannerOptions options) {
+    for (int i = 0; i < WORKER_COUNT; i++) {
+      clients.add(
+          options != null ? BarcodeScanning.getClient(options) : BarcodeScanning.getClient());
+    }
+  }
+
+  /**
+   * Scans the image behind a content or file uri. Images are scanned one after the other; the
+   * returned task completes with the merged barcodes, sorted from top to bottom.
+   */
+  public Task<List<TiledBarcode>> process(ContentResolver resolver, Uri uri) {
+    TaskCompletionSource<List<TiledBarcode>> result = new TaskCompletionSource<>();
+    scanExecutor.execute(
+        () -> {
+          try {
+            result.setResult(scan(resolver, uri));
+          } catch (Exception e) {
+            result.setException(e);
+          }
+        });
+    return result.getTask();
+  }
+
+  /** Stops scanning further images and releases the detector clients. */
+  @Override
+  public void close() {
+    scanExecutor.shutdown();
+    for (BarcodeScanner client : clients) {
+      client.close();
+    }
+  }
+
+  private List<TiledBarcode> scan(ContentResolver resolver, Uri uri) throws Exception {
+    try (ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "r")) {
+      if (descriptor == null) {
+        throw new FileNotFoundException(uri.toString());
+      }
+      FileDescriptor fd = descriptor.getFileDescriptor();
+      int orientation =
+          new ExifInterface(fd)
+              .getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+      try {
+        Os.lseek(fd, 0, OsConstants.SEEK_SET);
+      } catch (ErrnoException e) {
+        throw new IOException("Tiled scanning needs a seekable image", e);
+      }
+
+      BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(fd, false);
+      try {
+        TileJob job = new TileJob(decoder, orientation);
+        job.scanOverview();
+        if (job.tileCount > 0) {
+          ExecutorService executor = getHelperExecutor();
+          for (int i = 1; i < Math.min(WORKER_COUNT, job.tileCount); i++) {
+            executor.execute(job);
+          }
+          job.run();
+          job.awaitDone();
+        }
+        return job.getResults();
+      } finally {
+        decoder.recycle();
+      }
+    }
+  }
+
+  private static synchronized ExecutorService getHelperExecutor() {
+    if (helperExecutor == null) {
+      helperExecutor =
+          Executors.newFixedThreadPool(
+              Math.max(1, WORKER_COUNT - 1),
+              runnable -> {
+                Thread thread = new Thread(runnable, TAG + "Worker");
+                thread.setDaemon(true);
+                return thread;
+              });
+    }
+    return helperExecutor;
+  }
+
+  /**
+   * Returns where tiles of {@code tileSize} start along a side of {@code length}, overlapping by at
+   * least {@code overlap}. The last tile ends at the end of the side, so all tiles have full size
+   * unless the side is shorter than a tile.
+   */
+  static int[] tileStarts(int length, int tileSize, int overlap) {
+    if (length <= tileSize) {
+      return new int[] {0};
+    }
+    int stride = tileSize - overlap;
+    int count = (length - overlap + stride - 1) / stride;
+    int[] starts = new int[count];
+    for (int i = 0; i < count; i++) {
+      starts[i] = Math.min(i * stride, length - tileSize);
+    }
+    return starts;
+  }
+
+  /**
+   * Maps the bounds of a barcode in an image as stored, of {@code width} x {@code height}, to the
+   * image turned upright according to its EXIF {@code orientation}.
+   */
+  static TiledBarcode toUpright(
+      Barcode barcode,
+      int format,
+      @Nullable String rawValue,
+      int orientation,
+      int width,
+      int height,
+      int left,
+      int top,
+      int right,
+      int bottom) {
+    switch (orientation) {
+      case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+        return new TiledBarcode(
+            barcode, format, rawValue, width - right, top, width - left, bottom, width, height);
+      case ExifInterface.ORIENTATION_ROTATE_180:
+        return new TiledBarcode(
+            barcode,
+            format,
+            rawValue,
+            width - right,
+            height - bottom,
+            width - left,
+            height - top,
+            width,
+            height);
+      case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+        return new TiledBarcode(
+            barcode, format, rawValue, left, height - bottom, right, height - top, width, height);
+      case ExifInterface.ORIENTATION_TRANSPOSE:
+        return new TiledBarcode(barcode, format, rawValue, top, left, bottom, right, height, width);
+      case ExifInterface.ORIENTATION_ROTATE_90:
+        return new TiledBarcode(
+            barcode, format, rawValue, height - bottom, left, height - top, right, height, width);
+      case ExifInterface.ORIENTATION_TRANSVERSE:
+        return new TiledBarcode(
+            barcode,
+            format,
+            rawValue,
+            height - bottom,
+            width - right,
+            height - top,
+            width - left,
+            height,
+            width);
+      case ExifInterface.ORIENTATION_ROTATE_270:
+        return new TiledBarcode(
+            barcode, format, rawValue, top, width - right, bottom, width - left, height, width);
+      default:
+        return new TiledBarcode(barcode, format, rawValue, left, top, right, bottom, width, height);
+    }
+  }
+
+  /**
+   * Merges barcodes found more than once: two barcodes of the same format are one if they have
+   * the same value and their bounds intersect, or if they have no value and mostly overlap. The
+   * larger of the two is kept, since a tile may only show part of a code. The result is sorted
+   * from top to bottom, then from left to right.
+   */
+  static List<TiledBarcode> merge(List<TiledBarcode> barcodes) {
+    List<TiledBarcode> merged = new ArrayList<>(barcodes.size());
+    for (TiledBarcode barcode : barcodes) {
+      int duplicate = -1;
+      for (int i = 0; i < merged.size() && duplicate < 0; i++) {
+        if (isSameCode(merged.get(i), barcode)) {
+          duplicate = i;
+        }
+      }
+      if (duplicate < 0) {
+        merged.add(barcode);
+      } else if (barcode.getArea() > merged.get(duplicate).getArea()) {
+        merged.set(duplicate, barcode);
+      }
+    }
+    Collections.sort(
+        merged,
+        (a, b) ->
+            a.getTop() != b.getTop()
+                ? Integer.compare(a.getTop(), b.getTop())
+                : Integer.compare(a.getLeft(), b.getLeft()));
+    return merged;
+  }
+
+  private static boolean isSameCode(TiledBarcode a, TiledBarcode b) {
+    if (a.getFormat() != b.getFormat()) {
+      return false;
+    }
+    int overlapWidth = Math.min(a.getRight(), b.getRight()) - Math.max(a.getLeft(), b.getLeft());
+    int overlapHeight = Math.min(a.getBottom(), b.getBottom()) - Math.max(a.getTop(), b.getTop());
+    long intersection = (long) Math.max(0, overlapWidth) * Math.max(0, overlapHeight);
+    if (a.getRawValue() != null || b.getRawValue() != null) {
+      return intersection > 0 && a.getRawValue() != null && a.getRawValue().equals(b.getRawValue());
+    }
+    return 2 * intersection > Math.min(a.getArea(), b.getArea());
+  }
+
+  /** One image, whose tiles the scanning thread and the helpers take in turn. */
+  private final class TileJob implements Runnable {
+    private final BitmapRegionDecoder decoder;
+    private final int orientation;
+    private final int width;
+    private final int height;
+    private final int[] tileLefts;
+    private final int[] tileTops;
+    private final int tileCount;
+    private final AtomicInteger nextTile = new AtomicInteger();
+    private final AtomicInteger remainingTiles;
+
+    @GuardedBy("this")
+    private final List<TiledBarcode> found = new ArrayList<>();
+
+    @GuardedBy("this")
+    @Nullable
+    private Exception error;
+
+    TileJob(BitmapRegionDecoder decoder, int orientation) {
+      this.decoder = decoder;
+      this.orientation = orientation;
+      width = decoder.getWidth();
+      height = decoder.getHeight();
+      if (Math.max(width, height) > TILE_SIZE) {
+        tileLefts = tileStarts(width, TILE_SIZE, TILE_OVERLAP);
+        tileTops = tileStarts(height, TILE_SIZE, TILE_OVERLAP);
+      } else {
+        // The downscaled pass already sees the image at full resolution.
+        tileLefts = new int[0];
+        tileTops = new int[0];
+      }
+      tileCount = tileLefts.length * tileTops.length;
+      remainingTiles = new AtomicInteger(tileCount);
+    }
+
+    /** Detects the codes in the whole image, downscaled to at most the overview width. */
+    void scanOverview() throws Exception {
+      int sampleSize =
+          SampledImageDecoder.computeSampleSize(
+              width,
+              height,
+              OVERVIEW_WIDTH,
+              Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+      detect(new Rect(0, 0, width, height), sampleSize);
+    }
+
+    @Override
+    public void run() {
+      int tile;
+      while ((tile = nextTile.getAndIncrement()) < tileCount) {
+        int left = tileLefts[tile % tileLefts.length];
+        int top = tileTops[tile / tileLefts.length];
+        try {
+          detect(
+              new Rect(
+                  left, top, Math.min(left + TILE_SIZE, width), Math.min(top + TILE_SIZE, height)),
+              1);
+        } catch (Exception e) {
+          synchronized (this) {
+            if (error == null) {
+              error = e;
+            }
+          }
+        }
+        if (remainingTiles.decrementAndGet() == 0) {
+          synchronized (this) {
+            notifyAll();
+          }
+        }
+      }
+    }
+
+    /** Waits until every tile has been detected, including those taken by helpers. */
+    synchronized void awaitDone() {
+      boolean interrupted = false;
+      while (remainingTiles.get() > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /** Returns the merged barcodes, or throws the first error if no tile found any. */
+    synchronized List<TiledBarcode> getResults() throws Exception {
+      if (error != null) {
+        if (found.isEmpty()) {
+          throw error;
+        }
+        Log.w(TAG, "Some tiles failed", error);
+      }
+      return merge(found);
+    }
+
+    private void detect(Rect region, int sampleSize) throws Exception {
+      BitmapPool pool = BitmapPool.getInstance();
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+      options.inMutable = true;
+      options.inSampleSize = sampleSize;
+      if (sampleSize == 1) {
+        options.inBitmap = pool.getDirty(region.width(), region.height(), Bitmap.Config.ARGB_8888);
+      }
+      Bitmap bitmap = decoder.decodeRegion(region, options);
+      if (bitmap == null) {
+        return;
+      }
+
+      float scale = (float) region.width() / bitmap.getWidth();
+      List<Barcode> barcodes;
+      BarcodeScanner client = clients.take();
+      try {
+        barcodes = Tasks.await(client.process(InputImage.fromBitmap(bitmap, 0)));
+      } finally {
+        clients.add(client);
+        pool.put(bitmap);
+      }
+
+      List<TiledBarcode> upright = new ArrayList<>(barcodes.size());
+      for (Barcode barcode : barcodes) {
+        Rect box = barcode.getBoundingBox();
+        if (box == null) {
+          continue;
+        }
+        upright.add(
+            toUpright(
+                barcode,
+                barcode.getFormat(),
+                barcode.getRawValue(),
+                orientation,
+                width,
+                height,
+                region.left + Math.round(box.left * scale),
+                region.top + Math.round(box.top * scale),
+                region.left + Math.round(box.right * scale),
+                region.top + Math.round(box.bottom * scale)));
+      }
+      synchronized (this) {
+        found.addAll(upright);
+      }
+    }
+  }
+}
@@ -210,26 +210,43 @@ public final class ViewfinderView extends View {
         }
     }
 
-    @SuppressLint("DrawAllocation")
-    @Override
-    public void onDraw(Canvas canvas) {
-        int width = canvas.getWidth();
-        int height = canvas.getHeight();
-        int txtMargin = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 20,getResources().getDisplayMetrics());
-
+    /**
+     * 计算扫描框在View中的位置
+     */
+    private Rect computeFrame(int width, int height) {
         int frameWidth = (int) (width * scanFrameSizeScale);
         if (isFullScreenScan) {
             frameWidth = width * 9 / 10;
         }
         int left = (width - frameWidth) / 2;
         int top = (height - frameWidth) / 2;
-        frame = new Rect(left, top, left + frameWidth, top + frameWidth);
+        return new Rect(left, top, left + frameWidth, top + frameWidth);
+    }
+
+    /**
+     * 获取扫描框在View中的位置，用于只识别扫描框内的区域
+     * @return 扫描框位置；全屏扫描或View尚未布局时返回null
+     */
+    @Nullable
+    public Rect getFrameRect() {
+        if (isFullScreenScan || getWidth() == 0 || getHeight() == 0) {
+            return null;
+        }
+        return computeFrame(getWidth(), getHeight());
+    }
+
+    public boolean isFullScreenScan() {
+        return isFullScreenScan;
+    }
+
+    @SuppressLint("DrawAllocation")
+    @Override
+    public void onDraw(Canvas canvas) {
+        int width = canvas.getWidth();
+        int height = canvas.getHeight();
+        int txtMargin = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 20,getResources().getDisplayMetrics());
 
-        //重新赋值
-        frame.top = (height - (frame.right - frame.left)) / 2;
-        frame.bottom = frame.top + (frame.right - frame.left);
-        frame.left = (width - (frame.right - frame.left)) / 2;
-        frame.right = frame.left + (frame.right - frame.left);
+        frame = computeFrame(width, height);
 
         paintLine.setShader(null);
         //四角线块
@@ -26,11 +26,83 @@ public interface VisionImageProcessor {
   /** Processes a bitmap image. */
   void processBitmap(Bitmap bitmap, GraphicOverlay graphicOverlay);
 
-  /** Processes ByteBuffer image data, e.g. used for Camera1 live preview case. */
+  /**
+   * Processes ByteBuffer image data, e.g. used for Camera1 live preview case. The metadata is reused
+   * by the caller once this returns, see {@link FrameMetadata}.
+   */
   void processByteBuffer(
       ByteBuffer data, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay)
       throws MlKitException;
 
+  /**
+   * Processes a live preview frame of the {@link CameraSource} pipeline. The frame goes back to the
+   * camera once this returns, unless the processor keeps it with {@link PipelineFrame#retain()} to
+   * read its data later, e.g. while an asynchronous detection runs on it. Defaults to {@link
+   * #processByteBuffer}, which may only read the data during the call.
+   */
+  default void processFrame(
+      PipelineFrame frame, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay)
+      throws MlKitException {
+    processByteBuffer(frame.getData(), frameMetadata, graphicOverlay);
+  }
+
+  /**
+   * Returns whether a live preview frame received at {@code entryTimeMs} is worth preprocessing
+   * and handing to {@link #processFrame}. Frames that are rejected are returned to the camera
+   * right away.
+   *
+   * @param entryTimeMs the {@link android.os.SystemClock#elapsedRealtime()} at which the frame
+   *     was received from the camera, see {@link FrameMetadata#getPipelineEntryTimeMs()}. This is
+   *     not the sensor capture time, which can lag it by the camera's own latency.
+   */
+  default boolean shouldAdmitFrame(long entryTimeMs) {
+    return true;
+  }
+
+  /**
+   * Called for live preview frames in which the scene changed noticeably since the previous frame,
+   * before {@link #shouldAdmitFrame(long)} is asked about the same frame.
+   *
+   * @param entryTimeMs the time the frame was received from the camera, as for {@link
+   *     #shouldAdmitFrame(long)}
+   */
+  default void onSceneMotion(long entryTimeMs) {}
+
+  /**
+   * Returns the fraction of the camera resolution this processor detects at, e.g. 0.5 to detect on
+   * frames downscaled to half the width and height. Results are reported in the coordinates of the
+   * downscaled frame; {@link FrameMetadata#getDetectionScale()} tells the factor.
+   */
+  default float getDetectionScale() {
+    return 1f;
+  }
+
+  /**
+   * Returns how many live preview frames this processor has finished detecting, or -1 if it does not
+   * keep count. Used to measure the detection throughput, e.g. by {@link PreviewAutoTuner}.
+   */
+  default long getDetectionCount() {
+    return -1;
+  }
+
+  /**
+   * Returns the moving average of the time from handing a live preview frame to {@link
+   * #processFrame} until its result is delivered, in milliseconds, or 0 if unknown.
+   */
+  default float getDetectionLatencyMs() {
+    return 0f;
+  }
+
   /** Stops the underlying machine learning model and release resources. */
   void stop();
+
+  /**
+   * Stops this processor once the detections it has in flight have finished and their results
+   * have been delivered, e.g. after it has been replaced. No frames are handed to it after this is
+   * called. Defaults to {@link #stop()} right away, for processors that are done with a frame when
+   * {@link #processFrame} returns.
+   */
+  default void stopWhenIdle() {
+    stop();
+  }
 }
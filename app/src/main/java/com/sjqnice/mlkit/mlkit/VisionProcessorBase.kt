@@ -23,6 +23,7 @@ import android.os.SystemClock
 import android.util.Log
 import android.widget.Toast
 import androidx.annotation.GuardedBy
+import com.google.android.gms.tasks.OnCompleteListener
 import com.google.android.gms.tasks.OnFailureListener
 import com.google.android.gms.tasks.OnSuccessListener
 import com.google.android.gms.tasks.Task
@@ -38,6 +39,9 @@ import java.lang.Math.min
 import java.nio.ByteBuffer
 import java.util.Timer
 import java.util.TimerTask
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
 
 /**
  * Abstract base class for ML Kit frame processors. Subclasses need to implement {@link
@@ -51,6 +55,18 @@ abstract class VisionProcessorBase<T>(context: Context) : VisionImageProcessor {
   companion object {
     const val MANUAL_TESTING_LOG = "LogTagForTest"
     private const val TAG = "VisionProcessorBase"
+    // Weight of the newest sample in the moving averages of detection latency and frame interval.
+    private const val SMOOTHING_FACTOR = 0.1f
+    // A pending frame older than this many frame intervals is dropped instead of being detected.
+    private const val STALE_FRAME_INTERVALS = 2
+    // Time without results or scene motion after which live detection goes idle.
+    const val DEFAULT_IDLE_TIMEOUT_MS = 10_000L
+    // Interval between detections while idle, i.e. 2 Hz.
+    private const val IDLE_DETECTION_INTERVAL_MS = 500L
+    // Upper bound of maxInFlight.
+    const val MAX_IN_FLIGHT = 4
+    // A detection running this many average latencies no longer holds back later results.
+    private const val STALE_RESULT_LATENCIES = 2
   }
 
   private var activityManager: ActivityManager =
@@ -59,7 +75,10 @@ abstract class VisionProcessorBase<T>(context: Context) : VisionImageProcessor {
   private val executor = ScopedExecutor(TaskExecutors.MAIN_THREAD)
 
   // Whether this processor is already shut down
-  private var isShutdown = false
+  @Volatile private var isShutdown = false
+  // Set by stopWhenIdle(): no more detections start, and the processor stops once the results of
+  // those in flight have been delivered.
+  @GuardedBy("this") private var stopWhenIdleRequested = false
 
   // Used to calculate latency, running in the same thread, no sync needed.
   private var numRuns = 0
@@ -74,12 +93,75 @@ abstract class VisionProcessorBase<T>(context: Context) : VisionImageProcessor {
   private var frameProcessedInOneSecondInterval = 0
   private var framesPerSecond = 0
 
-  // To keep the latest images and its metadata.
-  @GuardedBy("this") private var latestImage: ByteBuffer? = null
+  // Read once, since reading the preferences for every frame allocates.
+  private val liveViewportEnabled = PreferenceUtils.isCameraLiveViewportEnabled(context)
+  private val hideDetectionInfo = PreferenceUtils.shouldHideDetectionInfo(context)
+
+  // Reused from frame to frame, so that the live detection loop does not allocate. A detection
+  // returns to the free list once its result has been delivered or dropped.
+  @GuardedBy("this") private val freeLiveDetections = Array(MAX_IN_FLIGHT) { LiveDetection() }
+  @GuardedBy("this") private var freeLiveDetectionCount = MAX_IN_FLIGHT
+  private val resultOrder = ResultReorderBuffer<LiveDetection>(MAX_IN_FLIGHT)
+  // Detections whose turn has come, in frame order, each waiting for its snapshot if it has one.
+  // They no longer count as in flight, since the detector is done with them.
+  @GuardedBy("this") private val awaitingDelivery = ArrayDeque<LiveDetection>(MAX_IN_FLIGHT)
+  @GuardedBy("this") private val inputImageCache = InputImageCache()
+  // Snapshots of detected frames are rendered on this thread, so that the main thread never
+  // converts frames. Created on first use.
+  @GuardedBy("this") private var snapshotExecutor: ExecutorService? = null
+  private val snapshotter = FrameSnapshotter()
+  private var inferenceInfoGraphic: InferenceInfoGraphic? = null
+  private var inferenceInfoOverlay: GraphicOverlay? = null
+  // Live frame metadata is copied into this, see processFrame(), and swapped with the slot of the
+  // detection that starts on it.
+  @GuardedBy("this") private var latestMetadataSlot = FrameMetadata()
+
+  // To keep the latest frame and its metadata. The frame is retained until its detection has been
+  // delivered, or until a newer frame replaces it.
+  @GuardedBy("this") private var latestFrame: PipelineFrame? = null
   @GuardedBy("this") private var latestImageMetaData: FrameMetadata? = null
-  // To keep the images and metadata in process.
-  @GuardedBy("this") private var processingImage: ByteBuffer? = null
-  @GuardedBy("this") private var processingMetaData: FrameMetadata? = null
+
+  /**
+   * How many live preview frames may be in detection at the same time, from 1 to [MAX_IN_FLIGHT].
+   * More than one keeps the detector busy while it would otherwise wait, e.g. for the main thread
+   * to take a result, at the cost of memory and latency. Results are still delivered in frame
+   * order; a result that falls far behind later ones is dropped instead. Defaults to 1.
+   */
+  @Volatile
+  var maxInFlight = 1
+    set(value) {
+      field = value.coerceIn(1, MAX_IN_FLIGHT)
+    }
+  // Results dropped for arriving after later ones were delivered.
+  @Volatile private var droppedResultCount = 0L
+
+  /**
+   * Whether live results that found something come with a snapshot of their frame, see
+   * [FrameSnapshotter], rendered off the main thread before the result is delivered. Off by
+   * default.
+   */
+  @Volatile var resultSnapshotsEnabled = false
+
+  // Admission control, see shouldAdmitFrame(). The start time is 0 while a detection can start
+  // right away, otherwise the start of the oldest detection in flight.
+  @Volatile private var detectionStartMs = 0L
+  @Volatile private var detectionLatencyMs = 0f
+  @Volatile private var frameIntervalMs = 0f
+  @Volatile private var detectionCount = 0L
+  // Only accessed from the thread calling shouldAdmitFrame().
+  private var lastOfferedEntryMs = 0L
+
+  /**
+   * Live detection goes idle when there was neither a non-empty result nor scene motion for this
+   * long. While idle, only a couple of frames per second are detected; the first frame with scene
+   * motion brings detection back to full rate. 0 disables idling.
+   */
+  @Volatile var idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS
+  // Time of the last non-empty result or scene motion.
+  @Volatile private var lastActivityMs = 0L
+  // Only accessed from the thread calling shouldAdmitFrame().
+  private var lastIdleDetectionMs = 0L
+  private var idle = false
 
   init {
     fpsTimer.scheduleAtFixedRate(
@@ -103,9 +185,10 @@ abstract class VisionProcessorBase<T>(context: Context) : VisionImageProcessor {
       requestDetectInImage(
         mlImage,
         graphicOverlay,
-        /* originalCameraImage= */ null,
+        /* snapshot= */ null,
         /* shouldShowFps= */ false,
-        frameStartMs
+        frameStartMs,
+        /* frameMetadata= */ null
       )
       mlImage.close()
       return
@@ -114,48 +197,242 @@ abstract class VisionProcessorBase<T>(context: Context) : VisionImageProcessor {
     requestDetectInImage(
       InputImage.fromBitmap(bitmap!!, 0),
       graphicOverlay,
-      /* originalCameraImage= */ null,
+      /* snapshot= */ null,
       /* shouldShowFps= */ false,
-      frameStartMs
+      frameStartMs,
+      /* frameMetadata= */ null
     )
   }
 
   // -----------------Code for processing live preview frame from Camera1 API-----------------------
+  /**
+   * Predicts when the frame in detection will finish from the moving average of the detection
+   * latency, and admits a frame only if no later frame is expected to be captured before then. The
+   * frame closest to the predicted finish is thus the one detected next, while the frames before
+   * it, which would only overwrite each other in the latest slot, are never preprocessed.
+   *
+   * All times are taken when frames enter the pipeline, like the detection start times, since the
+   * sensor capture time lags them by the camera's latency, which can be several frame intervals.
+   */
+  override fun shouldAdmitFrame(entryTimeMs: Long): Boolean {
+    if (lastOfferedEntryMs > 0 && entryTimeMs > lastOfferedEntryMs) {
+      frameIntervalMs = smooth(frameIntervalMs, (entryTimeMs - lastOfferedEntryMs).toFloat())
+    }
+    lastOfferedEntryMs = entryTimeMs
+
+    if (isIdle(entryTimeMs)) {
+      if (entryTimeMs - lastIdleDetectionMs < IDLE_DETECTION_INTERVAL_MS ||
+          detectionStartMs != 0L) {
+        return false
+      }
+      lastIdleDetectionMs = entryTimeMs
+      return true
+    }
+
+    val startMs = detectionStartMs
+    val latencyMs = detectionLatencyMs
+    if (startMs == 0L || latencyMs == 0f) {
+      return true
+    }
+    // Once the prediction has passed, every frame is admitted until the detector catches up.
+    return entryTimeMs + frameIntervalMs >= startMs + latencyMs
+  }
+
+  override fun onSceneMotion(entryTimeMs: Long) {
+    lastActivityMs = entryTimeMs
+  }
+
+  private fun isIdle(entryTimeMs: Long): Boolean {
+    if (lastActivityMs == 0L) {
+      lastActivityMs = entryTimeMs
+    }
+    val timeoutMs = idleTimeoutMs
+    val nowIdle = timeoutMs > 0 && entryTimeMs - lastActivityMs > timeoutMs
+    if (nowIdle != idle) {
+      idle = nowIdle
+      Log.d(TAG, if (nowIdle) "Nothing detected, going idle" else "Scene changed, leaving idle")
+    }
+    return nowIdle
+  }
+
   @Synchronized
+  override fun processFrame(
+    frame: PipelineFrame,
+    frameMetadata: FrameMetadata,
+    graphicOverlay: GraphicOverlay
+  ) {
+    // The camera must not refill the buffer while the detector or the snapshot reads it.
+    frame.retain()
+    latestFrame?.release()
+    latestFrame = frame
+    // The caller reuses its metadata once this returns.
+    latestMetadataSlot.set(frameMetadata)
+    latestImageMetaData = latestMetadataSlot
+    processLatestImage(graphicOverlay)
+  }
+
   override fun processByteBuffer(
     data: ByteBuffer?,
     frameMetadata: FrameMetadata?,
     graphicOverlay: GraphicOverlay
   ) {
-    latestImage = data
-    latestImageMetaData = frameMetadata
-    if (processingImage == null && processingMetaData == null) {
-      processLatestImage(graphicOverlay)
+    if (data == null || frameMetadata == null) {
+      return
     }
+    // The caller may refill the buffer once this returns, so a copy is retained instead.
+    val copy = ByteArray(frameMetadata.width * frameMetadata.height * 3 / 2)
+    val source = data.duplicate()
+    source.rewind()
+    source.get(copy)
+    val frame = PipelineFrame(copy)
+    frame.reset(
+      frameMetadata.width,
+      frameMetadata.height,
+      frameMetadata.rotation,
+      frameMetadata.frameId,
+      frameMetadata.captureTimeMs,
+      frameMetadata.pipelineEntryTimeMs
+    )
+    processFrame(frame, frameMetadata, graphicOverlay)
+    frame.release()
   }
 
+  /** Starts detecting the latest image if fewer than [maxInFlight] detections are in flight. */
   @Synchronized
   private fun processLatestImage(graphicOverlay: GraphicOverlay) {
-    processingImage = latestImage
-    processingMetaData = latestImageMetaData
-    latestImage = null
-    latestImageMetaData = null
-    if (processingImage != null && processingMetaData != null && !isShutdown) {
-      processImage(processingImage!!, processingMetaData!!, graphicOverlay)
+    // A released detection may not be back in the free list yet.
+    if (resultOrder.size() < maxInFlight && freeLiveDetectionCount > 0) {
+      val frame = latestFrame
+      val frameMetadata = latestImageMetaData
+      latestFrame = null
+      latestImageMetaData = null
+      // A stale frame is skipped, since a fresher one is about to arrive and will start right away.
+      if (frame != null && frameMetadata != null && !isStale(frameMetadata) && !isShutdown &&
+          !stopWhenIdleRequested) {
+        val detection = freeLiveDetections[--freeLiveDetectionCount]
+        // The metadata of the frame moves to the detection, and its previous slot becomes free.
+        latestMetadataSlot = detection.swapMetadata(latestMetadataSlot)
+        val nowMs = SystemClock.elapsedRealtime()
+        detection.sequence = resultOrder.add(detection, nowMs)
+        // The detection takes over the hold on the frame.
+        processImage(frame, detection.frameMetadata, graphicOverlay, detection)
+      } else {
+        frame?.release()
+      }
+    }
+    detectionStartMs = if (resultOrder.size() < maxInFlight) 0L else resultOrder.oldestStartTimeMs
+  }
+
+  @Synchronized
+  private fun releaseLiveDetection(detection: LiveDetection) {
+    detection.clear()
+    freeLiveDetections[freeLiveDetectionCount++] = detection
+  }
+
+  // Measured from when the frame entered the pipeline: the sensor capture time lags that by the
+  // camera's latency, which would make every frame look stale on some devices.
+  private fun isStale(frameMetadata: FrameMetadata): Boolean {
+    val intervalMs = frameIntervalMs
+    if (frameMetadata.pipelineEntryTimeMs == 0L || intervalMs == 0f) {
+      return false
     }
+    val ageMs = SystemClock.elapsedRealtime() - frameMetadata.pipelineEntryTimeMs
+    return ageMs > intervalMs * STALE_FRAME_INTERVALS
+  }
+
+  /**
+   * Records the latency of a finished live detection, delivers the results that are due in frame
+   * order and starts the next detection. A snapshot that is still being rendered only holds back
+   * the delivery, not the latency or the next detection.
+   */
+  private fun onLiveFrameDetected(detection: LiveDetection) {
+    val graphicOverlay = detection.graphicOverlay
+    val nowMs = SystemClock.elapsedRealtime()
+    val latencyMs = smooth(detectionLatencyMs, (nowMs - detection.detectorStartMs).toFloat())
+    detectionLatencyMs = latencyMs
+    detectionCount++
+
+    val staleAfterMs = (latencyMs * STALE_RESULT_LATENCIES).toLong()
+    if (resultOrder.complete(detection.sequence, nowMs, staleAfterMs)) {
+      synchronized(this) {
+        var next = resultOrder.poll()
+        while (next != null) {
+          awaitingDelivery.addLast(next)
+          next = resultOrder.poll()
+        }
+      }
+      deliverReadyResults()
+    } else {
+      droppedResultCount++
+      detection.dropped = true
+      // A snapshot being rendered still reads the frame; the detection is released once it is done.
+      if (!detection.snapshotPending) {
+        releaseLiveDetection(detection)
+      }
+    }
+    processLatestImage(graphicOverlay)
+    if (takeDueStop()) {
+      stop()
+    }
+  }
+
+  /** Delivers the results awaiting delivery in frame order, up to the first missing its snapshot. */
+  private fun deliverReadyResults() {
+    while (true) {
+      val next =
+        synchronized(this) {
+          val head = awaitingDelivery.firstOrNull()
+          if (head == null || head.snapshotPending) null else awaitingDelivery.removeFirst()
+        }
+          ?: return
+      if (!isShutdown) {
+        next.deliver()
+      }
+      releaseLiveDetection(next)
+    }
+  }
+
+  override fun stopWhenIdle() {
+    synchronized(this) {
+      stopWhenIdleRequested = true
+      latestFrame?.release()
+      latestFrame = null
+      latestImageMetaData = null
+    }
+    if (takeDueStop()) {
+      stop()
+    }
+  }
+
+  /**
+   * Returns true once [stopWhenIdle] has been called and no detection is in flight or awaiting
+   * delivery anymore, and false after that, so that exactly one caller stops the processor.
+   */
+  @Synchronized
+  private fun takeDueStop(): Boolean {
+    if (!stopWhenIdleRequested || resultOrder.size() > 0 || awaitingDelivery.isNotEmpty()) {
+      return false
+    }
+    stopWhenIdleRequested = false
+    return true
+  }
+
+  override fun getDetectionCount(): Long = detectionCount
+
+  override fun getDetectionLatencyMs(): Float = detectionLatencyMs
+
+  private fun smooth(average: Float, sample: Float): Float {
+    return if (average == 0f) sample else average + SMOOTHING_FACTOR * (sample - average)
   }
 
   private fun processImage(
-    data: ByteBuffer,
+    frame: PipelineFrame,
     frameMetadata: FrameMetadata,
-    graphicOverlay: GraphicOverlay
+    graphicOverlay: GraphicOverlay,
+    detection: LiveDetection
   ) {
     val frameStartMs = SystemClock.elapsedRealtime()
-    // If live viewport is on (that is the underneath surface view takes care of the camera preview
-    // drawing), skip the unnecessary bitmap creation that used for the manual preview drawing.
-    val bitmap =
-      if (PreferenceUtils.isCameraLiveViewportEnabled(graphicOverlay.context)) null
-      else BitmapUtils.getBitmap(data, frameMetadata)
+    val data = frame.data
 
     if (isMlImageEnabled(graphicOverlay.context)) {
       val mlImage =
@@ -167,28 +444,186 @@ abstract class VisionProcessorBase<T>(context: Context) : VisionImageProcessor {
           )
           .setRotation(frameMetadata.rotation)
           .build()
-      requestDetectInImage(mlImage, graphicOverlay, bitmap, /* shouldShowFps= */ true, frameStartMs)
-        .addOnSuccessListener(executor) { processLatestImage(graphicOverlay) }
+      detection.start(
+        detectInImage(mlImage),
+        graphicOverlay,
+        frame,
+        frameStartMs,
+        /* image= */ null
+      )
 
       // This is optional. Java Garbage collection can also close it eventually.
       mlImage.close()
       return
     }
 
-    requestDetectInImage(
-      InputImage.fromByteBuffer(
-        data,
-        frameMetadata.width,
-        frameMetadata.height,
-        frameMetadata.rotation,
-        InputImage.IMAGE_FORMAT_NV21
-      ),
-      graphicOverlay,
-      bitmap,
-      /* shouldShowFps= */ true,
-      frameStartMs
-    )
-      .addOnSuccessListener(executor) { processLatestImage(graphicOverlay) }
+    val image =
+      inputImageCache.get(data, frameMetadata.width, frameMetadata.height, frameMetadata.rotation)
+    detection.start(detectInImage(image), graphicOverlay, frame, frameStartMs, image)
+  }
+
+  /**
+   * Whether the frame of a live detection is worth a snapshot: for the results of frames with
+   * something found if [resultSnapshotsEnabled], and for every frame if the overlay draws the
+   * preview itself because the live viewport is off.
+   */
+  private fun needsSnapshot(results: T): Boolean {
+    return !liveViewportEnabled || (resultSnapshotsEnabled && !isEmptyResult(results))
+  }
+
+  @Synchronized
+  private fun getSnapshotExecutor(): ExecutorService {
+    return snapshotExecutor
+      ?: Executors.newSingleThreadExecutor { runnable ->
+          Thread(runnable, "FrameSnapshot").apply { isDaemon = true }
+        }
+        .also { snapshotExecutor = it }
+  }
+
+  /**
+   * Listens to a live detection in flight and keeps its result until it is delivered in frame
+   * order. Instances are recycled for later frames instead of allocating listeners per frame. The
+   * listener runs on the main thread directly rather than through the scoped executor, whose
+   * wrapping would allocate, and checks for shutdown itself.
+   *
+   * <p>The detection holds its frame from the start of detection until the result has been
+   * delivered, so the detector, the snapshot and the result callback all see the data that was
+   * detected.
+   */
+  private inner class LiveDetection : OnCompleteListener<T> {
+    lateinit var graphicOverlay: GraphicOverlay
+    // The metadata of the frame in detection, owned by this detection until it is released.
+    var frameMetadata = FrameMetadata()
+      private set
+    var sequence = 0L
+    var detectorStartMs = 0L
+      private set
+    // Set on the main thread while the snapshot is rendered, cleared there once it is done.
+    var snapshotPending = false
+      private set
+    // Whether the result fell too far behind later ones and is not delivered.
+    var dropped = false
+    private var frame: PipelineFrame? = null
+    // Taken from the bitmap pool, and handed over with the result.
+    private var snapshot: Bitmap? = null
+    private var frameStartMs = 0L
+    private var image: InputImage? = null
+    private var results: T? = null
+    private var error: Exception? = null
+
+    // Kept rather than created per result, since results with snapshots may come every frame.
+    private val renderSnapshot = Runnable {
+      val current = frame
+      if (current != null) {
+        snapshot =
+          try {
+            snapshotter.render(current.data, frameMetadata, graphicOverlay)
+          } catch (e: RuntimeException) {
+            Log.e(TAG, "Failed to render a snapshot", e)
+            null
+          }
+      }
+      TaskExecutors.MAIN_THREAD.execute(snapshotRendered)
+    }
+    private val snapshotRendered = Runnable {
+      val overlay = graphicOverlay
+      snapshotPending = false
+      if (dropped) {
+        releaseLiveDetection(this)
+      } else {
+        deliverReadyResults()
+      }
+      // A detection is free again for the next frame.
+      processLatestImage(overlay)
+      if (takeDueStop()) {
+        stop()
+      }
+    }
+
+    /** Takes over the given metadata slot and returns the slot this detection held before. */
+    fun swapMetadata(slot: FrameMetadata): FrameMetadata {
+      val previous = frameMetadata
+      frameMetadata = slot
+      return previous
+    }
+
+    /** Starts listening to [task], which detects on [frame]; takes over a hold on the frame. */
+    fun start(
+      task: Task<T>,
+      graphicOverlay: GraphicOverlay,
+      frame: PipelineFrame,
+      frameStartMs: Long,
+      image: InputImage?
+    ) {
+      this.graphicOverlay = graphicOverlay
+      this.frame = frame
+      this.frameStartMs = frameStartMs
+      this.detectorStartMs = SystemClock.elapsedRealtime()
+      this.image = image
+      task.addOnCompleteListener(TaskExecutors.MAIN_THREAD, this)
+    }
+
+    override fun onComplete(task: Task<T>) {
+      if (isShutdown) {
+        clear()
+        return
+      }
+      if (task.isSuccessful) {
+        results = task.result
+      } else {
+        error = task.exception ?: MlKitException("Detection failed", MlKitException.UNKNOWN)
+      }
+      val current = results
+      if (current != null && needsSnapshot(current)) {
+        snapshotPending = true
+        try {
+          getSnapshotExecutor().execute(renderSnapshot)
+        } catch (e: RejectedExecutionException) {
+          // Stopped meanwhile; the result goes without a snapshot.
+          snapshotPending = false
+        }
+      }
+      // The detector is done, whether or not the snapshot is.
+      onLiveFrameDetected(this)
+    }
+
+    /** Hands the result to the subclass, once the results of all earlier frames have been. */
+    @Suppress("UNCHECKED_CAST")
+    fun deliver() {
+      val e = error
+      if (e != null) {
+        handleFailure(e, graphicOverlay)
+      } else {
+        val shown =
+          handleSuccess(
+            results as T,
+            graphicOverlay,
+            snapshot,
+            /* shouldShowFps= */ true,
+            frameStartMs,
+            detectorStartMs,
+            frameMetadata,
+            image
+          )
+        if (shown) {
+          // The subclass and the overlay own the snapshot now.
+          snapshot = null
+        }
+      }
+    }
+
+    /** Releases the frame and a snapshot that was not handed over. */
+    fun clear() {
+      snapshotPending = false
+      dropped = false
+      frame?.release()
+      frame = null
+      snapshot?.let { BitmapPool.getInstance().put(it) }
+      snapshot = null
+      image = null
+      results = null
+      error = null
+    }
   }
 
   // -----------------Common processing logic-------------------------------------------------------
@@ -197,7 +632,8 @@ abstract class VisionProcessorBase<T>(context: Context) : VisionImageProcessor {
     graphicOverlay: GraphicOverlay,
     originalCameraImage: Bitmap?,
     shouldShowFps: Boolean,
-    frameStartMs: Long
+    frameStartMs: Long,
+    frameMetadata: FrameMetadata?
   ): Task<T> {
     return setUpListener(
       detectInImage(image),
@@ -205,6 +641,7 @@ abstract class VisionProcessorBase<T>(context: Context) : VisionImageProcessor {
       originalCameraImage,
       shouldShowFps,
       frameStartMs,
+      frameMetadata,
       image
     )
   }
@@ -214,7 +651,8 @@ abstract class VisionProcessorBase<T>(context: Context) : VisionImageProcessor {
     graphicOverlay: GraphicOverlay,
     originalCameraImage: Bitmap?,
     shouldShowFps: Boolean,
-    frameStartMs: Long
+    frameStartMs: Long,
+    frameMetadata: FrameMetadata?
   ): Task<T> {
     return setUpListener(
       detectInImage(image),
@@ -222,6 +660,7 @@ abstract class VisionProcessorBase<T>(context: Context) : VisionImageProcessor {
       originalCameraImage,
       shouldShowFps,
       frameStartMs,
+      frameMetadata,
       null
     )
   }
@@ -232,6 +671,7 @@ abstract class VisionProcessorBase<T>(context: Context) : VisionImageProcessor {
     originalCameraImage: Bitmap?,
     shouldShowFps: Boolean,
     frameStartMs: Long,
+    frameMetadata: FrameMetadata?,
     image: InputImage?,
   ): Task<T> {
     val detectorStartMs = SystemClock.elapsedRealtime()
@@ -239,91 +679,215 @@ abstract class VisionProcessorBase<T>(context: Context) : VisionImageProcessor {
       .addOnSuccessListener(
         executor,
         OnSuccessListener { results: T ->
-          val endMs = SystemClock.elapsedRealtime()
-          val currentFrameLatencyMs = endMs - frameStartMs
-          val currentDetectorLatencyMs = endMs - detectorStartMs
-          if (numRuns >= 500) {
-            resetLatencyStats()
-          }
-          numRuns++
-          frameProcessedInOneSecondInterval++
-          totalFrameMs += currentFrameLatencyMs
-          maxFrameMs = max(currentFrameLatencyMs, maxFrameMs)
-          minFrameMs = min(currentFrameLatencyMs, minFrameMs)
-          totalDetectorMs += currentDetectorLatencyMs
-          maxDetectorMs = max(currentDetectorLatencyMs, maxDetectorMs)
-          minDetectorMs = min(currentDetectorLatencyMs, minDetectorMs)
-
-          // Only log inference info once per second. When frameProcessedInOneSecondInterval is
-          // equal to 1, it means this is the first frame processed during the current second.
-          if (frameProcessedInOneSecondInterval == 1) {
-            Log.d(TAG, "Num of Runs: $numRuns")
-            Log.d(
-              TAG,
-              "Frame latency: max=" +
-                maxFrameMs +
-                ", min=" +
-                minFrameMs +
-                ", avg=" +
-                totalFrameMs / numRuns
-            )
-            Log.d(
-              TAG,
-              "Detector latency: max=" +
-                maxDetectorMs +
-                ", min=" +
-                minDetectorMs +
-                ", avg=" +
-                totalDetectorMs / numRuns
-            )
-            val mi = ActivityManager.MemoryInfo()
-            activityManager.getMemoryInfo(mi)
-            val availableMegs: Long = mi.availMem / 0x100000L
-            Log.d(TAG, "Memory available in system: $availableMegs MB")
-            graphicOverlay.clear()
-            if (originalCameraImage != null) {
-              graphicOverlay.add(CameraImageGraphic(graphicOverlay, originalCameraImage))
-            }
-            this@VisionProcessorBase.onSuccess(results, graphicOverlay,image)
-          }
-          /*graphicOverlay.clear()
-          if (originalCameraImage != null) {
-            graphicOverlay.add(CameraImageGraphic(graphicOverlay, originalCameraImage))
-          }
-          this@VisionProcessorBase.onSuccess(results, graphicOverlay,image)*/
-          if (!PreferenceUtils.shouldHideDetectionInfo(graphicOverlay.context)) {
-            graphicOverlay.add(
-              InferenceInfoGraphic(
-                graphicOverlay,
-                currentFrameLatencyMs,
-                currentDetectorLatencyMs,
-                if (shouldShowFps) framesPerSecond else null
-              )
-            )
-          }
-          graphicOverlay.postInvalidate()
+          handleSuccess(
+            results,
+            graphicOverlay,
+            originalCameraImage,
+            shouldShowFps,
+            frameStartMs,
+            detectorStartMs,
+            frameMetadata,
+            image
+          )
         }
       )
       .addOnFailureListener(
         executor,
-        OnFailureListener { e: Exception ->
-          graphicOverlay.clear()
-          graphicOverlay.postInvalidate()
-          val error = "Failed to process. Error: " + e.localizedMessage
-          Toast.makeText(
-              graphicOverlay.context,
-              """
-          $error
-          Cause: ${e.cause}
-          """.trimIndent(),
-              Toast.LENGTH_SHORT
+        OnFailureListener { e: Exception -> handleFailure(e, graphicOverlay) }
+      )
+  }
+
+  /**
+   * Returns whether the results were shown, which happens for one frame per second. A shown
+   * snapshot belongs to the overlay or the subclass afterwards.
+   */
+  private fun handleSuccess(
+    results: T,
+    graphicOverlay: GraphicOverlay,
+    snapshot: Bitmap?,
+    shouldShowFps: Boolean,
+    frameStartMs: Long,
+    detectorStartMs: Long,
+    frameMetadata: FrameMetadata?,
+    image: InputImage?
+  ): Boolean {
+    val endMs = SystemClock.elapsedRealtime()
+    val currentFrameLatencyMs = endMs - frameStartMs
+    val currentDetectorLatencyMs = endMs - detectorStartMs
+    if (numRuns >= 500) {
+      resetLatencyStats()
+    }
+    if (!isEmptyResult(results)) {
+      lastActivityMs = endMs
+    }
+    numRuns++
+    frameProcessedInOneSecondInterval++
+    totalFrameMs += currentFrameLatencyMs
+    maxFrameMs = max(currentFrameLatencyMs, maxFrameMs)
+    minFrameMs = min(currentFrameLatencyMs, minFrameMs)
+    totalDetectorMs += currentDetectorLatencyMs
+    maxDetectorMs = max(currentDetectorLatencyMs, maxDetectorMs)
+    minDetectorMs = min(currentDetectorLatencyMs, minDetectorMs)
+
+    // Only log inference info once per second. When frameProcessedInOneSecondInterval is
+    // equal to 1, it means this is the first frame processed during the current second.
+    val shown = frameProcessedInOneSecondInterval == 1
+    if (shown) {
+      Log.d(TAG, "Num of Runs: $numRuns")
+      if (shouldShowFps) {
+        // Compare these across maxInFlight settings to find the depth that suits the device.
+        Log.d(
+          TAG,
+          "Max in flight: " +
+            maxInFlight +
+            ", detections/s: " +
+            framesPerSecond +
+            ", dropped results: " +
+            droppedResultCount
+        )
+      }
+      if (frameMetadata != null && frameMetadata.captureTimeMs != 0L) {
+        Log.d(
+          TAG,
+          "Frame #" +
+            frameMetadata.frameId +
+            ": capture to result=" +
+            (endMs - frameMetadata.captureTimeMs) +
+            ", capture to pipeline=" +
+            (frameMetadata.pipelineEntryTimeMs - frameMetadata.captureTimeMs) +
+            ", pipeline to detection=" +
+            (frameStartMs - frameMetadata.pipelineEntryTimeMs)
+        )
+      }
+      Log.d(
+        TAG,
+        "Frame latency: max=" +
+          maxFrameMs +
+          ", min=" +
+          minFrameMs +
+          ", avg=" +
+          totalFrameMs / numRuns
+      )
+      Log.d(
+        TAG,
+        "Detector latency: max=" +
+          maxDetectorMs +
+          ", min=" +
+          minDetectorMs +
+          ", avg=" +
+          totalDetectorMs / numRuns
+      )
+      val mi = ActivityManager.MemoryInfo()
+      activityManager.getMemoryInfo(mi)
+      val availableMegs: Long = mi.availMem / 0x100000L
+      Log.d(TAG, "Memory available in system: $availableMegs MB")
+      val bitmapPool = BitmapPool.getInstance()
+      Log.d(
+        TAG,
+        "Bitmap pool: hits=" +
+          bitmapPool.hitCount +
+          ", misses=" +
+          bitmapPool.missCount +
+          ", evictions=" +
+          bitmapPool.evictionCount +
+          ", size=" +
+          bitmapPool.currentSizeBytes / 1024 +
+          " KB"
+      )
+      // The results are shown as one scene: the overlay keeps drawing the previous results until
+      // all graphics of these have been added.
+      graphicOverlay.beginScene()
+      try {
+        // Results of a cropped or scaled frame are drawn where they are in the preview.
+        if (frameMetadata != null) {
+          graphicOverlay.setDetectionTransform(
+            frameMetadata.detectionOffsetX,
+            frameMetadata.detectionOffsetY,
+            frameMetadata.detectionScale
+          )
+        } else {
+          graphicOverlay.setDetectionTransform(0f, 0f, 1f)
+        }
+        // A snapshot of results goes to the subclass, which then draws or recycles it. Others are
+        // only taken when the overlay draws the preview, and go back to the pool with the graphic.
+        val handOver = resultSnapshotsEnabled && !isEmptyResult(results)
+        if (snapshot != null && !handOver) {
+          graphicOverlay.add(
+            CameraImageGraphic(
+              graphicOverlay,
+              snapshot,
+              BitmapPool.getInstance(),
+              /* viewSized= */ true
             )
-            .show()
-          Log.d(TAG, error)
-          e.printStackTrace()
-          this@VisionProcessorBase.onFailure(e)
+          )
+        }
+        this@VisionProcessorBase.onSuccess(
+          results,
+          graphicOverlay,
+          image,
+          frameMetadata,
+          if (handOver) snapshot else null
+        )
+        if (!hideDetectionInfo) {
+          graphicOverlay.add(
+            updateInferenceInfo(
+              graphicOverlay,
+              currentFrameLatencyMs,
+              currentDetectorLatencyMs,
+              shouldShowFps
+            )
+          )
         }
+      } finally {
+        graphicOverlay.publishScene()
+      }
+    } else if (!hideDetectionInfo) {
+      // The graphic is already in the shown scene, only its numbers change.
+      updateInferenceInfo(
+        graphicOverlay,
+        currentFrameLatencyMs,
+        currentDetectorLatencyMs,
+        shouldShowFps
+      )
+      graphicOverlay.postInvalidate()
+    }
+    return shown
+  }
+
+  private fun handleFailure(e: Exception, graphicOverlay: GraphicOverlay) {
+    graphicOverlay.clear()
+    graphicOverlay.postInvalidate()
+    val error = "Failed to process. Error: " + e.localizedMessage
+    Toast.makeText(
+        graphicOverlay.context,
+        """
+    $error
+    Cause: ${e.cause}
+    """.trimIndent(),
+        Toast.LENGTH_SHORT
       )
+      .show()
+    Log.d(TAG, error)
+    e.printStackTrace()
+    this@VisionProcessorBase.onFailure(e)
+  }
+
+  private fun updateInferenceInfo(
+    graphicOverlay: GraphicOverlay,
+    frameLatencyMs: Long,
+    detectorLatencyMs: Long,
+    shouldShowFps: Boolean
+  ): InferenceInfoGraphic =
+    obtainInferenceInfoGraphic(graphicOverlay)
+      .update(frameLatencyMs, detectorLatencyMs, if (shouldShowFps) framesPerSecond else -1)
+
+  private fun obtainInferenceInfoGraphic(graphicOverlay: GraphicOverlay): InferenceInfoGraphic {
+    val graphic = inferenceInfoGraphic
+    if (graphic != null && inferenceInfoOverlay === graphicOverlay) {
+      return graphic
+    }
+    inferenceInfoOverlay = graphicOverlay
+    return InferenceInfoGraphic(graphicOverlay, 0, 0, null).also { inferenceInfoGraphic = it }
   }
 
   override fun stop() {
@@ -331,6 +895,16 @@ abstract class VisionProcessorBase<T>(context: Context) : VisionImageProcessor {
     isShutdown = true
     resetLatencyStats()
     fpsTimer.cancel()
+    synchronized(this) {
+      // Detections in flight release their frames as they complete.
+      latestFrame?.release()
+      latestFrame = null
+      snapshotExecutor?.let {
+        it.execute { snapshotter.release() }
+        it.shutdown()
+      }
+      snapshotExecutor = null
+    }
   }
 
   private fun resetLatencyStats() {
@@ -354,10 +928,33 @@ abstract class VisionProcessorBase<T>(context: Context) : VisionImageProcessor {
     )
   }
 
-  protected abstract fun onSuccess(results: T, graphicOverlay: GraphicOverlay,image: InputImage?)
+  /**
+   * Called with the results of a successful detection.
+   *
+   * @param image the image detected; for live preview frames only valid during the call
+   * @param frameMetadata the metadata of the live preview frame the results were detected in, with
+   *   its sequence number and timestamps, or null for still images
+   * @param snapshot the live preview frame the results were detected in as the overlay shows it,
+   *   see [resultSnapshotsEnabled], or null. It belongs to the subclass, which draws it with a
+   *   [CameraImageGraphic] that hands it back to the [BitmapPool] once removed, puts it back into
+   *   the pool when done with it, or passes it to [CameraImageGraphic.showOrRecycleSnapshot]. If
+   *   the overlay draws the preview, it is the only preview of these results.
+   */
+  protected abstract fun onSuccess(
+    results: T,
+    graphicOverlay: GraphicOverlay,
+    image: InputImage?,
+    frameMetadata: FrameMetadata?,
+    snapshot: Bitmap?
+  )
 
   protected abstract fun onFailure(e: Exception)
 
+  /** Returns whether the results contain nothing, which lets live detection go idle over time. */
+  protected open fun isEmptyResult(results: T): Boolean {
+    return results == null || (results is Collection<*> && results.isEmpty())
+  }
+
   protected open fun isMlImageEnabled(context: Context?): Boolean {
     return false
   }
@@ -0,0 +1,259 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.media.Image;
+import java.nio.ByteBuffer;
+
+/**
+ * Repacks YUV_420_888 planes into an NV21 array supplied by the caller.
+ *
+ * <p>Rows are read with bulk gets, honouring the row stride of each plane, so padded rows and a
+ * last row that is shorter than the row stride are both handled. Luma rows with a pixel stride of
+ * 1 are copied straight into the output. When the V and U planes are views of one interleaved VU
+ * buffer, which is the common camera layout, each chroma row is copied in bulk as well; other
+ * chroma layouts are read a row at a time and interleaved from a scratch array. Large frames are
+ * repacked in {@link RowBands} on several cores.
+ */
+public final class YuvRepacker {
+
+  /** Frames with fewer pixels are repacked on the calling thread only. */
+  private static final int PARALLEL_MIN_PIXELS = 640 * 480;
+
+  private YuvRepacker() {}
+
+  /**
+   * Repacks the planes of an image into {@code out}.
+   *
+   * @param vuInterleaved whether the V and U planes share one interleaved buffer, see {@link
+   *     #getChromaLayout}
+   * @param out receives the frame, at least {@code width * height * 3 / 2} bytes
+   */
+  public static void toNv21(
+      Image.Plane[] planes, int width, int height, boolean vuInterleaved, byte[] out) {
+    Image.Plane y = planes[0];
+    Image.Plane u = planes[1];
+    Image.Plane v = planes[2];
+    toNv21(
+        y.getBuffer(),
+        y.getRowStride(),
+        y.getPixelStride(),
+        u.getBuffer(),
+        u.getRowStride(),
+        u.getPixelStride(),
+        v.getBuffer(),
+        v.getRowStride(),
+        v.getPixelStride(),
+        width,
+        height,
+        vuInterleaved,
+        out);
+  }
+
+  /** The V and U planes are views of one buffer holding V and U interleaved. */
+  public static final int CHROMA_VU_INTERLEAVED = 0;
+  /** The V and U planes are separate buffers, or views that do not interleave as VU. */
+  public static final int CHROMA_SEPARATE = 1;
+  /** The layout could not be told from this image; repack it as separate planes meanwhile. */
+  public static final int CHROMA_UNKNOWN = 2;
+
+  /**
+   * Returns whether the V and U planes are views of one buffer holding V and U interleaved, with
+   * the U view starting one byte after the V view. Checks per call, see {@link #getChromaLayout}.
+   */
+  public static boolean isVuInterleaved(Image.Plane[] planes) {
+    return getChromaLayout(planes) == CHROMA_VU_INTERLEAVED;
+  }
+
+  /**
+   * Returns how the chroma planes of an image are laid out, one of {@link #CHROMA_VU_INTERLEAVED},
+   * {@link #CHROMA_SEPARATE} or {@link #CHROMA_UNKNOWN}.
+   *
+   * <p>Writable planes are probed: a byte of the V view is flipped and restored, and the views
+   * share one buffer if the U view sees the change. Read-only planes can only be compared, which
+   * cannot tell a shared buffer from separate ones holding the same values, e.g. on a uniformly
+   * grey frame; {@link #CHROMA_UNKNOWN} is returned then, so that callers that cache the layout
+   * check again on a later frame.
+   */
+  public static int getChromaLayout(Image.Plane[] planes) {
+    Image.Plane u = planes[1];
+    Image.Plane v = planes[2];
+    return getChromaLayout(
+        u.getBuffer(),
+        u.getRowStride(),
+        u.getPixelStride(),
+        v.getBuffer(),
+        v.getRowStride(),
+        v.getPixelStride());
+  }
+
+  static int getChromaLayout(
+      ByteBuffer u,
+      int uRowStride,
+      int uPixelStride,
+      ByteBuffer v,
+      int vRowStride,
+      int vPixelStride) {
+    if (uPixelStride != 2
+        || vPixelStride != 2
+        || uRowStride != vRowStride
+        || v.remaining() < 2
+        || v.remaining() != u.remaining()) {
+      return CHROMA_SEPARATE;
+    }
+    int vProbe = v.position() + 1;
+    int uProbe = u.position();
+    if (!v.isReadOnly()) {
+      byte vOriginal = v.get(vProbe);
+      byte uOriginal = u.get(uProbe);
+      v.put(vProbe, (byte) ~vOriginal);
+      boolean shared = u.get(uProbe) != uOriginal;
+      v.put(vProbe, vOriginal);
+      return shared ? CHROMA_VU_INTERLEAVED : CHROMA_SEPARATE;
+    }
+    ByteBuffer vAfterFirst = v.duplicate();
+    vAfterFirst.position(vProbe);
+    ByteBuffer uBeforeLast = u.duplicate();
+    uBeforeLast.limit(uBeforeLast.limit() - 1);
+    if (vAfterFirst.compareTo(uBeforeLast) != 0) {
+      return CHROMA_SEPARATE;
+    }
+    // Equal views of a frame with varying chroma are one buffer; equal uniform ones may not be.
+    byte first = v.get(v.position());
+    for (int i = v.position() + 1; i < v.limit(); i++) {
+      if (v.get(i) != first) {
+        return CHROMA_VU_INTERLEAVED;
+      }
+    }
+    return CHROMA_UNKNOWN;
+  }
+
+  /** Repacks planes given as buffers and strides, like the {@link Image.Plane} overload. */
+  static void toNv21(
+      ByteBuffer y,
+      int yRowStride,
+      int yPixelStride,
+      ByteBuffer u,
+      int uRowStride,
+      int uPixelStride,
+      ByteBuffer v,
+      int vRowStride,
+      int vPixelStride,
+      int width,
+      int height,
+      boolean vuInterleaved,
+      byte[] out) {
+    int imageSize = width * height;
+    int chromaWidth = width / 2;
+    int chromaHeight = height / 2;
+    // Bands are cut at even luma rows, so that every band owns whole chroma rows.
+    RowBands.run(
+        chromaHeight,
+        imageSize >= PARALLEL_MIN_PIXELS,
+        (chromaRowStart, chromaRowEnd) -> {
+          int lumaRowEnd = chromaRowEnd == chromaHeight ? height : chromaRowEnd * 2;
+          copyPlaneRows(
+              y.duplicate(), yRowStride, yPixelStride, width, chromaRowStart * 2, lumaRowEnd, out);
+          if (vuInterleaved) {
+            copyInterleavedChromaRows(
+                v.duplicate(),
+                u,
+                vRowStride,
+                chromaWidth,
+                chromaRowStart,
+                chromaRowEnd,
+                imageSize,
+                out);
+          } else {
+            interleaveChromaRows(
+                v.duplicate(),
+                vRowStride,
+                vPixelStride,
+                u.duplicate(),
+                uRowStride,
+                uPixelStride,
+                chromaWidth,
+                chromaRowStart,
+                chromaRowEnd,
+                imageSize,
+                out);
+          }
+        });
+  }
+
+  private static void copyPlaneRows(
+      ByteBuffer plane,
+      int rowStride,
+      int pixelStride,
+      int width,
+      int rowStart,
+      int rowEnd,
+      byte[] out) {
+    int base = plane.position();
+    if (pixelStride == 1) {
+      for (int row = rowStart; row < rowEnd; row++) {
+        plane.position(base + row * rowStride);
+        plane.get(out, row * width, width);
+      }
+      return;
+    }
+    byte[] scratch = new byte[(width - 1) * pixelStride + 1];
+    for (int row = rowStart; row < rowEnd; row++) {
+      plane.position(base + row * rowStride);
+      plane.get(scratch, 0, scratch.length);
+      int outIndex = row * width;
+      for (int i = 0; i < scratch.length; i += pixelStride) {
+        out[outIndex++] = scratch[i];
+      }
+    }
+  }
+
+  /** Copies VU rows straight out of the V plane, which runs up to the last V of each row. */
+  private static void copyInterleavedChromaRows(
+      ByteBuffer v,
+      ByteBuffer u,
+      int rowStride,
+      int chromaWidth,
+      int rowStart,
+      int rowEnd,
+      int imageSize,
+      byte[] out) {
+    int vBase = v.position();
+    int uBase = u.position();
+    int rowBytes = 2 * chromaWidth;
+    for (int row = rowStart; row < rowEnd; row++) {
+      int outIndex = imageSize + row * rowBytes;
+      v.position(vBase + row * rowStride);
+      v.get(out, outIndex, rowBytes - 1);
+      // The last U of the row is past the end of the V plane on the last row, read it from U.
+      out[outIndex + rowBytes - 1] = u.get(uBase + row * rowStride + rowBytes - 2);
+    }
+  }
+
+  private static void interleaveChromaRows(
+      ByteBuffer v,
+      int vRowStride,
+      int vPixelStride,
+      ByteBuffer u,
+      int uRowStride,
+      int uPixelStride,
+      int chromaWidth,
+      int rowStart,
+      int rowEnd,
+      int imageSize,
+      byte[] out) {
+    int vBase = v.position();
+    int uBase = u.position();
+    byte[] vRow = new byte[(chromaWidth - 1) * vPixelStride + 1];
+    byte[] uRow = new byte[(chromaWidth - 1) * uPixelStride + 1];
+    for (int row = rowStart; row < rowEnd; row++) {
+      v.position(vBase + row * vRowStride);
+      v.get(vRow, 0, vRow.length);
+      u.position(uBase + row * uRowStride);
+      u.get(uRow, 0, uRow.length);
+      int outIndex = imageSize + row * 2 * chromaWidth;
+      for (int i = 0; i < chromaWidth; i++) {
+        out[outIndex++] = vRow[i * vPixelStride];
+        out[outIndex++] = uRow[i * uPixelStride];
+      }
+    }
+  }
+}
@@ -17,12 +17,15 @@
 package com.sjqnice.mlkit.mlkit.barcodescanner
 
 import android.content.Context
+import android.graphics.Bitmap
 import android.util.Log
 import com.google.android.gms.tasks.Task
 import com.google.mlkit.vision.barcode.BarcodeScanner
 import com.google.mlkit.vision.barcode.BarcodeScanning
 import com.google.mlkit.vision.barcode.common.Barcode
 import com.google.mlkit.vision.common.InputImage
+import com.sjqnice.mlkit.mlkit.CameraImageGraphic
+import com.sjqnice.mlkit.mlkit.FrameMetadata
 import com.sjqnice.mlkit.mlkit.GraphicOverlay
 import com.sjqnice.mlkit.mlkit.MLKit
 import com.sjqnice.mlkit.mlkit.VisionProcessorBase
@@ -38,32 +41,55 @@ class BarcodeScannerProcessor(context: Context,val mlKit: MLKit? = null) : Visio
   //     .build();
   private val barcodeScanner: BarcodeScanner = if(mlKit?.scannerOptions != null) BarcodeScanning.getClient(mlKit.scannerOptions) else BarcodeScanning.getClient()
 
+  // Full resolution unless set otherwise, so that results are in preview coordinates by default.
+  @Volatile private var detectionScale = 1f
+
   override fun stop() {
     super.stop()
     barcodeScanner.close()
   }
 
+  override fun getDetectionScale(): Float {
+    return detectionScale
+  }
+
+  /**
+   * Sets the fraction of the camera resolution to detect at, e.g. 0.5, at which barcodes usually
+   * keep enough contrast while detection runs much faster. Results are then reported in the
+   * coordinates of the downscaled frame; [FrameMetadata.mapToPreview] maps them back.
+   */
+  fun setDetectionScale(scale: Float) {
+    detectionScale = scale.coerceIn(0.1f, 1f)
+  }
+
   override fun detectInImage(image: InputImage): Task<List<Barcode>> {
     return barcodeScanner.process(image)
   }
 
-  override fun onSuccess(barcodes: List<Barcode>, graphicOverlay: GraphicOverlay, image: InputImage?) {
+  override fun onSuccess(
+    barcodes: List<Barcode>,
+    graphicOverlay: GraphicOverlay,
+    image: InputImage?,
+    frameMetadata: FrameMetadata?,
+    snapshot: Bitmap?
+  ) {
     if (barcodes.isEmpty()) {
       Log.v(MANUAL_TESTING_LOG, "No barcode has been detected")
     }
     if(mlKit == null) {
+      CameraImageGraphic.showOrRecycleSnapshot(graphicOverlay, snapshot)
       for (i in barcodes.indices) {
         val barcode = barcodes[i]
         graphicOverlay.add(BarcodeGraphic(graphicOverlay, barcode))
         logExtrasForTesting(barcode)
       }
-    }else if(mlKit.isAnalyze) {
-      if(mlKit.onScanListener != null){
-        if (barcodes.isNotEmpty()) {
-          mlKit.playBeepAndVibrate()
-        }
-        mlKit.onScanListener.onSuccess(barcodes, graphicOverlay, image)
+    }else if(mlKit.isAnalyze && mlKit.onScanListener != null) {
+      if (barcodes.isNotEmpty()) {
+        mlKit.playBeepAndVibrate()
       }
+      mlKit.onScanListener.onSuccess(barcodes, graphicOverlay, image, frameMetadata, snapshot)
+    }else {
+      CameraImageGraphic.showOrRecycleSnapshot(graphicOverlay, snapshot)
     }
   }
 
@@ -17,9 +17,12 @@
 package com.sjqnice.mlkit.mlkit.textdetector
 
 import android.content.Context
+import android.graphics.Bitmap
 import android.util.Log
 import com.google.android.gms.tasks.Task
 import com.google.mlkit.vision.common.InputImage
+import com.sjqnice.mlkit.mlkit.CameraImageGraphic
+import com.sjqnice.mlkit.mlkit.FrameMetadata
 import com.sjqnice.mlkit.mlkit.GraphicOverlay
 import com.google.mlkit.vision.text.Text
 import com.google.mlkit.vision.text.TextRecognition
@@ -49,20 +52,30 @@ class TextRecognitionProcessor(
   }
 
   var lastBlockSize = 0
-  override fun onSuccess(text: Text, graphicOverlay: GraphicOverlay, image: InputImage?) {
+  override fun onSuccess(
+    text: Text,
+    graphicOverlay: GraphicOverlay,
+    image: InputImage?,
+    frameMetadata: FrameMetadata?,
+    snapshot: Bitmap?
+  ) {
     Log.d(TAG, "On-device Text detection successful")
     if (mlKit.isAnalyze){
       if (text.text.isEmpty() || lastBlockSize < text.textBlocks.size){
         lastBlockSize = text.textBlocks.size
+        CameraImageGraphic.showOrRecycleSnapshot(graphicOverlay, snapshot)
         return
       }
       if (mlKit.onRecognizeListener != null){
         if (text.text.isNotEmpty()){
           mlKit.playBeepAndVibrate()
         }
-        mlKit.onRecognizeListener.onSuccess(text,graphicOverlay,image)
+        mlKit.onRecognizeListener.onSuccess(text, graphicOverlay, image, frameMetadata, snapshot)
+      }else {
+        CameraImageGraphic.showOrRecycleSnapshot(graphicOverlay, snapshot)
       }
     }else {
+      CameraImageGraphic.showOrRecycleSnapshot(graphicOverlay, snapshot)
       logExtrasForTesting(text)
       graphicOverlay.add(
         TextGraphic(
@@ -76,6 +89,10 @@ class TextRecognitionProcessor(
     }
   }
 
+  override fun isEmptyResult(results: Text): Boolean {
+    return results.textBlocks.isEmpty()
+  }
+
   override fun onFailure(e: Exception) {
     Log.w(TAG, "Text detection failed.$e")
     if (mlKit.onRecognizeListener != null){
@@ -0,0 +1,33 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Checks how {@link BatchImageScanner} sizes its workers and reports progress. */
+public class BatchImageScannerTest {
+
+  private static final long MB = 1024 * 1024;
+
+  @Test
+  public void workerCount_followsCoresAndMemory() {
+    // Each worker needs about 20 MB for a 1600 px wide square image.
+    assertEquals(4, BatchImageScanner.workerCount(128 * MB, 8));
+    assertEquals(2, BatchImageScanner.workerCount(128 * MB, 2));
+    assertEquals(2, BatchImageScanner.workerCount(48 * MB, 8));
+    // A small heap still scans, one image at a time with smaller bitmaps.
+    assertEquals(1, BatchImageScanner.workerCount(8 * MB, 8));
+  }
+
+  @Test
+  public void stats_reportThroughput() {
+    BatchImageScanner.Stats stats = new BatchImageScanner.Stats(200, 50, 2, 10_000);
+
+    assertEquals(5f, stats.getImagesPerSecond(), 1e-6f);
+    assertFalse(stats.isDone());
+    assertTrue(new BatchImageScanner.Stats(200, 200, 2, 10_000).isDone());
+    assertEquals(0f, new BatchImageScanner.Stats(200, 0, 0, 0).getImagesPerSecond(), 0f);
+  }
+}
@@ -0,0 +1,137 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Checks that {@link DownscalePreprocessor} box filters luma and chroma, also on sizes that do not
+ * divide evenly, and that results map back to the preview frame.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DownscalePreprocessorTest {
+
+  @Test
+  public void halfScale_averagesBlocks() {
+    checkDownscale(8, 4, 0.5f, 2, 4, 2);
+  }
+
+  @Test
+  public void oddSize_keepsEvenOutputAndChromaPairs() {
+    checkDownscale(11, 7, 0.5f, 2, 4, 2);
+  }
+
+  @Test
+  public void thirdScale_averagesThreeByThreeBlocks() {
+    checkDownscale(12, 12, 1 / 3f, 3, 4, 4);
+  }
+
+  @Test
+  public void fullScaleOrTinyFrame_passesThrough() {
+    byte[] nv21 = frameData(8, 4);
+    PipelineFrame frame = frame(nv21, 8, 4);
+    DownscalePreprocessor preprocessor = new DownscalePreprocessor();
+    preprocessor.process(frame);
+    assertSame(nv21, frame.getData().array());
+
+    preprocessor.setScale(0.25f);
+    preprocessor.process(frame);
+    assertSame(nv21, frame.getData().array());
+    assertEquals(1f, frame.getDetectionScale(), 0f);
+  }
+
+  @Test
+  public void results_mapBackToPreviewThroughCropAndScale() {
+    PipelineFrame frame = frame(new byte[6], 2, 2);
+    frame.recordCrop(100, 40);
+    frame.recordScale(0.5f);
+    FrameMetadata metadata = new FrameMetadata();
+    metadata.set(frame);
+
+    Rect box = new Rect();
+    metadata.mapToPreview(new Rect(10, 20, 30, 40), box);
+    assertEquals(new Rect(120, 80, 160, 120), box);
+    Point corner = new Point();
+    metadata.mapToPreview(new Point(5, 7), corner);
+    assertEquals(110, corner.x);
+    assertEquals(54, corner.y);
+  }
+
+  private static void checkDownscale(
+      int width, int height, float scale, int factor, int outWidth, int outHeight) {
+    PipelineFrame frame = frame(frameData(width, height), width, height);
+    DownscalePreprocessor preprocessor = new DownscalePreprocessor();
+    preprocessor.setScale(scale);
+
+    preprocessor.process(frame);
+
+    assertEquals(outWidth, frame.getWidth());
+    assertEquals(outHeight, frame.getHeight());
+    assertEquals(1f / factor, frame.getDetectionScale(), 1e-6f);
+    byte[] out = frame.getData().array();
+    for (int y = 0; y < outHeight; y++) {
+      for (int x = 0; x < outWidth; x++) {
+        assertEquals(blockAverage(factor, x, y, 0), out[y * outWidth + x] & 0xff);
+      }
+    }
+    int chromaStart = outWidth * outHeight;
+    for (int y = 0; y < outHeight / 2; y++) {
+      for (int x = 0; x < outWidth / 2; x++) {
+        int offset = chromaStart + y * outWidth + 2 * x;
+        assertEquals(blockAverage(factor, x, y, 1), out[offset] & 0xff);
+        assertEquals(blockAverage(factor, x, y, 2), out[offset + 1] & 0xff);
+      }
+    }
+  }
+
+  /** Averages a block of {@link #sample} values the way a box filter does, by coordinates. */
+  private static int blockAverage(int factor, int blockX, int blockY, int plane) {
+    int sum = 0;
+    for (int y = blockY * factor; y < (blockY + 1) * factor; y++) {
+      for (int x = blockX * factor; x < (blockX + 1) * factor; x++) {
+        sum += sample(x, y, plane);
+      }
+    }
+    return sum / (factor * factor);
+  }
+
+  /** Luma at a pixel for plane 0, V and U of a chroma pair for planes 1 and 2. */
+  private static int sample(int x, int y, int plane) {
+    switch (plane) {
+      case 0:
+        return x + 4 * y;
+      case 1:
+        return x + 8 * y;
+      default:
+        return 100 + x;
+    }
+  }
+
+  private static byte[] frameData(int width, int height) {
+    byte[] nv21 = new byte[width * height * 3 / 2];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        nv21[y * width + x] = (byte) sample(x, y, 0);
+      }
+    }
+    for (int y = 0; y < height / 2; y++) {
+      for (int x = 0; x < width / 2; x++) {
+        int offset = width * height + y * width + 2 * x;
+        nv21[offset] = (byte) sample(x, y, 1);
+        nv21[offset + 1] = (byte) sample(x, y, 2);
+      }
+    }
+    return nv21;
+  }
+
+  private static PipelineFrame frame(byte[] nv21, int width, int height) {
+    PipelineFrame frame = new PipelineFrame(nv21);
+    frame.reset(width, height, 0, 1, 0, 0);
+    return frame;
+  }
+}
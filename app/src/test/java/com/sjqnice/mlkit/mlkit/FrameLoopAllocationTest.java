@@ -0,0 +1,273 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Activity;
+import android.os.Looper;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskExecutors;
+import com.google.android.gms.tasks.Tasks;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Replays frames through {@link CameraSource} into a {@link VisionProcessorBase} whose detector
+ * completes right away, i.e. the whole live preview path from the frame callback through the
+ * preprocess and detect stages to the delivery of the result on the main thread, and checks that
+ * our side of it does not allocate once warmed up.
+ *
+ * <p>Two things on the path are not ours and are calibrated instead: registering the listener on
+ * the detector's {@link Task} and posting it to the main thread, which the detect stage does once
+ * per detection, and Robolectric dispatching that message on the main thread.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FrameLoopAllocationTest {
+
+  // Downscaled by half to the size at which LumaEnhancePreprocessor works in row bands.
+  private static final int WIDTH = 1280;
+  private static final int HEIGHT = 960;
+  private static final int WARM_UP_FRAMES = 300;
+  private static final int MEASURED_FRAMES = 500;
+  private static final int CALIBRATION_RUNS = 500;
+  private static final int DELIVERY_SAMPLES = 200;
+  private static final int MIN_DELIVERY_SAMPLES = 50;
+  private static final long TIMEOUT_MS = 60_000;
+
+  private com.sun.management.ThreadMXBean allocationBean;
+  private CameraSource cameraSource;
+  private StubDetectionProcessor processor;
+
+  @Before
+  public void setUp() {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+    allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+    assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+    allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+    Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+    cameraSource = new CameraSource(activity, new GraphicOverlay(activity, null));
+    // Motion in every frame, so that the motion detector does its full work.
+    ReplayFrameSource source =
+        new ReplayFrameSource(
+            new SyntheticBarcodeFrames("590123412345", WIDTH, HEIGHT, 8, 33, 0, 40));
+    source.setFrameRate(ReplayFrameSource.FRAME_RATE_UNTHROTTLED);
+    cameraSource.setFrameSource(source);
+    // The fewest buffers, so that the pool never resizes, which allocates by design.
+    cameraSource.setPreviewBufferBudget(0);
+    LumaEnhancePreprocessor lumaEnhance = new LumaEnhancePreprocessor();
+    lumaEnhance.setAlwaysOn(true);
+    cameraSource.addFramePreprocessor(lumaEnhance);
+    processor = new StubDetectionProcessor(activity, 0, /* detectionScale= */ 0.5f);
+    cameraSource.setMachineLearningFrameProcessor(processor);
+  }
+
+  @After
+  public void tearDown() {
+    if (cameraSource != null) {
+      cameraSource.release();
+    }
+  }
+
+  @Test
+  public void steadyStateFrameLoop_pipelineThreadsDoNotAllocate() throws IOException {
+    long taskBytesPerDetection = calibrateTaskBytes();
+
+    cameraSource.start();
+    awaitDetections(WARM_UP_FRAMES);
+    long[] stages = findThreads("ReplayFrameSource", "FramePreprocess", "RowBands");
+    long[] detect = findThreads("FrameDetection");
+    assertTrue("No replay or preprocess thread", stages.length >= 2);
+    assertEquals("Detect threads", 1, detect.length);
+    long stagesBefore = sum(allocationBean.getThreadAllocatedBytes(stages));
+    long detectBefore = sum(allocationBean.getThreadAllocatedBytes(detect));
+    long detectionsBefore = processor.getDetectionCount();
+    awaitDetections(detectionsBefore + MEASURED_FRAMES);
+    long stagesAllocated = sum(allocationBean.getThreadAllocatedBytes(stages)) - stagesBefore;
+    long detectAllocated = sum(allocationBean.getThreadAllocatedBytes(detect)) - detectBefore;
+    long detections = processor.getDetectionCount() - detectionsBefore;
+
+    assertEquals("Bytes allocated by the replay and preprocess stages", 0, stagesAllocated);
+    // One more detection may have started than finished within the measurement.
+    assertTrue(
+        "Bytes allocated by the detect stage: "
+            + detectAllocated
+            + ", the Task allows "
+            + taskBytesPerDetection
+            + " per detection over "
+            + detections,
+        detectAllocated <= taskBytesPerDetection * (detections + 1));
+  }
+
+  @Test
+  public void steadyStateFrameLoop_deliveryAllocatesNoMoreThanAnEmptyMessage()
+      throws IOException, InterruptedException, ExecutionException {
+    long[] emptyMessages = sampleEmptyMessages();
+
+    cameraSource.start();
+    awaitDetections(WARM_UP_FRAMES);
+    long[] deliveries = sampleDeliveries();
+
+    // The median leaves out the deliveries that log statistics, which happens once per second.
+    long emptyMessageBytes = median(emptyMessages);
+    long deliveryBytes = median(deliveries);
+    assertTrue(
+        "Bytes allocated on the main thread by a delivery: "
+            + deliveryBytes
+            + ", by an empty message: "
+            + emptyMessageBytes,
+        deliveryBytes <= emptyMessageBytes);
+  }
+
+  /**
+   * Returns the bytes that registering a listener on a completed {@link Task}, as the detect stage
+   * does for each detection, allocates on the calling thread.
+   */
+  private long calibrateTaskBytes() {
+    Task<List<String>> task = Tasks.forResult(Collections.emptyList());
+    OnCompleteListener<List<String>> listener = completed -> {};
+    long threadId = Thread.currentThread().getId();
+    long overhead = measurementOverhead(threadId);
+    long total = 0;
+    for (int i = 0; i < 2 * CALIBRATION_RUNS; i++) {
+      long before = allocationBean.getThreadAllocatedBytes(threadId);
+      task.addOnCompleteListener(TaskExecutors.MAIN_THREAD, listener);
+      long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before - overhead;
+      // The first half warms up.
+      if (i >= CALIBRATION_RUNS) {
+        total += allocated;
+      }
+      shadowOf(Looper.getMainLooper()).idle();
+    }
+    return (total + CALIBRATION_RUNS - 1) / CALIBRATION_RUNS;
+  }
+
+  /**
+   * Returns what the main thread allocates to run one message posted from another thread, like
+   * the result of a detection, that does nothing.
+   */
+  private long[] sampleEmptyMessages() throws InterruptedException, ExecutionException {
+    Runnable empty = () -> {};
+    ExecutorService poster = Executors.newSingleThreadExecutor();
+    long threadId = Thread.currentThread().getId();
+    long overhead = measurementOverhead(threadId);
+    long[] samples = new long[DELIVERY_SAMPLES];
+    try {
+      for (int i = -DELIVERY_SAMPLES; i < DELIVERY_SAMPLES; i++) {
+        poster.submit(() -> TaskExecutors.MAIN_THREAD.execute(empty)).get();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        shadowOf(Looper.getMainLooper()).idle();
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before - overhead;
+        // The first half warms up.
+        if (i >= 0) {
+          samples[i] = allocated;
+        }
+      }
+    } finally {
+      poster.shutdown();
+    }
+    return samples;
+  }
+
+  /**
+   * Returns what the main thread allocates to deliver one result, taken from runs of the looper
+   * that delivered exactly one. A delivery may start the next detection on the main thread, whose
+   * result then follows in the same run; those runs are left out, since the Task allocates.
+   */
+  private long[] sampleDeliveries() {
+    long threadId = Thread.currentThread().getId();
+    long overhead = measurementOverhead(threadId);
+    long[] samples = new long[DELIVERY_SAMPLES];
+    int count = 0;
+    long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    while (count < DELIVERY_SAMPLES && System.currentTimeMillis() < deadlineMs) {
+      long detectionsBefore = processor.getDetectionCount();
+      long before = allocationBean.getThreadAllocatedBytes(threadId);
+      shadowOf(Looper.getMainLooper()).idle();
+      long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before - overhead;
+      if (processor.getDetectionCount() - detectionsBefore == 1) {
+        samples[count++] = allocated;
+      }
+      sleep();
+    }
+    assertTrue("Deliveries sampled: " + count, count >= MIN_DELIVERY_SAMPLES);
+    return Arrays.copyOf(samples, count);
+  }
+
+  /** Returns what reading the allocation counter itself allocates on the given thread. */
+  private long measurementOverhead(long threadId) {
+    long overhead = 0;
+    for (int i = 0; i < 10; i++) {
+      long before = allocationBean.getThreadAllocatedBytes(threadId);
+      overhead = allocationBean.getThreadAllocatedBytes(threadId) - before;
+    }
+    return overhead;
+  }
+
+  /** Runs the main looper, which delivers the results and thus frees the frames, until done. */
+  private void awaitDetections(long count) {
+    long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    while (processor.getDetectionCount() < count) {
+      assertTrue("Timed out waiting for detections", System.currentTimeMillis() < deadlineMs);
+      shadowOf(Looper.getMainLooper()).idle();
+      sleep();
+    }
+  }
+
+  private static void sleep() {
+    try {
+      Thread.sleep(1);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Returns the ids of the live threads with any of the given names. */
+  private static long[] findThreads(String... names) {
+    List<String> wanted = Arrays.asList(names);
+    List<Long> ids = new ArrayList<>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.isAlive() && wanted.contains(thread.getName())) {
+        ids.add(thread.getId());
+      }
+    }
+    long[] result = new long[ids.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = ids.get(i);
+    }
+    return result;
+  }
+
+  private static long sum(long[] values) {
+    long sum = 0;
+    for (long value : values) {
+      assertTrue("Thread ended during the measurement", value >= 0);
+      sum += value;
+    }
+    return sum;
+  }
+
+  private static long median(long[] values) {
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+}
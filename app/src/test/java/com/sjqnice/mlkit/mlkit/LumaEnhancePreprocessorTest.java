@@ -0,0 +1,157 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+/** Checks when {@link LumaEnhancePreprocessor} enhances frames and what it does to them. */
+public class LumaEnhancePreprocessorTest {
+
+  private static final int WIDTH = 320;
+  private static final int HEIGHT = 240;
+
+  @Test
+  public void brightFrame_passesThrough() {
+    byte[] nv21 = gradientFrame(WIDTH, HEIGHT, 20, 230);
+    PipelineFrame frame = frame(nv21, WIDTH, HEIGHT);
+    LumaEnhancePreprocessor preprocessor = new LumaEnhancePreprocessor();
+
+    assertTrue(preprocessor.process(frame));
+
+    assertFalse(preprocessor.isActive());
+    assertSame(nv21, frame.getData().array());
+  }
+
+  @Test
+  public void darkFrame_isStretched_chromaKept() {
+    byte[] nv21 = gradientFrame(WIDTH, HEIGHT, 10, 50);
+    byte[] original = nv21.clone();
+    PipelineFrame frame = frame(nv21, WIDTH, HEIGHT);
+    LumaEnhancePreprocessor preprocessor = new LumaEnhancePreprocessor();
+    preprocessor.setMethod(LumaEnhancePreprocessor.METHOD_STRETCH);
+
+    assertTrue(preprocessor.process(frame));
+
+    assertTrue(preprocessor.isActive());
+    byte[] out = frame.getData().array();
+    assertArrayEquals(original, nv21);
+    int lumaSize = WIDTH * HEIGHT;
+    assertArrayEquals(
+        Arrays.copyOfRange(nv21, lumaSize, lumaSize * 3 / 2),
+        Arrays.copyOfRange(out, lumaSize, lumaSize * 3 / 2));
+    assertTrue(spread(out, lumaSize) > 2 * spread(nv21, lumaSize));
+  }
+
+  @Test
+  public void darkFrame_isEqualized() {
+    byte[] nv21 = gradientFrame(WIDTH, HEIGHT, 10, 50);
+    PipelineFrame frame = frame(nv21, WIDTH, HEIGHT);
+    LumaEnhancePreprocessor preprocessor = new LumaEnhancePreprocessor();
+
+    assertTrue(preprocessor.process(frame));
+
+    byte[] out = frame.getData().array();
+    int lumaSize = WIDTH * HEIGHT;
+    assertTrue(spread(out, lumaSize) > 2 * spread(nv21, lumaSize));
+    // Equalization keeps the gradient rising across the tiles of a row.
+    for (int x = WIDTH / 8; x < WIDTH; x++) {
+      assertTrue((out[x] & 0xff) > (out[x - WIDTH / 8] & 0xff));
+    }
+  }
+
+  @Test
+  public void stretchLut_mapsRangeOntoFullRange() {
+    byte[] lut = new byte[256];
+    LumaEnhancePreprocessor.buildStretchLut(20, 120, lut);
+
+    assertEquals(0, lut[20] & 0xff);
+    assertEquals(0, lut[5] & 0xff);
+    assertEquals(255, lut[120] & 0xff);
+    assertEquals(255, lut[200] & 0xff);
+
+    // A narrow range is amplified four times at most.
+    LumaEnhancePreprocessor.buildStretchLut(40, 44, lut);
+    assertTrue((lut[44] & 0xff) - (lut[40] & 0xff) <= 4 * 4 + 1);
+  }
+
+  @Test
+  public void tileLut_clipsFlatTiles() {
+    // A tile of a single value would be pushed to white by plain equalization.
+    byte[] luma = new byte[64 * 64];
+    Arrays.fill(luma, (byte) 30);
+    byte[] identity = new byte[256];
+    for (int i = 0; i < 256; i++) {
+      identity[i] = (byte) i;
+    }
+    int[] histograms = new int[256];
+    byte[] luts = new byte[256];
+
+    LumaEnhancePreprocessor.computeTileLut(
+        luma, 64, 0, 0, 64, 64, identity, histograms, luts, 0);
+
+    assertTrue((luts[30] & 0xff) < 128);
+    for (int i = 1; i < 256; i++) {
+      assertTrue((luts[i] & 0xff) >= (luts[i - 1] & 0xff));
+    }
+  }
+
+  @Test
+  public void tileBlend_weightsFollowTileCenters() {
+    int length = 800; // Tiles 100 pixels wide, centered at 50, 150, ...
+    assertEquals(0, LumaEnhancePreprocessor.tileBefore(10, length));
+    assertEquals(0, LumaEnhancePreprocessor.nextTileWeight(10, length));
+    assertEquals(0, LumaEnhancePreprocessor.tileBefore(100, length));
+    assertEquals(129, LumaEnhancePreprocessor.nextTileWeight(100, length));
+    assertEquals(7, LumaEnhancePreprocessor.tileBefore(790, length));
+    assertEquals(0, LumaEnhancePreprocessor.nextTileWeight(790, length));
+  }
+
+  @Test
+  public void hysteresis_keepsStageOnNearThreshold() {
+    LumaEnhancePreprocessor preprocessor = new LumaEnhancePreprocessor();
+    preprocessor.setThresholds(70, 100);
+
+    // Mean luma 60, 75 and 90, all with enough contrast.
+    preprocessor.process(frame(gradientFrame(WIDTH, HEIGHT, 0, 120), WIDTH, HEIGHT));
+    assertTrue(preprocessor.isActive());
+    preprocessor.process(frame(gradientFrame(WIDTH, HEIGHT, 15, 135), WIDTH, HEIGHT));
+    assertTrue(preprocessor.isActive());
+    preprocessor.process(frame(gradientFrame(WIDTH, HEIGHT, 30, 150), WIDTH, HEIGHT));
+    assertFalse(preprocessor.isActive());
+  }
+
+  private static PipelineFrame frame(byte[] nv21, int width, int height) {
+    PipelineFrame frame = new PipelineFrame(nv21);
+    frame.reset(width, height, 0, 1, 0, 0);
+    return frame;
+  }
+
+  /** Returns a frame whose luma rises from {@code low} to {@code high} left to right. */
+  private static byte[] gradientFrame(int width, int height, int low, int high) {
+    byte[] nv21 = new byte[width * height * 3 / 2];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        nv21[y * width + x] = (byte) (low + (high - low) * x / (width - 1));
+      }
+    }
+    for (int i = width * height; i < nv21.length; i++) {
+      nv21[i] = (byte) (100 + i % 50);
+    }
+    return nv21;
+  }
+
+  private static int spread(byte[] luma, int length) {
+    int min = 255;
+    int max = 0;
+    for (int i = 0; i < length; i++) {
+      min = Math.min(min, luma[i] & 0xff);
+      max = Math.max(max, luma[i] & 0xff);
+    }
+    return max - min;
+  }
+}
@@ -0,0 +1,103 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+/** Checks the fused conversion against a straightforward rotate-then-mirror reference. */
+public class Nv21ConverterTest {
+
+  @Test
+  public void convert_matchesReferenceForEveryRotationAndMirroring() {
+    int width = 6;
+    int height = 4;
+    byte[] nv21 = randomFrame(width, height, 1);
+    for (int rotation = 0; rotation < 360; rotation += 90) {
+      for (boolean mirror : new boolean[] {false, true}) {
+        int[] actual = new int[width * height];
+        new Nv21Converter().convert(ByteBuffer.wrap(nv21), width, height, rotation, mirror, actual);
+        assertArrayEquals(reference(nv21, width, height, rotation, mirror), actual);
+      }
+    }
+  }
+
+  @Test
+  public void convert_inParallelBandsMatchesSingleThread() {
+    int width = 640;
+    int height = 480;
+    byte[] nv21 = randomFrame(width, height, 2);
+    int[] parallel = new int[width * height];
+    int[] single = new int[width * height];
+    new Nv21Converter().convert(ByteBuffer.wrap(nv21), width, height, 90, false, parallel);
+    Nv21Converter.convertRows(nv21, 0, width, height, 90, false, single, 0, width);
+    assertArrayEquals(single, parallel);
+  }
+
+  @Test
+  public void convert_staysWithinRoundingOfFloatingPointJfif() {
+    int width = 16;
+    int height = 16;
+    byte[] nv21 = randomFrame(width, height, 3);
+    int[] pixels = new int[width * height];
+    new Nv21Converter().convert(ByteBuffer.wrap(nv21), width, height, 0, false, pixels);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        float luma = nv21[y * width + x] & 0xFF;
+        int chroma = width * height + (y / 2) * width + (x / 2) * 2;
+        float v = (nv21[chroma] & 0xFF) - 128;
+        float u = (nv21[chroma + 1] & 0xFF) - 128;
+        int pixel = pixels[y * width + x];
+        int r = clamp(luma + 1.402f * v);
+        int g = clamp(luma - 0.344136f * u - 0.714136f * v);
+        int b = clamp(luma + 1.772f * u);
+        assertTrue(Math.abs(((pixel >> 16) & 0xFF) - r) <= 1);
+        assertTrue(Math.abs(((pixel >> 8) & 0xFF) - g) <= 1);
+        assertTrue(Math.abs((pixel & 0xFF) - b) <= 1);
+      }
+    }
+  }
+
+  private static byte[] randomFrame(int width, int height, long seed) {
+    byte[] nv21 = new byte[width * height * 3 / 2];
+    new Random(seed).nextBytes(nv21);
+    return nv21;
+  }
+
+  private static int clamp(float value) {
+    return Math.max(0, Math.min(255, Math.round(value)));
+  }
+
+  /** Converts without rotation, then rotates clockwise and mirrors one step at a time. */
+  private static int[] reference(byte[] nv21, int width, int height, int rotation, boolean mirror) {
+    int[] pixels = new int[width * height];
+    Nv21Converter.convertRows(nv21, 0, width, height, 0, false, pixels, 0, height);
+    int w = width;
+    int h = height;
+    for (int turn = 0; turn < rotation / 90; turn++) {
+      int[] rotated = new int[pixels.length];
+      for (int y = 0; y < h; y++) {
+        for (int x = 0; x < w; x++) {
+          // Clockwise: (x, y) moves to (h - 1 - y, x) in an image h wide.
+          rotated[x * h + (h - 1 - y)] = pixels[y * w + x];
+        }
+      }
+      pixels = rotated;
+      int swap = w;
+      w = h;
+      h = swap;
+    }
+    if (mirror) {
+      int[] mirrored = new int[pixels.length];
+      for (int y = 0; y < h; y++) {
+        for (int x = 0; x < w; x++) {
+          mirrored[y * w + (w - 1 - x)] = pixels[y * w + x];
+        }
+      }
+      pixels = mirrored;
+    }
+    return pixels;
+  }
+}
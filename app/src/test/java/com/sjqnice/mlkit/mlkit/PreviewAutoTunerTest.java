@@ -0,0 +1,60 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.android.gms.common.images.Size;
+import com.sjqnice.mlkit.mlkit.CameraSource.SizePair;
+import com.sjqnice.mlkit.mlkit.PreviewAutoTuner.Measurement;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+/** Checks which measured configuration {@link PreviewAutoTuner} keeps. */
+public class PreviewAutoTunerTest {
+
+  private static final SizePair VGA = new SizePair(new Size(640, 480), null);
+  private static final SizePair HD = new SizePair(new Size(1280, 720), null);
+  private static final SizePair FULL_HD = new SizePair(new Size(1920, 1080), null);
+
+  @Test
+  public void keepsLargestPreviewNearBestThroughput() {
+    Measurement vga = new Measurement(VGA, 30, 20, 80);
+    Measurement hd = new Measurement(HD, 30, 18, 120);
+    Measurement fullHd = new Measurement(FULL_HD, 30, 10, 200);
+
+    assertSame(hd, PreviewAutoTuner.selectBest(Arrays.asList(vga, hd, fullHd)));
+  }
+
+  @Test
+  public void skipsConfigurationsOverLatencyLimit() {
+    Measurement vga = new Measurement(VGA, 30, 20, 100);
+    Measurement hd = new Measurement(HD, 30, 20, 300);
+
+    assertSame(vga, PreviewAutoTuner.selectBest(Arrays.asList(vga, hd)));
+  }
+
+  @Test
+  public void dropsLatencyLimitIfNothingMeetsIt() {
+    Measurement vga = new Measurement(VGA, 30, 20, 300);
+    Measurement hd = new Measurement(HD, 30, 19, 400);
+
+    assertSame(hd, PreviewAutoTuner.selectBest(Arrays.asList(vga, hd)));
+  }
+
+  @Test
+  public void prefersHigherFrameRateAtSameSize() {
+    Measurement slow = new Measurement(HD, 15, 14, 100);
+    Measurement fast = new Measurement(HD, 30, 15, 100);
+
+    assertSame(fast, PreviewAutoTuner.selectBest(Arrays.asList(slow, fast)));
+  }
+
+  @Test
+  public void withoutDetections_selectsNothing() {
+    assertNull(PreviewAutoTuner.selectBest(Collections.emptyList()));
+    assertNull(
+        PreviewAutoTuner.selectBest(
+            Arrays.asList(new Measurement(VGA, 30, 0, 0), new Measurement(HD, 30, 0, 0))));
+  }
+}
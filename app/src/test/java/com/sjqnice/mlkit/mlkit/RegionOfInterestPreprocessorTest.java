@@ -0,0 +1,72 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertEquals;
+
+import android.graphics.Rect;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Checks how {@link RegionOfInterestPreprocessor} maps crops to the sensor and copies them. */
+@RunWith(RobolectricTestRunner.class)
+public class RegionOfInterestPreprocessorTest {
+
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+
+  @Test
+  public void toSensor_undoesEachRotation() {
+    Rect upright = new Rect(100, 200, 300, 260);
+    Rect sensor = new Rect();
+
+    RegionOfInterestPreprocessor.toSensor(upright, 0, WIDTH, HEIGHT, sensor);
+    assertEquals(upright, sensor);
+    RegionOfInterestPreprocessor.toSensor(upright, 90, WIDTH, HEIGHT, sensor);
+    assertEquals(new Rect(200, 180, 260, 380), sensor);
+    RegionOfInterestPreprocessor.toSensor(upright, 180, WIDTH, HEIGHT, sensor);
+    assertEquals(new Rect(340, 220, 540, 280), sensor);
+    RegionOfInterestPreprocessor.toSensor(upright, 270, WIDTH, HEIGHT, sensor);
+    assertEquals(new Rect(380, 100, 440, 300), sensor);
+  }
+
+  @Test
+  public void toSensor_keepsEvenCropsEven() {
+    // Crops are aligned to even coordinates in the upright frame; the sensor sizes are even too.
+    Rect upright = new Rect(2, 4, 10, 16);
+    Rect sensor = new Rect();
+    for (int rotation = 0; rotation < 360; rotation += 90) {
+      RegionOfInterestPreprocessor.toSensor(upright, rotation, WIDTH, HEIGHT, sensor);
+      assertEquals(0, sensor.left & 1);
+      assertEquals(0, sensor.top & 1);
+      assertEquals(0, sensor.right & 1);
+      assertEquals(0, sensor.bottom & 1);
+    }
+  }
+
+  @Test
+  public void cropNv21_copiesLumaAndMatchingChromaPairs() {
+    int width = 10;
+    int height = 8;
+    byte[] nv21 = new byte[width * height * 3 / 2];
+    for (int i = 0; i < nv21.length; i++) {
+      nv21[i] = (byte) i;
+    }
+    Rect crop = new Rect(2, 2, 6, 6);
+    byte[] out = new byte[crop.width() * crop.height() * 3 / 2];
+
+    RegionOfInterestPreprocessor.cropNv21(nv21, width, height, crop, out);
+
+    for (int y = 0; y < 4; y++) {
+      for (int x = 0; x < 4; x++) {
+        assertEquals(nv21[(y + 2) * width + x + 2], out[y * 4 + x]);
+      }
+    }
+    // Chroma rows 1 and 2 cover luma rows 2 to 5, and bytes 2 to 5 the VU pairs of columns 2 to 5.
+    int chromaStart = width * height;
+    for (int y = 0; y < 2; y++) {
+      for (int x = 0; x < 4; x++) {
+        assertEquals(nv21[chromaStart + (y + 1) * width + x + 2], out[16 + y * 4 + x]);
+      }
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Activity;
+import android.os.Looper;
+import android.os.SystemClock;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+/** Records, maps and replays frames without a camera. */
+@RunWith(RobolectricTestRunner.class)
+public class ReplayFrameSourceTest {
+
+  private static final int WIDTH = 240;
+  private static final int HEIGHT = 160;
+  private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+
+  @Test
+  public void replayFile_readsBackWhatWasWritten() throws IOException {
+    SyntheticBarcodeFrames synthetic =
+        new SyntheticBarcodeFrames("590123412345", WIDTH, HEIGHT, 3, 33, 1, 20);
+    File file = File.createTempFile("frames", ".mlkf");
+    try {
+      byte[] frame = new byte[FRAME_SIZE];
+      try (ReplayFile.Writer writer = new ReplayFile.Writer(file)) {
+        for (int i = 0; i < synthetic.getFrameCount(); i++) {
+          synthetic.read(i, frame);
+          writer.writeFrame(frame, WIDTH, HEIGHT, 90, 1000 + synthetic.getTimestampMs(i));
+        }
+      }
+
+      byte[] expected = new byte[FRAME_SIZE];
+      try (ReplayFile replay = ReplayFile.open(file)) {
+        assertEquals(3, replay.getFrameCount());
+        assertEquals(WIDTH, replay.getWidth());
+        assertEquals(HEIGHT, replay.getHeight());
+        for (int i = 0; i < replay.getFrameCount(); i++) {
+          assertEquals(90, replay.getRotation(i));
+          assertEquals(1000 + 33L * i, replay.getTimestampMs(i));
+          synthetic.read(i, expected);
+          replay.read(i, frame);
+          assertArrayEquals(expected, frame);
+        }
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void replayFile_rotationChanges_isRejected() throws IOException {
+    File file = File.createTempFile("frames", ".mlkf");
+    try {
+      byte[] frame = new byte[FRAME_SIZE];
+      try (ReplayFile.Writer writer = new ReplayFile.Writer(file)) {
+        writer.writeFrame(frame, WIDTH, HEIGHT, 90, 1000);
+        writer.writeFrame(frame, WIDTH, HEIGHT, 180, 1033);
+      }
+
+      try (ReplayFile replay = ReplayFile.open(file)) {
+        assertThrows(IllegalArgumentException.class, () -> new ReplayFrameSource(replay));
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void syntheticFrames_encodeTheCheckDigit() {
+    assertEquals("5901234123457", SyntheticBarcodeFrames.withCheckDigit("590123412345"));
+    assertEquals("4006381333931", SyntheticBarcodeFrames.withCheckDigit("400638133393"));
+  }
+
+  @Test
+  public void replayFrameSource_deliversFramesAndReturnsOnClose() throws InterruptedException {
+    SyntheticBarcodeFrames frames =
+        new SyntheticBarcodeFrames("590123412345", WIDTH, HEIGHT, 4, 5, 0, 0);
+    ReplayFrameSource source = new ReplayFrameSource(frames);
+    source.setFrameRate(ReplayFrameSource.FRAME_RATE_UNTHROTTLED);
+    source.open(CameraSource.CAMERA_FACING_BACK);
+    source.queueBuffer(new byte[FRAME_SIZE]);
+    source.queueBuffer(new byte[FRAME_SIZE]);
+
+    CountDownLatch delivered = new CountDownLatch(20);
+    source.startPreview(
+        null,
+        (data, captureTimeMs) -> {
+          delivered.countDown();
+          // Hand the buffer straight back, as the pipeline does once it is done with a frame.
+          source.queueBuffer(data);
+        });
+    assertTrue(delivered.await(5, TimeUnit.SECONDS));
+    source.close();
+
+    long count = source.getDeliveredFrameCount();
+    Thread.sleep(50);
+    assertEquals(count, source.getDeliveredFrameCount());
+    assertEquals(0, source.getDroppedFrameCount());
+  }
+
+  @Test
+  public void replayThroughCameraSource_framesKeepTheirRecordedCaptureTimes() throws IOException {
+    int frameCount = 6;
+    long intervalMs = 33;
+    SyntheticBarcodeFrames frames =
+        new SyntheticBarcodeFrames("590123412345", WIDTH, HEIGHT, frameCount, intervalMs, 0, 0);
+    ReplayFrameSource source = new ReplayFrameSource(frames);
+    source.setFrameRate(ReplayFrameSource.FRAME_RATE_RECORDED);
+    source.setLooping(false);
+    Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+    CameraSource cameraSource = new CameraSource(activity, new GraphicOverlay(activity, null));
+    cameraSource.setFrameSource(source);
+    StubDetectionProcessor processor = new StubDetectionProcessor(activity, frameCount, 1f);
+    cameraSource.setMachineLearningFrameProcessor(processor);
+
+    // Robolectric's clock stands still unless advanced, so this is when the replay starts.
+    long startMs = SystemClock.elapsedRealtime();
+    try {
+      cameraSource.start();
+      long deadlineMs = System.currentTimeMillis() + 5_000;
+      while (source.getDeliveredFrameCount() + source.getDroppedFrameCount() < frameCount
+          || processor.getDetectionCount() == 0) {
+        assertTrue("Timed out replaying", System.currentTimeMillis() < deadlineMs);
+        // Delivers the results, which frees the frames for the next ones.
+        shadowOf(Looper.getMainLooper()).idle();
+        Thread.yield();
+      }
+    } finally {
+      cameraSource.release();
+    }
+
+    // Frames may be skipped on the way, but those handed over keep their recorded spacing.
+    int handedOver = processor.getFrameCount();
+    assertTrue(handedOver > 0);
+    assertEquals(startMs, processor.getCaptureTimeMs(0));
+    for (int i = 1; i < handedOver; i++) {
+      long offsetMs = processor.getCaptureTimeMs(i) - startMs;
+      assertTrue(offsetMs > processor.getCaptureTimeMs(i - 1) - startMs);
+      assertTrue(offsetMs < frameCount * intervalMs);
+      assertEquals(0, offsetMs % intervalMs);
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.junit.Test;
+
+/** Ordering and staleness of the reorder buffer, and what detection depth buys in throughput. */
+public class ResultReorderBufferTest {
+
+  @Test
+  public void results_areDeliveredInStartOrder() {
+    ResultReorderBuffer<String> buffer = new ResultReorderBuffer<>(3);
+    long first = buffer.add("first", 0);
+    long second = buffer.add("second", 1);
+    long third = buffer.add("third", 2);
+
+    assertTrue(buffer.complete(third, 10, 0));
+    assertNull(buffer.poll());
+    assertTrue(buffer.complete(first, 11, 0));
+    assertEquals("first", buffer.poll());
+    assertNull(buffer.poll());
+    assertTrue(buffer.complete(second, 12, 0));
+    assertEquals("second", buffer.poll());
+    assertEquals("third", buffer.poll());
+    assertEquals(0, buffer.size());
+  }
+
+  @Test
+  public void lateResult_isDroppedOnceLaterResultsWereDelivered() {
+    ResultReorderBuffer<String> buffer = new ResultReorderBuffer<>(2);
+    buffer.add("slow", 0);
+    long fast = buffer.add("fast", 5);
+
+    // Within the stale limit, the fast result waits for the slow one.
+    assertTrue(buffer.complete(fast, 15, 20));
+    assertNull(buffer.poll());
+    assertEquals(2, buffer.size());
+
+    // Past it, the slow one is skipped but keeps its slot until it completes.
+    ResultReorderBuffer<String> skipping = new ResultReorderBuffer<>(2);
+    long slow = skipping.add("slow", 0);
+    fast = skipping.add("fast", 5);
+    assertTrue(skipping.complete(fast, 30, 20));
+    assertEquals("fast", skipping.poll());
+    assertEquals(1, skipping.size());
+    assertFalse(skipping.complete(slow, 40, 20));
+    assertEquals(0, skipping.size());
+  }
+
+  /**
+   * Simulates a detector that computes for 4 ms per frame on a single thread and then waits 6 ms,
+   * e.g. for the main thread to take the result, on a simulated clock: one detection at a time
+   * leaves the detector idle while waiting, further ones fill that time until computing is the
+   * bottleneck.
+   */
+  @Test
+  public void deeperPipeline_increasesThroughputOfPartiallyIdleDetector() {
+    // 100 frames of 10 ms each.
+    assertEquals(100 * 1000f / 1000, simulate(1, /* computeMs= */ 4, /* waitMs= */ 6), 0.01f);
+    // Two frames per 10 ms; the last pair completes at 490 + 14 ms.
+    assertEquals(100 * 1000f / 504, simulate(2, /* computeMs= */ 4, /* waitMs= */ 6), 0.01f);
+    // Bound by computing, 100 * 4 ms, plus the wait of the last frame.
+    assertEquals(100 * 1000f / 406, simulate(3, /* computeMs= */ 4, /* waitMs= */ 6), 0.01f);
+    assertEquals(
+        100 * 1000f / 406,
+        simulate(VisionProcessorBase.MAX_IN_FLIGHT, /* computeMs= */ 4, /* waitMs= */ 6),
+        0.01f);
+  }
+
+  /** Returns the detections per simulated second, checking that they are delivered in order. */
+  private static float simulate(int depth, long computeMs, long waitMs) {
+    int frames = 100;
+    ResultReorderBuffer<Integer> buffer = new ResultReorderBuffer<>(depth);
+    // Pending completions as {time, sequence}, ordered by time.
+    PriorityQueue<long[]> completions = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+    List<Integer> delivered = new ArrayList<>();
+    long nowMs = 0;
+    long detectorFreeMs = 0;
+    int started = 0;
+    while (delivered.size() < frames) {
+      while (started < frames && buffer.size() < depth) {
+        long sequence = buffer.add(started++, nowMs);
+        detectorFreeMs = Math.max(detectorFreeMs, nowMs) + computeMs;
+        completions.add(new long[] {detectorFreeMs + waitMs, sequence});
+      }
+      long[] completion = completions.poll();
+      nowMs = completion[0];
+      assertTrue(buffer.complete(completion[1], nowMs, 0));
+      Integer frame;
+      while ((frame = buffer.poll()) != null) {
+        delivered.add(frame);
+      }
+    }
+    for (int i = 0; i < frames; i++) {
+      assertEquals(i, (int) delivered.get(i));
+    }
+    return frames * 1000f / nowMs;
+  }
+}
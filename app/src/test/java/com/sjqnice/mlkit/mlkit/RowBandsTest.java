@@ -0,0 +1,56 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import org.junit.Test;
+
+/** Checks that {@link RowBands} covers every row once and that a reused job does not allocate. */
+public class RowBandsTest {
+
+  private static final int ROWS = 1000;
+  private static final int RUNS = 10_000;
+
+  private final int[] rowVisits = new int[ROWS];
+  private final RowBands.Job job =
+      new RowBands.Job(
+          (rowStart, rowEnd) -> {
+            for (int i = rowStart; i < rowEnd; i++) {
+              rowVisits[i]++;
+            }
+          });
+
+  @Test
+  public void job_runsEveryRowOncePerRun() {
+    for (int i = 0; i < RUNS; i++) {
+      job.run(ROWS, /* parallel= */ true);
+    }
+
+    for (int i = 0; i < ROWS; i++) {
+      assertEquals("Visits of row " + i, RUNS, rowVisits[i]);
+    }
+  }
+
+  @Test
+  public void reusedJob_doesNotAllocate() {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+    assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+    allocationBean.setThreadAllocatedMemoryEnabled(true);
+    long threadId = Thread.currentThread().getId();
+
+    for (int i = 0; i < RUNS; i++) {
+      job.run(ROWS, /* parallel= */ true);
+    }
+    long before = allocationBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < RUNS; i++) {
+      job.run(ROWS, /* parallel= */ true);
+    }
+    long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+    assertEquals("Bytes allocated over " + RUNS + " runs", 0, allocated);
+  }
+}
@@ -0,0 +1,59 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Checks how {@link SampledImageDecoder} sizes the bitmaps it decodes. */
+public class SampledImageDecoderTest {
+
+  private static final long BUDGET_BYTES = 32L * 1024 * 1024;
+
+  @Test
+  public void computeSampleSize_keepsAtLeastTargetWidth() {
+    assertEquals(4, SampledImageDecoder.computeSampleSize(4000, 3000, 1000, BUDGET_BYTES));
+    assertEquals(2, SampledImageDecoder.computeSampleSize(4000, 3000, 1080, BUDGET_BYTES));
+    assertEquals(1, SampledImageDecoder.computeSampleSize(800, 600, 1080, BUDGET_BYTES));
+  }
+
+  @Test
+  public void computeSampleSize_noTarget_onlyFollowsBudget() {
+    assertEquals(1, SampledImageDecoder.computeSampleSize(2000, 1500, 0, BUDGET_BYTES));
+    // 48 MP: 192 MB at full size, 48 MB at half, 12 MB at a quarter.
+    assertEquals(4, SampledImageDecoder.computeSampleSize(8000, 6000, 0, BUDGET_BYTES));
+  }
+
+  @Test
+  public void sampledAndScaledBitmaps_stayWithinBudget() {
+    int[][] sizes = {{8000, 6000}, {6000, 8000}, {1080, 40000}, {100000, 500}, {1, 1}};
+    int[] targets = {0, 720, 1080, 4000};
+    for (int[] size : sizes) {
+      for (int target : targets) {
+        int sampleSize =
+            SampledImageDecoder.computeSampleSize(size[0], size[1], target, BUDGET_BYTES);
+        int sampledWidth = (size[0] + sampleSize - 1) / sampleSize;
+        int sampledHeight = (size[1] + sampleSize - 1) / sampleSize;
+        assertTrue(4L * sampledWidth * sampledHeight <= BUDGET_BYTES);
+
+        float scale =
+            SampledImageDecoder.computeScale(sampledWidth, sampledHeight, target, BUDGET_BYTES);
+        int scaledWidth = Math.round(sampledWidth * scale);
+        int scaledHeight = Math.round(sampledHeight * scale);
+        // Rounding each side may add a row and a column.
+        long slack = 4L * (scaledWidth + scaledHeight + 1);
+        assertTrue(4L * scaledWidth * scaledHeight <= BUDGET_BYTES + slack);
+      }
+    }
+  }
+
+  @Test
+  public void computeScale_reachesTargetWidthWithinBudget() {
+    float scale = SampledImageDecoder.computeScale(2000, 1500, 1080, BUDGET_BYTES);
+    assertEquals(1080, Math.round(2000 * scale));
+    // Smaller images are scaled up to the target too.
+    scale = SampledImageDecoder.computeScale(800, 600, 1080, BUDGET_BYTES);
+    assertEquals(1080, Math.round(800 * scale));
+    assertEquals(1f, SampledImageDecoder.computeScale(800, 600, 0, BUDGET_BYTES), 0f);
+  }
+}
@@ -0,0 +1,145 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+/** Checks that {@link ScanResultCache} keeps results on disk and evicts the least recently used. */
+public class ScanResultCacheTest {
+
+  private final File directory = newDirectory();
+
+  @Test
+  public void putThenGet_returnsEntry() {
+    ScanResultCache cache = new ScanResultCache(directory, 1024 * 1024, 10);
+    String key = ScanResultCache.keyFor("barcode|all", "content://media/1|1234|5678");
+    assertNull(cache.get(key));
+
+    cache.put(
+        key,
+        new ScanResultCache.Entry(
+            1080,
+            1920,
+            null,
+            Arrays.asList(
+                new ScanResultCache.Item(256, 8, "https://example.com", null, 1, 2, 3, 4),
+                new ScanResultCache.Item(32, 5, "4006381333931", "4006381333931", 5, 6, 7, 8))));
+    ScanResultCache.Entry entry = cache.get(key);
+
+    assertEquals(1080, entry.imageWidth);
+    assertEquals(1920, entry.imageHeight);
+    assertNull(entry.text);
+    assertEquals(2, entry.items.size());
+    assertEquals("https://example.com", entry.items.get(0).rawValue);
+    assertNull(entry.items.get(0).displayValue);
+    assertEquals(256, entry.items.get(0).format);
+    assertEquals(5, entry.items.get(1).valueType);
+    assertEquals(8, entry.items.get(1).bottom);
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void text_survivesLongValues() {
+    ScanResultCache cache = new ScanResultCache(directory, 1024 * 1024, 10);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 40_000; i++) {
+      text.append("文字");
+    }
+    cache.put("text", textEntry(text.toString()));
+
+    assertEquals(text.toString(), cache.get("text").text);
+  }
+
+  @Test
+  public void keysDependOnVariantAndIdentity() {
+    String key = ScanResultCache.keyFor("barcode|all", "file:///a.jpg|1|2");
+
+    assertEquals(40, key.length());
+    assertEquals(key, ScanResultCache.keyFor("barcode|all", "file:///a.jpg|1|2"));
+    assertFalse(key.equals(ScanResultCache.keyFor("text|all", "file:///a.jpg|1|2")));
+    assertFalse(key.equals(ScanResultCache.keyFor("barcode|all", "file:///a.jpg|1|3")));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed_beyondEntryCount() {
+    ScanResultCache cache = new ScanResultCache(directory, 1024 * 1024, 2);
+    cache.put("a", textEntry("a"));
+    cache.put("b", textEntry("b"));
+    cache.get("a");
+    cache.put("c", textEntry("c"));
+
+    assertEquals(2, cache.getEntryCount());
+    assertEquals(1, cache.getEvictionCount());
+    assertNull(cache.get("b"));
+    assertEquals("a", cache.get("a").text);
+    assertEquals("c", cache.get("c").text);
+    assertEquals(2, directory.list().length);
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed_beyondSize() {
+    ScanResultCache probe = new ScanResultCache(newDirectory(), Long.MAX_VALUE, 100);
+    probe.put("probe", textEntry("x"));
+    long entryBytes = probe.getCurrentSizeBytes();
+
+    ScanResultCache cache = new ScanResultCache(directory, 3 * entryBytes, 100);
+    for (String key : new String[] {"a", "b", "c", "d", "e"}) {
+      cache.put(key, textEntry(key));
+    }
+
+    assertEquals(3, cache.getEntryCount());
+    assertEquals(3 * entryBytes, cache.getCurrentSizeBytes());
+    assertNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals("e", cache.get("e").text);
+  }
+
+  @Test
+  public void reopenedCache_keepsEntriesAndOrder() {
+    ScanResultCache cache = new ScanResultCache(directory, 1024 * 1024, 2);
+    cache.put("a", textEntry("a"));
+    cache.put("b", textEntry("b"));
+    new File(directory, "a.res").setLastModified(1_000_000);
+    new File(directory, "b.res").setLastModified(2_000_000);
+
+    ScanResultCache reopened = new ScanResultCache(directory, 1024 * 1024, 2);
+    reopened.put("c", textEntry("c"));
+
+    assertNull(reopened.get("a"));
+    assertEquals("b", reopened.get("b").text);
+  }
+
+  @Test
+  public void unreadableEntry_isDropped() throws IOException {
+    ScanResultCache cache = new ScanResultCache(directory, 1024 * 1024, 10);
+    cache.put("a", textEntry("a"));
+    try (FileOutputStream out = new FileOutputStream(new File(directory, "a.res"))) {
+      out.write(new byte[] {1, 2, 3});
+    }
+
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, directory.list().length);
+  }
+
+  private static ScanResultCache.Entry textEntry(String text) {
+    return new ScanResultCache.Entry(100, 100, text, Collections.emptyList());
+  }
+
+  private static File newDirectory() {
+    try {
+      return Files.createTempDirectory("scan_results").toFile();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
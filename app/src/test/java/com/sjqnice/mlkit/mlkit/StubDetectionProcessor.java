@@ -0,0 +1,82 @@
+package com.sjqnice.mlkit.mlkit;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import androidx.annotation.Nullable;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.mlkit.vision.common.InputImage;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A live preview processor whose detector finds nothing and completes right away, so that tests
+ * can run frames through {@link CameraSource} and {@link VisionProcessorBase} without a model.
+ * Records the capture times of the first frames handed to it.
+ */
+class StubDetectionProcessor extends VisionProcessorBase<List<String>> {
+
+  // Completed once and handed out for every frame, so that the stub itself does not allocate.
+  private final Task<List<String>> result = Tasks.forResult(Collections.emptyList());
+  private final long[] captureTimesMs;
+  private final float detectionScale;
+  // Only written by the detect stage.
+  private volatile int frameCount;
+
+  StubDetectionProcessor(Context context, int recordedFrames, float detectionScale) {
+    super(context);
+    captureTimesMs = new long[recordedFrames];
+    this.detectionScale = detectionScale;
+    // Nothing is ever found, which must not slow detection down.
+    setIdleTimeoutMs(0);
+  }
+
+  /** Returns how many frames the camera source handed to this processor. */
+  int getFrameCount() {
+    return frameCount;
+  }
+
+  /**
+   * Returns the capture time of the given frame handed to this processor; read once the camera
+   * source has been stopped.
+   */
+  long getCaptureTimeMs(int index) {
+    return captureTimesMs[index];
+  }
+
+  @Override
+  public float getDetectionScale() {
+    return detectionScale;
+  }
+
+  @Override
+  public void processFrame(
+      PipelineFrame frame, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay) {
+    int index = frameCount;
+    if (index < captureTimesMs.length) {
+      captureTimesMs[index] = frameMetadata.getCaptureTimeMs();
+    }
+    frameCount = index + 1;
+    super.processFrame(frame, frameMetadata, graphicOverlay);
+  }
+
+  @Override
+  protected Task<List<String>> detectInImage(InputImage image) {
+    return result;
+  }
+
+  @Override
+  protected void onSuccess(
+      List<String> results,
+      GraphicOverlay graphicOverlay,
+      @Nullable InputImage image,
+      @Nullable FrameMetadata frameMetadata,
+      @Nullable Bitmap snapshot) {
+    CameraImageGraphic.showOrRecycleSnapshot(graphicOverlay, snapshot);
+  }
+
+  @Override
+  protected void onFailure(Exception e) {
+    throw new AssertionError("Stub detection cannot fail", e);
+  }
+}
@@ -0,0 +1,103 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.exifinterface.media.ExifInterface;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/** Checks how {@link TiledBarcodeScanner} cuts images into tiles and merges what it finds. */
+public class TiledBarcodeScannerTest {
+
+  private static final int FORMAT_QR = 256;
+  private static final int FORMAT_EAN_13 = 32;
+
+  @Test
+  public void tileStarts_coverSideWithOverlap() {
+    assertArrayEquals(new int[] {0}, TiledBarcodeScanner.tileStarts(1000, 1024, 256));
+    assertArrayEquals(new int[] {0, 768, 976}, TiledBarcodeScanner.tileStarts(2000, 1024, 256));
+
+    for (int length = 1025; length < 9000; length += 37) {
+      int[] starts = TiledBarcodeScanner.tileStarts(length, 1024, 256);
+      assertEquals(0, starts[0]);
+      assertEquals(length - 1024, starts[starts.length - 1]);
+      for (int i = 1; i < starts.length; i++) {
+        assertTrue(starts[i] > starts[i - 1]);
+        assertTrue(starts[i - 1] + 1024 - starts[i] >= 256);
+      }
+    }
+  }
+
+  @Test
+  public void toUpright_matchesBitmapRotation() {
+    // A 40 x 10 box at (100, 20) in a 1000 x 600 image as stored.
+    assertBounds(100, 20, 140, 30, 1000, 600, ExifInterface.ORIENTATION_NORMAL);
+    assertBounds(860, 20, 900, 30, 1000, 600, ExifInterface.ORIENTATION_FLIP_HORIZONTAL);
+    assertBounds(860, 570, 900, 580, 1000, 600, ExifInterface.ORIENTATION_ROTATE_180);
+    assertBounds(100, 570, 140, 580, 1000, 600, ExifInterface.ORIENTATION_FLIP_VERTICAL);
+    assertBounds(20, 100, 30, 140, 600, 1000, ExifInterface.ORIENTATION_TRANSPOSE);
+    assertBounds(570, 100, 580, 140, 600, 1000, ExifInterface.ORIENTATION_ROTATE_90);
+    assertBounds(570, 860, 580, 900, 600, 1000, ExifInterface.ORIENTATION_TRANSVERSE);
+    assertBounds(20, 860, 30, 900, 600, 1000, ExifInterface.ORIENTATION_ROTATE_270);
+  }
+
+  @Test
+  public void merge_dropsCodesFoundAcrossSeams() {
+    List<TiledBarcode> merged =
+        TiledBarcodeScanner.merge(
+            Arrays.asList(
+                barcode(FORMAT_QR, "A", 700, 100, 900, 300),
+                // The same code seen by the next tile, and by the downscaled pass.
+                barcode(FORMAT_QR, "A", 702, 101, 901, 299),
+                barcode(FORMAT_QR, "A", 696, 96, 904, 304),
+                // The same value on another label.
+                barcode(FORMAT_QR, "A", 3000, 100, 3200, 300),
+                // Another format at the same place.
+                barcode(FORMAT_EAN_13, "A", 700, 100, 900, 300),
+                barcode(FORMAT_EAN_13, "4006381333931", 100, 50, 400, 150)));
+
+    assertEquals(4, merged.size());
+    assertEquals("4006381333931", merged.get(0).getRawValue());
+    assertEquals(696, merged.get(1).getLeft());
+    assertEquals(FORMAT_QR, merged.get(1).getFormat());
+    assertEquals(FORMAT_EAN_13, merged.get(2).getFormat());
+    assertEquals(3000, merged.get(3).getLeft());
+  }
+
+  @Test
+  public void merge_codesWithoutValue_mergedByOverlap() {
+    List<TiledBarcode> merged =
+        TiledBarcodeScanner.merge(
+            Arrays.asList(
+                barcode(FORMAT_QR, null, 0, 0, 100, 100),
+                barcode(FORMAT_QR, null, 10, 10, 110, 110),
+                barcode(FORMAT_QR, null, 90, 90, 190, 190)));
+
+    assertEquals(2, merged.size());
+  }
+
+  private static void assertBounds(
+      int left, int top, int right, int bottom, int width, int height, int orientation) {
+    TiledBarcode upright =
+        TiledBarcodeScanner.toUpright(
+            null, FORMAT_QR, "A", orientation, 1000, 600, 100, 20, 140, 30);
+    assertArrayEquals(
+        new int[] {left, top, right, bottom, width, height},
+        new int[] {
+          upright.getLeft(),
+          upright.getTop(),
+          upright.getRight(),
+          upright.getBottom(),
+          upright.getImageWidth(),
+          upright.getImageHeight()
+        });
+  }
+
+  private static TiledBarcode barcode(
+      int format, String rawValue, int left, int top, int right, int bottom) {
+    return new TiledBarcode(null, format, rawValue, left, top, right, bottom, 4000, 3000);
+  }
+}
@@ -0,0 +1,64 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Activity;
+import android.os.Looper;
+import android.os.SystemClock;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+/** Checks admission and staleness of live detection in {@link VisionProcessorBase}. */
+@RunWith(RobolectricTestRunner.class)
+public class VisionProcessorBaseTest {
+
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+  private static final long FRAME_INTERVAL_MS = 33;
+  private static final int FRAMES = 30;
+
+  private GraphicOverlay overlay;
+  private StubDetectionProcessor processor;
+
+  @Before
+  public void setUp() {
+    Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+    overlay = new GraphicOverlay(activity, null);
+    processor = new StubDetectionProcessor(activity, 0, 1f);
+  }
+
+  @After
+  public void tearDown() {
+    processor.stop();
+  }
+
+  @Test
+  public void framesCapturedLongBeforeEntry_areStillDetected() {
+    // Camera2 sensor timestamps often lag the arrival of the frame by more than two intervals.
+    long sensorLatencyMs = 100;
+    byte[] buffer = new byte[WIDTH * HEIGHT * 3 / 2];
+    PipelineFrame frame = new PipelineFrame(buffer);
+    FrameMetadata metadata = new FrameMetadata();
+
+    for (int i = 1; i <= FRAMES; i++) {
+      // Delivers the previous result, which frees the frame, and moves the clock on.
+      shadowOf(Looper.getMainLooper()).idleFor(FRAME_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      long entryTimeMs = SystemClock.elapsedRealtime();
+      frame.reset(WIDTH, HEIGHT, 0, i, entryTimeMs - sensorLatencyMs, entryTimeMs);
+      if (processor.shouldAdmitFrame(entryTimeMs)) {
+        metadata.set(frame);
+        processor.processFrame(frame, metadata, overlay);
+      }
+      frame.release();
+    }
+    shadowOf(Looper.getMainLooper()).idle();
+
+    assertEquals(FRAMES, processor.getDetectionCount());
+  }
+}
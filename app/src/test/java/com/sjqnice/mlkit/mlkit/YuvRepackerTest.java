@@ -0,0 +1,316 @@
+package com.sjqnice.mlkit.mlkit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks the repacker on padded camera layouts, against the byte-at-a-time unpacking that {@link
+ * BitmapUtils} used before, and how it tells the chroma layout. Also benchmarks the two when run
+ * with {@code -Dbenchmark=true}.
+ */
+public class YuvRepackerTest {
+
+  private static final int WIDTH = 1280;
+  private static final int HEIGHT = 720;
+  private static final int ROW_PADDING = 64;
+  private static final int BENCHMARK_WARM_UP_RUNS = 200;
+  private static final int BENCHMARK_RUNS = 500;
+
+  @Test
+  public void interleavedChromaWithPaddedRows_isRepacked() {
+    Layout layout = Layout.create(WIDTH, HEIGHT, ROW_PADDING, /* interleaved= */ true, 1);
+    assertEquals(YuvRepacker.CHROMA_VU_INTERLEAVED, layout.getChromaLayout());
+    byte[] out = new byte[WIDTH * HEIGHT * 3 / 2];
+    layout.repack(out);
+    assertArrayEquals(layout.expected, out);
+  }
+
+  @Test
+  public void planarChromaWithPaddedRows_isRepacked() {
+    Layout layout = Layout.create(WIDTH, HEIGHT, ROW_PADDING, /* interleaved= */ false, 2);
+    assertEquals(YuvRepacker.CHROMA_SEPARATE, layout.getChromaLayout());
+    byte[] out = new byte[WIDTH * HEIGHT * 3 / 2];
+    layout.repack(out);
+    assertArrayEquals(layout.expected, out);
+  }
+
+  @Test
+  public void smallFrame_isRepackedOnTheCallingThread() {
+    Layout layout = Layout.create(64, 48, 16, /* interleaved= */ true, 3);
+    byte[] out = new byte[64 * 48 * 3 / 2];
+    layout.repack(out);
+    assertArrayEquals(layout.expected, out);
+  }
+
+  @Test
+  public void uniformChroma_layoutIsToldByProbing() {
+    Layout interleaved = Layout.create(64, 48, 16, /* interleaved= */ true, 4).fillChroma(0x80);
+    assertEquals(YuvRepacker.CHROMA_VU_INTERLEAVED, interleaved.getChromaLayout());
+    Layout separate = interleaved.copyChromaPlanes();
+    assertEquals(YuvRepacker.CHROMA_SEPARATE, separate.getChromaLayout());
+
+    // The probe leaves the planes as they were.
+    byte[] out = new byte[64 * 48 * 3 / 2];
+    interleaved.repack(out);
+    assertArrayEquals(interleaved.expected, out);
+  }
+
+  @Test
+  public void readOnlyPlanes_uniformChroma_layoutIsUnknownUntilChromaVaries() {
+    // Could as well be separate planes holding the same values.
+    Layout uniform = Layout.create(64, 48, 16, /* interleaved= */ true, 6).fillChroma(0x80);
+    assertEquals(YuvRepacker.CHROMA_UNKNOWN, uniform.readOnly().getChromaLayout());
+
+    Layout interleaved = Layout.create(64, 48, 16, /* interleaved= */ true, 7);
+    assertEquals(YuvRepacker.CHROMA_VU_INTERLEAVED, interleaved.readOnly().getChromaLayout());
+    Layout separate = Layout.create(64, 48, 16, /* interleaved= */ false, 8);
+    assertEquals(YuvRepacker.CHROMA_SEPARATE, separate.readOnly().getChromaLayout());
+  }
+
+  @Test
+  public void repack_matchesByteAtATimeUnpacking() {
+    for (boolean interleaved : new boolean[] {true, false}) {
+      // Without row padding, which the old unpacking could not handle.
+      Layout layout = Layout.create(WIDTH, HEIGHT, 0, interleaved, 9);
+      byte[] repacked = new byte[WIDTH * HEIGHT * 3 / 2];
+      byte[] unpacked = new byte[WIDTH * HEIGHT * 3 / 2];
+      layout.repack(repacked);
+      layout.unpackByteAtATime(unpacked);
+      assertArrayEquals(unpacked, repacked);
+    }
+  }
+
+  @Test
+  public void benchmark_repackAgainstByteAtATimeUnpacking() {
+    assumeTrue("Run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+    byte[] out = new byte[WIDTH * HEIGHT * 3 / 2];
+    for (int padding : new int[] {0, ROW_PADDING}) {
+      for (boolean interleaved : new boolean[] {true, false}) {
+        Layout layout = Layout.create(WIDTH, HEIGHT, padding, interleaved, 10);
+        long repackNs = 0;
+        long unpackNs = 0;
+        for (int i = -BENCHMARK_WARM_UP_RUNS; i < BENCHMARK_RUNS; i++) {
+          long startNs = System.nanoTime();
+          layout.repack(out);
+          long repackedNs = System.nanoTime();
+          layout.unpackByteAtATime(out);
+          long unpackedNs = System.nanoTime();
+          if (i >= 0) {
+            repackNs += repackedNs - startNs;
+            unpackNs += unpackedNs - repackedNs;
+          }
+        }
+        assertArrayEquals(layout.expected, out);
+        System.out.printf(
+            "%dx%d, row padding %d, %s chroma: repack %d us, byte at a time %d us%n",
+            WIDTH,
+            HEIGHT,
+            padding,
+            interleaved ? "interleaved" : "planar",
+            repackNs / BENCHMARK_RUNS / 1000,
+            unpackNs / BENCHMARK_RUNS / 1000);
+      }
+    }
+  }
+
+  /** Planes laid out like a camera would, with the NV21 frame they hold. */
+  private static final class Layout {
+    final int width;
+    final int height;
+    final int yRowStride;
+    final int chromaRowStride;
+    final int chromaPixelStride;
+    final ByteBuffer y;
+    final ByteBuffer u;
+    final ByteBuffer v;
+    final byte[] expected;
+
+    private Layout(
+        int width,
+        int height,
+        int yRowStride,
+        int chromaRowStride,
+        int chromaPixelStride,
+        ByteBuffer y,
+        ByteBuffer u,
+        ByteBuffer v,
+        byte[] expected) {
+      this.width = width;
+      this.height = height;
+      this.yRowStride = yRowStride;
+      this.chromaRowStride = chromaRowStride;
+      this.chromaPixelStride = chromaPixelStride;
+      this.y = y;
+      this.u = u;
+      this.v = v;
+      this.expected = expected;
+    }
+
+    /**
+     * Lays out a random frame. Like camera planes, the buffers end right after the last sample,
+     * without the padding of the last row.
+     */
+    static Layout create(int width, int height, int padding, boolean interleaved, long seed) {
+      Random random = new Random(seed);
+      byte[] expected = new byte[width * height * 3 / 2];
+      random.nextBytes(expected);
+      int chromaWidth = width / 2;
+      int chromaHeight = height / 2;
+
+      int yRowStride = width + padding;
+      byte[] yData = new byte[yRowStride * (height - 1) + width];
+      for (int row = 0; row < height; row++) {
+        System.arraycopy(expected, row * width, yData, row * yRowStride, width);
+      }
+
+      int imageSize = width * height;
+      if (interleaved) {
+        // One VU buffer; the V plane starts at its first byte and the U plane one byte later.
+        int rowStride = width + padding;
+        byte[] vu = new byte[rowStride * (chromaHeight - 1) + 2 * chromaWidth];
+        for (int row = 0; row < chromaHeight; row++) {
+          System.arraycopy(expected, imageSize + row * width, vu, row * rowStride, width);
+        }
+        ByteBuffer v = ByteBuffer.wrap(vu, 0, vu.length - 1).slice();
+        ByteBuffer u = ByteBuffer.wrap(vu, 1, vu.length - 1).slice();
+        return new Layout(
+            width, height, yRowStride, rowStride, 2, ByteBuffer.wrap(yData), u, v, expected);
+      }
+
+      int rowStride = chromaWidth + padding;
+      byte[] vData = new byte[rowStride * (chromaHeight - 1) + chromaWidth];
+      byte[] uData = new byte[vData.length];
+      for (int row = 0; row < chromaHeight; row++) {
+        for (int column = 0; column < chromaWidth; column++) {
+          int index = imageSize + row * width + 2 * column;
+          vData[row * rowStride + column] = expected[index];
+          uData[row * rowStride + column] = expected[index + 1];
+        }
+      }
+      return new Layout(
+          width,
+          height,
+          yRowStride,
+          rowStride,
+          1,
+          ByteBuffer.wrap(yData),
+          ByteBuffer.wrap(uData),
+          ByteBuffer.wrap(vData),
+          expected);
+    }
+
+    int getChromaLayout() {
+      return YuvRepacker.getChromaLayout(
+          u, chromaRowStride, chromaPixelStride, v, chromaRowStride, chromaPixelStride);
+    }
+
+    /** Sets every chroma byte, padding included, and the expected frame to one value. */
+    Layout fillChroma(int value) {
+      for (ByteBuffer plane : new ByteBuffer[] {u, v}) {
+        for (int i = plane.position(); i < plane.limit(); i++) {
+          plane.put(i, (byte) value);
+        }
+      }
+      Arrays.fill(expected, width * height, expected.length, (byte) value);
+      return this;
+    }
+
+    /**
+     * Returns the planes with the V and U views copied into separate buffers, keeping their strides
+     * and contents.
+     */
+    Layout copyChromaPlanes() {
+      return new Layout(
+          width,
+          height,
+          yRowStride,
+          chromaRowStride,
+          chromaPixelStride,
+          y,
+          copy(u),
+          copy(v),
+          expected);
+    }
+
+    private static ByteBuffer copy(ByteBuffer plane) {
+      ByteBuffer copy = ByteBuffer.allocate(plane.remaining());
+      copy.put(plane.duplicate());
+      copy.rewind();
+      return copy;
+    }
+
+    /** Returns the same planes as read-only buffers, which cannot be probed. */
+    Layout readOnly() {
+      return new Layout(
+          width,
+          height,
+          yRowStride,
+          chromaRowStride,
+          chromaPixelStride,
+          y.asReadOnlyBuffer(),
+          u.asReadOnlyBuffer(),
+          v.asReadOnlyBuffer(),
+          expected);
+    }
+
+    void repack(byte[] out) {
+      YuvRepacker.toNv21(
+          y,
+          yRowStride,
+          1,
+          u,
+          chromaRowStride,
+          chromaPixelStride,
+          v,
+          chromaRowStride,
+          chromaPixelStride,
+          width,
+          height,
+          getChromaLayout() == YuvRepacker.CHROMA_VU_INTERLEAVED,
+          out);
+    }
+
+    /** The unpacking BitmapUtils used to fall back to, one absolute get per byte. */
+    void unpackByteAtATime(byte[] out) {
+      int imageSize = width * height;
+      unpackPlane(y, yRowStride, 1, width, height, out, 0, 1);
+      unpackPlane(u, chromaRowStride, chromaPixelStride, width, height, out, imageSize + 1, 2);
+      unpackPlane(v, chromaRowStride, chromaPixelStride, width, height, out, imageSize, 2);
+    }
+
+    private static void unpackPlane(
+        ByteBuffer buffer,
+        int rowStride,
+        int pixelStride,
+        int width,
+        int height,
+        byte[] out,
+        int offset,
+        int outPixelStride) {
+      buffer.rewind();
+      int numRow = (buffer.limit() + rowStride - 1) / rowStride;
+      if (numRow == 0) {
+        return;
+      }
+      int scaleFactor = height / numRow;
+      int numCol = width / scaleFactor;
+      int outputPos = offset;
+      int rowStart = 0;
+      for (int row = 0; row < numRow; row++) {
+        int inputPos = rowStart;
+        for (int col = 0; col < numCol; col++) {
+          out[outputPos] = buffer.get(inputPos);
+          outputPos += outPixelStride;
+          inputPos += pixelStride;
+        }
+        rowStart += rowStride;
+      }
+    }
+  }
+}